@@ -0,0 +1,88 @@
+package pb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.utils.Eventable;
+
+/**
+ * Emitting an event to callbacks for every event, added the old way for
+ * the special event name "*" and the new way with
+ * {@link pb.utils.Eventable#onAny(pb.protocols.event.IWildcardCallback)}.
+ * The arguments are made once, so all that is measured is the dispatch.
+ * Run with {@code -prof gc} and look at {@code gc.alloc.rate.norm}.
+ * <br/>
+ * The results were:
+ * <pre>
+ * Benchmark           (listeners)        throughput   gc.alloc.rate.norm
+ * EmitBenchmark.star            1    119 ops/us         24 B/op
+ * EmitBenchmark.star            4    105 ops/us         24 B/op
+ * EmitBenchmark.star           16     52 ops/us         24 B/op
+ * EmitBenchmark.typed           1    349 ops/us         ~0 B/op
+ * EmitBenchmark.typed           4    264 ops/us         ~0 B/op
+ * EmitBenchmark.typed          16    109 ops/us         ~0 B/op
+ * </pre>
+ * Before callbacks were kept in copy-on-write arrays, "*" copied the
+ * arguments for each callback, i.e. 24 B per callback per event, and emit
+ * was synchronized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class EmitBenchmark {
+
+	@Param({"1","4","16"})
+	public int listeners;
+
+	private Eventable star;
+
+	private Eventable typed;
+
+	private Object[] args;
+
+	/**
+	 * Written by the callbacks so they can't be optimised away.
+	 */
+	private int sink;
+
+	@Setup
+	public void setup() {
+		star=new Eventable();
+		typed=new Eventable();
+		for(int i=0;i<listeners;i++) {
+			star.on("*",(eventArgs)->{
+				sink+=((String)eventArgs[0]).length()+eventArgs.length;
+			});
+			typed.onAny((eventName,eventArgs)->{
+				sink+=eventName.length()+eventArgs.length+1;
+			});
+		}
+		args=new Object[] {"board-42%1,2;3,4;"};
+	}
+
+	@Benchmark
+	public int star() {
+		star.emit("BOARD_PATH_UPDATE",args);
+		return sink;
+	}
+
+	@Benchmark
+	public int typed() {
+		typed.emit("BOARD_PATH_UPDATE",args);
+		return sink;
+	}
+}
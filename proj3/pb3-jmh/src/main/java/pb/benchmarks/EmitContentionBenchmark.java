@@ -0,0 +1,91 @@
+package pb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * Emitting on one {@link pb.utils.Eventable} from several threads at once,
+ * as the endpoints' readers and the application do, see
+ * {@link EmitBenchmark} for a single thread. In {@code emit} four threads
+ * only emit; in {@code churn} one thread also keeps adding and removing a
+ * callback, as sessions starting and stopping do, which copies the
+ * callback arrays.
+ * <br/>
+ * Reports throughput and the distribution of times per operation. Run with
+ * {@code -prof gc} for the bytes allocated per operation.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class EmitContentionBenchmark {
+
+	@Param({"1","16"})
+	public int listeners;
+
+	private Eventable eventable;
+
+	private Object[] args;
+
+	private IEventCallback churned;
+
+	/**
+	 * Written by the callbacks so they can't be optimised away. Races
+	 * between threads don't matter.
+	 */
+	private int sink;
+
+	@Setup
+	public void setup() {
+		eventable=new Eventable();
+		for(int i=0;i<listeners;i++) {
+			eventable.on("BOARD_PATH_UPDATE",(eventArgs)->{
+				sink+=((String)eventArgs[0]).length();
+			});
+		}
+		churned=(eventArgs)->sink++;
+		args=new Object[] {"board-42%1,2;3,4;"};
+	}
+
+	@Benchmark
+	@Group("emit")
+	@GroupThreads(4)
+	public int emitOnly() {
+		eventable.emit("BOARD_PATH_UPDATE",args);
+		return sink;
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(4)
+	public int emitWhileChurning() {
+		eventable.emit("BOARD_PATH_UPDATE",args);
+		return sink;
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public boolean churn() {
+		eventable.on("BOARD_PATH_UPDATE",churned);
+		return eventable.off("BOARD_PATH_UPDATE",churned);
+	}
+}
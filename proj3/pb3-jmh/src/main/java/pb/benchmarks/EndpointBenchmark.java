@@ -0,0 +1,149 @@
+package pb.benchmarks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.LoopbackTransport;
+import pb.managers.endpoint.NioTransport;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.protocols.event.EventProtocol;
+import pb.utils.Utils;
+
+/**
+ * Round trips of an event between a {@link pb.managers.ClientManager} and a
+ * {@link pb.managers.ServerManager} over a loopback socket: the client
+ * emits {@code PING} and the server emits {@code PONG} back with the same
+ * data. Covers the whole stack, i.e. the event protocol, encoding, framing,
+ * the send queue and the dispatcher, on either socket transport, or just
+ * the protocols and the dispatcher on the in-JVM loopback transport. With a
+ * {@link #batchWindow} each event waits for others to batch with it, which
+ * dominates the round trip when there are none.
+ * <br/>
+ * Reports round trips per second and their latency percentiles. Run with
+ * {@code -prof gc} for the bytes allocated per round trip by both ends,
+ * which share the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class EndpointBenchmark {
+
+	private static final String ping = "PING";
+
+	private static final String pong = "PONG";
+
+	@Param({"socket","nio","loopback"})
+	public String transport;
+
+	/**
+	 * Characters of event data.
+	 */
+	@Param({"100","10000"})
+	public int size;
+
+	/**
+	 * Milliseconds that events wait to be batched at both ends, 0 for none.
+	 */
+	@Param({"0","5"})
+	public int batchWindow;
+
+	@Param({"3190"})
+	public int port;
+
+	private Transport serverTransport;
+
+	private Transport clientTransport;
+
+	private ServerManager serverManager;
+
+	private ClientManager clientManager;
+
+	private Endpoint endpoint;
+
+	private String data;
+
+	private final BlockingQueue<String> replies = new ArrayBlockingQueue<>(1);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		serverTransport=newTransport();
+		// loopback ports belong to the transport, so both ends share it
+		clientTransport=transport.equals("loopback") ? serverTransport : newTransport();
+		serverManager=new ServerManager(port,null,serverTransport);
+		serverManager.on(ServerManager.sessionStarted,(args)->{
+			Endpoint server=(Endpoint)args[0];
+			((EventProtocol)server.getProtocol(EventProtocol.protocolName)).batchWindow=batchWindow;
+			server.on(ping,(eventArgs)->server.emit(pong,eventArgs[0]));
+		});
+		serverManager.start();
+		CountDownLatch started=new CountDownLatch(1);
+		// the server may not be listening yet, so the client tries again
+		clientManager=new ClientManager("localhost",port,clientTransport);
+		clientManager.on(ClientManager.sessionStarted,(args)->{
+			endpoint=(Endpoint)args[0];
+			((EventProtocol)endpoint.getProtocol(EventProtocol.protocolName)).batchWindow=batchWindow;
+			endpoint.on(pong,(eventArgs)->replies.offer((String)eventArgs[0]));
+			started.countDown();
+		});
+		clientManager.start();
+		if(!started.await(30,TimeUnit.SECONDS)) throw new IllegalStateException("session did not start");
+		StringBuilder sb=new StringBuilder(size);
+		for(int i=0;i<size;i++) sb.append((char)('a'+i%26));
+		data=sb.toString();
+	}
+
+	private Transport newTransport() throws Exception {
+		switch(transport) {
+		case "socket":
+			return new SocketTransport();
+		case "nio":
+			return new NioTransport();
+		case "loopback":
+			return new LoopbackTransport();
+		default:
+			throw new IllegalArgumentException("no such transport: "+transport);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		clientManager.shutdown();
+		clientManager.join(5000);
+		serverManager.shutdown();
+		serverManager.join(5000);
+		serverTransport.shutDown();
+		clientTransport.shutDown();
+		Utils.getInstance().cleanUp();
+	}
+
+	@Benchmark
+	public String roundTrip() throws InterruptedException {
+		endpoint.emit(ping,data);
+		String reply=replies.poll(10,TimeUnit.SECONDS);
+		if(reply==null) throw new IllegalStateException("no reply within 10 seconds");
+		return reply;
+	}
+}
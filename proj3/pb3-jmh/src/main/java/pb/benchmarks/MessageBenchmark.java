@@ -0,0 +1,120 @@
+package pb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+import pb.protocols.MessageSchema;
+
+/**
+ * Every message type through {@link pb.protocols.Message#toJsonString()},
+ * {@link pb.protocols.Message#toMessage(String)}, {@link pb.protocols.Document#parse(String)}
+ * and the binary {@link pb.protocols.MessageCodec}. Each message is made
+ * from its schema, with a typical string for each string parameter and
+ * three of them for each list, so a new message only needs adding to
+ * {@link #message}.
+ * <br/>
+ * Reports throughput and the distribution of times per operation. Run with
+ * {@code -prof gc} and look at {@code gc.alloc.rate.norm} for the bytes
+ * allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MessageBenchmark {
+
+	@Param({"KeepAliveRequest","KeepAliveReply","SessionStartRequest","SessionStartReply",
+		"SessionStopRequest","SessionStopReply","EventRequest","EventReply","EventBatchRequest",
+		"StreamOpenRequest","StreamOpenReply","StreamDataRequest","StreamCreditRequest",
+		"StreamCloseRequest"})
+	public String message;
+
+	private Message msg;
+
+	private String json;
+
+	private byte[] binary;
+
+	@Setup
+	public void setup() throws InvalidMessage {
+		MessageSchema schema=MessageCodec.getSchema(message);
+		if(schema==null) throw new IllegalArgumentException("no such message: "+message);
+		json=sampleJson(schema);
+		msg=Message.toMessage(json);
+		binary=MessageCodec.encode(msg).toByteArray();
+	}
+
+	/**
+	 *
+	 * @param schema
+	 * @return a message of the schema as JSON, with every parameter present
+	 */
+	private static String sampleJson(MessageSchema schema) {
+		StringBuilder path=new StringBuilder("board-42%");
+		for(int i=0;i<15;i++) path.append(i*7).append(',').append(i*3).append(';');
+		Document doc=new Document();
+		doc.append("name",schema.getName());
+		doc.append("protocolName",schema.getProtocolName());
+		doc.append("type",schema.getType().toString());
+		doc.append("timeoutId",1234L);
+		for(int i=0;i<schema.getNumFields();i++) {
+			switch(schema.getFieldType(i)) {
+			case String:
+				doc.append(schema.getFieldName(i),path.toString());
+				break;
+			case Strings:
+				ArrayList<String> list=new ArrayList<>();
+				for(int j=0;j<3;j++) list.add(path.toString());
+				doc.append(schema.getFieldName(i),list);
+				break;
+			case Number:
+				doc.append(schema.getFieldName(i),1233L);
+				break;
+			}
+		}
+		return doc.toJson();
+	}
+
+	@Benchmark
+	public String toJsonString() {
+		return msg.toJsonString();
+	}
+
+	@Benchmark
+	public Message toMessage() throws InvalidMessage {
+		return Message.toMessage(json);
+	}
+
+	@Benchmark
+	public Document documentParse() {
+		return Document.parse(json);
+	}
+
+	@Benchmark
+	public int encode() throws InvalidMessage {
+		return MessageCodec.encode(msg).size();
+	}
+
+	@Benchmark
+	public Message decode() throws InvalidMessage {
+		return MessageCodec.decode(binary,0,binary.length);
+	}
+}
@@ -0,0 +1,73 @@
+package pb.benchmarks;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.app.Whiteboard;
+import pb.app.WhiteboardPath;
+
+/**
+ * Writing a whole {@link pb.app.Whiteboard} as a string, as the owner does
+ * for every {@code BOARD_DATA} request, and reading it back with
+ * {@link pb.app.Whiteboard#whiteboardFromString(String, String)}, as a
+ * peer does when it joins or falls behind. Each path is a stroke of 20
+ * points, alternately black and red.
+ * <br/>
+ * Reports throughput and the distribution of times per operation. Run with
+ * {@code -prof gc} for the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={"-Djava.awt.headless=true","-Xmx2g"})
+public class WhiteboardBenchmark {
+
+	private static final String name = "localhost:3100:0";
+
+	@Param({"100","10000","100000"})
+	public int paths;
+
+	private Whiteboard board;
+
+	/**
+	 * The board without its name, as whiteboardFromString takes it.
+	 */
+	private String data;
+
+	@Setup
+	public void setup() {
+		board=new Whiteboard(name,false);
+		for(int i=0;i<paths;i++) {
+			WhiteboardPath path=new WhiteboardPath(i%2==0 ? Color.black : Color.red);
+			for(int j=0;j<20;j++) path.addPoint((i*13+j*7)%1000,(i*17+j*3)%800);
+			board.addPath(path,board.getVersion());
+		}
+		data=board.toString().substring(name.length()+1);
+	}
+
+	@Benchmark
+	public String boardToString() {
+		return board.toString();
+	}
+
+	@Benchmark
+	public Whiteboard whiteboardFromString() {
+		Whiteboard parsed=new Whiteboard(name,true);
+		parsed.whiteboardFromString(name,data);
+		return parsed;
+	}
+}
@@ -1,12 +1,14 @@
 package pb;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
@@ -33,6 +35,7 @@ public class AdminClient  {
 	private static Logger log = Logger.getLogger(AdminClient.class.getName());
 	private static int port=Utils.serverPort; // default port number for the server
 	private static String host=Utils.serverHost; // default host for the server
+	private static final long replyTimeout=10000; // ms to wait for a report from the server
 	
 	private static void help(Options options){
 		String header = "PB Admin Client for Unimelb COMP90015\n\n";
@@ -56,6 +59,12 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("stats",false,"print the server's connections, timers and settings");
+        options.addOption("trace",false,"print the messages the server recorded most recently");
+        Option optionSet = new Option("set",true,"change server settings while it runs, as setting=value, "
+        		+ "for eventTimeout, keepAliveTimeout, eventRateLimit, maxConnections, resumeTimeout and traceSampling");
+        optionSet.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(optionSet);
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -87,13 +96,40 @@ public class AdminClient  {
         ClientManager clientManager = new ClientManager(host,port);
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
-        	if(cmd2.hasOption("shutdown")) {
-        		String password="";
-        		if(cmd2.hasOption("password")) {
-        			password=cmd2.getOptionValue("password");
-        		} else {
-        			System.out.println("using a blank password");
+        	String password="";
+        	if(cmd2.hasOption("password")) {
+        		password=cmd2.getOptionValue("password");
+        	} else if(cmd2.hasOption("shutdown") || cmd2.hasOption("stats") || cmd2.hasOption("set")
+        			|| cmd2.hasOption("trace")) {
+        		System.out.println("using a blank password");
+        	}
+        	if(cmd2.hasOption("stats") || cmd2.hasOption("set") || cmd2.hasOption("trace")) {
+        		// print each report, then stop once they have all come
+        		AtomicInteger reports = new AtomicInteger((cmd2.hasOption("stats") ? 1 : 0)
+        				+ (cmd2.hasOption("set") ? 1 : 0) + (cmd2.hasOption("trace") ? 1 : 0));
+        		endpoint.on(ServerManager.serverReport, (reportArgs)->{
+        			System.out.println((String) reportArgs[0]);
+        			if(reports.decrementAndGet()==0) clientManager.shutdown();
+        		});
+        		Utils.getInstance().setTimeout(()->{
+        			if(reports.getAndSet(0)>0) {
+        				System.out.println("no report from the server, is it using a password?");
+        				clientManager.shutdown();
+        			}
+        		}, replyTimeout);
+        		if(cmd2.hasOption("set")) {
+        			endpoint.emit(ServerManager.serverTune,
+        					password+"\n"+String.join("\n",cmd2.getOptionValues("set")));
+        		}
+        		if(cmd2.hasOption("stats")) {
+        			endpoint.emit(ServerManager.serverStats, password);
         		}
+        		if(cmd2.hasOption("trace")) {
+        			endpoint.emit(ServerManager.serverTrace, password);
+        		}
+        		return;
+        	}
+        	if(cmd2.hasOption("shutdown")) {
 	        	if(cmd2.hasOption("force")) {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
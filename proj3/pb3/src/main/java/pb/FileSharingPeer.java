@@ -24,11 +24,16 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.codec.binary.Base64;
 
+import pb.jfr.FileChunk;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
+import pb.managers.endpoint.EmulatedTransport;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.NetworkConditions;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
 import pb.utils.Utils;
 
 /**
@@ -91,6 +96,11 @@ public class FileSharingPeer {
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
 	
+	/**
+	 * transport for the peer manager, which may emulate a slower network
+	 */
+	private static Transport transport=new SocketTransport();
+	
 	/**
 	 * chunk size to use (bytes) when transferring a file
 	 */
@@ -114,6 +124,8 @@ public class FileSharingPeer {
 	 */
 	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
 		try {
+			FileChunk event = new FileChunk();
+			event.begin();
 			int read = in.read(buffer);
 			if(read==-1) {
 				endpoint.emit(fileContents, ""); // signals no more bytes in file
@@ -122,6 +134,13 @@ public class FileSharingPeer {
 				endpoint.emit(fileContents, new String(Base64.encodeBase64(
 						Arrays.copyOfRange(buffer, 0, read)),
 						StandardCharsets.US_ASCII));
+				event.end();
+				if(event.shouldCommit()) {
+					event.otherEndpoint = endpoint.getOtherEndpointId();
+					event.size = read;
+					event.sent = true;
+					event.commit();
+				}
 				if(read<chunkSize) {
 					endpoint.emit(fileContents, "");
 					in.close();
@@ -160,6 +179,16 @@ public class FileSharingPeer {
 			ClientManager clientManager) {
 		if(filenames.size()==0) {
 			clientManager.shutdown(); // no more index updates to do
+		} else if(endpoint.hasCapability(Endpoint.eventBatch)) {
+			// the event protocol batches these, so there is no need to pace them
+			for(String filename : filenames) {
+				log.info("Sending index update: "+peerport+":"+filename);
+				endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			}
+			filenames.clear();
+			Utils.getInstance().setTimeout(()->{
+				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
+			}, 100);
 		} else {
 			String filename=filenames.remove(0);
 			log.info("Sending index update: "+peerport+":"+filename);
@@ -217,10 +246,12 @@ public class FileSharingPeer {
 		for(String file : files) {
 			filenames.add(file);
 		}
-        PeerManager peerManager = new PeerManager(peerPort);
+        PeerManager peerManager = new PeerManager(peerPort,transport);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
+        	// file chunks must not hold up anything else on the connection
+        	endpoint.setEventPriority(fileContents, Endpoint.Priority.BULK);
         	endpoint.on(getFile,(args2)->{
         		String filename = (String) args2[0];
         		System.out.println("Peer is requesting file: "+filename);
@@ -290,11 +321,21 @@ public class FileSharingPeer {
 						}
 						clientManager.shutdown();
 					} else {
+						FileChunk event = new FileChunk();
+						event.begin();
+						byte[] bytes = Base64.decodeBase64(chunk);
 						try {
-							out.write(Base64.decodeBase64(chunk));
+							out.write(bytes);
 						} catch (IOException e) {
 							System.out.println("Error writing file chunk: "+chunk);
 						}
+						event.end();
+						if(event.shouldCommit()) {
+							event.otherEndpoint = endpoint.getOtherEndpointId();
+							event.size = bytes.length;
+							event.sent = false;
+							event.commit();
+						}
 					}
 				}).on(fileError, (args2)->{
 					System.out.println("Error downloading file");
@@ -329,7 +370,7 @@ public class FileSharingPeer {
 	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
-		PeerManager peerManager = new PeerManager(peerPort);
+		PeerManager peerManager = new PeerManager(peerPort,transport);
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
@@ -389,6 +430,7 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("network",true,"emulate a network, as latency=ms,jitter=ms,bandwidth=kbps,stallEvery=ms,stall=ms");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
@@ -428,6 +470,15 @@ public class FileSharingPeer {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("network")) {
+        	try {
+        		transport = new EmulatedTransport(NetworkConditions.parse(cmd.getOptionValue("network")));
+        	} catch (IllegalArgumentException e) {
+        		System.out.println("-network "+e.getMessage());
+        		help(options);
+        	}
+        }
+        
         
         // start up the client
         log.info("PB Peer starting up");
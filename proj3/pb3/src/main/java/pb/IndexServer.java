@@ -1,7 +1,6 @@
 package pb;
 
 import java.io.IOException;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -191,7 +190,7 @@ public class IndexServer {
 	 */
 	private static void peerUpdate(String peerport) {
 		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+			lastTimeSeen.put(peerport, Utils.getInstance().currentTimeMillis());
 		}
 	}
 	
@@ -0,0 +1,222 @@
+package pb;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.load.EventMix;
+import pb.load.LoadClient;
+import pb.load.LoadStats;
+import pb.managers.endpoint.EmulatedTransport;
+import pb.managers.endpoint.NetworkConditions;
+import pb.managers.endpoint.NioTransport;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.utils.Utils;
+
+/**
+ * Load Generator main. Runs many simulated clients from one JVM against a
+ * whiteboard server, an index server or a whiteboard peer, and prints what
+ * they saw as JSON: sessions started a second, events sent and answered a
+ * second, latency percentiles of the answers and errors by kind.
+ * <br/>
+ * Clients are started at {@code -connectRate} a second. Once they have all
+ * started, or failed to, the test runs for {@code -duration} seconds, each
+ * client emitting {@code -rate} events a second on average, chosen from
+ * {@code -mix}; only this part counts towards the event rates and
+ * latencies. Events still waiting for their answers at the end are given
+ * up to {@code -timeout} ms. Clients share one non-blocking transport
+ * unless {@code -sockets} is given, or {@code -network} to emulate a
+ * slower network than the one the test runs over.
+ *
+ * @see {@link pb.load.LoadClient}
+ * @see {@link pb.load.EventMix}
+ */
+public class LoadGenerator {
+	private static Logger log = Logger.getLogger(LoadGenerator.class.getName());
+	private static int port=Utils.serverPort; // default port number for the server
+	private static String host=Utils.serverHost; // default host for the server
+
+	/**
+	 * Milliseconds between checks for events that have timed out.
+	 */
+	private static final long expireInterval=1000;
+
+	private static void help(Options options){
+		String header = "PB Load Generator for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.LoadGenerator", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		// set a nice log format
+		System.setProperty("java.util.logging.SimpleFormatter.format",
+				"[%1$tl:%1$tM:%1$tS:%1$tL] %2$s %4$s: %5$s%n");
+
+		// parse command line options
+		Options options = new Options();
+		options.addOption("port",true,"server port, an integer");
+		options.addOption("host",true,"hostname, a string");
+		options.addOption("target",true,"whiteboard, index or peer, to choose the mix of events, whiteboard unless given");
+		options.addOption("mix",true,"events and their weights, as event=weight,..., for events "
+				+ "share, unshare, update, peer, query, board and boardData");
+		options.addOption("board",true,"the peer's board for board events, as host:port:boardid");
+		options.addOption("clients",true,"simulated clients, an integer, 100 unless given");
+		options.addOption("connectRate",true,"clients started a second, a number, 100 unless given");
+		options.addOption("rate",true,"events a second from each client, a number, 1 unless given");
+		options.addOption("duration",true,"seconds to measure for once the clients have started, 30 unless given");
+		options.addOption("timeout",true,"milliseconds to wait for a session or an answer, 10000 unless given");
+		options.addOption("sockets",false,"use a thread per connection rather than non-blocking io");
+		options.addOption("network",true,"emulate a network, as latency=ms,jitter=ms,bandwidth=kbps,stallEvery=ms,stall=ms, "
+				+ "with a thread per connection");
+		options.addOption("out",true,"file to write the results to, rather than standard output");
+		options.addOption("verbose",false,"log everything the clients do");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int clients=100;
+		double connectRate=100;
+		double rate=1;
+		long duration=30;
+		long timeout=10000;
+		try {
+			if(cmd.hasOption("port")) port=Integer.parseInt(cmd.getOptionValue("port"));
+			if(cmd.hasOption("clients")) clients=Integer.parseInt(cmd.getOptionValue("clients"));
+			if(cmd.hasOption("connectRate")) connectRate=Double.parseDouble(cmd.getOptionValue("connectRate"));
+			if(cmd.hasOption("rate")) rate=Double.parseDouble(cmd.getOptionValue("rate"));
+			if(cmd.hasOption("duration")) duration=Long.parseLong(cmd.getOptionValue("duration"));
+			if(cmd.hasOption("timeout")) timeout=Long.parseLong(cmd.getOptionValue("timeout"));
+		} catch (NumberFormatException e) {
+			System.out.println("-port, -clients, -connectRate, -rate, -duration and -timeout require numbers");
+			help(options);
+		}
+		if(clients<1 || connectRate<=0 || rate<=0 || duration<1 || timeout<1) {
+			System.out.println("-clients, -connectRate, -rate, -duration and -timeout must be positive");
+			help(options);
+		}
+
+		if(cmd.hasOption("host")) {
+			host = cmd.getOptionValue("host");
+		}
+
+		String mixes;
+		switch(cmd.hasOption("target") ? cmd.getOptionValue("target") : "whiteboard") {
+		case "whiteboard":
+			mixes=EventMix.whiteboardServer;
+			break;
+		case "index":
+			mixes=EventMix.indexServer;
+			break;
+		case "peer":
+			mixes=EventMix.whiteboardPeer;
+			break;
+		default:
+			System.out.println("-target must be whiteboard, index or peer");
+			help(options);
+			return;
+		}
+		EventMix mix=null;
+		try {
+			mix=EventMix.parse(cmd.hasOption("mix") ? cmd.getOptionValue("mix") : mixes);
+		} catch (IllegalArgumentException e) {
+			System.out.println("-mix "+e.getMessage());
+			help(options);
+		}
+		String board=cmd.getOptionValue("board");
+		if((mix.uses(EventMix.Op.board) || mix.uses(EventMix.Op.boardData))
+				&& (board==null || board.split(":").length!=3)) {
+			System.out.println("board events require -board host:port:boardid");
+			help(options);
+		}
+
+		// thousands of clients would otherwise log every session
+		if(!cmd.hasOption("verbose")) Logger.getLogger("").setLevel(Level.WARNING);
+
+		Transport transport;
+		if(cmd.hasOption("network")) {
+			try {
+				transport=new EmulatedTransport(NetworkConditions.parse(cmd.getOptionValue("network")));
+			} catch (IllegalArgumentException e) {
+				System.out.println("-network "+e.getMessage());
+				help(options);
+				return;
+			}
+		} else {
+			transport=cmd.hasOption("sockets") ? new SocketTransport() : new NioTransport();
+		}
+		LoadStats stats=new LoadStats();
+		List<LoadClient> loadClients=new ArrayList<>(clients);
+
+		// ramp up at the connect rate
+		long started=System.nanoTime();
+		for(int i=0;i<clients;i++) {
+			long due=started+(long)(i*1e9/connectRate);
+			long wait=due-System.nanoTime();
+			if(wait>0) Thread.sleep(wait/1000000,(int)(wait%1000000));
+			LoadClient client=new LoadClient(i,host,port,transport,stats,mix,rate,timeout,board);
+			loadClients.add(client);
+			client.start();
+		}
+		// give the last clients as long as the timeout to start
+		long rampEnd=System.nanoTime()+timeout*1000000;
+		while(stats.getSessionsStarted()<clients && System.nanoTime()<rampEnd) Thread.sleep(10);
+		System.err.println(stats.getSessionsStarted()+" of "+clients+" sessions started, measuring for "
+				+duration+" s");
+
+		stats.startMeasuring();
+		long end=System.nanoTime()+duration*1000000000L;
+		while(System.nanoTime()<end) {
+			Thread.sleep(Math.min(expireInterval,Math.max(1,(end-System.nanoTime())/1000000)));
+			long now=System.nanoTime();
+			loadClients.forEach((client)->client.expire(now));
+		}
+		stats.stopMeasuring();
+
+		// wait for the answers still to come, then time out the rest
+		loadClients.forEach((client)->client.stopEmitting());
+		long drained=System.nanoTime()+timeout*1000000;
+		while(loadClients.stream().anyMatch(LoadClient::isWaiting) && System.nanoTime()<drained) {
+			Thread.sleep(10);
+		}
+		long now=System.nanoTime()+timeout*1000000;
+		loadClients.forEach((client)->client.expire(now));
+
+		String results=stats.toJson(clients);
+		if(cmd.hasOption("out")) {
+			try(Writer out=new FileWriter(cmd.getOptionValue("out"))) {
+				out.write(results);
+				out.write('\n');
+			}
+		} else {
+			System.out.println(results);
+		}
+
+		loadClients.forEach((client)->client.stop());
+		for(LoadClient client : loadClients) client.join(1000);
+		transport.shutDown();
+		Utils.getInstance().cleanUp();
+		log.info("load test finished with "+stats.getErrors()+" errors");
+		// clients whose sessions never started may still be trying
+		System.exit(0);
+	}
+}
@@ -3,6 +3,10 @@ package pb;
 
 import org.apache.commons.cli.*;
 import pb.app.WhiteboardApp;
+import pb.managers.endpoint.EmulatedTransport;
+import pb.managers.endpoint.NetworkConditions;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
 import pb.utils.Utils;
 
 import java.util.logging.Logger;
@@ -52,6 +56,8 @@ public class WhiteboardPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"whiteboard server hostname, a string");
         options.addOption("whiteboardServerPort",true,"whiteboard server port, an integer");
+        options.addOption("legacyframing",false,"use the old message framing, for older servers and peers");
+        options.addOption("network",true,"emulate a network, as latency=ms,jitter=ms,bandwidth=kbps,stallEvery=ms,stall=ms");
 		
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -85,7 +91,20 @@ public class WhiteboardPeer {
 			host = cmd.getOptionValue("host");
 		}
 
-		WhiteboardApp whiteboard = new WhiteboardApp(peerPort, host, whiteboardServerPort);
+		Transport transport = new SocketTransport();
+		if (cmd.hasOption("network")) {
+			try {
+				transport = new EmulatedTransport(NetworkConditions.parse(cmd.getOptionValue("network")));
+			} catch (IllegalArgumentException e) {
+				System.out.println("-network "+e.getMessage());
+				help(options);
+			}
+		}
+		if (cmd.hasOption("legacyframing")) {
+			transport.setLegacyFraming(true);
+		}
+
+		WhiteboardApp whiteboard = new WhiteboardApp(peerPort, host, whiteboardServerPort, transport);
 		whiteboard.start();
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
@@ -4,6 +4,12 @@ import org.apache.commons.cli.*;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.NioTransport;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.metrics.LogReporter;
+import pb.metrics.Metrics;
+import pb.metrics.PrometheusReporter;
 import pb.utils.Utils;
 
 import java.io.IOException;
@@ -99,6 +105,10 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("nio",true,"use non-blocking io with this many event loop threads");
+        options.addOption("maxframe",true,"largest message accepted from a client in bytes, an integer");
+        options.addOption("metrics",true,"serve metrics over http on this port, an integer");
+        options.addOption("metricslog",true,"log metrics every this many milliseconds, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -118,15 +128,42 @@ public class WhiteboardServer {
 			}
 		}
 
-		// create a server manager and setup event handlers
-		ServerManager serverManager;
+		Transport transport = new SocketTransport();
+		if (cmd.hasOption("nio")) {
+			try {
+				transport = new NioTransport(Integer.parseInt(cmd.getOptionValue("nio")));
+			} catch (NumberFormatException e) {
+				System.out.println("-nio requires a number of threads, parsed: " + cmd.getOptionValue("nio"));
+				help(options);
+			}
+		}
 
-		if (cmd.hasOption("password")) {
-			serverManager = new ServerManager(port, cmd.getOptionValue("password"));
-		} else {
-			serverManager = new ServerManager(port);
+		if (cmd.hasOption("maxframe")) {
+			try {
+				transport.setMaxFrameSize(Integer.parseInt(cmd.getOptionValue("maxframe")));
+			} catch (NumberFormatException e) {
+				System.out.println("-maxframe requires a number of bytes, parsed: " + cmd.getOptionValue("maxframe"));
+				help(options);
+			}
+		}
+
+		try {
+			if (cmd.hasOption("metrics")) {
+				Metrics.getInstance().addReporter(new PrometheusReporter(Integer.parseInt(cmd.getOptionValue("metrics"))));
+			}
+			if (cmd.hasOption("metricslog")) {
+				Metrics.getInstance().addReporter(new LogReporter(Long.parseLong(cmd.getOptionValue("metricslog"))));
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("-metrics requires a port number and -metricslog a number of milliseconds");
+			help(options);
+		} catch (Exception e) {
+			log.severe("could not report metrics: " + e.getMessage());
 		}
 
+		// create a server manager and setup event handlers
+		ServerManager serverManager = new ServerManager(port, cmd.getOptionValue("password"), transport);
+
 		/**
 		 * TODO: Put some server related code here.
 		 */
@@ -161,6 +198,7 @@ public class WhiteboardServer {
 		serverManager.start();
 		// nothing more for the main thread to do
 		serverManager.join();
+		Metrics.getInstance().stopReporters();
 		Utils.getInstance().cleanUp();
 
 	}
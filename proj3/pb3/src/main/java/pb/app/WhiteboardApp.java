@@ -3,9 +3,13 @@ package pb.app;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
+import pb.managers.PeerConnection;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.protocols.event.EventTrace;
 
 import javax.swing.*;
 import java.awt.*;
@@ -176,10 +180,11 @@ public class WhiteboardApp {
     ClientManager indexClientManager;
 
     /**
-     * Mapping board name to a client endpoint/manager connected to the peer that owns(i.e. shares) that board.
+     * Mapping board name to a client endpoint/connection to the peer that owns(i.e. shares) that board.
+     * Boards shared by the same peer share its connection, so the endpoint must not be closed for one board.
      */
     final Map<String, Endpoint> peerClientEndpoints;
-    final Map<String, ClientManager> peerClientManagers;
+    final Map<String, PeerConnection> peerConnections;
 
     /**
      * Mapping board name to a set of server endpoints connected to all peers that are listening to this board.
@@ -200,14 +205,28 @@ public class WhiteboardApp {
     boolean modifyingComboBox = false;
     boolean modifyingCheckBox = false;
 
+    /**
+     * Transport used to connect to the whiteboard server and to peers.
+     */
+    private final Transport transport;
+
     /**
      * Initialize the white board app.
      */
     public WhiteboardApp(int peerPort, String whiteboardServerHost,
                          int whiteboardServerPort) {
+        this(peerPort, whiteboardServerHost, whiteboardServerPort, new SocketTransport());
+    }
+
+    /**
+     * Initialize the white board app with a given transport.
+     */
+    public WhiteboardApp(int peerPort, String whiteboardServerHost,
+                         int whiteboardServerPort, Transport transport) {
+        this.transport = transport;
         whiteboards = new HashMap<>();
         peerClientEndpoints = new HashMap<>();
-        peerClientManagers = new HashMap<>();
+        peerConnections = new HashMap<>();
         peerServerEndpoints = new HashMap<>();
         this.peerport = whiteboardServerHost + ":" + peerPort;
         this.peerHost = whiteboardServerHost;
@@ -342,7 +361,7 @@ public class WhiteboardApp {
     // From whiteboard server
     // TODO
     public void start() {
-        this.peerManager = new PeerManager(getPort(peerport));
+        this.peerManager = new PeerManager(getPort(peerport), transport);
         try {
             indexClientManager = peerManager.connect(whiteboardServerPort, peerHost);
             indexClientManager.on(PeerManager.peerStarted, args -> {
@@ -354,14 +373,14 @@ public class WhiteboardApp {
                 }).on(WhiteboardServer.unsharingBoard, args2 -> {
                     if (!getPeerPort((String) args2[0]).equals(peerport)) {
                         deleteBoard((String) args2[0]);
-                        if (peerClientEndpoints.containsKey(args2[0])) {
-                            Endpoint peerClientEndpoint = peerClientEndpoints.get(args2[0]);
-                            if (peerClientEndpoint != null) peerClientEndpoint.close();
+                        synchronized (peerClientEndpoints) {
+                            peerClientEndpoints.remove(args2[0]);
                         }
-                        if (peerClientManagers.containsKey(args2[0])) {
-                            ClientManager clientManager = peerClientManagers.get(args2[0]);
-                            if (clientManager != null) clientManager.shutdown();
+                        PeerConnection connection;
+                        synchronized (peerConnections) {
+                            connection = peerConnections.remove(args2[0]);
                         }
+                        if (connection != null) connection.release();
                     }
                 }).on(listenBoard, args2 -> {
                     // This listenBoard event that sent by peer's own is just used to trigger the collaboration.
@@ -377,6 +396,9 @@ public class WhiteboardApp {
 
                 });
 
+            }).on(PeerManager.peerResumed, args -> {
+                // the callbacks have been carried over to the new endpoint
+                this.indexClientEndpoint = (Endpoint) args[0];
             }).on(PeerManager.peerStopped, args -> {
                 Endpoint endpoint = (Endpoint) args[0];
                 log.info("Disconnected from peer: " + endpoint.getOtherEndpointId());
@@ -423,28 +445,32 @@ public class WhiteboardApp {
     public void editorMode() throws InterruptedException, UnknownHostException {
         String peerHost = getIP(selectedBoard.toString());
         int peerServerPort = getPort(selectedBoard.toString());
-        ClientManager clientManager = peerManager.connect(peerServerPort, peerHost);
-        clientManager.on(PeerManager.peerStarted, args -> {
+        // the endpoint is shared with every other board of the same peer
+        String boardName = selectedBoard.getName();
+        PeerConnection connection = peerManager.acquire(peerServerPort, peerHost);
+        connection.on(PeerManager.peerStarted, args -> {
             Endpoint endpoint = (Endpoint) args[0];
             System.out.println("Connection from peer: " + endpoint.getOtherEndpointId());
 
             synchronized (peerClientEndpoints) {
                 peerClientEndpoints.put(selectedBoard.getName(), endpoint);
             }
-            synchronized (peerClientManagers) {
-                peerClientManagers.put(selectedBoard.getName(), clientManager);
+            PeerConnection previous;
+            synchronized (peerConnections) {
+                previous = peerConnections.put(selectedBoard.getName(), connection);
             }
+            if (previous != null && previous != connection) previous.release();
 
-            endpoint.on(boardData, args1 -> {
+            connection.listen(boardData, args1 -> {
                 if (getBoardName((String) args1[0]).equals(selectedBoard.getName())) {
                     selectedBoard.whiteboardFromString
                             (getBoardName((String) args1[0]), getBoardData((String) args1[0]));
                     selectedBoard.draw(drawArea);
                 }
-            }).on(boardPathUpdate, args1 -> {
+            }).listen(boardPathUpdate, args1 -> {
                 if (notMyRepeatedEvent((String) args1[0])) {
                     if (getBoardVersion((String) args1[0]) - 1 == getBoardVersion(selectedBoard.toString())) {
-                        pathCreatedLocally(new WhiteboardPath(getBoardPaths((String) args1[0])));
+                        pathCreatedLocally(new WhiteboardPath(getBoardPaths((String) args1[0])), EventTrace.of(args1));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardPathAccepted, args1[0]);
                     } else if (getBoardVersion((String) args1[0]) < getBoardVersion(selectedBoard.toString())) {
@@ -452,10 +478,10 @@ public class WhiteboardApp {
                         endpoint.emit(getBoardData, selectedBoard.getName());
                     }
                 }
-            }).on(boardUndoUpdate, args1 -> {
+            }).listen(boardUndoUpdate, args1 -> {
                 if (notMyRepeatedEvent((String) args1[0])) {
                     if (getBoardVersion((String) args1[0]) - 1 == selectedBoard.getVersion()) {
-                        undoLocally();
+                        undoLocally(EventTrace.of(args1));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardUndoAccepted, args1[0]);
                     } else if (getBoardVersion((String) args1[0]) < getBoardVersion(selectedBoard.toString())) {
@@ -463,11 +489,11 @@ public class WhiteboardApp {
                         endpoint.emit(getBoardData, selectedBoard.getName());
                     }
                 }
-            }).on(boardClearUpdate, args1 -> {
+            }).listen(boardClearUpdate, args1 -> {
                 if (notMyRepeatedEvent((String) args1[0])) {
                     if (getBoardVersion((String) args1[0]) - 1 == selectedBoard.getVersion()) {
                         System.out.println("Great clear!!");
-                        clearedLocally();
+                        clearedLocally(EventTrace.of(args1));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardClearAccepted, args1[0]);
                     } else if (getBoardVersion((String) args1[0]) < getBoardVersion(selectedBoard.toString())) {
@@ -475,12 +501,21 @@ public class WhiteboardApp {
                         endpoint.emit(getBoardData, selectedBoard.getName());
                     }
                 }
-            }).on(boardDeleted, args1 -> {
-                deleteBoard((String) args1[0]);
-                endpoint.close();
-                clientManager.shutdown();
-            }).on(boardError, args1 -> log.severe((String) args1[0])
-            ).on(IOThread.ioThread, args1 -> {
+            }).listen(boardDeleted, args1 -> {
+                if (!boardName.equals(args1[0])) return;
+                deleteBoard(boardName);
+                synchronized (peerConnections) {
+                    peerConnections.remove(boardName, connection);
+                }
+                connection.release();
+            }).listen(boardError, args1 -> log.severe((String) args1[0])
+            ).listen(boardPathAccepted, args1 ->
+                    log.info("boardPathUpdate is accepted:" + args1[0])
+            ).listen(boardUndoAccepted, args1 ->
+                    log.info("boardUndoUpdate is accepted: " + args1[0])
+            ).listen(boardClearAccepted, args1 ->
+                    log.info("boardClearUpdate is accepted: " + args1[0])
+            ).listen(IOThread.ioThread, args1 -> {
                 String port = (String) args1[0];
                 // we don't need this info, but let's log it
                 log.info("using Internet address: " + port);
@@ -490,6 +525,11 @@ public class WhiteboardApp {
             endpoint.emit(listenBoard, selectedBoard.getName());
             endpoint.emit(getBoardData, selectedBoard.getName());
 
+        }).on(PeerManager.peerResumed, args -> {
+            Endpoint endpoint = (Endpoint) args[0];
+            synchronized (peerClientEndpoints) {
+                peerClientEndpoints.replaceAll((board, old) -> old == args[2] ? endpoint : old);
+            }
         }).on(PeerManager.peerStopped, args -> {
             Endpoint endpoint = (Endpoint) args[0];
             System.out.println("Disconnected from the peer: " + endpoint.getOtherEndpointId());
@@ -499,7 +539,7 @@ public class WhiteboardApp {
                     + endpoint.getOtherEndpointId());
         });
 
-        clientManager.start();
+        connection.open();
     }
 
 
@@ -508,16 +548,18 @@ public class WhiteboardApp {
 
             Endpoint endpoint = (Endpoint) args1[0];
             System.out.println("Client session started: " + endpoint.getOtherEndpointId());
+            // whole boards must not hold up the path updates
+            endpoint.setEventPriority(boardData, Endpoint.Priority.BULK);
 
 
             endpoint.on(listenBoard, args2 -> {
                 String boardRequested = (String) args2[0];
                 if (whiteboards.containsKey(boardRequested)) {
                     synchronized (peerServerEndpoints) {
-                        if (!peerServerEndpoints.containsKey(selectedBoard.getName())) {
-                            peerServerEndpoints.put(selectedBoard.getName(), new HashSet<>());
+                        if (!peerServerEndpoints.containsKey(boardRequested)) {
+                            peerServerEndpoints.put(boardRequested, new HashSet<>());
                         }
-                        Set<Endpoint> peerServerEndpointSet = peerServerEndpoints.get(selectedBoard.getName());
+                        Set<Endpoint> peerServerEndpointSet = peerServerEndpoints.get(boardRequested);
                         if (!peerServerEndpointSet.contains(endpoint)) {
                             peerServerEndpointSet.add(endpoint);
                             System.out.println("Peer:" + endpoint.getOtherEndpointId() + " is listening now.");
@@ -530,13 +572,11 @@ public class WhiteboardApp {
                 String boardRequested = (String) args2[0];
                 if (whiteboards.containsKey(boardRequested)) {
                     synchronized (peerServerEndpoints) {
-                        Set<Endpoint> peerServerEndpointSet = peerServerEndpoints.get(selectedBoard.getName());
-                        if (peerServerEndpointSet.contains(endpoint)) {
-                            peerServerEndpoints.get(selectedBoard.getName()).remove(endpoint);
+                        Set<Endpoint> peerServerEndpointSet = peerServerEndpoints.get(boardRequested);
+                        if (peerServerEndpointSet != null && peerServerEndpointSet.remove(endpoint)) {
                             System.out.println("Peer:" + endpoint.getOtherEndpointId() + " is unlistening now.");
                         }
                     }
-                    endpoint.close();
                 } else {
                     endpoint.emit(boardError, "Whiteboard unlistened does not exist");
                 }
@@ -550,7 +590,7 @@ public class WhiteboardApp {
             }).on(boardPathUpdate, args2 -> {
                 if (notMyRepeatedEvent((String) args2[0])) {
                     if (getBoardVersion((String) args2[0]) - 1 == getBoardVersion(selectedBoard.toString())) {
-                        pathCreatedLocally(new WhiteboardPath(getBoardPaths((String) args2[0])));
+                        pathCreatedLocally(new WhiteboardPath(getBoardPaths((String) args2[0])), EventTrace.of(args2));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardPathAccepted, args2[0]);
                     }
@@ -558,7 +598,7 @@ public class WhiteboardApp {
             }).on(boardUndoUpdate, args2 -> {
                 if (notMyRepeatedEvent((String) args2[0])) {
                     if (getBoardVersion((String) args2[0]) - 1 == selectedBoard.getVersion()) {
-                        undoLocally();
+                        undoLocally(EventTrace.of(args2));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardUndoAccepted, args2[0]);
                     }
@@ -566,14 +606,21 @@ public class WhiteboardApp {
             }).on(boardClearUpdate, args2 -> {
                 if (notMyRepeatedEvent((String) args2[0])) {
                     if (getBoardVersion((String) args2[0]) - 1 == selectedBoard.getVersion()) {
-                        clearedLocally();
+                        clearedLocally(EventTrace.of(args2));
                         selectedBoard.draw(drawArea);
                         endpoint.emit(boardClearAccepted, args2[0]);
                     }
                 }
             }).on(boardDeleted, args2 ->
                     deleteBoard((String) args2[0])
-            ).on(boardError, args2 -> log.severe((String) args2[0]));
+            ).on(boardError, args2 -> log.severe((String) args2[0])
+            ).on(boardPathAccepted, args2 ->
+                    log.info("boardPathUpdate is accepted:" + args2[0])
+            ).on(boardUndoAccepted, args2 ->
+                    log.info("boardUndoUpdate is accepted: " + args2[0])
+            ).on(boardClearAccepted, args2 ->
+                    log.info("boardClearUpdate is accepted: " + args2[0])
+            );
 
         });
     }
@@ -647,7 +694,19 @@ public class WhiteboardApp {
      * @param currentPath
      */
     public void pathCreatedLocally(WhiteboardPath currentPath) {
+        pathCreatedLocally(currentPath, null);
+    }
+
+    /**
+     * Add a path to the selected board, passing on the trace of the update
+     * that it came in, or starting a new trace if it was drawn here.
+     *
+     * @param currentPath
+     * @param trace of the update, or null
+     */
+    public void pathCreatedLocally(WhiteboardPath currentPath, EventTrace trace) {
         if (selectedBoard != null) {
+            EventTrace hop = trace == null ? EventTrace.start() : trace;
             if (!selectedBoard.addPath(currentPath, selectedBoard.getVersion())) {
                 // some other peer modified the board in between
                 drawSelectedWhiteboard(); // just redraw the screen without the path
@@ -658,21 +717,13 @@ public class WhiteboardApp {
                     //Emit updates to board's owner first. Then let owner emit updates to other peers.
                     // Other update methods below runs the same way.
                     Endpoint endpoint = peerClientEndpoints.get(selectedBoard.getName());
-                    endpoint.emit(boardPathUpdate, myEventInfo(getLatestPath(selectedBoard.toString())));
-                    endpoint.on(boardPathAccepted, args ->
-                            log.info("boardPathUpdate is accepted:" + args[0])
-                    ).on(boardError, args ->
-                            log.severe((String) args[0]));
+                    endpoint.emit(boardPathUpdate, myEventInfo(getLatestPath(selectedBoard.toString())), hop);
                 } else {
                     //Owner Mode
                     if (peerServerEndpoints.containsKey(selectedBoard.getName())) {
                         Set<Endpoint> peerServerEndpoint = this.peerServerEndpoints.get(selectedBoard.getName());
                         peerServerEndpoint.forEach(e -> {
-                            e.emit(boardPathUpdate, myEventInfo(getLatestPath(selectedBoard.toString())));
-                            e.on(boardPathAccepted, args ->
-                                    log.info("boardPathUpdate is accepted:" + args[0])
-                            ).on(boardError, args ->
-                                    log.severe((String) args[0]));
+                            e.emit(boardPathUpdate, myEventInfo(getLatestPath(selectedBoard.toString())), hop);
                         });
                     }
                 }
@@ -687,7 +738,18 @@ public class WhiteboardApp {
      * Clear the selected whiteboard.
      */
     public void clearedLocally() {
+        clearedLocally(null);
+    }
+
+    /**
+     * Clear the selected whiteboard, passing on the trace of the update
+     * that asked for it, or starting a new trace if it was cleared here.
+     *
+     * @param trace of the update, or null
+     */
+    public void clearedLocally(EventTrace trace) {
         if (selectedBoard != null) {
+            EventTrace hop = trace == null ? EventTrace.start() : trace;
             if (!selectedBoard.clear(selectedBoard.getVersion())) {
                 // some other peer modified the board in between
                 drawSelectedWhiteboard();
@@ -697,21 +759,13 @@ public class WhiteboardApp {
                 if (selectedBoard.isRemote()) {
                     //Editor Mode
                     Endpoint endpoint = peerClientEndpoints.get(selectedBoard.getName());
-                    endpoint.emit(boardClearUpdate, myEventInfo(selectedBoard.getNameAndVersion()));
-                    endpoint.on(boardClearAccepted, args ->
-                            log.info("boardClearUpdate is accepted: " + args[0])
-                    ).on(boardError, args ->
-                            log.severe((String) args[0]));
+                    endpoint.emit(boardClearUpdate, myEventInfo(selectedBoard.getNameAndVersion()), hop);
                 } else {
                     //Owner Mode
                     if (peerServerEndpoints.containsKey(selectedBoard.getName())) {
                         Set<Endpoint> peer_server_endpoints = peerServerEndpoints.get(selectedBoard.getName());
                         peer_server_endpoints.forEach(e -> {
-                            e.emit(boardClearUpdate, myEventInfo(selectedBoard.getNameAndVersion()));
-                            e.on(boardClearAccepted, args ->
-                                    log.info("boardClearUpdate is accepted: " + args[0])
-                            ).on(boardError, args ->
-                                    log.severe((String) args[0]));
+                            e.emit(boardClearUpdate, myEventInfo(selectedBoard.getNameAndVersion()), hop);
                         });
                     }
                 }
@@ -727,7 +781,19 @@ public class WhiteboardApp {
      * Undo the last path of the selected whiteboard.
      */
     public void undoLocally() {
+        undoLocally(null);
+    }
+
+    /**
+     * Undo the last path of the selected whiteboard, passing on the trace
+     * of the update that asked for it, or starting a new trace if it was
+     * undone here.
+     *
+     * @param trace of the update, or null
+     */
+    public void undoLocally(EventTrace trace) {
         if (selectedBoard != null) {
+            EventTrace hop = trace == null ? EventTrace.start() : trace;
             if (!selectedBoard.undo(selectedBoard.getVersion())) {
                 // some other peer modified the board in between
                 drawSelectedWhiteboard();
@@ -736,21 +802,13 @@ public class WhiteboardApp {
                 if (selectedBoard.isRemote()) {
                     //Editor Mode
                     Endpoint endpoint = peerClientEndpoints.get(selectedBoard.getName());
-                    endpoint.emit(boardUndoUpdate, myEventInfo(selectedBoard.getNameAndVersion()));
-                    endpoint.on(boardUndoAccepted, args ->
-                            log.info("boardUndoUpdate is accepted: " + args[0])
-                    ).on(boardError, args ->
-                            log.severe((String) args[0]));
+                    endpoint.emit(boardUndoUpdate, myEventInfo(selectedBoard.getNameAndVersion()), hop);
                 } else {
                     //Owner Mode
                     if (peerServerEndpoints.containsKey(selectedBoard.getName())) {
                         Set<Endpoint> peer_server_endpoints = peerServerEndpoints.get(selectedBoard.getName());
                         peer_server_endpoints.forEach(e -> {
-                            e.emit(boardUndoUpdate, myEventInfo(selectedBoard.getNameAndVersion()));
-                            e.on(boardUndoAccepted, args ->
-                                    log.info("boardUndpUpdate is accepted: " + args[0])
-                            ).on(boardError, args ->
-                                    log.severe((String) args[0]));
+                            e.emit(boardUndoUpdate, myEventInfo(selectedBoard.getNameAndVersion()), hop);
                         });
                     }
                 }
@@ -809,11 +867,10 @@ public class WhiteboardApp {
             Endpoint clientEndpoint = peerClientEndpoints.get(boardName);
             if (clientEndpoint != null) {
                 clientEndpoint.emit(unlistenBoard, boardName);
-                clientEndpoint.close();
             }
-            ClientManager clientManager = peerClientManagers.get(boardName);
-            if (clientManager != null) {
-                clientManager.shutdown();
+            PeerConnection connection = peerConnections.get(boardName);
+            if (connection != null) {
+                connection.release();
             }
             Set<Endpoint> serverEndpoints = peerServerEndpoints.get(boardName);
             if (!serverEndpoints.isEmpty()) {
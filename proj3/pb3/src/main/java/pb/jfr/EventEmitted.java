@@ -0,0 +1,31 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * An event emitted on an {@link pb.utils.Eventable}, taking as long as its
+ * callbacks did.
+ */
+@Name("pb.EventEmitted")
+@Label("Event Emitted")
+@Category({"PB","Eventable"})
+@Description("Callbacks called for an event")
+@StackTrace(false)
+@Threshold("1 ms")
+public class EventEmitted extends jdk.jfr.Event {
+	@Label("Event Name")
+	public String eventName;
+
+	@Label("Listeners")
+	@Description("Callbacks that were called")
+	public int listeners;
+
+	@Label("Local")
+	@Description("Whether only the callbacks for the event name were called")
+	public boolean local;
+}
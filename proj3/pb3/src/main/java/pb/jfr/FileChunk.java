@@ -0,0 +1,25 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A chunk of a file read and sent, or received and written, taking as
+ * long as that did.
+ */
+@Name("pb.FileChunk")
+@Label("File Chunk")
+@Category({"PB","File Sharing"})
+public class FileChunk extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+
+	@Label("Sent")
+	public boolean sent;
+}
@@ -0,0 +1,35 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A message decoded by an endpoint and handed to its protocol, taking as
+ * long as that did, which includes the protocol handling it if the
+ * reader does so.
+ */
+@Name("pb.FrameReceived")
+@Label("Frame Received")
+@Category({"PB","Endpoint"})
+@Description("A message decoded and handed to its protocol")
+@StackTrace(false)
+@Threshold("1 ms")
+public class FrameReceived extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Message")
+	public String message;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+}
@@ -0,0 +1,40 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A message encoded and queued by an endpoint, taking as long as that did.
+ */
+@Name("pb.FrameSent")
+@Label("Frame Sent")
+@Category({"PB","Endpoint"})
+@Description("A message encoded into frames and queued to send")
+@StackTrace(false)
+@Threshold("1 ms")
+public class FrameSent extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Message")
+	public String message;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+
+	@Label("Frames")
+	@Description("More than one if the message was fragmented")
+	public int frames;
+
+	@Label("Priority")
+	public String priority;
+}
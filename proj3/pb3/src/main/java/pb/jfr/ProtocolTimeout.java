@@ -0,0 +1,21 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A protocol that timed out waiting for the other endpoint.
+ */
+@Name("pb.ProtocolTimeout")
+@Label("Protocol Timeout")
+@Category({"PB","Protocol"})
+@Description("A protocol timed out waiting for the other endpoint")
+public class ProtocolTimeout extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Protocol")
+	public String protocol;
+}
@@ -0,0 +1,22 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A session that has started, or resumed on a new connection.
+ */
+@Name("pb.SessionStart")
+@Label("Session Start")
+@Category({"PB","Protocol"})
+public class SessionStart extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Server")
+	public boolean server;
+
+	@Label("Resumed")
+	public boolean resumed;
+}
@@ -0,0 +1,25 @@
+package pb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A session that has stopped, lasting as long as the session did.
+ */
+@Name("pb.SessionStop")
+@Label("Session Stop")
+@Category({"PB","Protocol"})
+@Description("A session, recorded when it stops")
+public class SessionStop extends jdk.jfr.Event {
+	@Label("Other Endpoint")
+	public String otherEndpoint;
+
+	@Label("Server")
+	public boolean server;
+
+	@Label("Clean")
+	@Description("Whether the session was stopped by the protocol, rather than its connection failing")
+	public boolean clean;
+}
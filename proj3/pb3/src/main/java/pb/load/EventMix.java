@@ -0,0 +1,129 @@
+package pb.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The events that simulated clients emit and how often, relative to each
+ * other, given as e.g. {@code "share=1,unshare=1"}.
+ */
+public class EventMix {
+
+	/**
+	 * What a simulated client can do.
+	 */
+	public enum Op {
+		/**
+		 * Share a board with the whiteboard server, answered by the
+		 * server's broadcast of it.
+		 */
+		share,
+		/**
+		 * Unshare a board with the whiteboard server, answered by the
+		 * server's broadcast of it.
+		 */
+		unshare,
+		/**
+		 * Add a file to the index server, not answered unless it fails.
+		 */
+		update,
+		/**
+		 * Tell the index server the client's peer is still there, not
+		 * answered.
+		 */
+		peer,
+		/**
+		 * Query the index server, answered once all of the hits have
+		 * been sent.
+		 */
+		query,
+		/**
+		 * Add a path to a board of a whiteboard peer, answered if the peer
+		 * accepts it.
+		 */
+		board,
+		/**
+		 * Ask a whiteboard peer for a whole board.
+		 */
+		boardData
+	}
+
+	/**
+	 * Mixes to use against each kind of server, unless one is given.
+	 */
+	public static final String whiteboardServer = "share=1,unshare=1";
+	public static final String indexServer = "update=4,peer=1,query=1";
+	public static final String whiteboardPeer = "board=9,boardData=1";
+
+	private final Op[] ops;
+
+	/**
+	 * Running total of the weights, in the order of {@link #ops}.
+	 */
+	private final int[] totals;
+
+	private EventMix(Op[] ops, int[] totals) {
+		this.ops=ops;
+		this.totals=totals;
+	}
+
+	/**
+	 *
+	 * @param mix as op=weight,op=weight,...
+	 * @return the mix
+	 * @throws IllegalArgumentException if the mix can't be parsed
+	 */
+	public static EventMix parse(String mix) {
+		List<Op> ops=new ArrayList<>();
+		List<Integer> totals=new ArrayList<>();
+		int total=0;
+		for(String entry : mix.split(",")) {
+			String[] parts=entry.trim().split("=");
+			if(parts.length!=2) throw new IllegalArgumentException("expected op=weight: "+entry);
+			int weight;
+			try {
+				weight=Integer.parseInt(parts[1].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("weight must be a number: "+entry);
+			}
+			try {
+				ops.add(Op.valueOf(parts[0].trim()));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown event: "+parts[0].trim());
+			}
+			if(weight<0) throw new IllegalArgumentException("weight must not be negative: "+entry);
+			total+=weight;
+			totals.add(total);
+		}
+		if(total==0) throw new IllegalArgumentException("no events in the mix: "+mix);
+		int[] running=new int[totals.size()];
+		for(int i=0;i<running.length;i++) running[i]=totals.get(i);
+		return new EventMix(ops.toArray(new Op[0]),running);
+	}
+
+	/**
+	 *
+	 * @param random
+	 * @return an op chosen at random according to the weights
+	 */
+	public Op next(Random random) {
+		int pick=random.nextInt(totals[totals.length-1]);
+		for(int i=0;i<totals.length;i++) {
+			if(pick<totals[i]) return ops[i];
+		}
+		return ops[ops.length-1];
+	}
+
+	/**
+	 *
+	 * @param op
+	 * @return true if the mix ever chooses the op
+	 */
+	public boolean uses(Op op) {
+		for(int i=0;i<ops.length;i++) {
+			if(ops[i]==op && totals[i]>(i==0 ? 0 : totals[i-1])) return true;
+		}
+		return false;
+	}
+}
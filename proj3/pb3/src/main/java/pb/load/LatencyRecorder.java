@@ -0,0 +1,104 @@
+package pb.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in buckets that are exact below {@link #subBuckets}
+ * microseconds and within 1/{@link #subBuckets} of the value above it, so
+ * that percentiles as high as p99.9 can be read without keeping every
+ * sample. Any number of threads may record at once.
+ */
+public class LatencyRecorder {
+
+	/**
+	 * Buckets for each power of two, which decides the precision.
+	 */
+	private static final int subBuckets = 128;
+
+	private static final int subBucketBits = 7;
+
+	/**
+	 * Largest latency that is told apart, about 73 minutes.
+	 */
+	private static final long maxMicros = 1L<<32;
+
+	private final AtomicLongArray counts;
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public LatencyRecorder() {
+		counts=new AtomicLongArray(index(maxMicros)+1);
+	}
+
+	private static int index(long micros) {
+		if(micros<subBuckets) return (int)micros;
+		int exponent=63-Long.numberOfLeadingZeros(micros)-subBucketBits;
+		return (exponent+1)*subBuckets+(int)(micros>>>exponent)-subBuckets;
+	}
+
+	/**
+	 *
+	 * @param index of a bucket
+	 * @return the largest value that goes in the bucket
+	 */
+	private static long highest(int index) {
+		if(index<subBuckets) return index;
+		int exponent=index/subBuckets-1;
+		long mantissa=index%subBuckets+subBuckets;
+		return ((mantissa+1)<<exponent)-1;
+	}
+
+	/**
+	 *
+	 * @param micros latency in microseconds
+	 */
+	public void record(long micros) {
+		if(micros<0) micros=0;
+		counts.incrementAndGet(index(Math.min(micros,maxMicros)));
+		count.increment();
+		sum.add(micros);
+		long seen;
+		while(micros>(seen=max.get()) && !max.compareAndSet(seen,micros));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 *
+	 * @return mean latency in microseconds, 0 if none were recorded
+	 */
+	public double getMean() {
+		long n=count.sum();
+		return n==0 ? 0 : (double)sum.sum()/n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 *
+	 * @param quantile between 0 and 1, e.g. 0.999 for p99.9
+	 * @return latency in microseconds that the quantile of the latencies
+	 * were at or below, 0 if none were recorded
+	 */
+	public long getPercentile(double quantile) {
+		long n=count.sum();
+		if(n==0) return 0;
+		long rank=Math.max(1,(long)Math.ceil(quantile*n));
+		long seen=0;
+		for(int i=0;i<counts.length();i++) {
+			seen+=counts.get(i);
+			if(seen>=rank) return Math.min(highest(i),getMax());
+		}
+		return getMax();
+	}
+}
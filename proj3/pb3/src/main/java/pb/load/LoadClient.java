@@ -0,0 +1,353 @@
+package pb.load;
+
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import pb.IndexServer;
+import pb.WhiteboardServer;
+import pb.app.WhiteboardApp;
+import pb.load.EventMix.Op;
+import pb.managers.ClientManager;
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Transport;
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * One simulated client of a load test. It connects with its own
+ * {@link ClientManager} and, once the session has started, emits events
+ * chosen from an {@link EventMix} at random times, on average
+ * {@link #rate} a second, until it is stopped. Answers are matched to the
+ * events that asked for them to time them: by their data where the server
+ * echoes it, otherwise in the order they were sent.
+ * <br/>
+ * The client pretends to be a peer at {@code loadgen:port}, where the
+ * port is made from its number, so the boards and files it shares are its
+ * own.
+ */
+public class LoadClient {
+	private static Logger log = Logger.getLogger(LoadClient.class.getName());
+
+	/**
+	 * Files that clients add to the index and query for, so that queries
+	 * have hits.
+	 */
+	private static final int numFiles = 1000;
+
+	/**
+	 * An event waiting for its answer.
+	 */
+	private static final class Pending {
+		final Op op;
+		final long timeSent;
+		final boolean measured;
+
+		Pending(Op op, long timeSent, boolean measured) {
+			this.op=op;
+			this.timeSent=timeSent;
+			this.measured=measured;
+		}
+	}
+
+	private final LoadStats stats;
+
+	private final EventMix mix;
+
+	/**
+	 * Events a second.
+	 */
+	private final double rate;
+
+	/**
+	 * Nanoseconds after which an event that hasn't been answered has
+	 * timed out.
+	 */
+	private final long timeout;
+
+	/**
+	 * The whiteboard peer's board that board events are for, as
+	 * host:port:boardid, or null.
+	 */
+	private final String board;
+
+	private final String peerport;
+
+	private final Random random;
+
+	private final ClientManager clientManager;
+
+	/**
+	 * Events answered with their own data, by that data.
+	 */
+	private final Map<String,Pending> echoed = new ConcurrentHashMap<>();
+
+	/**
+	 * Queries and board requests, answered in the order they were sent.
+	 */
+	private final Queue<Pending> queries = new ConcurrentLinkedQueue<>();
+	private final Queue<Pending> boardRequests = new ConcurrentLinkedQueue<>();
+
+	private volatile Endpoint endpoint;
+
+	private volatile boolean running=false;
+
+	private volatile boolean emitting=false;
+
+	private volatile long timeStarted;
+
+	/**
+	 * Times out the connection if the session doesn't start.
+	 */
+	private volatile Timeout connecting;
+
+	/**
+	 * The latest version of the board that has been seen.
+	 */
+	private volatile long boardVersion=0;
+
+	private boolean toldIndex=false;
+
+	private long seq=0;
+
+	/**
+	 *
+	 * @param id unique over the clients of the test
+	 * @param host of the server
+	 * @param port of the server
+	 * @param transport to connect with, usually shared by all clients
+	 * @param stats to record what happens into
+	 * @param mix of events to emit
+	 * @param rate events a second
+	 * @param timeout milliseconds to wait for the session and for answers
+	 * @param board the whiteboard peer's board as host:port:boardid, if
+	 * the mix has board events
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public LoadClient(int id, String host, int port, Transport transport, LoadStats stats, EventMix mix,
+			double rate, long timeout, String board) throws UnknownHostException, InterruptedException {
+		this.stats=stats;
+		this.mix=mix;
+		this.rate=rate;
+		this.timeout=timeout*1000000;
+		this.board=board;
+		peerport="loadgen:"+(10000+id);
+		random=new Random(id);
+		clientManager=new ClientManager(host,port,transport);
+		// a failure is counted, not hidden by connecting again
+		clientManager.setMaxRetries(1);
+	}
+
+	/**
+	 * Connect and start emitting once the session has started.
+	 */
+	public void start() {
+		timeStarted=System.nanoTime();
+		running=true;
+		emitting=true;
+		clientManager.on(ClientManager.sessionStarted, (args)->{
+			Endpoint endpoint=(Endpoint)args[0];
+			if(connecting!=null) connecting.cancel();
+			stats.sessionStarted(System.nanoTime()-timeStarted);
+			listen(endpoint);
+			this.endpoint=endpoint;
+			if(!running) {
+				clientManager.shutdown();
+				return;
+			}
+			if(mix.uses(Op.board) || mix.uses(Op.boardData)) {
+				endpoint.emit(WhiteboardApp.listenBoard,board);
+				endpoint.emit(WhiteboardApp.getBoardData,board);
+			}
+			scheduleNext();
+		}).on(ClientManager.sessionStopped, (args)->{
+			if(running) stats.error(LoadStats.sessionStopped);
+		}).on(ClientManager.sessionError, (args)->{
+			stats.error(LoadStats.sessionError);
+		});
+		connecting=Utils.getInstance().setTimeout(()->{
+			if(endpoint==null) stats.error(LoadStats.connectFailed);
+		},timeout/1000000);
+		clientManager.start();
+	}
+
+	/**
+	 * Stop emitting events, while still waiting for the answers to those
+	 * already sent.
+	 */
+	public void stopEmitting() {
+		emitting=false;
+	}
+
+	/**
+	 * End the session, or end it as soon as it starts.
+	 */
+	public void stop() {
+		emitting=false;
+		running=false;
+		if(endpoint!=null) clientManager.shutdown();
+	}
+
+	/**
+	 * Wait for the client manager to finish.
+	 * @param millis most to wait
+	 * @throws InterruptedException
+	 */
+	public void join(long millis) throws InterruptedException {
+		clientManager.join(millis);
+	}
+
+	/**
+	 *
+	 * @return true if events are waiting for their answers
+	 */
+	public boolean isWaiting() {
+		return !echoed.isEmpty() || !queries.isEmpty() || !boardRequests.isEmpty();
+	}
+
+	private void listen(Endpoint endpoint) {
+		endpoint.on(WhiteboardServer.sharingBoard, (args)->{
+			answer(echoed.remove((String)args[0]));
+		}).on(WhiteboardServer.unsharingBoard, (args)->{
+			answer(echoed.remove((String)args[0]));
+		}).on(WhiteboardServer.error, (args)->{
+			stats.error(LoadStats.serverError);
+		}).on(IndexServer.queryResponse, (args)->{
+			// the blank response comes after the hits
+			if(((String)args[0]).isEmpty()) answer(queries.poll());
+		}).on(IndexServer.queryError, (args)->{
+			queries.poll();
+			stats.error(LoadStats.serverError);
+		}).on(IndexServer.indexUpdateError, (args)->{
+			stats.error(LoadStats.serverError);
+		}).on(WhiteboardApp.boardPathAccepted, (args)->{
+			answer(echoed.remove((String)args[0]));
+		}).on(WhiteboardApp.boardPathUpdate, (args)->{
+			// accepted from another client
+			seenVersion(version((String)args[0]));
+		}).on(WhiteboardApp.boardData, (args)->{
+			seenVersion(version((String)args[0]));
+			answer(boardRequests.poll());
+		}).on(WhiteboardApp.boardError, (args)->{
+			stats.error(LoadStats.serverError);
+		});
+	}
+
+	private void answer(Pending pending) {
+		if(pending!=null && pending.measured) stats.answered(pending.op,System.nanoTime()-pending.timeSent);
+	}
+
+	/**
+	 *
+	 * @param data as host:port:boardid%version%...
+	 * @return the version, or -1 if there isn't one
+	 */
+	private static long version(String data) {
+		String[] parts=data.split("%",3);
+		try {
+			return parts.length>1 ? Long.parseLong(parts[1]) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void seenVersion(long version) {
+		if(version>boardVersion) boardVersion=version;
+	}
+
+	/**
+	 * Emit the next event after a random wait, so that clients don't
+	 * emit in step.
+	 */
+	private void scheduleNext() {
+		long delay=Math.max(1,(long)(-Math.log(1-random.nextDouble())*1000/rate));
+		Utils.getInstance().setTimeout(this::emitNext,delay);
+	}
+
+	private void emitNext() {
+		if(!emitting) return;
+		Endpoint endpoint=this.endpoint;
+		boolean measured=stats.isMeasuring();
+		Op op=mix.next(random);
+		Pending pending=new Pending(op,System.nanoTime(),measured);
+		seq++;
+		switch(op) {
+		case share:
+		case unshare: {
+			String boardName=peerport+":"+seq;
+			echoed.put(boardName,pending);
+			endpoint.emit(op==Op.share ? WhiteboardServer.shareBoard : WhiteboardServer.unshareBoard,boardName);
+			break;
+		}
+		case update:
+			if(!toldIndex) {
+				// the index server sorts hits by when their peers were last seen
+				endpoint.emit(IndexServer.peerUpdate,peerport);
+				toldIndex=true;
+			}
+			endpoint.emit(IndexServer.indexUpdate,peerport+":file"+random.nextInt(numFiles));
+			break;
+		case peer:
+			endpoint.emit(IndexServer.peerUpdate,peerport);
+			break;
+		case query:
+			queries.add(pending);
+			endpoint.emit(IndexServer.queryIndex,"file"+random.nextInt(numFiles));
+			break;
+		case board: {
+			// accepted only if no one else has added a path to this version
+			String path=peerport+":"+board.split(":",3)[2]+"%"+(boardVersion+1)
+					+"%black>"+(seq%800)+","+random.nextInt(600)+">"+random.nextInt(800)+","+random.nextInt(600);
+			echoed.put(path,pending);
+			endpoint.emit(WhiteboardApp.boardPathUpdate,path);
+			break;
+		}
+		case boardData:
+			boardRequests.add(pending);
+			endpoint.emit(WhiteboardApp.getBoardData,board);
+			break;
+		}
+		if(measured) stats.sent(op);
+		scheduleNext();
+	}
+
+	/**
+	 * Count events that have waited too long for their answers as timed
+	 * out, and forget them.
+	 * @param now from {@link System#nanoTime()}
+	 */
+	public void expire(long now) {
+		for(Iterator<Pending> it=echoed.values().iterator();it.hasNext();) {
+			Pending pending=it.next();
+			if(now-pending.timeSent<timeout) continue;
+			it.remove();
+			timedOut(pending);
+		}
+		expire(queries,now);
+		expire(boardRequests,now);
+	}
+
+	private void expire(Queue<Pending> answeredInOrder, long now) {
+		Pending pending;
+		while((pending=answeredInOrder.peek())!=null && now-pending.timeSent>=timeout) {
+			if(answeredInOrder.remove(pending)) timedOut(pending);
+		}
+	}
+
+	private void timedOut(Pending pending) {
+		if(!pending.measured) return;
+		// a path for a version that someone else got to first is never answered
+		if(pending.op==Op.board) {
+			log.fine("path not accepted by "+board);
+			stats.error(LoadStats.rejected);
+		} else {
+			stats.error(LoadStats.timeout);
+		}
+	}
+}
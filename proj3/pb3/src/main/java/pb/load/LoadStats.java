@@ -0,0 +1,177 @@
+package pb.load;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import pb.load.EventMix.Op;
+
+/**
+ * What the simulated clients of a load test did, shared by all of them.
+ * Sessions are counted from the start of the test, while events are only
+ * counted between {@link #startMeasuring()} and {@link #stopMeasuring()},
+ * after the sessions have ramped up, so that the rates are sustained
+ * rates. Latencies are those of events sent in that time, whenever their
+ * answers come.
+ */
+public class LoadStats {
+
+	/**
+	 * Kinds of error.
+	 */
+	public static final String connectFailed = "connect";
+	public static final String sessionError = "session";
+	public static final String sessionStopped = "stopped";
+	public static final String timeout = "timeout";
+	public static final String rejected = "rejected";
+	public static final String serverError = "server";
+
+	private final long timeStarted = System.nanoTime();
+
+	private final LongAdder sessionsStarted = new LongAdder();
+
+	/**
+	 * When the latest session started.
+	 */
+	private final AtomicLong lastSessionStarted = new AtomicLong();
+
+	private final LatencyRecorder setupLatency = new LatencyRecorder();
+
+	private volatile boolean measuring=false;
+
+	private volatile long measureStarted;
+
+	private volatile long measureStopped;
+
+	private final Map<Op,LongAdder> sent = new EnumMap<>(Op.class);
+
+	private final Map<Op,LongAdder> answered = new EnumMap<>(Op.class);
+
+	private final Map<Op,LatencyRecorder> latency = new EnumMap<>(Op.class);
+
+	private final LatencyRecorder allLatency = new LatencyRecorder();
+
+	private final Map<String,LongAdder> errors = new ConcurrentHashMap<>();
+
+	public LoadStats() {
+		for(Op op : Op.values()) {
+			sent.put(op,new LongAdder());
+			answered.put(op,new LongAdder());
+			latency.put(op,new LatencyRecorder());
+		}
+	}
+
+	public void startMeasuring() {
+		measureStarted=System.nanoTime();
+		measuring=true;
+	}
+
+	public void stopMeasuring() {
+		measuring=false;
+		measureStopped=System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return true if events sent now are counted
+	 */
+	public boolean isMeasuring() {
+		return measuring;
+	}
+
+	/**
+	 * A session has started.
+	 * @param setupNanos time from starting to connect until the session started
+	 */
+	public void sessionStarted(long setupNanos) {
+		sessionsStarted.increment();
+		lastSessionStarted.accumulateAndGet(System.nanoTime(),Math::max);
+		setupLatency.record(setupNanos/1000);
+	}
+
+	public long getSessionsStarted() {
+		return sessionsStarted.sum();
+	}
+
+	/**
+	 * An event has been sent while measuring.
+	 * @param op
+	 */
+	public void sent(Op op) {
+		sent.get(op).increment();
+	}
+
+	/**
+	 * An event sent while measuring has been answered.
+	 * @param op
+	 * @param nanos from sending the event to its answer
+	 */
+	public void answered(Op op, long nanos) {
+		answered.get(op).increment();
+		latency.get(op).record(nanos/1000);
+		allLatency.record(nanos/1000);
+	}
+
+	/**
+	 *
+	 * @param kind e.g. {@link #timeout}
+	 */
+	public void error(String kind) {
+		errors.computeIfAbsent(kind,(k)->new LongAdder()).increment();
+	}
+
+	public long getErrors() {
+		return errors.values().stream().mapToLong(LongAdder::sum).sum();
+	}
+
+	/**
+	 *
+	 * @param clients that were simulated
+	 * @return the results as JSON
+	 */
+	public String toJson(int clients) {
+		double measured=Math.max(1,(measuring ? System.nanoTime() : measureStopped)-measureStarted)/1e9;
+		double ramp=Math.max(1,lastSessionStarted.get()-timeStarted)/1e9;
+		long totalSent=sent.values().stream().mapToLong(LongAdder::sum).sum();
+		long totalAnswered=answered.values().stream().mapToLong(LongAdder::sum).sum();
+		StringBuilder json=new StringBuilder("{");
+		json.append("\"clients\":").append(clients);
+		json.append(",\"sessions\":{\"started\":").append(getSessionsStarted());
+		json.append(",\"setupPerSec\":").append(decimal(getSessionsStarted()/ramp));
+		json.append(",\"setupLatencyUs\":");
+		latencyJson(json,setupLatency);
+		json.append("},\"measuredSec\":").append(decimal(measured));
+		json.append(",\"events\":{\"sent\":").append(totalSent);
+		json.append(",\"answered\":").append(totalAnswered);
+		json.append(",\"sentPerSec\":").append(decimal(totalSent/measured));
+		json.append(",\"answeredPerSec\":").append(decimal(totalAnswered/measured));
+		json.append("},\"latencyUs\":{\"all\":");
+		latencyJson(json,allLatency);
+		for(Op op : Op.values()) {
+			if(sent.get(op).sum()==0) continue;
+			json.append(",\"").append(op).append("\":{\"sent\":").append(sent.get(op).sum());
+			json.append(",\"answered\":").append(answered.get(op).sum()).append(",\"latency\":");
+			latencyJson(json,latency.get(op));
+			json.append('}');
+		}
+		json.append("},\"errors\":{\"total\":").append(getErrors());
+		errors.forEach((kind,count)->json.append(",\"").append(kind).append("\":").append(count.sum()));
+		return json.append("}}").toString();
+	}
+
+	private static void latencyJson(StringBuilder json, LatencyRecorder recorder) {
+		json.append("{\"count\":").append(recorder.getCount());
+		json.append(",\"mean\":").append(decimal(recorder.getMean()));
+		json.append(",\"p50\":").append(recorder.getPercentile(0.5));
+		json.append(",\"p99\":").append(recorder.getPercentile(0.99));
+		json.append(",\"p999\":").append(recorder.getPercentile(0.999));
+		json.append(",\"max\":").append(recorder.getMax()).append('}');
+	}
+
+	private static String decimal(double value) {
+		return String.format(Locale.ROOT,"%.1f",value);
+	}
+}
@@ -2,13 +2,17 @@ package pb.managers;
 
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.jfr.ProtocolTimeout;
+import pb.metrics.Counter;
+import pb.metrics.Labelled;
+import pb.metrics.Metrics;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
@@ -16,7 +20,12 @@ import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.stream.IStreamProtocolHandler;
+import pb.protocols.stream.StreamProtocol;
+import pb.utils.Backoff;
+import pb.utils.Utils;
 
 /**
  * Manages the connection to the server and the client's state.
@@ -29,10 +38,20 @@ import pb.protocols.session.SessionProtocol;
  *
  */
 public class ClientManager extends Manager implements ISessionProtocolHandler,
-	IKeepAliveProtocolHandler, IEventProtocolHandler
+	IKeepAliveProtocolHandler, IEventProtocolHandler, IStreamProtocolHandler
 {
 	private static Logger log = Logger.getLogger(ClientManager.class.getName());
 	
+	/**
+	 * Metrics of every client manager.
+	 */
+	private static final Labelled<Counter> timeouts = Metrics.getInstance()
+			.counter("pb_timeouts_total","Sessions ended because a protocol timed out","protocol");
+	private static final Counter reconnects = Metrics.getInstance()
+			.counter("pb_reconnects_total","Attempts by clients to connect again after a connection failed");
+	private static final Counter resumptions = Metrics.getInstance()
+			.counter("pb_sessions_resumed_total","Sessions resumed on a new connection, counted at both ends");
+	
 	/**
 	 * Events emitted by the ClientManager
 	 */
@@ -62,6 +81,17 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the session has been resumed on a new endpoint after
+	 * its connection failed, see {@link pb.protocols.session.ResumableSession}.
+	 * It is emitted instead of {@link #sessionStarted}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}, the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint}, the endpoint that failed</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -69,9 +99,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private SessionProtocol sessionProtocol;
 	
 	/**
-	 * The socket for this client.
+	 * The transport used to connect to the host.
 	 */
-	private Socket socket;
+	private final Transport transport;
 	
 	/**
 	 * The host to connect to.
@@ -88,6 +118,27 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * How long to wait before each attempt to connect again.
+	 */
+	private volatile Backoff backoff = new Backoff();
+	
+	/**
+	 * Most attempts to connect again in a row before giving up.
+	 */
+	private volatile int maxRetries = 10;
+	
+	/**
+	 * Attempts to connect again that are left, reset whenever a session starts.
+	 */
+	private volatile int retries;
+	
+	/**
+	 * The latest session, if it can be resumed, which the next connection
+	 * asks to resume.
+	 */
+	private volatile ResumableSession session;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -96,28 +147,67 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * @throws InterruptedException
 	 */
 	public ClientManager(String host,int port) throws UnknownHostException, InterruptedException {
+		this(host,port,new SocketTransport());
+	}
+	
+	/**
+	 * Initialise the client manage with a host and port to connect to, and
+	 * the transport to make the connection with, e.g. a
+	 * {@link pb.managers.endpoint.NioTransport} shared with other managers.
+	 * @param host
+	 * @param port
+	 * @param transport
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public ClientManager(String host,int port,Transport transport) throws UnknownHostException, InterruptedException {
 		this.host=host;
 		this.port=port;
+		this.transport=transport;
+	}
+	
+	/**
+	 * 
+	 * @param backoff how long to wait before each attempt to connect again,
+	 * from 1 to 30 seconds unless set
+	 */
+	public void setBackoff(Backoff backoff) {
+		this.backoff=backoff;
+	}
+	
+	/**
+	 * 
+	 * @param maxRetries most attempts to connect again in a row before
+	 * giving up, 10 unless set
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries=maxRetries;
 	}
 	
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		// there is nothing to stop until the connection is made
+		if(sessionProtocol!=null) sessionProtocol.stopSession();
 	}
 	
 	@Override
 	public void run() {
-		int retries=10;
+		retries=maxRetries;
+		boolean reconnecting=false;
 		while(retries-- > 0) {
+			if(reconnecting) reconnects.inc();
+			reconnecting=true;
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
 				// try to get it back up, transparently to the
 				// higher layer
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					// a pause that grows, and differs from other clients
+					// that the server dropped at the same time
+					Utils.getInstance().getClock().sleep(backoff.nextDelay());
 				} catch (InterruptedException e) {
 					continue;
-				} 
+				}
 			} else {
 				// connection ended cleanly, so we can terminate this manager
 				return;
@@ -136,14 +226,14 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
 		log.info("attempting to connect to "+host+":"+port);
+		Endpoint endpoint=null;
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
-			Endpoint endpoint = new Endpoint(socket,this);
+			endpoint = transport.connect(host,port,this);
 			endpoint.start();
 
 			try {
-				// just wait for this thread to terminate
-				endpoint.join();
+				// just wait for the endpoint to terminate
+				endpoint.awaitTermination();
 			} catch (InterruptedException e) {
 				// just make sure the endpoint has done everything it should
 				endpoint.close();
@@ -153,12 +243,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		} catch (IOException e1) {
 			shouldWeRetry=true;
 		} finally {
-			if(socket!=null)
-				try {
-					socket.close();
-				} catch (IOException e) {
-					//ignore
-				}
+			if(endpoint!=null && !endpoint.isStopped())
+				endpoint.close();
 		}
 		return shouldWeRetry;
 	}
@@ -171,6 +257,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
 		sessionProtocol = new SessionProtocol(endpoint,this);
+		if(session!=null) sessionProtocol.resume(session);
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -230,6 +317,13 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
+		timeouts.get(protocol.getProtocolName()).inc();
+		ProtocolTimeout event=new ProtocolTimeout();
+		if(event.shouldCommit()) {
+			event.otherEndpoint=endpoint.getOtherEndpointId();
+			event.protocol=protocol.getProtocolName();
+			event.commit();
+		}
 		localEmit(sessionError,endpoint);
 		endpoint.close();
 		shouldWeRetry=true;
@@ -252,8 +346,48 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
+		if(session!=null) log.warning("server could not resume the session, starting a new one");
 		log.info("session has started with server");
 		
+		startProtocols(endpoint);
+		keepSession(endpoint);
+		localEmit(sessionStarted,endpoint);
+	}
+	
+	/**
+	 * The session protocol is indicating that the session has resumed
+	 * one whose connection failed.
+	 * @param endpoint
+	 * @param session that failed
+	 * @param lastEventId the id of the latest event the server received
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, ResumableSession session, long lastEventId) {
+		log.info("session has resumed with server");
+		resumptions.inc();
+		startProtocols(endpoint);
+		session.resumeOn(endpoint,lastEventId);
+		keepSession(endpoint);
+		localEmit(sessionResumed,endpoint,session.getEndpoint());
+	}
+	
+	/**
+	 * A session has started, so start retrying afresh if it fails, and
+	 * keep it to resume if it can be.
+	 * @param endpoint
+	 */
+	private void keepSession(Endpoint endpoint) {
+		retries=maxRetries;
+		backoff.reset();
+		String token=sessionProtocol.getResumeToken();
+		session = token==null ? null : new ResumableSession(token,endpoint);
+	}
+	
+	/**
+	 * Start the event protocol, and streams if agreed, for a session.
+	 * @param endpoint
+	 */
+	private void startProtocols(Endpoint endpoint) {
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
 		try {
 			endpoint.handleProtocol(eventProtocol);
@@ -262,7 +396,15 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
-		localEmit(sessionStarted,endpoint);
+		if(endpoint.hasCapability(Endpoint.streams)) {
+			StreamProtocol streamProtocol = new StreamProtocol(endpoint,this);
+			try {
+				streamProtocol.startAsClient();
+				endpoint.handleProtocol(streamProtocol);
+			} catch (ProtocolAlreadyRunning e) {
+				// the server opened a stream first
+			}
+		}
 	}
 
 	/**
@@ -272,6 +414,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
+		session=null;
 		localEmit(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
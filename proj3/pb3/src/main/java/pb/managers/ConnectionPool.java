@@ -0,0 +1,276 @@
+package pb.managers;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * Client managers of a {@link PeerManager} that are shared by every
+ * {@link PeerConnection} to the same host:port. A client manager is kept
+ * while it is in use and for {@link #idleTimeout} after its last use has
+ * been released, so connecting again soon after costs no round trips.
+ * Before a client manager is handed out again it is checked to still be
+ * running with an endpoint that hasn't stopped; otherwise it is replaced.
+ */
+class ConnectionPool {
+	private static Logger log = Logger.getLogger(ConnectionPool.class.getName());
+
+	/**
+	 * A pooled client manager. Everything but the client manager is
+	 * guarded by the pool.
+	 */
+	static final class Entry {
+		final String key;
+
+		final ClientManager clientManager;
+
+		/**
+		 * The endpoint of the current session, null until it has started
+		 * and while reconnecting.
+		 */
+		private Endpoint endpoint;
+
+		/**
+		 * Connections that have been opened and not released.
+		 */
+		private final List<PeerConnection> connections = new ArrayList<>();
+
+		/**
+		 * Callbacks of connections released while reconnecting, which the
+		 * resumed session's endpoint may have been given.
+		 */
+		private final List<Object[]> unlistened = new ArrayList<>();
+
+		/**
+		 * Connections that have been handed out and not released.
+		 */
+		private int refs=0;
+
+		/**
+		 * Closes the client manager once it has been idle for long enough.
+		 */
+		private Timeout idle;
+
+		/**
+		 * Whether the entry has left the pool.
+		 */
+		private boolean retired=false;
+
+		Entry(String key, ClientManager clientManager) {
+			this.key=key;
+			this.clientManager=clientManager;
+		}
+
+		synchronized Endpoint getEndpoint() {
+			return endpoint;
+		}
+	}
+
+	private final PeerManager peerManager;
+
+	/**
+	 * Entries by host:port.
+	 */
+	private final Map<String,Entry> entries = new HashMap<>();
+
+	/**
+	 * Milliseconds that an unused client manager is kept for.
+	 */
+	private volatile long idleTimeout = 30000;
+
+	ConnectionPool(PeerManager peerManager) {
+		this.peerManager=peerManager;
+	}
+
+	void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout=idleTimeout;
+	}
+
+	/**
+	 * Hand out a connection to host:port, sharing the client manager
+	 * already connected to it if it is healthy.
+	 * @param serverPort
+	 * @param host
+	 * @return a new connection
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	PeerConnection acquire(int serverPort, String host) throws UnknownHostException, InterruptedException {
+		String key=host+":"+serverPort;
+		Entry entry;
+		Entry unhealthy=null;
+		synchronized(this) {
+			entry=entries.get(key);
+			if(entry!=null && !isHealthy(entry)) {
+				log.info("replacing unhealthy connection to "+key);
+				entries.remove(key);
+				retire(entry);
+				unhealthy=entry;
+				entry=null;
+			}
+			if(entry==null) {
+				entry=new Entry(key,peerManager.connect(serverPort,host));
+				watch(entry);
+				entries.put(key,entry);
+				entry.clientManager.start();
+			}
+			synchronized(entry) {
+				entry.refs++;
+				if(entry.idle!=null) {
+					entry.idle.cancel();
+					entry.idle=null;
+				}
+			}
+		}
+		if(unhealthy!=null) shutdown(unhealthy);
+		return new PeerConnection(this,entry);
+	}
+
+	void open(PeerConnection connection, Entry entry) {
+		Endpoint endpoint;
+		synchronized(entry) {
+			if(entry.connections.contains(connection)) return;
+			entry.connections.add(connection);
+			endpoint=entry.endpoint;
+		}
+		if(endpoint!=null) connection.localEmit(PeerManager.peerStarted,endpoint,entry.clientManager);
+	}
+
+	/**
+	 * Release a connection, removing its callbacks from the current
+	 * endpoint, or from the endpoint the session resumes on if it is
+	 * reconnecting.
+	 * @param connection
+	 * @param entry
+	 * @param added names and callbacks the connection added to endpoints
+	 */
+	void release(PeerConnection connection, Entry entry, List<Object[]> added) {
+		Endpoint endpoint;
+		synchronized(entry) {
+			entry.connections.remove(connection);
+			endpoint=entry.endpoint;
+			if(endpoint==null && !entry.retired) entry.unlistened.addAll(added);
+			if(--entry.refs<=0 && !entry.retired) {
+				entry.idle=Utils.getInstance().setTimeout(()->evict(entry),idleTimeout);
+			}
+		}
+		if(endpoint!=null) PeerConnection.unlisten(endpoint,added);
+	}
+
+	/**
+	 * Close a client manager that has been idle for the timeout.
+	 * @param entry
+	 */
+	private void evict(Entry entry) {
+		synchronized(this) {
+			synchronized(entry) {
+				if(entry.refs>0 || entry.retired) return;
+				retire(entry);
+			}
+			entries.remove(entry.key,entry);
+		}
+		log.info("closing idle connection to "+entry.key);
+		shutdown(entry);
+	}
+
+	/**
+	 * Empty the pool, when the peer manager is shutting down its client
+	 * managers. Those whose session hasn't started yet stop it once it does.
+	 */
+	synchronized void retireAll() {
+		entries.values().forEach(this::retire);
+		entries.clear();
+	}
+
+	private boolean isHealthy(Entry entry) {
+		if(!entry.clientManager.isAlive()) return false;
+		Endpoint endpoint=entry.getEndpoint();
+		return endpoint==null || !endpoint.isStopped();
+	}
+
+	private void retire(Entry entry) {
+		synchronized(entry) {
+			entry.retired=true;
+			if(entry.idle!=null) entry.idle.cancel();
+		}
+	}
+
+	/**
+	 * Stop the session of a retired entry, which if it hasn't started yet
+	 * is stopped as soon as it does.
+	 * @param entry
+	 */
+	private void shutdown(Entry entry) {
+		if(entry.getEndpoint()!=null) entry.clientManager.shutdown();
+	}
+
+	/**
+	 * Follow the client manager's sessions and pass them on to the open
+	 * connections.
+	 * @param entry
+	 */
+	private void watch(Entry entry) {
+		ClientManager clientManager=entry.clientManager;
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint=(Endpoint)args[0];
+			List<PeerConnection> opened;
+			boolean retired;
+			synchronized(entry) {
+				entry.endpoint=endpoint;
+				opened=new ArrayList<>(entry.connections);
+				retired=entry.retired;
+			}
+			if(retired) {
+				clientManager.shutdown();
+				return;
+			}
+			opened.forEach((connection)->connection.localEmit(PeerManager.peerStarted,endpoint,clientManager));
+		}).on(PeerManager.peerStopped, (args)->{
+			synchronized(this) {
+				entries.remove(entry.key,entry);
+				retire(entry);
+			}
+			forward(entry,PeerManager.peerStopped,args);
+		}).on(PeerManager.peerError, (args)->{
+			// the client manager will try to reconnect
+			forward(entry,PeerManager.peerError,args);
+		}).on(PeerManager.peerResumed, (args)->{
+			Endpoint endpoint=(Endpoint)args[0];
+			List<PeerConnection> opened;
+			List<Object[]> unlistened;
+			boolean retired;
+			synchronized(entry) {
+				entry.endpoint=endpoint;
+				opened=new ArrayList<>(entry.connections);
+				unlistened=new ArrayList<>(entry.unlistened);
+				entry.unlistened.clear();
+				retired=entry.retired;
+			}
+			// released connections mustn't keep handling the session's events
+			PeerConnection.unlisten(endpoint,unlistened);
+			// retired while reconnecting, so nobody wants the session any more
+			if(retired) {
+				clientManager.shutdown();
+				return;
+			}
+			opened.forEach((connection)->connection.localEmit(PeerManager.peerResumed,args));
+		});
+	}
+
+	private void forward(Entry entry, String eventName, Object[] args) {
+		List<PeerConnection> opened;
+		synchronized(entry) {
+			entry.endpoint=null;
+			if(entry.retired) entry.unlistened.clear();
+			opened=new ArrayList<>(entry.connections);
+		}
+		opened.forEach((connection)->connection.localEmit(eventName,args));
+	}
+}
@@ -2,15 +2,19 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IAcceptor;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
- * {@link pb.managers.ServerManager#acceptClient(Socket)}. Note that the
+ * {@link pb.managers.ServerManager#acceptClient(Endpoint)}. The connections
+ * are accepted using a {@link pb.managers.endpoint.Transport}. Note that the
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
@@ -21,7 +25,7 @@ import java.util.logging.Logger;
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
+	private IAcceptor acceptor=null;
 	private int port;
 	private ServerManager serverManager;
 	
@@ -43,7 +47,20 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		this(port,serverManager,new SocketTransport());
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.managers.ServerManager} and the transport to
+	 * accept connections with.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param transport to listen with
+	 * @throws IOException whenever the port can't be listened on
+	 */
+	public IOThread(int port, ServerManager serverManager, Transport transport) throws IOException{
+		acceptor = transport.listen(port); // let's throw this since its potentially unrecoverable
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
@@ -54,12 +71,8 @@ public class IOThread extends Thread {
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				log.warning("exception closing server socket: "+e.getMessage());
-			}
+		if(acceptor!=null)
+			acceptor.close();
 		interrupt();
 	}
 	
@@ -75,21 +88,17 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		while(!isInterrupted() && !acceptor.isClosed()){
+			Endpoint endpoint;
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				endpoint = acceptor.accept(serverManager);
+				log.info("Received connection from "+endpoint.getOtherEndpointId());
+				serverManager.acceptClient(endpoint);
 			} catch (IOException e) {
 				log.warning("exception accepting connection: "+e.getMessage());
 			} 
 		}
 		log.info("IOThread terminating");
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
-		}
+		acceptor.close();
 	}
 }
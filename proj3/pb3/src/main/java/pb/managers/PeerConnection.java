@@ -0,0 +1,119 @@
+package pb.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * One use of a pooled connection to another peer, handed out by
+ * {@link PeerManager#acquire(int, String)}. Uses of the same peer share
+ * a {@link ClientManager} and so a single endpoint, which stays open until
+ * every use has been released and it has been idle for a while.
+ * <br/>
+ * A connection emits {@link PeerManager#peerStarted},
+ * {@link PeerManager#peerStopped}, {@link PeerManager#peerError} and
+ * {@link PeerManager#peerResumed}, with
+ * the same arguments as a client manager from
+ * {@link PeerManager#connect(int, String)} does. Add callbacks for them
+ * and then call {@link #open()}; if the session is already up,
+ * {@link PeerManager#peerStarted} is emitted straight away.
+ * <br/>
+ * Since the endpoint is shared, callbacks for its events should be added
+ * with {@link #listen(String, IEventCallback)}, which removes them again
+ * when the connection is released, even from the endpoint that a session
+ * resumed on, and the endpoint should never be closed by a use of it.
+ */
+public class PeerConnection extends Eventable {
+
+	private final ConnectionPool pool;
+
+	private final ConnectionPool.Entry entry;
+
+	/**
+	 * Names, callbacks and endpoints of events added with
+	 * {@link #listen(String, IEventCallback)}.
+	 */
+	private final List<Object[]> listening = new ArrayList<>();
+
+	private boolean released=false;
+
+	PeerConnection(ConnectionPool pool, ConnectionPool.Entry entry) {
+		this.pool=pool;
+		this.entry=entry;
+	}
+
+	/**
+	 *
+	 * @return the client manager shared by all uses of the peer
+	 */
+	public ClientManager getClientManager() {
+		return entry.clientManager;
+	}
+
+	/**
+	 *
+	 * @return the endpoint of the current session with the peer, or null
+	 * if there isn't one at the moment
+	 */
+	public Endpoint getEndpoint() {
+		return entry.getEndpoint();
+	}
+
+	/**
+	 * Start receiving the connection's events, including
+	 * {@link PeerManager#peerStarted} now if the session is already up.
+	 */
+	public void open() {
+		pool.open(this,entry);
+	}
+
+	/**
+	 * Add a callback for an event on the endpoint, which is removed when
+	 * the connection is released. Usually called from the callback for
+	 * {@link PeerManager#peerStarted}.
+	 * @param eventName
+	 * @param callback
+	 * @return this connection for chaining
+	 */
+	public PeerConnection listen(String eventName, IEventCallback callback) {
+		Endpoint endpoint=getEndpoint();
+		if(endpoint==null) return this;
+		synchronized(listening) {
+			if(released) return this;
+			listening.add(new Object[] {eventName,callback,endpoint});
+		}
+		endpoint.on(eventName,callback);
+		return this;
+	}
+
+	/**
+	 * Finish with the connection. Its callbacks on the endpoint are
+	 * removed and the pool may close the session once nothing else uses it.
+	 * Calling this more than once has no further effect.
+	 */
+	public void release() {
+		List<Object[]> added;
+		synchronized(listening) {
+			if(released) return;
+			released=true;
+			added=new ArrayList<>(listening);
+			listening.clear();
+		}
+		added.forEach((event)->((Endpoint)event[2]).off((String)event[0],(IEventCallback)event[1]));
+		// a resumed session has the callbacks on its new endpoint too
+		pool.release(this,entry,added);
+	}
+
+	/**
+	 * Remove callbacks that were added with
+	 * {@link #listen(String, IEventCallback)} from an endpoint.
+	 * @param endpoint
+	 * @param added names, callbacks and endpoints from {@link #listening}
+	 */
+	static void unlisten(Endpoint endpoint, List<Object[]> added) {
+		added.forEach((event)->endpoint.off((String)event[0],(IEventCallback)event[1]));
+	}
+}
@@ -6,6 +6,8 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
 
 
 
@@ -55,6 +57,19 @@ public class PeerManager extends Manager {
 	 */
 	public static final String peerError = "PEER_ERROR";
 	
+	/**
+	 * Emitted when a session whose connection failed has resumed on a new
+	 * endpoint, instead of {@link #peerStarted}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}, the new endpoint</li>
+	 * <li>{@code args[1] instanceof ServerManager}</li>
+	 * <li>{@code args[2] instanceof Endpoint}, the endpoint that failed</li>
+	 * </ul>
+	 * Note that this event is also emitted on new client managers and
+	 * in this case {@code args[1] instanceof ClientManager}
+	 */
+	public static final String peerResumed = "PEER_RESUMED";
+	
 	/**
 	 * ServerManager has been initialized but not started.
 	 * <ul>
@@ -78,14 +93,37 @@ public class PeerManager extends Manager {
 	 */
 	private int myServerPort;
 	
+	/**
+	 * The transport shared by the server manager and all client managers.
+	 */
+	private final Transport transport;
+	
+	/**
+	 * Client managers shared by connections from {@link #acquire(int, String)}.
+	 */
+	private final ConnectionPool pool;
+	
 	/**
 	 * Initialize with a port for the server manager for this peer
 	 * to use.
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
+		this(myServerPort,new SocketTransport());
+	}
+	
+	/**
+	 * Initialize with a port for the server manager for this peer
+	 * to use, and the transport that the server manager and all client
+	 * managers will use.
+	 * @param myServerPort
+	 * @param transport
+	 */
+	public PeerManager(int myServerPort,Transport transport) {
 		clientManagers = new HashSet<>();
 		this.myServerPort=myServerPort;
+		this.transport=transport;
+		pool=new ConnectionPool(this);
 	}
 	
 	/**
@@ -106,7 +144,7 @@ public class PeerManager extends Manager {
 	 * @return the client manager for the new connection
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
-		ClientManager clientManager = new ClientManager(host,serverPort);
+		ClientManager clientManager = new ClientManager(host,serverPort,transport);
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -117,10 +155,39 @@ public class PeerManager extends Manager {
 		}).on(ClientManager.sessionError, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerError, client,clientManager);
+		}).on(ClientManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			clientManager.emit(peerResumed, client,clientManager,args[1]);
 		});
 		return clientManager;
 	}
 	
+	/**
+	 * Connect to another peer, sharing the connection with every other
+	 * use of the same host and port. The client manager is started by the
+	 * pool, the connection just needs to be opened after its callbacks
+	 * are added, see {@link PeerConnection}. It must be released when it
+	 * is no longer needed.
+	 * @param serverPort the port of the peer to connect to
+	 * @param host the hostname of the peer to connect to
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 * @return a connection to the peer
+	 */
+	public PeerConnection acquire(int serverPort,String host) throws UnknownHostException, InterruptedException {
+		return pool.acquire(serverPort,host);
+	}
+	
+	/**
+	 * 
+	 * @param idleTimeout milliseconds that a connection from
+	 * {@link #acquire(int, String)} is kept open after its last use has been
+	 * released, 30 seconds unless set
+	 */
+	public void setConnectionIdleTimeout(long idleTimeout) {
+		pool.setIdleTimeout(idleTimeout);
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -130,6 +197,7 @@ public class PeerManager extends Manager {
 	@Override
 	public void shutdown() {
 		serverManager.shutdown();
+		pool.retireAll();
 		clientManagers.forEach((clientManager)->{
 			clientManager.shutdown(); // client manager will send a session stop
 		});
@@ -138,7 +206,7 @@ public class PeerManager extends Manager {
 	@Override
 	public void run() {
 		// initialize a server manager for other peers to connect to
-		serverManager=new ServerManager(myServerPort);
+		serverManager=new ServerManager(myServerPort,null,transport);
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -149,6 +217,9 @@ public class PeerManager extends Manager {
 		}).on(ServerManager.sessionError, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			localEmit(peerError,client,serverManager);
+		}).on(ServerManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			localEmit(peerResumed,client,serverManager,args[1]);
 		});
 		localEmit(peerServerManager,serverManager);
 		serverManager.start();
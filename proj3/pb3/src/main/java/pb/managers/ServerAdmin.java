@@ -0,0 +1,202 @@
+package pb.managers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Tracer;
+import pb.utils.Utils;
+
+/**
+ * Handles the events that admin clients emit to a {@link ServerManager}
+ * that has a password: shutting the server down, reporting its statistics
+ * and changing its settings while it runs. Every event carries the
+ * password, and is ignored if the password is wrong.
+ */
+class ServerAdmin {
+	private static Logger log = Logger.getLogger(ServerAdmin.class.getName());
+
+	/**
+	 * Clients listed under top talkers in a report.
+	 */
+	private static final int numTopTalkers = 5;
+
+	private final ServerManager serverManager;
+
+	private final String password;
+
+	/**
+	 * Traffic of each endpoint when it was last reported, as {time,
+	 * messages received, bytes received, messages sent, bytes sent}, so
+	 * that a report gives the rates since the one before.
+	 */
+	private final Map<Endpoint,long[]> lastReported = new WeakHashMap<>();
+
+	ServerAdmin(ServerManager serverManager, String password) {
+		this.serverManager=serverManager;
+		this.password=password;
+	}
+
+	/**
+	 * Listen for admin events from a client.
+	 * @param endpoint
+	 */
+	void listen(Endpoint endpoint) {
+		endpoint.on(ServerManager.shutdownServer, (args)->{
+			if(isAdmin(endpoint,(String)args[0])) serverManager.shutdown();
+		}).on(ServerManager.forceShutdownServer, (args)->{
+			if(isAdmin(endpoint,(String)args[0])) serverManager.forceShutdown();
+		}).on(ServerManager.vaderShutdownServer, (args)->{
+			if(isAdmin(endpoint,(String)args[0])) serverManager.vaderShutdown();
+		}).on(ServerManager.serverStats, (args)->{
+			if(!isAdmin(endpoint,(String)args[0])) {
+				endpoint.emit(ServerManager.serverReport,"incorrect password");
+				return;
+			}
+			endpoint.emit(ServerManager.serverReport,report());
+		}).on(ServerManager.serverTrace, (args)->{
+			if(!isAdmin(endpoint,(String)args[0])) {
+				endpoint.emit(ServerManager.serverReport,"incorrect password");
+				return;
+			}
+			Tracer tracer=Tracer.getInstance();
+			String trace=tracer.dump(null);
+			endpoint.emit(ServerManager.serverReport,"recording 1 in "+tracer.getSampling()+" messages\n"+trace);
+		}).on(ServerManager.serverTune, (args)->{
+			String[] lines=((String)args[0]).split("\n");
+			if(!isAdmin(endpoint,lines[0])) {
+				endpoint.emit(ServerManager.serverReport,"incorrect password");
+				return;
+			}
+			StringBuilder reply=new StringBuilder();
+			for(int i=1;i<lines.length;i++) reply.append(tune(lines[i].trim())).append('\n');
+			reply.append(settings());
+			endpoint.emit(ServerManager.serverReport,reply.toString());
+		});
+	}
+
+	private boolean isAdmin(Endpoint endpoint, String given) {
+		if(password.equals(given)) return true;
+		log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+		return false;
+	}
+
+	/**
+	 * Change a setting.
+	 * @param setting as {@code name=value}
+	 * @return what was done, to report to the admin
+	 */
+	private String tune(String setting) {
+		int equals=setting.indexOf('=');
+		if(equals<0) return "expected setting=value: "+setting;
+		String name=setting.substring(0,equals).trim();
+		String value=setting.substring(equals+1).trim();
+		try {
+			switch(name) {
+			case "eventTimeout":
+				serverManager.setEventTimeout(positive(Integer.parseInt(value)));
+				break;
+			case "keepAliveTimeout":
+				serverManager.setKeepAliveTimeout(positive(Integer.parseInt(value)));
+				break;
+			case "eventRateLimit":
+				serverManager.setEventRateLimit(notNegative(Double.parseDouble(value)));
+				break;
+			case "maxConnections":
+				serverManager.setMaxConnections((int)notNegative(Integer.parseInt(value)));
+				break;
+			case "resumeTimeout":
+				serverManager.setResumeTimeout((long)notNegative(Long.parseLong(value)));
+				break;
+			case "traceSampling":
+				Tracer.getInstance().setSampling((int)notNegative(Integer.parseInt(value)));
+				break;
+			default:
+				return "unknown setting: "+name;
+			}
+		} catch (NumberFormatException e) {
+			return "invalid value for "+name+": "+value;
+		}
+		log.warning("admin changed "+name+" to "+value);
+		return "set "+name+"="+value;
+	}
+
+	private static int positive(int value) {
+		if(value<=0) throw new NumberFormatException();
+		return value;
+	}
+
+	private static double notNegative(double value) {
+		if(value<0) throw new NumberFormatException();
+		return value;
+	}
+
+	private String settings() {
+		return "settings: eventTimeout="+serverManager.getEventTimeout()
+			+" keepAliveTimeout="+serverManager.getKeepAliveTimeout()
+			+" eventRateLimit="+serverManager.getEventRateLimit()
+			+" maxConnections="+serverManager.getMaxConnections()
+			+" resumeTimeout="+serverManager.getResumeTimeout()
+			+" traceSampling="+Tracer.getInstance().getSampling();
+	}
+
+	/**
+	 * Rates of an endpoint since it was last reported.
+	 */
+	private static final class Rates {
+		final Endpoint endpoint;
+		final double messagesIn, bytesIn, messagesOut, bytesOut;
+
+		Rates(Endpoint endpoint, long[] before, long[] now) {
+			this.endpoint=endpoint;
+			double seconds=Math.max(1,now[0]-before[0])/1000.0;
+			messagesIn=(now[1]-before[1])/seconds;
+			bytesIn=(now[2]-before[2])/seconds;
+			messagesOut=(now[3]-before[3])/seconds;
+			bytesOut=(now[4]-before[4])/seconds;
+		}
+	}
+
+	/**
+	 *
+	 * @return a report of the connections, timers and settings of the server
+	 */
+	private String report() {
+		List<Endpoint> endpoints=serverManager.getLiveEndpoints();
+		long time=Utils.getInstance().currentTimeMillis();
+		List<Rates> rates=new ArrayList<>();
+		synchronized(lastReported) {
+			endpoints.forEach((endpoint)->{
+				long[] now={time,endpoint.getMessagesReceived(),endpoint.getBytesReceived(),
+						endpoint.getMessagesSent(),endpoint.getBytesSent()};
+				long[] before=lastReported.get(endpoint);
+				if(before==null) before=new long[] {endpoint.getTimeReady(),0,0,0,0};
+				lastReported.put(endpoint,now);
+				rates.add(new Rates(endpoint,before,now));
+			});
+		}
+		StringBuilder report=new StringBuilder();
+		int max=serverManager.getMaxConnections();
+		report.append("endpoints: ").append(endpoints.size())
+			.append(max>0 ? " of at most "+max : "").append('\n');
+		report.append("timers: ").append(Utils.getInstance().getPendingTimeouts()).append(" pending, ")
+			.append(Utils.getInstance().getTimeoutBacklog()).append(" due and not yet run\n");
+		report.append(settings()).append('\n');
+		report.append(String.format("%-24s %7s %10s %10s %10s %10s %10s%n",
+				"endpoint","queued","bytes","msgs/s in","msgs/s out","kB/s in","kB/s out"));
+		rates.forEach((r)->report.append(String.format("%-24s %7d %10d %10.1f %10.1f %10.1f %10.1f%n",
+				r.endpoint.getOtherEndpointId(),r.endpoint.getQueueDepth(),r.endpoint.getBytesPending(),
+				r.messagesIn,r.messagesOut,r.bytesIn/1024,r.bytesOut/1024)));
+		report.append("top talkers by bytes received:\n");
+		rates.sort(Comparator.comparingDouble((Rates r)->r.bytesIn).reversed());
+		for(int i=0;i<Math.min(numTopTalkers,rates.size());i++) {
+			Rates r=rates.get(i);
+			report.append(String.format("%2d. %-24s %9.1f kB/s%n",i+1,r.endpoint.getOtherEndpointId(),r.bytesIn/1024));
+		}
+		return report.toString();
+	}
+}
@@ -2,12 +2,22 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SocketTransport;
+import pb.managers.endpoint.Transport;
+import pb.jfr.ProtocolTimeout;
+import pb.metrics.Counter;
+import pb.metrics.Labelled;
+import pb.metrics.Metrics;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
@@ -15,7 +25,12 @@ import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.stream.IStreamProtocolHandler;
+import pb.protocols.stream.StreamProtocol;
+import pb.utils.Timeout;
+import pb.utils.Utils;
 
 
 /**
@@ -30,10 +45,18 @@ import pb.protocols.session.SessionProtocol;
  *
  */
 public class ServerManager extends Manager implements ISessionProtocolHandler,
-	IKeepAliveProtocolHandler, IEventProtocolHandler
+	IKeepAliveProtocolHandler, IEventProtocolHandler, IStreamProtocolHandler
 {
 	private static Logger log = Logger.getLogger(ServerManager.class.getName());
 	
+	/**
+	 * Metrics of every server manager.
+	 */
+	private static final Labelled<Counter> timeouts = Metrics.getInstance()
+			.counter("pb_timeouts_total","Sessions ended because a protocol timed out","protocol");
+	private static final Counter resumptions = Metrics.getInstance()
+			.counter("pb_sessions_resumed_total","Sessions resumed on a new connection, counted at both ends");
+	
 	/**
 	 * Events emitted by the ServerManager
 	 */
@@ -63,6 +86,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when a session whose connection failed has been resumed on
+	 * a new endpoint, see {@link pb.protocols.session.ResumableSession}.
+	 * It is emitted instead of {@link #sessionStarted}, and
+	 * {@link #sessionError} is only emitted for a failed session that is
+	 * not resumed in time.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}, the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint}, the endpoint that failed</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
 	 * for shutting down.
@@ -90,6 +126,48 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
+	/**
+	 * Emitted by an admin client to ask for a report of the server's
+	 * statistics, answered with {@link #serverReport}. Message is the password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverStats="SERVER_STATS";
+	
+	/**
+	 * Emitted by an admin client to change settings of the running server,
+	 * answered with {@link #serverReport}. Message is the password followed
+	 * by lines of {@code setting=value}, each on a new line, where the
+	 * settings are {@code eventTimeout}, {@code keepAliveTimeout},
+	 * {@code eventRateLimit}, {@code maxConnections}, {@code resumeTimeout}
+	 * and {@code traceSampling}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverTune="SERVER_TUNE";
+	
+	/**
+	 * Emitted by an admin client to ask for the messages recorded by the
+	 * {@link pb.utils.Tracer}, answered with {@link #serverReport}. Message
+	 * is the password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverTrace="SERVER_TRACE";
+	
+	/**
+	 * Emitted by the server to an admin client in reply to
+	 * {@link #serverStats}, {@link #serverTune} or {@link #serverTrace}. Message is a report
+	 * to print.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverReport="SERVER_REPORT";
+	
 	
 	/**
 	 * The io thread accepts connections and informs the server manager
@@ -121,18 +199,42 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	private volatile boolean vaderShutdown=false;
 	
 	/**
-	 * Password if given
+	 * Handles admin client events, null if there is no password.
+	 */
+	private final ServerAdmin admin;
+	
+	/**
+	 * The transport that the io thread listens with.
+	 */
+	private final Transport transport;
+	
+	/**
+	 * Sessions whose connection failed, by resume token, until they are
+	 * resumed or time out. Also guards {@link #suspendedTimeouts}.
+	 */
+	private final Map<String,ResumableSession> suspended = new HashMap<>();
+	
+	private final Map<String,Timeout> suspendedTimeouts = new HashMap<>();
+	
+	/**
+	 * How long in ms a client has to resume a session whose connection failed.
 	 */
-	private String password=null;
+	private volatile long resumeTimeout = 30000;
+	
+	/**
+	 * Settings that can be changed while running, see {@link #serverTune}.
+	 */
+	private volatile int eventTimeout = 40000;
+	private volatile int keepAliveTimeout = 40000;
+	private volatile double eventRateLimit = 0;
+	private volatile int maxConnections = 0;
 	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
-		this.port=port;
-		liveEndpoints=new HashSet<>();
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
+		this(port,null,new SocketTransport());
 	}
 	
 	/**
@@ -142,9 +244,22 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
+		this(port,password,new SocketTransport());
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and the transport to use for client connections, e.g. a
+	 * {@link pb.managers.endpoint.NioTransport} to avoid a thread per client.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients, or null for none
+	 * @param transport to accept client connections with
+	 */
+	public ServerManager(int port,String password,Transport transport) {
 		this.port=port;
 		liveEndpoints=new HashSet<>();
-		this.password = password;
+		admin = password==null ? null : new ServerAdmin(this,password);
+		this.transport = transport;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
@@ -174,6 +289,107 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		ioThread.shutDown();
 	}
 	
+	/**
+	 * 
+	 * @param resumeTimeout how long in ms a client has to resume a session
+	 * whose connection failed, 30 seconds unless set, 0 to never resume
+	 */
+	public void setResumeTimeout(long resumeTimeout) {
+		this.resumeTimeout=resumeTimeout;
+	}
+	
+	public long getResumeTimeout() {
+		return resumeTimeout;
+	}
+	
+	/**
+	 * 
+	 * @param eventTimeout ms that clients have to acknowledge events, for
+	 * current and new sessions
+	 */
+	public void setEventTimeout(int eventTimeout) {
+		this.eventTimeout=eventTimeout;
+		reconfigure();
+	}
+	
+	public int getEventTimeout() {
+		return eventTimeout;
+	}
+	
+	/**
+	 * 
+	 * @param keepAliveTimeout ms that clients may go without sending a keep
+	 * alive request, for current and new connections
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout=keepAliveTimeout;
+		reconfigure();
+	}
+	
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+	
+	/**
+	 * 
+	 * @param eventRateLimit events per second accepted from each client,
+	 * for current and new connections, 0 for no limit
+	 */
+	public void setEventRateLimit(double eventRateLimit) {
+		this.eventRateLimit=eventRateLimit;
+		reconfigure();
+	}
+	
+	public double getEventRateLimit() {
+		return eventRateLimit;
+	}
+	
+	/**
+	 * 
+	 * @param maxConnections most clients connected at once, 0 for no limit;
+	 * clients already connected are not disconnected
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections=maxConnections;
+	}
+	
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	
+	/**
+	 * Apply the settings to the endpoints and protocols that are running.
+	 */
+	private void reconfigure() {
+		getLiveEndpoints().forEach((endpoint)->{
+			if(endpoint.getEventRateLimit()!=eventRateLimit) endpoint.setEventRateLimit(eventRateLimit);
+			configure(endpoint.getProtocol(EventProtocol.protocolName));
+			configure(endpoint.getProtocol(KeepAliveProtocol.protocolName));
+		});
+	}
+	
+	/**
+	 * Apply the settings to a protocol.
+	 * @param protocol or null
+	 */
+	private void configure(Protocol protocol) {
+		if(protocol instanceof EventProtocol) {
+			((EventProtocol)protocol).eventTimeout=eventTimeout;
+		} else if(protocol instanceof KeepAliveProtocol) {
+			((KeepAliveProtocol)protocol).setKeepAliveTimeout(keepAliveTimeout);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the endpoints that are ready and have not closed
+	 */
+	public List<Endpoint> getLiveEndpoints() {
+		synchronized(liveEndpoints) {
+			return new ArrayList<>(liveEndpoints);
+		}
+	}
+	
 	/**
 	 * Convenience wrapper
 	 * @return the number of live endpoints
@@ -190,7 +406,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			ioThread = new IOThread(port,this,transport);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
 			return;
@@ -268,7 +484,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		acceptClient(new Endpoint(clientSocket,this));
+	}
+	
+	/**
+	 * A new client has connected to the server, and the transport has
+	 * already wrapped it in an endpoint that has not yet been started.
+	 * @param endpoint the endpoint for the client.
+	 */
+	public void acceptClient(Endpoint endpoint) {
 		endpoint.start();
 	}
 	
@@ -287,37 +511,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
+		boolean full;
 		synchronized(liveEndpoints) {
-			liveEndpoints.add(endpoint);
+			full = maxConnections>0 && liveEndpoints.size()>=maxConnections;
+			if(!full) liveEndpoints.add(endpoint);
 		}
+		if(full) {
+			log.warning("refusing client, already at "+maxConnections+" connections: "+endpoint.getOtherEndpointId());
+			endpoint.close();
+			return;
+		}
+		if(eventRateLimit>0) endpoint.setEventRateLimit(eventRateLimit);
 		
-		if(password!=null) {
+		if(admin!=null) {
 			// listen for admin client events
-			endpoint.on(shutdownServer, (args)->{
-				String msg = (String) args[0];
-				if(!msg.equals(password)) {
-					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
-				} else {
-					shutdown();
-				}
-			}).on(forceShutdownServer, (args)->{
-				String msg = (String) args[0];
-				if(!msg.equals(password)) {
-					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
-				} else {
-					forceShutdown();
-				}
-			}).on(vaderShutdownServer, (args)->{
-				String msg = (String) args[0];
-				if(!msg.equals(password)) {
-					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
-				} else {
-					vaderShutdown();
-				}
-			});
+			admin.listen(endpoint);
 		}
 		
 		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
+		configure(keepAliveProtocol);
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(keepAliveProtocol);
@@ -356,6 +568,51 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with client: "+endpoint.getOtherEndpointId());
 		
+		startProtocols(endpoint);
+		
+		// the event protocol has started but still no events
+		// could have been received at this point
+		localEmit(sessionStarted,endpoint);
+		
+	}
+	
+	/**
+	 * The client has resumed a session whose connection failed. The
+	 * protocols are started as for a new session, and then carry on from
+	 * the failed session.
+	 * @param endpoint
+	 * @param session that failed
+	 * @param lastEventId the id of the latest event the client received
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, ResumableSession session, long lastEventId) {
+		log.info("session has resumed with client: "+endpoint.getOtherEndpointId());
+		resumptions.inc();
+		startProtocols(endpoint);
+		session.resumeOn(endpoint,lastEventId);
+		localEmit(sessionResumed,endpoint,session.getEndpoint());
+	}
+	
+	/**
+	 * The client asks to resume a session whose connection failed, which
+	 * it can if the session hasn't timed out.
+	 * @param token
+	 * @return the session, or null if there is no such session
+	 */
+	@Override
+	public ResumableSession resumeSession(String token) {
+		synchronized(suspended) {
+			Timeout timeout=suspendedTimeouts.remove(token);
+			if(timeout!=null) timeout.cancel();
+			return suspended.remove(token);
+		}
+	}
+	
+	/**
+	 * Start the event protocol, and streams if agreed, for a session.
+	 * @param endpoint
+	 */
+	private void startProtocols(Endpoint endpoint) {
 		if(forceShutdown) {
 			// ask the client to stop now
 			SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
@@ -365,6 +622,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		
 		// now start the event protocol
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		configure(eventProtocol);
 		try {
 			endpoint.handleProtocol(eventProtocol);
 			eventProtocol.startAsServer();
@@ -372,10 +630,44 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
-		// the event protocol has started but still no events
-		// could have been received at this point
-		localEmit(sessionStarted,endpoint);
-		
+		// and streams, numbered before any can be opened
+		if(endpoint.hasCapability(Endpoint.streams)) {
+			StreamProtocol streamProtocol = new StreamProtocol(endpoint,this);
+			try {
+				streamProtocol.startAsServer();
+				endpoint.handleProtocol(streamProtocol);
+			} catch (ProtocolAlreadyRunning e) {
+				// the client opened a stream first
+			}
+		}
+	}
+	
+	/**
+	 * The connection of a session has failed, keep the session for the
+	 * client to resume if it can be resumed.
+	 * @param endpoint
+	 * @return true if the session was kept
+	 */
+	private boolean suspend(Endpoint endpoint) {
+		SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		if(sessionProtocol==null || sessionProtocol.getResumeToken()==null || resumeTimeout<=0) return false;
+		String token=sessionProtocol.getResumeToken();
+		ResumableSession session=new ResumableSession(token,endpoint);
+		synchronized(suspended) {
+			// e.g. timed out on more than one protocol
+			if(suspended.containsKey(token)) return true;
+			suspended.put(token,session);
+			suspendedTimeouts.put(token,Utils.getInstance().setTimeout(()->{
+				synchronized(suspended) {
+					if(!suspended.remove(token,session)) return;
+					suspendedTimeouts.remove(token);
+				}
+				log.warning("session was not resumed by client: "+endpoint.getOtherEndpointId());
+				localEmit(sessionError,endpoint);
+			},resumeTimeout));
+		}
+		log.info("keeping session for client to resume: "+endpoint.getOtherEndpointId());
+		return true;
 	}
 
 	/**
@@ -406,6 +698,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
 		// the only protocols in this system are this kind...
+		configure(protocol);
 		try {
 			((IRequestReplyProtocol)protocol).startAsServer();
 			endpoint.handleProtocol(protocol);
@@ -447,7 +740,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		if(!suspend(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -472,7 +765,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		timeouts.get(protocol.getProtocolName()).inc();
+		ProtocolTimeout event=new ProtocolTimeout();
+		if(event.shouldCommit()) {
+			event.otherEndpoint=endpoint.getOtherEndpointId();
+			event.protocol=protocol.getProtocolName();
+			event.commit();
+		}
+		if(!suspend(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
@@ -0,0 +1,410 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a connected socket so that its bytes take as long to get through
+ * as they would over the network described by a
+ * {@link pb.managers.endpoint.NetworkConditions}. Both directions are
+ * held back, each by a thread of its own: bytes written are given to the
+ * socket once they would have arrived, and bytes that the socket receives
+ * can only be read once they would have arrived. So only one end of a
+ * connection needs to be emulated, which can be either a client or a
+ * server, and the round trip is twice the latency.
+ * <br/>
+ * Each direction only holds as many bytes as the network could have in
+ * flight, its bandwidth times its latency, plus a socket buffer. Writing
+ * more blocks until the bytes before have been taken, as it would on a
+ * congested socket, so the endpoint's outbound lanes still get to choose
+ * what goes next, and a slow reader holds back the receiving socket.
+ * <br/>
+ * Closing the socket still delivers what was written before, as closing a
+ * real socket does, and then closes the wrapped socket.
+ *
+ * @see {@link pb.managers.endpoint.EmulatedTransport}
+ */
+public class EmulatedSocket extends Socket {
+	private static Logger log = Logger.getLogger(EmulatedSocket.class.getName());
+
+	/**
+	 * Most bytes read from the wrapped socket in one go.
+	 */
+	private static final int readSize = 16*1024;
+
+	/**
+	 * Bytes that a socket buffers on top of those in flight.
+	 */
+	private static final long socketBuffer = 64*1024;
+
+	/**
+	 * Bytes that may be in flight when the bandwidth isn't limited.
+	 */
+	private static final long unlimitedWindow = 8*1024*1024;
+
+	private final Socket socket;
+
+	private final Link outgoing;
+
+	private final Link incoming;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private volatile boolean closed=false;
+
+	/**
+	 *
+	 * @param socket a connected socket
+	 * @param conditions of the network to emulate
+	 * @throws IOException if the socket's streams can't be had
+	 */
+	public EmulatedSocket(Socket socket, NetworkConditions conditions) throws IOException {
+		this.socket=socket;
+		outgoing=new Link(conditions);
+		incoming=new Link(conditions);
+		InputStream socketIn=socket.getInputStream();
+		OutputStream socketOut=socket.getOutputStream();
+		in=new InputStream() {
+			private byte[] chunk=new byte[0];
+			private int position=0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one=new byte[1];
+				return read(one,0,1)==-1 ? -1 : one[0]&0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len==0) return 0;
+				if(position==chunk.length) {
+					byte[] next=incoming.take();
+					if(next==null) return -1;
+					chunk=next;
+					position=0;
+				}
+				int n=Math.min(len,chunk.length-position);
+				System.arraycopy(chunk,position,b,off,n);
+				position+=n;
+				return n;
+			}
+		};
+		out=new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b},0,1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(closed) throw new SocketException("socket is closed");
+				// in pieces, so that a big write is held back like any other
+				for(int at=off;at<off+len;at+=readSize) {
+					outgoing.offer(Arrays.copyOfRange(b,at,Math.min(off+len,at+readSize)));
+				}
+			}
+		};
+		pump("NetworkEmulatorSend",()->{
+			try {
+				byte[] data;
+				while((data=outgoing.take())!=null) {
+					socketOut.write(data);
+					socketOut.flush();
+				}
+			} catch (IOException e) {
+				outgoing.fail(e);
+			} finally {
+				closeSocket();
+			}
+		});
+		pump("NetworkEmulatorReceive",()->{
+			byte[] buffer=new byte[readSize];
+			try {
+				int read;
+				while((read=socketIn.read(buffer))!=-1) {
+					incoming.offer(Arrays.copyOf(buffer,read));
+				}
+			} catch (IOException e) {
+				// the socket was closed, the reader sees the end of the stream
+			}
+			incoming.end();
+		});
+	}
+
+	private static void pump(String name, Runnable runnable) {
+		Thread thread=new Thread(runnable,name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warning("socket did not close properly: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Stop reading straight away, and close the wrapped socket once what
+	 * has been written has been delivered.
+	 */
+	@Override
+	public void close() {
+		if(closed) return;
+		closed=true;
+		incoming.close();
+		outgoing.end();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return socket.getPort();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public String toString() {
+		return "Emulated"+socket;
+	}
+
+	/**
+	 * One direction of the connection. Chunks of bytes are given a time at
+	 * which they arrive when they are offered, and can't be taken before
+	 * then, nor while the link is stalled. Offering waits while the link
+	 * holds as many bytes as it can.
+	 */
+	private static final class Link {
+		private static final class Chunk {
+			/**
+			 * Null for the end of the stream.
+			 */
+			final byte[] data;
+			final long arrives;
+
+			Chunk(byte[] data, long arrives) {
+				this.data=data;
+				this.arrives=arrives;
+			}
+		}
+
+		private final NetworkConditions conditions;
+
+		private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+		private final Random random = new Random();
+
+		/**
+		 * When the link will have finished sending what it has been given,
+		 * in nanoseconds.
+		 */
+		private long sendingUntil=0;
+
+		/**
+		 * When the last chunk arrives, so that none overtakes it.
+		 */
+		private long lastArrives=0;
+
+		/**
+		 * When the next stall starts, 0 until stalls have been planned.
+		 */
+		private long nextStall=0;
+
+		/**
+		 * Bytes offered and not yet taken.
+		 */
+		private long queued=0;
+
+		private boolean closed=false;
+
+		private IOException failure=null;
+
+		Link(NetworkConditions conditions) {
+			this.conditions=conditions;
+		}
+
+		synchronized void offer(byte[] data) throws IOException {
+			try {
+				// a chunk bigger than the link still gets through on its own
+				while(failure==null && !closed && queued>0 && queued+data.length>capacity()) wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while writing");
+			}
+			if(failure!=null) throw failure;
+			// nobody will read it
+			if(closed) return;
+			queued+=data.length;
+			long now=System.nanoTime();
+			long bandwidth=conditions.getBandwidth();
+			sendingUntil=Math.max(now,sendingUntil);
+			// a kilobit a second is a bit a millisecond
+			if(bandwidth>0) sendingUntil+=data.length*8L*1000000L/bandwidth;
+			add(data,sendingUntil+delay());
+		}
+
+		/**
+		 *
+		 * @return most bytes the link holds, those that the network could
+		 * have in flight and a socket buffer
+		 */
+		private long capacity() {
+			long bandwidth=conditions.getBandwidth();
+			if(bandwidth<=0) return unlimitedWindow+socketBuffer;
+			long latency=conditions.getLatency()+conditions.getJitter();
+			// kilobits a second times milliseconds is bits
+			return bandwidth*latency/8+socketBuffer;
+		}
+
+		/**
+		 * The end of the stream, after everything offered.
+		 */
+		synchronized void end() {
+			add(null,Math.max(System.nanoTime(),sendingUntil)+delay());
+		}
+
+		private void add(byte[] data, long arrives) {
+			lastArrives=Math.max(arrives,lastArrives);
+			chunks.add(new Chunk(data,lastArrives));
+			notifyAll();
+		}
+
+		/**
+		 *
+		 * @return the latency of a chunk in nanoseconds, with jitter
+		 */
+		private long delay() {
+			long latency=conditions.getLatency();
+			long jitter=conditions.getJitter();
+			if(jitter>0) latency+=random.nextInt((int)Math.min(Integer.MAX_VALUE,2*jitter+1))-jitter;
+			return Math.max(0,latency)*1000000L;
+		}
+
+		/**
+		 *
+		 * @param now
+		 * @return when the stall that the link is in ends, or now if it is
+		 * not in one
+		 */
+		private long stalledUntil(long now) {
+			long every=conditions.getStallEvery();
+			long stall=conditions.getStall()*1000000L;
+			if(every<=0 || stall<=0) {
+				nextStall=0;
+				return now;
+			}
+			if(nextStall==0) nextStall=now+nextGap(every);
+			while(now>=nextStall+stall) nextStall+=stall+nextGap(every);
+			return now>=nextStall ? nextStall+stall : now;
+		}
+
+		/**
+		 *
+		 * @param every average milliseconds between stalls
+		 * @return nanoseconds to the next stall, at random
+		 */
+		private long nextGap(long every) {
+			return (long)(-Math.log(1-random.nextDouble())*every*1000000L);
+		}
+
+		/**
+		 * Wait for the next chunk to arrive.
+		 * @return the chunk, or null at the end of the stream
+		 * @throws IOException if the link has been closed
+		 */
+		synchronized byte[] take() throws IOException {
+			try {
+				while(true) {
+					if(closed) throw new SocketException("socket is closed");
+					Chunk chunk=chunks.peek();
+					if(chunk==null) {
+						wait();
+						continue;
+					}
+					long now=System.nanoTime();
+					long until=Math.max(chunk.arrives,stalledUntil(now));
+					if(until>now) {
+						long wait=until-now;
+						wait(wait/1000000,(int)(wait%1000000));
+						continue;
+					}
+					chunks.poll();
+					if(chunk.data!=null) {
+						queued-=chunk.data.length;
+						notifyAll();
+					}
+					return chunk.data;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while reading");
+			}
+		}
+
+		/**
+		 * Sending failed, so nothing more can be offered.
+		 * @param e
+		 */
+		synchronized void fail(IOException e) {
+			failure=e;
+			chunks.clear();
+			queued=0;
+			notifyAll();
+		}
+
+		/**
+		 * Stop giving out chunks, and wake anyone waiting for one.
+		 */
+		synchronized void close() {
+			closed=true;
+			chunks.clear();
+			queued=0;
+			notifyAll();
+		}
+	}
+}
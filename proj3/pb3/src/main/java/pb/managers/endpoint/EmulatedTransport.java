@@ -0,0 +1,43 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A socket transport whose connections behave as if they crossed a slower
+ * network, for testing over localhost how sessions, keep alives, event
+ * timeouts and transfers cope with latency, jitter, limited bandwidth and
+ * stalls. Every socket that is connected or accepted is wrapped in an
+ * {@link pb.managers.endpoint.EmulatedSocket}, which holds back both
+ * directions, so emulating either end of a connection is enough.
+ * <br/>
+ * The conditions are shared by all of the transport's connections and may
+ * be changed while they are open.
+ *
+ * @see {@link pb.managers.endpoint.NetworkConditions}
+ */
+public class EmulatedTransport extends SocketTransport {
+
+	private final NetworkConditions conditions;
+
+	/**
+	 *
+	 * @param conditions of the network to emulate
+	 */
+	public EmulatedTransport(NetworkConditions conditions) {
+		this.conditions=conditions;
+	}
+
+	/**
+	 *
+	 * @return the conditions, to change them while connections are open
+	 */
+	public NetworkConditions getConditions() {
+		return conditions;
+	}
+
+	@Override
+	protected Socket wrap(Socket socket) throws IOException {
+		return new EmulatedSocket(socket,conditions);
+	}
+}
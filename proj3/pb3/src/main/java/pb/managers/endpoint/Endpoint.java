@@ -1,19 +1,44 @@
 package pb.managers.endpoint;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
+import pb.jfr.FrameReceived;
+import pb.jfr.FrameSent;
+import pb.metrics.Counter;
+import pb.metrics.Gauge;
+import pb.metrics.Labelled;
+import pb.metrics.Metrics;
+import pb.utils.ByteBuilder;
 import pb.utils.Eventable;
+import pb.utils.OrderedExecutor;
+import pb.utils.RateLimiter;
+import pb.utils.Timeout;
+import pb.utils.Tracer;
 import pb.utils.Utils;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+import pb.protocols.MessageJson;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
@@ -23,14 +48,53 @@ import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.stream.IStreamProtocolHandler;
+import pb.protocols.stream.Stream;
+import pb.protocols.stream.StreamProtocol;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. It also provides a method to
+ * send data to the socket which will be sent to the other endpoint. Sending
+ * never blocks: messages are put on an {@link pb.managers.endpoint.OutboundQueue}
+ * and a writer, borrowed from a pool shared by all endpoints, writes everything
+ * that is queued in one go. How messages are delimited on the socket is
+ * decided by a {@link pb.managers.endpoint.Framing}.
+ * <br/>
+ * Endpoints agree on optional features, called capabilities, when the
+ * session starts: the client offers the capabilities it has and the server
+ * accepts those that it has too. For example, once {@link #binaryMessages}
+ * is agreed, messages are sent encoded by {@link pb.protocols.MessageCodec}
+ * rather than as JSON.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time. Once {@link #streams} is
+ * agreed, {@link #openStream(String)} opens any number of logical streams,
+ * each with its own events and flow control, within the one connection.
+ * <br/>
+ * Every message is sent with a {@link Priority}. Control messages are
+ * always written first, and interactive and bulk messages share what is
+ * left, see {@link pb.managers.endpoint.OutboundQueue}. A control message
+ * that must come after the others, e.g. one that stops the session, is
+ * sent with {@link #sendAfterData(Message)}. Once
+ * {@link #fragments} is agreed, messages larger than the fragment size are
+ * sent in parts, so that a large bulk message doesn't hold up the messages
+ * behind it on other lanes for more than a few kilobytes.
+ * <br/>
+ * Messages that may run application code, i.e. event requests, and the
+ * session stop messages that must come after them, are handed in order to
+ * an {@link pb.utils.OrderedExecutor} on a pool shared by all endpoints, so
+ * a slow event callback doesn't stop the endpoint from reading. Keep alive
+ * messages, session start messages and other replies are handled straight
+ * away by the reader, so they are never held up by application work.
+ * <br/>
+ * Subclasses may replace the thread-per-connection model, e.g.
+ * {@link pb.managers.endpoint.NioEndpoint} or
+ * {@link pb.managers.endpoint.LoopbackEndpoint}, in which case the thread
+ * is never started and {@link #start()} hands the endpoint to whatever
+ * does the reading instead.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -41,25 +105,168 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Metrics of every endpoint, by protocol where that applies.
+	 */
+	private static final Labelled<Counter> messagesSent = Metrics.getInstance()
+			.counter("pb_messages_sent_total","Messages queued to send","protocol");
+	private static final Labelled<Counter> bytesSent = Metrics.getInstance()
+			.counter("pb_bytes_sent_total","Bytes of messages queued to send, including framing","protocol");
+	private static final Labelled<Counter> messagesReceived = Metrics.getInstance()
+			.counter("pb_messages_received_total","Messages received","protocol");
+	private static final Labelled<Counter> bytesReceived = Metrics.getInstance()
+			.counter("pb_bytes_received_total","Bytes of messages received, excluding framing","protocol");
+	private static final Gauge liveEndpoints = Metrics.getInstance()
+			.gauge("pb_live_endpoints","Endpoints that are ready and have not closed");
+	
+	/**
+	 * Records a sample of the messages, rather than logging every one.
+	 */
+	private static final Tracer tracer = Tracer.getInstance();
+	
+	/**
+	 * Capability to send messages in binary rather than JSON. Needs a
+	 * framing that carries payload types.
+	 */
+	public static final String binaryMessages = "binary";
+	
+	/**
+	 * Capability to acknowledge events cumulatively rather than replying
+	 * to each one, see {@link pb.protocols.event.EventProtocol}.
+	 */
+	public static final String eventStream = "eventstream";
+	
+	/**
+	 * Capability to send several events in one message, see
+	 * {@link pb.protocols.event.EventProtocol}.
+	 */
+	public static final String eventBatch = "eventbatch";
+	
+	/**
+	 * Capability to send large messages in parts. Needs a framing that
+	 * carries payload types.
+	 */
+	public static final String fragments = "fragments";
+	
+	/**
+	 * Capability to open logical streams within the connection, see
+	 * {@link pb.protocols.stream.StreamProtocol}.
+	 */
+	public static final String streams = "streams";
+	
+	/**
+	 * Capability to resume a session that failed on a new connection,
+	 * see {@link pb.protocols.session.ResumableSession}.
+	 */
+	public static final String resume = "resume";
+	
+	/**
+	 * Capability to carry the trace context of events, see
+	 * {@link pb.protocols.event.EventTrace}.
+	 */
+	public static final String eventTrace = "eventtrace";
+	
+	/**
+	 * How urgently a message must be sent, which decides the lane of the
+	 * {@link pb.managers.endpoint.OutboundQueue} that it goes on.
+	 */
+	public enum Priority {
+		/**
+		 * Protocol messages such as keep alives and session control.
+		 */
+		CONTROL,
+		/**
+		 * Events that someone is waiting to see, the default for events.
+		 */
+		INTERACTIVE,
+		/**
+		 * Large transfers that can wait, e.g. file contents.
+		 */
+		BULK
+	}
+	
+	/**
+	 * Events with more characters of data than this are sent as
+	 * {@link Priority#BULK}, unless given a priority with
+	 * {@link #setEventPriority(String, Priority)}.
+	 */
+	public static final int bulkEventSize = 64*1024;
+	
+	/**
+	 * Writers for all blocking endpoints. Threads are only created when
+	 * there are endpoints with something to write, and idle threads are
+	 * eventually removed.
+	 */
+	private static final ExecutorService writers = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"EndpointWriter");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Workers for all endpoints, to handle received messages that may run
+	 * application code. Each endpoint uses at most one at a time.
+	 */
+	private static final ExecutorService workers = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"EndpointWorker");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Size of the buffer that queued frames are coalesced into before writing.
+	 */
+	private static final int writeBufferSize = 64*1024;
+	
+	/**
+	 * How long to wait for queued messages to be written when closing.
+	 */
+	protected static final int closeTimeout = 5000;
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
 	private Socket socket;
 	
+	/**
+	 * The id of the other endpoint, once the socket is connected.
+	 */
+	private volatile String otherEndpointId;
+	
 	/**
 	 * The manager to report to when things happen.
 	 */
-	private IEndpointHandler manager;
+	protected IEndpointHandler manager;
 	
 	/**
-	 * The input data stream on the socket.
+	 * The input stream on the socket.
 	 */
-	private DataInputStream in=null;
+	private InputStream in=null;
+	
+	/**
+	 * Reassembles received frames, and knows the framing in use.
+	 */
+	protected final FrameReader reader;
+	
+	/**
+	 * The most recently received frame, only used by the reader.
+	 */
+	private final Frame frame=new Frame();
+	
+	/**
+	 * Framing used to send until the framing of the connection is known.
+	 */
+	private static final Framing legacyFraming=new LegacyFraming();
 	
 	/**
 	 * The output data stream on the socket.
 	 */
-	private DataOutputStream out=null;
+	private volatile DataOutputStream out=null;
+	
+	/**
+	 * Messages waiting to be written.
+	 */
+	protected final OutboundQueue outbound;
 	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
@@ -69,12 +276,51 @@ public class Endpoint extends Eventable {
 	/**
 	 * Timeout id to use.
 	 */
-	private long timeoutId=1;
+	private final AtomicLong timeoutId=new AtomicLong(1);
+	
+	/**
+	 * Timeouts of requests that have not been replied to yet, by timeout id.
+	 */
+	private Map<Long,Timeout> outstandingTimeouts;
+	
+	/**
+	 * Handles received messages that are not on the fast lane, in the order
+	 * they were received.
+	 */
+	private final OrderedExecutor dispatcher = new OrderedExecutor(workers);
 	
 	/**
-	 * Oustanding ids
+	 * Capabilities agreed with the other endpoint.
 	 */
-	private Set<Long> outstandingIds;
+	private volatile Set<String> capabilities=Collections.emptySet();
+	
+	/**
+	 * Whether {@link #binaryMessages} has been agreed.
+	 */
+	private volatile boolean sendBinary=false;
+	
+	/**
+	 * Whether {@link #fragments} has been agreed.
+	 */
+	private volatile boolean sendFragments=false;
+	
+	/**
+	 * Largest part of a message sent in one frame once {@link #fragments}
+	 * has been agreed.
+	 */
+	private volatile int fragmentSize=4*1024;
+	
+	/**
+	 * Priorities of events that don't have the default priority.
+	 */
+	private final Map<String,Priority> eventPriorities = new ConcurrentHashMap<>();
+	
+	/**
+	 * Messages being received in parts, for each lane. Only used by the
+	 * reader.
+	 */
+	private final ByteBuilder[] partial = new ByteBuilder[OutboundQueue.numLanes];
+	private final byte[] partialType = new byte[OutboundQueue.numLanes];
 	
 	/**
 	 * stopped flag
@@ -82,37 +328,375 @@ public class Endpoint extends Eventable {
 	private volatile boolean stopped=true; // the use of send will return false always
 	
 	/**
-	 * Initialise the endpoint with a socket and a manager.
+	 * Whether the endpoint is counted in {@link #liveEndpoints}.
+	 */
+	private final AtomicBoolean live=new AtomicBoolean(false);
+	
+	/**
+	 * Reader only, the size of the message that the last fragment completed.
+	 */
+	private int fragmentedSize;
+	
+	/**
+	 * Traffic of this endpoint alone, for admin reports.
+	 */
+	private final LongAdder numMessagesSent=new LongAdder();
+	private final LongAdder numBytesSent=new LongAdder();
+	private final LongAdder numMessagesReceived=new LongAdder();
+	private final LongAdder numBytesReceived=new LongAdder();
+	
+	/**
+	 * Time the endpoint became ready, 0 until then.
+	 */
+	private volatile long timeReady=0;
+	
+	/**
+	 * Limits the events accepted from the other endpoint, null for no limit.
+	 */
+	private volatile RateLimiter eventLimiter=null;
+	
+	/**
+	 * Initialise the endpoint with a socket and a manager. The framing is
+	 * worked out from what the other endpoint sends, and legacy framing is
+	 * used until then.
 	 * @param socket
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
+		this(socket,manager,new FrameReader(Framing.defaultMaxFrameSize));
+	}
+	
+	/**
+	 * Initialise the endpoint with a socket, a manager and a frame reader
+	 * that either knows the framing or will work it out.
+	 * @param socket
+	 * @param manager
+	 * @param reader
+	 */
+	public Endpoint(Socket socket, IEndpointHandler manager, FrameReader reader) {
 		this.socket = socket;
 		this.manager = manager;
+		this.reader = reader;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		outstandingTimeouts = new HashMap<>();
+		outbound = new OutboundQueue();
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Initialise an endpoint that has no socket, e.g.
+	 * {@link pb.managers.endpoint.LoopbackEndpoint}, which must then
+	 * replace {@link #run()} and {@link #closeConnection()}.
+	 * @param otherEndpointId
+	 * @param manager
+	 * @param reader
+	 */
+	protected Endpoint(String otherEndpointId, IEndpointHandler manager, FrameReader reader) {
+		this((Socket)null,manager,reader);
+		this.otherEndpointId=otherEndpointId;
+	}
+	
+	/**
+	 * Send a control Message on the socket for this endpoint. The message is
+	 * queued and written by the endpoint's writer, so this returns immediately
+	 * and any number of threads may call it at the same time.
+	 * @param msg
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean send(Message msg) {
+		return send(msg,Priority.CONTROL);
+	}
+	
+	/**
+	 * Send a Message on the socket for this endpoint, on the lane for its
+	 * priority.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @param priority
+	 * @return true if the message was queued, false otherwise
 	 */
-	public synchronized boolean send(Message msg) {
+	public boolean send(Message msg, Priority priority) {
+		return send(msg,priority,false);
+	}
+	
+	/**
+	 * Send a control message once the interactive and bulk messages sent
+	 * before it have been written, so that it can't overtake them, e.g. to
+	 * stop the session only after the events emitted before.
+	 * @param msg
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean sendAfterData(Message msg) {
+		return send(msg,Priority.CONTROL,true);
+	}
+	
+	/**
+	 * Send a Message on the lane for its priority.
+	 * @param msg
+	 * @param priority
+	 * @param afterData whether the message must wait for the interactive
+	 * and bulk messages sent before it, only for control messages
+	 * @return true if the message was queued, false otherwise
+	 */
+	protected boolean send(Message msg, Priority priority, boolean afterData) {
 		if(stopped) return false;
+		FrameSent event=new FrameSent();
+		event.begin();
+		ByteBuffer frame=null;
+		ByteBuffer[] parts=null;
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
-		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
+			if(sendBinary || sendFragments) {
+				byte type=sendBinary ? Framing.BINARY : Framing.TEXT;
+				ByteBuilder bytes=sendBinary ? MessageCodec.encode(msg) : MessageJson.write(msg,false);
+				int partSize=fragmentSize;
+				if(sendFragments && bytes.size()>partSize) {
+					parts=getFraming().encodeFragments((byte)priority.ordinal(),type,
+							bytes.array(),0,bytes.size(),partSize);
+				} else {
+					frame=getFraming().encode(type,bytes.array(),0,bytes.size());
+				}
+			} else {
+				frame=getFraming().encodeText(msg);
+			}
+		} catch (InvalidFrame e) {
+			log.severe("can't send "+msg.getName()+": "+e.getMessage());
+			return false;
+		} catch (InvalidMessage e) {
+			log.severe("can't encode "+msg.getName());
 			return false;
 		}
+		long size=0;
+		if(parts!=null) {
+			for(ByteBuffer part : parts) size+=part.remaining();
+		} else {
+			size=frame.remaining();
+		}
+		countSent(msg,size);
+		int lane=priority.ordinal();
+		boolean start;
+		if(afterData) start=outbound.offerAfterData(parts!=null ? parts : new ByteBuffer[] {frame});
+		else start=parts!=null ? outbound.offerAll(parts,lane) : outbound.offer(frame,lane);
+		if(start) startWriter();
+		event.end();
+		if(event.shouldCommit()) {
+			event.otherEndpoint=getOtherEndpointId();
+			event.protocol=msg.getProtocolName();
+			event.message=msg.getName();
+			event.size=size;
+			event.frames=parts!=null ? parts.length : 1;
+			event.priority=priority.name();
+			event.commit();
+		}
 		return true;
 	}
 	
+	/**
+	 * Count a message that has been sent, in the metrics and the trace.
+	 * @param msg
+	 * @param size in bytes, including framing
+	 */
+	protected void countSent(Message msg, long size) {
+		if(tracer.sample()) {
+			tracer.record(Tracer.sent,getOtherEndpointId(),msg.getProtocolName(),msg.getName(),(int)size);
+		}
+		messagesSent.get(msg.getProtocolName()).inc();
+		bytesSent.get(msg.getProtocolName()).add(size);
+		numMessagesSent.increment();
+		numBytesSent.add(size);
+	}
+	
+	/**
+	 * Give an event a priority other than the default, which is
+	 * {@link Priority#INTERACTIVE} unless the event has more than
+	 * {@link #bulkEventSize} characters of data.
+	 * @param eventName
+	 * @param priority the priority, or null for the default
+	 */
+	public void setEventPriority(String eventName, Priority priority) {
+		if(priority==null) eventPriorities.remove(eventName);
+		else eventPriorities.put(eventName,priority);
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @param eventData
+	 * @return the priority to send the event with
+	 */
+	public Priority getEventPriority(String eventName, String eventData) {
+		Priority priority=eventPriorities.get(eventName);
+		if(priority!=null) return priority;
+		return eventData.length()>bulkEventSize ? Priority.BULK : Priority.INTERACTIVE;
+	}
+	
+	/**
+	 * 
+	 * @param fragmentSize largest part of a message to send in one frame
+	 * once {@link #fragments} has been agreed, at least 256 bytes
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		this.fragmentSize=Math.max(256,fragmentSize);
+	}
+	
+	/**
+	 * 
+	 * @param interactiveWeight interactive messages sent for each bulk
+	 * message, or part of one, when both are waiting
+	 */
+	public void setInteractiveWeight(int interactiveWeight) {
+		outbound.setInteractiveWeight(interactiveWeight);
+	}
+	
+	/**
+	 * There are queued frames and no writer is running, so start one. The
+	 * writer must keep going until {@link OutboundQueue#drained()} returns
+	 * false.
+	 */
+	protected void startWriter() {
+		writers.execute(this::drain);
+	}
+	
+	/**
+	 * Be the writer until there is nothing left to write.
+	 */
+	private void drain() {
+		try {
+			do {
+				writeQueued();
+			} while(outbound.drained());
+		} catch (IOException e) {
+			outbound.clear();
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+	
+	/**
+	 * Write every queued frame to the buffered stream and then flush
+	 * the stream once. Only called by the writer.
+	 * @throws IOException
+	 */
+	private void writeQueued() throws IOException {
+		DataOutputStream out=this.out;
+		if(out==null) throw new IOException("endpoint is closed");
+		int frames=0;
+		long bytes=0;
+		ByteBuffer frame;
+		while((frame=outbound.poll())!=null) {
+			out.write(frame.array(),frame.arrayOffset()+frame.position(),frame.remaining());
+			frames++;
+			bytes+=frame.remaining();
+		}
+		out.flush();
+		outbound.sent(frames,bytes);
+	}
+	
+	/**
+	 * 
+	 * @return the number of messages waiting to be written
+	 */
+	public int getQueueDepth() {
+		return outbound.getDepth();
+	}
+	
+	/**
+	 * 
+	 * @return the number of bytes waiting to be written
+	 */
+	public long getBytesPending() {
+		return outbound.getBytesPending();
+	}
+	
+	public long getMessagesSent() {
+		return numMessagesSent.sum();
+	}
+	
+	/**
+	 * 
+	 * @return bytes of the messages sent, including framing
+	 */
+	public long getBytesSent() {
+		return numBytesSent.sum();
+	}
+	
+	public long getMessagesReceived() {
+		return numMessagesReceived.sum();
+	}
+	
+	/**
+	 * 
+	 * @return bytes of the messages received, excluding framing
+	 */
+	public long getBytesReceived() {
+		return numBytesReceived.sum();
+	}
+	
+	/**
+	 * 
+	 * @return the time the endpoint became ready, or 0 if it hasn't
+	 */
+	public long getTimeReady() {
+		return timeReady;
+	}
+	
+	/**
+	 * Limit the events that are accepted from the other endpoint, see
+	 * {@link #admitEvents(int)}.
+	 * @param eventsPerSecond on average, or 0 for no limit
+	 */
+	public void setEventRateLimit(double eventsPerSecond) {
+		eventLimiter = eventsPerSecond>0 ? new RateLimiter(eventsPerSecond) : null;
+	}
+	
+	/**
+	 * 
+	 * @return the limit on events per second, or 0 if there is none
+	 */
+	public double getEventRateLimit() {
+		RateLimiter limiter=eventLimiter;
+		return limiter==null ? 0 : limiter.getRate();
+	}
+	
+	/**
+	 * Called by the event protocol for events that have been received.
+	 * @param numEvents
+	 * @return true if the events are within the rate limit and should be
+	 * emitted, false if they must wait, see {@link #getEventDelay(int)}
+	 */
+	public boolean admitEvents(int numEvents) {
+		RateLimiter limiter=eventLimiter;
+		return limiter==null || limiter.tryAcquire(numEvents);
+	}
+	
+	/**
+	 * 
+	 * @param numEvents
+	 * @return milliseconds until {@link #admitEvents(int)} would admit the
+	 * events, 0 if it would now
+	 */
+	public long getEventDelay(int numEvents) {
+		RateLimiter limiter=eventLimiter;
+		return limiter==null ? 0 : limiter.millisUntil(numEvents);
+	}
+	
+	/**
+	 * The framing of the connection, which an endpoint that accepted the
+	 * connection only knows once something has been received. This is never
+	 * a problem since the other endpoint always sends first.
+	 * @return the framing to send with
+	 */
+	public Framing getFraming() {
+		Framing framing = reader.getFraming();
+		return framing==null ? legacyFraming : framing;
+	}
+	
+	/**
+	 * Timeout ids increase by one for every message that is sent with
+	 * one, whichever protocol sends it.
+	 * @return a new timeout id
+	 */
+	public long nextTimeoutId() {
+		return timeoutId.getAndIncrement();
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -122,25 +706,68 @@ public class Endpoint extends Eventable {
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
+			ICallback timeoutCallback,int timeInterval) {
+		return sendWithTimeout(msg,timeoutCallback,timeInterval,Priority.CONTROL);
+	}
+	
+	/**
+	 * Send a message with a timeout, on the lane for its priority.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @param priority
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(Message msg,
+			ICallback timeoutCallback,int timeInterval,Priority priority) {
+		return sendWithTimeout(msg,timeoutCallback,timeInterval,priority,false);
+	}
+	
+	/**
+	 * Send a control message with a timeout, once the interactive and bulk
+	 * messages sent before it have been written, see
+	 * {@link #sendAfterData(Message)}.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeoutAfterData(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
+		return sendWithTimeout(msg,timeoutCallback,timeInterval,Priority.CONTROL,true);
+	}
+	
+	private boolean sendWithTimeout(Message msg,
+			ICallback timeoutCallback,int timeInterval,Priority priority,boolean afterData) {
+		long nextId = nextTimeoutId();
+		synchronized(outstandingTimeouts) {
+			outstandingTimeouts.put(nextId,Utils.getInstance().setTimeout(()->{
+				Timeout timedout;
+				synchronized(outstandingTimeouts) {
+					timedout=outstandingTimeouts.remove(nextId);
+				}
+				if(timedout!=null) timeoutCallback.callback();
+			}, timeInterval));
 		}
 		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+		boolean sent=send(msg,priority,afterData);
+		if(!sent) cancelTimeout(nextId);
 		return sent;
 	}
 	
+	/**
+	 * Cancel the timeout of a request, e.g. because it has been replied to.
+	 * @param id the timeout id of the request
+	 */
+	private void cancelTimeout(long id) {
+		Timeout timeout;
+		synchronized(outstandingTimeouts) {
+			timeout=outstandingTimeouts.remove(id);
+		}
+		if(timeout!=null) timeout.cancel();
+	}
+	
 	/**
 	 * Send a message in reply to a message that has a timeout id associated
 	 * with it. If it is received in time then it will ensure that a timeout
@@ -149,7 +776,7 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
@@ -163,6 +790,7 @@ public class Endpoint extends Eventable {
 	public synchronized void close() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
+		if(live.compareAndSet(true,false)) liveEndpoints.dec();
 		/* 
 	    * Tell all of the protocols to stop - they may not be able to correctly complete
 		* their intended function however - and this should be flagged as an error
@@ -175,6 +803,14 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		// no replies will come now, and the protocols have stopped
+		List<Timeout> timeouts;
+		synchronized(outstandingTimeouts) {
+			timeouts = new ArrayList<>(outstandingTimeouts.values());
+			outstandingTimeouts.clear();
+		}
+		timeouts.forEach(Timeout::cancel);
+		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
@@ -184,14 +820,29 @@ public class Endpoint extends Eventable {
 		interrupt();
 		
 		/**
-		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
-		 * be pending timer thread callbacks that will want to use this endpoint
-		 * (which wont run since protocol stopped has been set in the protocols).
+		 * At this point there may be timer callbacks or other threads still
+		 * sending on this endpoint, but send returns false now that stopped
+		 * is set, and a timeout added by a send that failed is cancelled.
+		 * Pending timer callbacks that will want to use this endpoint won't
+		 * run since protocol stopped has been set in the protocols.
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
+		closeConnection();
+		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Write whatever is still queued, e.g. a reply that was sent just before
+	 * closing, and then close the socket.
+	 */
+	protected void closeConnection() {
+		if(outbound.tryDrain()) {
+			// no writer is running, so we write the rest ourselves
+			drain();
+		} else if(!outbound.awaitIdle(closeTimeout)) {
+			log.warning("closing with "+outbound.getDepth()+" messages unsent to "+getOtherEndpointId());
+		}
 		try {
 			if(out!=null) out.close();
 			out=null;
@@ -203,7 +854,6 @@ public class Endpoint extends Eventable {
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
-		manager.endpointClosed(this);
 	}
 	
 	/**
@@ -212,70 +862,351 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = socket.getInputStream();
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),writeBufferSize));
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
+		ready();
+		while(!isInterrupted()) {
+			try {
+				ByteBuffer buffer=reader.getBuffer();
+				int read=in.read(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+				if(read==-1) throw new IOException("end of stream");
+				buffer.position(buffer.position()+read);
+				receiveFrames();
+			} catch (IOException e) {
+				disconnectedAbruptly();
+				// we can't continue here
+				break;
+			} catch (InvalidFrame e) {
+				log.severe("invalid frame from "+getOtherEndpointId()+": "+e.getMessage());
+				disconnectedAbruptly();
+				break;
+			}
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			log.warning("connection did not close properly: "+e.getMessage());
+		}
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Tell the manager that the connection has gone, once the messages
+	 * received before it have been handled, since one of them may have
+	 * stopped the session, in which case it is not abrupt. Waits so that
+	 * the endpoint doesn't terminate until the manager knows.
+	 */
+	private void disconnectedAbruptly() {
+		CountDownLatch handled=new CountDownLatch(1);
+		dispatch(()->{
+			try {
+				if(!stopped) {
+					tracer.dumpOnError(getOtherEndpointId(),"disconnected abruptly");
+					manager.endpointDisconnectedAbruptly(this);
+				}
+			} finally {
+				handled.countDown();
+			}
+		});
+		try {
+			handled.await();
+		} catch (InterruptedException e) {
+			// the endpoint was closed in the meantime
+		}
+	}
+	
+	/**
+	 * Run a task after every message received so far has been handled,
+	 * on the same worker that handles them.
+	 * @param task
+	 */
+	public void dispatch(Runnable task) {
+		dispatcher.execute(task);
+	}
+	
+	/**
+	 * 
+	 * @return an executor that runs tasks in order, on the pool that handles
+	 * received messages, but independently of this endpoint's own
+	 */
+	public OrderedExecutor newDispatcher() {
+		return new OrderedExecutor(workers);
+	}
+	
+	/**
+	 * Open a logical stream to the other endpoint, see
+	 * {@link pb.protocols.stream.StreamProtocol#openStream(String)}.
+	 * @param streamName what the stream is for
+	 * @return the stream, or null if streams can't be used with the other
+	 * endpoint
+	 */
+	public Stream openStream(String streamName) {
+		Protocol protocol=getProtocol(StreamProtocol.protocolName);
+		if(!(protocol instanceof StreamProtocol)) return null;
+		return ((StreamProtocol)protocol).openStream(streamName);
+	}
+	
+	/**
+	 * Wait for the endpoint to terminate, i.e. for the other endpoint to
+	 * disconnect or for the endpoint to be closed.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		join();
+	}
+	
+	/**
+	 * The connection is established and sending is now allowed, so tell
+	 * the manager.
+	 */
+	protected void ready() {
+		byte[] preface=getFraming().preface();
+		if(preface!=null && reader.getFraming()!=null) {
+			// we made the connection, so tell the other endpoint how we frame
+			if(outbound.offer(ByteBuffer.wrap(preface))) startWriter();
+		}
 		stopped=false; // allow use of the out stream
+		if(live.compareAndSet(false,true)) liveEndpoints.inc();
+		timeReady=Utils.getInstance().currentTimeMillis();
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
+	}
+	
+	/**
+	 * Process every complete frame that has been received so far.
+	 * @throws InvalidFrame if a frame is invalid, in which case the
+	 * connection can't be used any more
+	 */
+	protected void receiveFrames() throws InvalidFrame {
+		while(!stopped && reader.next(frame)) {
+			Message msg;
+			int size=frame.getLength();
+			FrameReceived event=new FrameReceived();
+			event.begin();
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
+				switch(frame.getType()) {
+				case Framing.TEXT:
+					msg=MessageJson.parse(frame.getData(),frame.getOffset(),frame.getLength());
+					break;
+				case Framing.BINARY:
+					msg=MessageCodec.decode(frame.getData(),frame.getOffset(),frame.getLength());
 					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
+				case Framing.FRAGMENT:
+				case Framing.LAST_FRAGMENT:
+					msg=receiveFragment(frame);
+					if(msg==null) continue; // more parts to come
+					size=fragmentedSize;
 					break;
+				default:
+					log.warning("frame of unknown type "+frame.getType()+" dropped from "+getOtherEndpointId());
+					continue;
 				}
-			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
-				// we can't continue here
-				break;
 			} catch (InvalidMessage e) {
+				tracer.dumpOnError(getOtherEndpointId(),"invalid message");
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+				continue;
 			}
+			received(msg,size);
+			event.end();
+			if(event.shouldCommit()) {
+				event.otherEndpoint=getOtherEndpointId();
+				event.protocol=msg.getProtocolName();
+				event.message=msg.getName();
+				event.size=size;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Count a message that has been received, in the metrics and the
+	 * trace, and hand it to its protocol.
+	 * @param msg
+	 * @param size in bytes, excluding framing
+	 */
+	protected void received(Message msg, int size) {
+		messagesReceived.get(msg.getProtocolName()).inc();
+		bytesReceived.get(msg.getProtocolName()).add(size);
+		numMessagesReceived.increment();
+		numBytesReceived.add(size);
+		if(tracer.sample()) {
+			tracer.record(Tracer.received,getOtherEndpointId(),msg.getProtocolName(),msg.getName(),size);
+		}
+		receive(msg);
+	}
+	
+	/**
+	 * Add a part of a message to what has been received on its lane.
+	 * @param frame a fragment
+	 * @return the message if this was the last part, otherwise null
+	 * @throws InvalidFrame if the fragment is malformed or the message is
+	 * too large
+	 * @throws InvalidMessage if the message can't be decoded
+	 */
+	private Message receiveFragment(Frame frame) throws InvalidFrame, InvalidMessage {
+		if(frame.getLength()<Framing.fragmentHeaderSize) throw new InvalidFrame("fragment has no header");
+		byte[] data=frame.getData();
+		int offset=frame.getOffset();
+		int lane=data[offset];
+		byte type=data[offset+1];
+		if(lane<0 || lane>=partial.length) throw new InvalidFrame("fragment on unknown lane "+lane);
+		ByteBuilder bytes=partial[lane];
+		if(bytes==null) bytes=partial[lane]=new ByteBuilder(fragmentSize*4);
+		else if(bytes.size()>0 && partialType[lane]!=type) throw new InvalidFrame("fragments of different types");
+		partialType[lane]=type;
+		int length=frame.getLength()-Framing.fragmentHeaderSize;
+		if((long)bytes.size()+length>getFraming().getMaxFrameSize()) {
+			throw new InvalidFrame("message is larger than "+getFraming().getMaxFrameSize()+" bytes");
 		}
+		bytes.put(data,offset+Framing.fragmentHeaderSize,length);
+		if(frame.getType()!=Framing.LAST_FRAGMENT) return null;
+		fragmentedSize=bytes.size();
 		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+			switch(type) {
+			case Framing.TEXT:
+				return MessageJson.parse(bytes.array(),0,bytes.size());
+			case Framing.BINARY:
+				return MessageCodec.decode(bytes.array(),0,bytes.size());
+			default:
+				throw new InvalidFrame("fragmented message of unknown type "+type);
+			}
+		} finally {
+			bytes.reset(fragmentSize*4);
 		}
-		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Hand a received message to the appropriate protocol, starting the
+	 * protocol if needed.
+	 * @param msg the received message
+	 */
+	protected void receive(Message msg) {
+		// cancel any related time out
+		if(msg.getType()==Message.Type.Reply) {
+			cancelTimeout(msg.getTimeoutId());
+		}
+		// find the protocol
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(msg.getProtocolName());
+		}
+		if(protocol==null) {
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+				break;
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
+				break;
+			case EventProtocol.protocolName:
+				protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+				break;
+			case StreamProtocol.protocolName:
+				protocol=new StreamProtocol(this,(IStreamProtocolHandler)manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.getName());
+				return;
+			}
+		}
+		if(onFastLane(msg)) {
+			deliver(protocol,msg);
+		} else {
+			Protocol receiver=protocol;
+			dispatch(()->deliver(receiver,msg));
+		}
+	}
+	
+	/**
+	 * 
+	 * @param msg
+	 * @return true if the message must be handled by the reader rather than
+	 * wait for application work received before it
+	 */
+	protected boolean onFastLane(Message msg) {
+		switch(msg.getProtocolName()) {
+		case KeepAliveProtocol.protocolName:
+			return true;
+		case StreamProtocol.protocolName:
+			// streams keep their own messages in order
+			return true;
+		case SessionProtocol.protocolName:
+			// stopping must wait until the events before it have been handled
+			return msg instanceof SessionStartRequest || msg instanceof SessionStartReply;
+		default:
+			// replies only acknowledge what was sent
+			return msg.getType()==Message.Type.Reply;
+		}
+	}
+	
+	private void deliver(Protocol protocol, Message msg) {
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the capabilities that this endpoint has, to offer to the
+	 * other endpoint
+	 */
+	public List<String> getLocalCapabilities() {
+		List<String> local = new ArrayList<>();
+		if(getFraming().carriesTypes()) {
+			local.add(binaryMessages);
+			local.add(fragments);
+		}
+		local.add(eventStream);
+		local.add(eventBatch);
+		local.add(streams);
+		local.add(resume);
+		local.add(eventTrace);
+		return local;
+	}
+	
+	/**
+	 * Work out which of the capabilities offered by the other endpoint
+	 * this endpoint has too. They are not used until
+	 * {@link #setCapabilities(List)} is called.
+	 * @param offered by the other endpoint
+	 * @return the capabilities to accept
+	 */
+	public List<String> acceptCapabilities(List<String> offered) {
+		List<String> accepted = getLocalCapabilities();
+		accepted.retainAll(offered);
+		return accepted;
+	}
+	
+	/**
+	 * Start using the capabilities that have been agreed. Called by the
+	 * session protocol, on the server once the session start reply has
+	 * been sent and on the client once it has been received.
+	 * @param agreed
+	 */
+	public void setCapabilities(List<String> agreed) {
+		capabilities=Collections.unmodifiableSet(new HashSet<>(agreed));
+		sendBinary=capabilities.contains(binaryMessages);
+		sendFragments=capabilities.contains(fragments);
+		if(!agreed.isEmpty()) log.info("using capabilities "+agreed+" with "+getOtherEndpointId());
+	}
+	
+	/**
+	 * 
+	 * @param capability
+	 * @return true if the capability has been agreed with the other endpoint
+	 */
+	public boolean hasCapability(String capability) {
+		return capabilities.contains(capability);
 	}
 	
 	/**
@@ -314,12 +1245,25 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * 
+	 * @return true if the endpoint has been closed, or has not started yet
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
 	 */
 	public String getOtherEndpointId() {
-		return socket.getInetAddress().toString()+":"+socket.getPort();
+		String id=otherEndpointId;
+		if(id!=null) return id;
+		id=socket.getInetAddress()+":"+socket.getPort();
+		// not kept until connected
+		if(socket.getInetAddress()!=null) otherEndpointId=id;
+		return id;
 	}
 
 	/**
@@ -0,0 +1,116 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that owns a selector and drives any number of
+ * {@link pb.managers.endpoint.NioEndpoint}s. Other threads hand work to the
+ * loop using {@link #execute(Runnable)}, which is how endpoints are
+ * registered and how they ask to be told when their channel is writable.
+ *
+ * @see {@link pb.managers.endpoint.NioTransport}
+ */
+public class EventLoop extends Thread {
+	private static Logger log = Logger.getLogger(EventLoop.class.getName());
+
+	/**
+	 * The selector for all of the channels owned by this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tasks to run on the loop thread.
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Set to stop the loop.
+	 */
+	private volatile boolean shutdown=false;
+
+	/**
+	 * Initialise the loop with a new selector. The loop is a daemon thread
+	 * since the endpoints, not the loop, decide when the system is finished.
+	 * @param name of the thread
+	 * @throws IOException if the selector can't be opened
+	 */
+	public EventLoop(String name) throws IOException {
+		selector=Selector.open();
+		tasks=new ConcurrentLinkedQueue<>();
+		setName(name);
+		setDaemon(true);
+	}
+
+	/**
+	 *
+	 * @return the selector, only to be used on the loop thread
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Run a task on the loop thread, as soon as possible.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stop the loop. Endpoints that are still registered are not closed.
+	 */
+	public void shutDown() {
+		shutdown=true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		log.info("event loop started");
+		while(!shutdown) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				break;
+			}
+			Runnable task;
+			while((task=tasks.poll())!=null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.severe("event loop task failed: "+e);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioEndpoint endpoint = (NioEndpoint) key.attachment();
+				try {
+					if(key.isReadable()) endpoint.handleRead();
+					if(key.isValid() && key.isWritable()) endpoint.handleWrite();
+				} catch (CancelledKeyException e) {
+					// the endpoint was closed while handling its events
+				} catch (RuntimeException e) {
+					log.severe("endpoint "+endpoint.getOtherEndpointId()+" failed: "+e);
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning("selector did not close properly: "+e.getMessage());
+		}
+		log.info("event loop terminated");
+	}
+}
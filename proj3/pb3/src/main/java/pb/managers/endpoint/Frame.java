@@ -0,0 +1,54 @@
+package pb.managers.endpoint;
+
+/**
+ * A received frame: the payload type and where the payload is. The payload
+ * is not copied out of the buffer it was read into, so a frame is only
+ * valid until more bytes are read.
+ *
+ * @see {@link pb.managers.endpoint.FrameReader}
+ */
+public class Frame {
+
+	/**
+	 * Payload type, e.g. {@link pb.managers.endpoint.Framing#TEXT}.
+	 */
+	private byte type;
+
+	/**
+	 * The buffer holding the payload.
+	 */
+	private byte[] data;
+
+	/**
+	 * Where the payload starts in the buffer.
+	 */
+	private int offset;
+
+	/**
+	 * Number of bytes in the payload.
+	 */
+	private int length;
+
+	void set(byte type, byte[] data, int offset, int length) {
+		this.type=type;
+		this.data=data;
+		this.offset=offset;
+		this.length=length;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,146 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles frames from bytes as they arrive, using a single buffer that
+ * is reused for every frame. The buffer starts small and grows when a frame
+ * does not fit, up to the maximum frame size, and shrinks back once a large
+ * frame has been processed.
+ * <br/>
+ * A reader either knows the framing in advance (the endpoint that made the
+ * connection), or works it out from the first bytes that arrive (the
+ * endpoint that accepted the connection): if they are the varint framing
+ * preface then varint framing is used, otherwise legacy framing is.
+ * <br/>
+ * Usage is to put bytes into {@link #getBuffer()} and then call
+ * {@link #next(Frame)} until it returns false.
+ */
+public class FrameReader {
+
+	/**
+	 * Initial size of the buffer.
+	 */
+	private static final int initialBufferSize = 4*1024;
+
+	/**
+	 * An empty buffer larger than this is replaced by a new initial one.
+	 */
+	private static final int shrinkBufferSize = 256*1024;
+
+	/**
+	 * The framing, null until it is known.
+	 */
+	private volatile Framing framing;
+
+	/**
+	 * Limit for varint framing if it has to be worked out.
+	 */
+	private final int maxFrameSize;
+
+	/**
+	 * Bytes read but not yet processed.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Whether the buffer is in read mode.
+	 */
+	private boolean reading=false;
+
+	/**
+	 * Initialise with a known framing.
+	 * @param framing
+	 */
+	public FrameReader(Framing framing) {
+		this.framing=framing;
+		this.maxFrameSize=framing.getMaxFrameSize();
+		buffer=ByteBuffer.allocate(initialBufferSize);
+	}
+
+	/**
+	 * Initialise to work out the framing from the first bytes received.
+	 * @param maxFrameSize limit to use if the framing is varint
+	 */
+	public FrameReader(int maxFrameSize) {
+		this.framing=null;
+		this.maxFrameSize=maxFrameSize;
+		buffer=ByteBuffer.allocate(initialBufferSize);
+	}
+
+	/**
+	 *
+	 * @return the framing, or null if it is not known yet
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Any frame returned earlier is no longer valid after this is called.
+	 * @return a buffer in write mode, with room for at least one more byte,
+	 * to put received bytes in
+	 */
+	public ByteBuffer getBuffer() {
+		if(reading) finishReading();
+		return buffer;
+	}
+
+	/**
+	 * Get the next complete frame.
+	 * @param frame to set
+	 * @return true if a frame was set, false if more bytes are needed
+	 * @throws InvalidFrame if the bytes received are not a valid frame
+	 */
+	public boolean next(Frame frame) throws InvalidFrame {
+		if(!reading) {
+			buffer.flip();
+			reading=true;
+		}
+		if(framing==null && !detectFraming()) {
+			finishReading();
+			return false;
+		}
+		if(framing.decode(buffer,frame)) return true;
+		finishReading();
+		return false;
+	}
+
+	/**
+	 * Work out the framing from the first bytes.
+	 * @return true if the framing is now known
+	 * @throws InvalidFrame if the first bytes are not valid for any framing
+	 */
+	private boolean detectFraming() throws InvalidFrame {
+		if(!buffer.hasRemaining()) return false;
+		if(!VarintFraming.isPreface(buffer)) {
+			framing=new LegacyFraming();
+			return true;
+		}
+		if(!VarintFraming.skipPreface(buffer)) return false;
+		framing=new VarintFraming(maxFrameSize);
+		return true;
+	}
+
+	/**
+	 * Put the buffer back in write mode, making room if it is full.
+	 */
+	private void finishReading() {
+		buffer.compact();
+		reading=false;
+		if(buffer.position()==0 && buffer.capacity()>shrinkBufferSize) {
+			buffer=ByteBuffer.allocate(initialBufferSize);
+		} else if(!buffer.hasRemaining()) {
+			// a frame is larger than the buffer, decode has already
+			// checked that it is not larger than the maximum
+			Framing framing = this.framing;
+			int max = framing==null ? initialBufferSize
+					: framing.getMaxFrameSize()+framing.getMaxHeaderSize();
+			ByteBuffer larger=ByteBuffer.allocate(Math.max(buffer.capacity()+1,
+					(int)Math.min((long)buffer.capacity()*2,max)));
+			buffer.flip();
+			larger.put(buffer);
+			buffer=larger;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.Message;
+
+/**
+ * How messages are delimited on a connection. Each frame carries a payload
+ * and the type of the payload, e.g. {@link #TEXT} for a message in JSON
+ * format. Two framings are available:
+ * <ul>
+ * <li>{@link pb.managers.endpoint.LegacyFraming}, the original framing of
+ * {@link java.io.DataOutputStream#writeUTF(String)}, which only carries text
+ * and limits every message to 65535 bytes</li>
+ * <li>{@link pb.managers.endpoint.VarintFraming}, a varint length, a type
+ * byte and the payload, which has no limit on the size of a message other
+ * than the configured maximum frame size</li>
+ * </ul>
+ * An endpoint that uses varint framing starts the connection with a
+ * {@link #preface()}, which a listening endpoint uses to tell which framing
+ * the other endpoint is using, see {@link pb.managers.endpoint.FrameReader}.
+ * Framings hold no state and can be shared by any number of endpoints.
+ */
+public abstract class Framing {
+
+	/**
+	 * Payload type of a message in JSON format.
+	 */
+	public static final byte TEXT=0;
+
+	/**
+	 * Payload type of a message encoded by {@link pb.protocols.MessageCodec}.
+	 */
+	public static final byte BINARY=1;
+
+	/**
+	 * Payload type of a part of a larger payload, with more parts to come.
+	 * The first byte of the payload is the lane the parts are sent on, which
+	 * keeps parts of different payloads apart, and the second byte is the
+	 * type of the whole payload. The rest is the part itself.
+	 */
+	public static final byte FRAGMENT=2;
+
+	/**
+	 * Payload type of the last part of a larger payload, laid out as for
+	 * {@link #FRAGMENT}.
+	 */
+	public static final byte LAST_FRAGMENT=3;
+
+	/**
+	 * Bytes before the part in the payload of a fragment.
+	 */
+	public static final int fragmentHeaderSize=2;
+
+	/**
+	 * Default limit on the size of a frame, 16MB.
+	 */
+	public static final int defaultMaxFrameSize=16*1024*1024;
+
+	/**
+	 * The largest payload that will be sent or received.
+	 */
+	protected final int maxFrameSize;
+
+	protected Framing(int maxFrameSize) {
+		this.maxFrameSize=maxFrameSize;
+	}
+
+	/**
+	 *
+	 * @return the largest payload that will be sent or received
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 *
+	 * @return the largest number of bytes before the payload of a frame
+	 */
+	public abstract int getMaxHeaderSize();
+
+	/**
+	 *
+	 * @return true if frames can carry payloads other than {@link #TEXT}
+	 */
+	public abstract boolean carriesTypes();
+
+	/**
+	 *
+	 * @return bytes to send before the first frame, or null if there are none
+	 */
+	public byte[] preface() {
+		return null;
+	}
+
+	/**
+	 * Frame a message in JSON format.
+	 * @param msg the message
+	 * @return a buffer ready to be written
+	 * @throws InvalidFrame if the message is too large
+	 */
+	public abstract ByteBuffer encodeText(Message msg) throws InvalidFrame;
+
+	/**
+	 * Frame a payload of any type.
+	 * @param type of the payload
+	 * @param payload
+	 * @param offset where the payload starts
+	 * @param length of the payload
+	 * @return a buffer ready to be written
+	 * @throws InvalidFrame if the payload is too large or the type can't be
+	 * carried by this framing
+	 */
+	public abstract ByteBuffer encode(byte type, byte[] payload, int offset, int length)
+			throws InvalidFrame;
+
+	/**
+	 * Frame a payload as a series of {@link #FRAGMENT} frames followed by a
+	 * {@link #LAST_FRAGMENT} frame, so that other frames can be sent in
+	 * between. Only framings that carry types can do this.
+	 * @param lane that all of the parts will be sent on
+	 * @param type of the payload
+	 * @param payload
+	 * @param offset where the payload starts
+	 * @param length of the payload
+	 * @param partSize largest part of the payload in one frame
+	 * @return buffers ready to be written, in order
+	 * @throws InvalidFrame if the payload is too large or this framing can't
+	 * carry fragments
+	 */
+	public ByteBuffer[] encodeFragments(byte lane, byte type, byte[] payload, int offset, int length,
+			int partSize) throws InvalidFrame {
+		if(!carriesTypes()) throw new InvalidFrame("framing can't carry fragments");
+		if(length>maxFrameSize) throw new InvalidFrame("frame is larger than "+maxFrameSize+" bytes: "+length);
+		int parts=Math.max(1,(length+partSize-1)/partSize);
+		ByteBuffer[] frames=new ByteBuffer[parts];
+		byte[] part=new byte[fragmentHeaderSize+Math.min(partSize,length)];
+		part[0]=lane;
+		part[1]=type;
+		for(int i=0;i<parts;i++) {
+			int start=i*partSize;
+			int size=Math.min(partSize,length-start);
+			System.arraycopy(payload,offset+start,part,fragmentHeaderSize,size);
+			frames[i]=encode(i==parts-1 ? LAST_FRAGMENT : FRAGMENT,part,0,fragmentHeaderSize+size);
+		}
+		return frames;
+	}
+
+	/**
+	 * Read the next frame from a buffer. If the buffer holds a complete
+	 * frame, the frame is set and the buffer's position is moved past it,
+	 * otherwise the buffer's position is not changed.
+	 * @param in buffer in read mode, which must have a backing array
+	 * @param frame to set
+	 * @return true if a frame was read
+	 * @throws InvalidFrame if the frame is larger than the maximum frame size
+	 * or its header is malformed
+	 */
+	public abstract boolean decode(ByteBuffer in, Frame frame) throws InvalidFrame;
+}
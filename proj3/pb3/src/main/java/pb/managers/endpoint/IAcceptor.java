@@ -0,0 +1,31 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+
+/**
+ * Accepts connections for a server, as returned by
+ * {@link pb.managers.endpoint.Transport#listen(int)}.
+ *
+ * @see {@link pb.managers.IOThread}
+ */
+public interface IAcceptor {
+	/**
+	 * Block until the next connection arrives.
+	 * @param manager to report endpoint events to
+	 * @return the endpoint for the connection, not yet started
+	 * @throws IOException if accepting failed, including because the
+	 * acceptor has been closed
+	 */
+	public Endpoint accept(IEndpointHandler manager) throws IOException;
+
+	/**
+	 * Stop accepting connections.
+	 */
+	public void close();
+
+	/**
+	 *
+	 * @return true if the acceptor has been closed
+	 */
+	public boolean isClosed();
+}
@@ -0,0 +1,17 @@
+package pb.managers.endpoint;
+
+/**
+ * A frame could not be read or written, e.g. it is larger than the
+ * maximum frame size or its header is malformed. Once a received frame is
+ * invalid there is no way to find the start of the next frame, so the
+ * connection can't be used any further.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ */
+@SuppressWarnings("serial")
+public class InvalidFrame extends Exception {
+
+	public InvalidFrame(String message) {
+		super(message);
+	}
+}
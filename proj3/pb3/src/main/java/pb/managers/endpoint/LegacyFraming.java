@@ -0,0 +1,63 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.Message;
+import pb.protocols.MessageJson;
+import pb.utils.ByteBuilder;
+
+/**
+ * The framing of {@link java.io.DataOutputStream#writeUTF(String)}, a two
+ * byte length followed by the message in modified UTF-8. Only used to talk
+ * to endpoints that don't understand {@link pb.managers.endpoint.VarintFraming}.
+ * Frames can only carry {@link pb.managers.endpoint.Framing#TEXT} and are
+ * limited to 65535 bytes.
+ */
+public class LegacyFraming extends Framing {
+
+	/**
+	 * The largest payload that a two byte length allows.
+	 */
+	public static final int maxLegacyFrameSize=65535;
+
+	public LegacyFraming() {
+		super(maxLegacyFrameSize);
+	}
+
+	@Override
+	public int getMaxHeaderSize() {
+		return 2;
+	}
+
+	@Override
+	public boolean carriesTypes() {
+		return false;
+	}
+
+	@Override
+	public ByteBuffer encodeText(Message msg) throws InvalidFrame {
+		ByteBuilder bytes = MessageJson.write(msg,true);
+		return encode(TEXT,bytes.array(),0,bytes.size());
+	}
+
+	@Override
+	public ByteBuffer encode(byte type, byte[] payload, int offset, int length) throws InvalidFrame {
+		if(type!=TEXT) throw new InvalidFrame("legacy framing only carries text");
+		if(length>maxFrameSize) throw new InvalidFrame("message is too large for legacy framing: "+length);
+		ByteBuffer frame = ByteBuffer.allocate(2+length);
+		frame.putShort((short)length);
+		frame.put(payload,offset,length);
+		frame.flip();
+		return frame;
+	}
+
+	@Override
+	public boolean decode(ByteBuffer in, Frame frame) {
+		if(in.remaining()<2) return false;
+		int length = in.getShort(in.position()) & 0xffff;
+		if(in.remaining()<2+length) return false;
+		frame.set(TEXT,in.array(),in.arrayOffset()+in.position()+2,length);
+		in.position(in.position()+2+length);
+		return true;
+	}
+}
@@ -0,0 +1,177 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.protocols.Message;
+import pb.utils.OrderedExecutor;
+import pb.utils.Tracer;
+
+/**
+ * One end of a connection made within the JVM by a
+ * {@link pb.managers.endpoint.LoopbackTransport}. Sending hands the message
+ * object itself to the other end, which is never encoded, framed or copied,
+ * and the other end receives messages in the order they were sent on a
+ * pool of readers shared by all loopback endpoints, so no thread is kept
+ * for a connection. From there on nothing differs from a socket: messages
+ * go to the same protocols, events are handed to the endpoint's workers,
+ * and closing one end is seen by the other as the connection ending, once
+ * it has received everything that was sent before.
+ * <br/>
+ * Since messages are never encoded, the binary and fragment capabilities
+ * are not offered, priorities have no effect as there is no queue to jump,
+ * and byte counts are 0.
+ *
+ * @see {@link pb.managers.endpoint.LoopbackTransport}
+ */
+public class LoopbackEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(LoopbackEndpoint.class.getName());
+
+	/**
+	 * Readers for all loopback endpoints, each endpoint uses at most one
+	 * at a time.
+	 */
+	private static final ExecutorService readers = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"LoopbackReader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The other end of the connection.
+	 */
+	private volatile LoopbackEndpoint other;
+
+	/**
+	 * Receives messages in order.
+	 */
+	private final OrderedExecutor reading = new OrderedExecutor(readers);
+
+	/**
+	 * What has been received before the endpoint started, null once it
+	 * has. Guarded by {@link #reading}.
+	 */
+	private List<Runnable> held = new ArrayList<>();
+
+	/**
+	 * Whether the manager has been told that the other end has gone.
+	 */
+	private final AtomicBoolean ended = new AtomicBoolean(false);
+
+	/**
+	 * Released when the endpoint terminates.
+	 */
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	/**
+	 *
+	 * @param otherEndpointId
+	 * @param manager to report to, which for an end that is yet to be
+	 * accepted is given by {@link #setManager(IEndpointHandler)}
+	 */
+	LoopbackEndpoint(String otherEndpointId, IEndpointHandler manager) {
+		super(otherEndpointId,manager,new FrameReader(Framing.defaultMaxFrameSize));
+		setName("LoopbackEndpoint");
+	}
+
+	/**
+	 * Connect two ends to each other.
+	 * @param one
+	 * @param another
+	 */
+	static void pair(LoopbackEndpoint one, LoopbackEndpoint another) {
+		one.other=another;
+		another.other=one;
+	}
+
+	/**
+	 * Give the end that has been accepted its manager.
+	 * @param manager
+	 */
+	void setManager(IEndpointHandler manager) {
+		this.manager=manager;
+	}
+
+	/**
+	 * Become ready and receive whatever was sent before, rather than
+	 * starting a thread.
+	 */
+	@Override
+	public synchronized void start() {
+		synchronized(reading) {
+			reading.execute(this::ready);
+			held.forEach(reading::execute);
+			held=null;
+		}
+	}
+
+	/**
+	 * Never called, the readers do the work of this thread.
+	 */
+	@Override
+	public void run() {
+		log.severe("the thread of a loopback endpoint should not be started");
+	}
+
+	@Override
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**
+	 * Hand the message to the other end, where it is received after
+	 * everything sent before it whatever the priority, so a message sent
+	 * after data needs nothing more.
+	 */
+	@Override
+	protected boolean send(Message msg, Priority priority, boolean afterData) {
+		if(isStopped()) return false;
+		countSent(msg,0);
+		other.read(()->{
+			if(!other.isStopped()) other.received(msg,0);
+		});
+		return true;
+	}
+
+	/**
+	 * Everything sent has already been handed over, so just tell the other
+	 * end that the connection has ended.
+	 */
+	@Override
+	protected void closeConnection() {
+		other.read(other::disconnected);
+		terminated.countDown();
+	}
+
+	/**
+	 * Run a task on the reader, after everything received before it, or
+	 * once the endpoint starts if it hasn't yet.
+	 * @param task
+	 */
+	private void read(Runnable task) {
+		synchronized(reading) {
+			if(held!=null) held.add(task);
+			else reading.execute(task);
+		}
+	}
+
+	/**
+	 * The other end has closed. Tell the manager once the messages
+	 * received before it have been handled, as the other endpoints do.
+	 */
+	private void disconnected() {
+		if(!ended.compareAndSet(false,true)) return;
+		dispatch(()->{
+			if(!isStopped()) {
+				Tracer.getInstance().dumpOnError(getOtherEndpointId(),"disconnected abruptly");
+				manager.endpointDisconnectedAbruptly(this);
+			}
+			terminated.countDown();
+		});
+	}
+}
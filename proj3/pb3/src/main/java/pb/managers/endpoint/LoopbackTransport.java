@@ -0,0 +1,135 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport that connects managers within the JVM, without sockets, for
+ * peers that run in the same process, e.g. tests, benchmarks and
+ * simulations of hundreds of peers. A connection is a pair of
+ * {@link pb.managers.endpoint.LoopbackEndpoint}s that hand messages
+ * straight to each other, so sessions, keep alives and events work as they
+ * do over a socket, at the speed of memory.
+ * <br/>
+ * Ports belong to the transport rather than to the machine, so managers
+ * that connect to each other must share one instance, as a
+ * {@link pb.managers.PeerManager} already does with its own managers. The
+ * host that is connected to is only used to name the other endpoint.
+ *
+ * @see {@link pb.managers.endpoint.LoopbackEndpoint}
+ */
+public class LoopbackTransport extends Transport {
+
+	/**
+	 * First port given to the end of a connection that is accepted, to
+	 * name it, as an ephemeral port would.
+	 */
+	private static final int firstEphemeralPort = 49152;
+
+	/**
+	 * Acceptors by the port they listen on.
+	 */
+	private final Map<Integer,Acceptor> listening = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextEphemeralPort = new AtomicInteger(firstEphemeralPort);
+
+	@Override
+	public Endpoint connect(String host, int port, IEndpointHandler manager) throws IOException {
+		Acceptor acceptor=listening.get(port);
+		if(acceptor==null) throw new ConnectException("nothing is listening on loopback port "+port);
+		LoopbackEndpoint connected=new LoopbackEndpoint(host+":"+port,manager);
+		LoopbackEndpoint accepted=new LoopbackEndpoint("loopback:"+nextEphemeralPort.getAndIncrement(),null);
+		LoopbackEndpoint.pair(connected,accepted);
+		acceptor.add(accepted);
+		return connected;
+	}
+
+	@Override
+	public IAcceptor listen(int port) throws IOException {
+		Acceptor acceptor=new Acceptor(port);
+		if(listening.putIfAbsent(port,acceptor)!=null) {
+			throw new BindException("loopback port "+port+" is already in use");
+		}
+		return acceptor;
+	}
+
+	/**
+	 * Stop listening on every port.
+	 */
+	@Override
+	public void shutDown() {
+		new ArrayList<>(listening.values()).forEach(Acceptor::close);
+	}
+
+	/**
+	 * Holds connections until they are accepted.
+	 */
+	private class Acceptor implements IAcceptor {
+		private final int port;
+
+		private final Queue<LoopbackEndpoint> backlog = new ArrayDeque<>();
+
+		private boolean closed=false;
+
+		Acceptor(int port) {
+			this.port=port;
+		}
+
+		/**
+		 *
+		 * @param endpoint the end of a connection to be accepted
+		 * @throws ConnectException if the acceptor has been closed
+		 */
+		synchronized void add(LoopbackEndpoint endpoint) throws ConnectException {
+			if(closed) throw new ConnectException("loopback port "+port+" is closed");
+			backlog.add(endpoint);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized Endpoint accept(IEndpointHandler manager) throws IOException {
+			while(backlog.isEmpty() && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while accepting");
+				}
+			}
+			if(closed) throw new SocketException("loopback port "+port+" is closed");
+			LoopbackEndpoint endpoint=backlog.poll();
+			endpoint.setManager(manager);
+			return endpoint;
+		}
+
+		@Override
+		public void close() {
+			List<LoopbackEndpoint> refused;
+			synchronized(this) {
+				if(closed) return;
+				closed=true;
+				refused=new ArrayList<>(backlog);
+				backlog.clear();
+				notifyAll();
+			}
+			listening.remove(port,this);
+			// connections that were never accepted end, as they would if reset
+			refused.forEach(LoopbackEndpoint::closeConnection);
+		}
+
+		@Override
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+	}
+}
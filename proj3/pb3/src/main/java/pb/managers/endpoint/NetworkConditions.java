@@ -0,0 +1,159 @@
+package pb.managers.endpoint;
+
+import java.util.Locale;
+
+/**
+ * The network that an {@link pb.managers.endpoint.EmulatedTransport}
+ * pretends its connections cross, given as e.g.
+ * {@code "latency=80,jitter=10,bandwidth=2000,stallEvery=30000,stall=1500"}.
+ * Each direction of a connection has its own latency, bandwidth and stalls.
+ * Conditions may be changed while connections are open, e.g. to see how a
+ * session copes with the network getting worse, and take effect for the
+ * bytes sent from then on.
+ */
+public class NetworkConditions {
+
+	/**
+	 * Milliseconds that bytes take to reach the other end, one way.
+	 */
+	private volatile long latency=0;
+
+	/**
+	 * Most milliseconds by which the latency varies either way. Bytes are
+	 * never reordered, so bytes behind a late chunk are late as well.
+	 */
+	private volatile long jitter=0;
+
+	/**
+	 * Kilobits a second that one direction of a connection can carry, 0
+	 * for no limit.
+	 */
+	private volatile long bandwidth=0;
+
+	/**
+	 * Average milliseconds between stalls, when nothing gets through, 0
+	 * for none.
+	 */
+	private volatile long stallEvery=0;
+
+	/**
+	 * Milliseconds that a stall lasts.
+	 */
+	private volatile long stall=0;
+
+	/**
+	 * A network with no latency, no limit and no stalls.
+	 */
+	public NetworkConditions() {
+
+	}
+
+	/**
+	 *
+	 * @param conditions as name=value,name=value,... for names latency,
+	 * jitter, bandwidth, stallEvery and stall, any of which may be left out
+	 * @return the conditions
+	 * @throws IllegalArgumentException if the conditions can't be parsed
+	 */
+	public static NetworkConditions parse(String conditions) {
+		NetworkConditions parsed=new NetworkConditions();
+		if(conditions.trim().isEmpty()) return parsed;
+		for(String entry : conditions.split(",")) {
+			String[] parts=entry.trim().split("=");
+			if(parts.length!=2) throw new IllegalArgumentException("expected name=value: "+entry);
+			long value;
+			try {
+				value=Long.parseLong(parts[1].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("value must be a number: "+entry);
+			}
+			if(value<0) throw new IllegalArgumentException("value must not be negative: "+entry);
+			switch(parts[0].trim()) {
+			case "latency":
+				parsed.setLatency(value);
+				break;
+			case "jitter":
+				parsed.setJitter(value);
+				break;
+			case "bandwidth":
+				parsed.setBandwidth(value);
+				break;
+			case "stallEvery":
+				parsed.setStallEvery(value);
+				break;
+			case "stall":
+				parsed.setStall(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown condition: "+parts[0].trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 *
+	 * @param latency one way, in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency=latency;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 *
+	 * @param jitter most milliseconds by which the latency varies either way
+	 */
+	public void setJitter(long jitter) {
+		this.jitter=jitter;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 *
+	 * @param bandwidth in kilobits a second, 0 for no limit
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth=bandwidth;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 *
+	 * @param stallEvery average milliseconds between stalls, 0 for none
+	 */
+	public void setStallEvery(long stallEvery) {
+		this.stallEvery=stallEvery;
+	}
+
+	public long getStallEvery() {
+		return stallEvery;
+	}
+
+	/**
+	 *
+	 * @param stall milliseconds that a stall lasts
+	 */
+	public void setStall(long stall) {
+		this.stall=stall;
+	}
+
+	public long getStall() {
+		return stall;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,"latency=%d,jitter=%d,bandwidth=%d,stallEvery=%d,stall=%d",
+				latency,jitter,bandwidth,stallEvery,stall);
+	}
+}
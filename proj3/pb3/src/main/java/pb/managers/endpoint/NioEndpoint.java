@@ -0,0 +1,258 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import pb.utils.Timeout;
+import pb.utils.Tracer;
+import pb.utils.Utils;
+
+/**
+ * An endpoint that is driven by an {@link pb.managers.endpoint.EventLoop}
+ * rather than by its own thread. The socket channel is non-blocking and the
+ * event loop calls {@link #handleRead()} and {@link #handleWrite()} when the
+ * channel is ready. Messages are framed exactly as the blocking endpoint
+ * frames them, so either kind of endpoint can talk to the other.
+ * <br/>
+ * Queued messages are written by the event loop, as many as the channel
+ * will take in a single gathering write.
+ * <br/>
+ * The endpoint's thread is never started, calling {@link #start()} instead
+ * registers the endpoint with its event loop. Protocol processing happens
+ * on the event loop thread, except for the messages that the endpoint hands
+ * to its workers, so event callbacks may block but nothing else should.
+ *
+ * @see {@link pb.managers.endpoint.NioTransport}
+ * @see {@link pb.managers.endpoint.EventLoop}
+ */
+public class NioEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(NioEndpoint.class.getName());
+
+	/**
+	 * The most frames given to the channel in one write.
+	 */
+	private static final int maxBatch = 64;
+
+	/**
+	 * The channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The event loop that owns this endpoint.
+	 */
+	private final EventLoop eventLoop;
+
+	/**
+	 * Selection key of the channel, only used by the event loop thread.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Frames taken from the outbound queue and being written, from
+	 * batchStart up to batchEnd. Only used by the event loop thread.
+	 */
+	private final ByteBuffer[] batch;
+	private int batchStart=0;
+	private int batchEnd=0;
+	
+	/**
+	 * Set when the endpoint is closing, so that the channel is closed once
+	 * the outbound queue is empty. Only used by the event loop thread.
+	 */
+	private boolean closing=false;
+
+	/**
+	 * Released when the endpoint terminates.
+	 */
+	private final CountDownLatch terminated;
+
+	/**
+	 * Closes the channel if the queued frames can't be written in time.
+	 */
+	private volatile Timeout forcedClose;
+
+	/**
+	 * Initialise the endpoint with a connected channel, a manager, a frame
+	 * reader and the event loop that will drive it.
+	 * @param channel
+	 * @param manager
+	 * @param reader
+	 * @param eventLoop
+	 */
+	public NioEndpoint(SocketChannel channel, IEndpointHandler manager, FrameReader reader,
+			EventLoop eventLoop) {
+		super(channel.socket(),manager,reader);
+		this.channel=channel;
+		this.eventLoop=eventLoop;
+		batch=new ByteBuffer[maxBatch];
+		terminated=new CountDownLatch(1);
+		setName("NioEndpoint");
+	}
+
+	/**
+	 * Register with the event loop rather than starting a thread.
+	 */
+	@Override
+	public synchronized void start() {
+		eventLoop.execute(()->{
+			try {
+				channel.configureBlocking(false);
+				key=channel.register(eventLoop.getSelector(),SelectionKey.OP_READ,this);
+			} catch (IOException e) {
+				disconnected();
+				return;
+			}
+			ready();
+		});
+	}
+
+	/**
+	 * Never called, the event loop does the work of this thread.
+	 */
+	@Override
+	public void run() {
+		log.severe("the thread of a nio endpoint should not be started");
+	}
+
+	@Override
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**
+	 * The event loop is the writer.
+	 */
+	@Override
+	protected void startWriter() {
+		eventLoop.execute(this::handleWrite);
+	}
+
+	/**
+	 * Close the channel once the event loop has written whatever is still
+	 * queued, or after a while if the other endpoint is not reading.
+	 */
+	@Override
+	protected void closeConnection() {
+		forcedClose=Utils.getInstance().setTimeout(()->{
+			if(channel.isOpen()) {
+				log.warning("closing with "+outbound.getDepth()+" messages unsent to "+getOtherEndpointId());
+				closeChannel();
+			}
+		}, closeTimeout);
+		eventLoop.execute(()->{
+			closing=true;
+			if(key==null || !key.isValid()) {
+				closeChannel();
+			} else if(outbound.tryDrain()) {
+				handleWrite();
+			}
+			// otherwise the writer will close the channel when it is done
+		});
+	}
+
+	/**
+	 * Called by the event loop when the channel has data to read. Reads
+	 * as much as is available and processes every complete frame.
+	 */
+	void handleRead() {
+		int read;
+		try {
+			read=channel.read(reader.getBuffer());
+		} catch (IOException e) {
+			read=-1;
+		}
+		if(read==-1) {
+			disconnected();
+			return;
+		}
+		try {
+			receiveFrames();
+		} catch (InvalidFrame e) {
+			log.severe("invalid frame from "+getOtherEndpointId()+": "+e.getMessage());
+			disconnected();
+		}
+	}
+
+	/**
+	 * Called by the event loop when there are frames to write or when the
+	 * channel can be written to. Writes as many queued frames as the
+	 * channel will take, and stays interested in writing if it will not
+	 * take them all.
+	 */
+	void handleWrite() {
+		if(key==null || !key.isValid()) {
+			outbound.clear();
+			return;
+		}
+		try {
+			while(true) {
+				if(batchStart==batchEnd) {
+					batchStart=0;
+					batchEnd=0;
+					ByteBuffer frame;
+					while(batchEnd<maxBatch && (frame=outbound.poll())!=null) {
+						batch[batchEnd++]=frame;
+					}
+					if(batchEnd==0) {
+						if(outbound.drained()) continue;
+						key.interestOps(SelectionKey.OP_READ);
+						if(closing) closeChannel();
+						return;
+					}
+				}
+				long written=channel.write(batch,batchStart,batchEnd-batchStart);
+				int frames=0;
+				while(batchStart<batchEnd && !batch[batchStart].hasRemaining()) {
+					batch[batchStart++]=null;
+					frames++;
+				}
+				outbound.sent(frames,written);
+				if(batchStart<batchEnd) {
+					// the socket buffer is full, wait to be told we can write again
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			while(batchStart<batchEnd) batch[batchStart++]=null;
+			outbound.clear();
+			disconnected();
+		}
+	}
+
+	/**
+	 * The other endpoint has gone, or the channel failed. Stop reading
+	 * straight away, but tell the manager only once the messages received
+	 * before it have been handled, as the blocking endpoint does.
+	 */
+	private void disconnected() {
+		if(key!=null) key.cancel();
+		dispatch(()->{
+			if(!isStopped()) {
+				Tracer.getInstance().dumpOnError(getOtherEndpointId(),"disconnected abruptly");
+				manager.endpointDisconnectedAbruptly(this);
+			}
+			closeChannel();
+		});
+	}
+
+	/**
+	 * Close the channel and release anyone waiting for termination.
+	 */
+	private void closeChannel() {
+		Timeout timeout=forcedClose;
+		if(timeout!=null) timeout.cancel();
+		if(key!=null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		terminated.countDown();
+	}
+}
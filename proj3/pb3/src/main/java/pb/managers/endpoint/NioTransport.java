@@ -0,0 +1,105 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport that uses non-blocking channels and a small, fixed number of
+ * {@link pb.managers.endpoint.EventLoop} threads, each of which owns many
+ * endpoints. This avoids a thread per connection when there are thousands of
+ * mostly idle connections. A single instance can be shared by any number
+ * of managers, e.g. a {@link pb.managers.PeerManager} shares it with its
+ * server manager and all of its client managers.
+ * <br/>
+ * Accepting connections is still done by the blocking
+ * {@link pb.managers.IOThread}, one thread per server.
+ *
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ */
+public class NioTransport extends Transport {
+
+	/**
+	 * The event loops, endpoints are given to them in turn.
+	 */
+	private final EventLoop[] eventLoops;
+
+	/**
+	 * The next event loop to use.
+	 */
+	private final AtomicInteger next=new AtomicInteger();
+
+	/**
+	 * Initialise with one event loop for every two processors.
+	 * @throws IOException if the event loops can't be created
+	 */
+	public NioTransport() throws IOException {
+		this(Math.max(1,Runtime.getRuntime().availableProcessors()/2));
+	}
+
+	/**
+	 * Initialise with a given number of event loops.
+	 * @param numEventLoops
+	 * @throws IOException if the event loops can't be created
+	 */
+	public NioTransport(int numEventLoops) throws IOException {
+		eventLoops=new EventLoop[numEventLoops];
+		for(int i=0;i<numEventLoops;i++) {
+			eventLoops[i]=new EventLoop("EventLoop-"+i);
+			eventLoops[i].start();
+		}
+	}
+
+	/**
+	 *
+	 * @return the event loop for a new endpoint
+	 */
+	private EventLoop nextEventLoop() {
+		return eventLoops[Math.floorMod(next.getAndIncrement(),eventLoops.length)];
+	}
+
+	@Override
+	public Endpoint connect(String host, int port, IEndpointHandler manager)
+			throws UnknownHostException, IOException {
+		InetSocketAddress address = new InetSocketAddress(host,port);
+		if(address.isUnresolved()) throw new UnknownHostException(host);
+		SocketChannel channel=SocketChannel.open(address);
+		return new NioEndpoint(channel,manager,connectedReader(),nextEventLoop());
+	}
+
+	@Override
+	public IAcceptor listen(int port) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		return new IAcceptor() {
+			@Override
+			public Endpoint accept(IEndpointHandler manager) throws IOException {
+				return new NioEndpoint(serverChannel.accept(),manager,acceptedReader(),nextEventLoop());
+			}
+
+			@Override
+			public void close() {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					// nothing more we can do
+				}
+			}
+
+			@Override
+			public boolean isClosed() {
+				return !serverChannel.isOpen();
+			}
+		};
+	}
+
+	@Override
+	public void shutDown() {
+		for(EventLoop eventLoop : eventLoops) {
+			eventLoop.shutDown();
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.metrics.Gauge;
+import pb.metrics.Metrics;
+import pb.utils.MpscQueue;
+
+/**
+ * Frames that an endpoint has been asked to send but that have not yet been
+ * written to the connection. Any thread may {@link #offer(ByteBuffer)} a
+ * frame and return immediately. At most one thread, the writer, drains the
+ * queue at a time: the offer that finds no writer running returns true, and
+ * the caller must then arrange for a writer to run. The writer takes frames
+ * with {@link #poll()}, reports them with {@link #sent(int, long)}, and
+ * stops only when {@link #drained()} returns false.
+ * <br/>
+ * Frames are offered on one of several lanes, see
+ * {@link pb.managers.endpoint.Endpoint.Priority}. The writer always takes
+ * control frames first. Otherwise it takes up to {@link #getInteractiveWeight()}
+ * interactive frames for each bulk frame, or whatever there is if only one
+ * of them has frames. Frames on the same lane are written in the order they
+ * were offered.
+ * <br/>
+ * A control frame that must not overtake the interactive and bulk frames
+ * before it, e.g. one that stops the session, is offered with
+ * {@link #offerAfterData(ByteBuffer[])}. It is held back until the writer
+ * has taken the frames that were on those lanes, and then written first
+ * as usual.
+ * <br/>
+ * The queue also keeps the number of frames and bytes that are waiting,
+ * which are useful to see whether the other endpoint is keeping up.
+ */
+public class OutboundQueue {
+
+	/**
+	 * Frames and bytes waiting in every queue.
+	 */
+	private static final Gauge framesQueued = Metrics.getInstance()
+			.gauge("pb_send_queue_frames","Frames waiting to be written, over all endpoints");
+	private static final Gauge bytesQueued = Metrics.getInstance()
+			.gauge("pb_send_queue_bytes","Bytes waiting to be written, over all endpoints");
+
+	public static final int controlLane=0;
+	public static final int interactiveLane=1;
+	public static final int bulkLane=2;
+	public static final int numLanes=3;
+
+	/**
+	 * The frames, one queue for each lane.
+	 */
+	private final MpscQueue<ByteBuffer>[] lanes;
+
+	/**
+	 * Frames that have been put on each lane.
+	 */
+	private final AtomicLong[] offered;
+
+	/**
+	 * Frames that the writer has taken from each lane. Only used by the
+	 * writer.
+	 */
+	private final long[] taken;
+
+	/**
+	 * Control frames held back until the frames before them have been
+	 * taken, oldest first.
+	 */
+	private final MpscQueue<Fence> fences;
+
+	/**
+	 * Interactive frames per bulk frame when both are waiting.
+	 */
+	private volatile int interactiveWeight=8;
+
+	/**
+	 * Whether the writer is taking interactive or bulk frames, and how many
+	 * more it may take before switching. Only used by the writer.
+	 */
+	private int currentLane=interactiveLane;
+	private int credit=0;
+
+	/**
+	 * Frames offered but not yet written.
+	 */
+	private final AtomicInteger depth;
+
+	/**
+	 * Bytes offered but not yet written.
+	 */
+	private final AtomicLong bytesPending;
+
+	/**
+	 * Whether a writer is running (or has been scheduled to run).
+	 */
+	private final AtomicBoolean draining;
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public OutboundQueue() {
+		lanes=new MpscQueue[numLanes];
+		offered=new AtomicLong[numLanes];
+		for(int i=0;i<numLanes;i++) {
+			lanes[i]=new MpscQueue<>();
+			offered[i]=new AtomicLong();
+		}
+		taken=new long[numLanes];
+		fences=new MpscQueue<>();
+		depth=new AtomicInteger();
+		bytesPending=new AtomicLong();
+		draining=new AtomicBoolean(false);
+	}
+
+	/**
+	 * Add a frame to the control lane.
+	 * @param frame ready to be written
+	 * @return true if the caller must start a writer
+	 */
+	public boolean offer(ByteBuffer frame) {
+		return offer(frame,controlLane);
+	}
+
+	/**
+	 * Add a frame to the queue.
+	 * @param frame ready to be written
+	 * @param lane to send it on
+	 * @return true if the caller must start a writer
+	 */
+	public boolean offer(ByteBuffer frame, int lane) {
+		depth.incrementAndGet();
+		bytesPending.addAndGet(frame.remaining());
+		framesQueued.inc();
+		bytesQueued.add(frame.remaining());
+		lanes[lane].offer(frame);
+		// counted once it is on the lane, so that a fence never waits for
+		// a frame that isn't there
+		offered[lane].incrementAndGet();
+		return draining.compareAndSet(false,true);
+	}
+
+	/**
+	 * Add frames that must be written in order on their lane, e.g. the
+	 * fragments of a message, with no frames from another call of this
+	 * method in between, so that the fragments of two messages never mix.
+	 * Whole frames offered at the same time with {@link #offer(ByteBuffer, int)}
+	 * may still come between them, which the other endpoint allows since
+	 * it puts fragments together by lane.
+	 * @param frames ready to be written
+	 * @param lane to send them on
+	 * @return true if the caller must start a writer
+	 */
+	public boolean offerAll(ByteBuffer[] frames, int lane) {
+		long bytes=0;
+		for(ByteBuffer frame : frames) bytes+=frame.remaining();
+		depth.addAndGet(frames.length);
+		bytesPending.addAndGet(bytes);
+		framesQueued.add(frames.length);
+		bytesQueued.add(bytes);
+		MpscQueue<ByteBuffer> queue=lanes[lane];
+		synchronized(queue) {
+			for(ByteBuffer frame : frames) queue.offer(frame);
+		}
+		offered[lane].addAndGet(frames.length);
+		return draining.compareAndSet(false,true);
+	}
+
+	/**
+	 * Add control frames, e.g. the fragments of a message, that must be
+	 * written after every interactive and bulk frame offered before them.
+	 * @param frames ready to be written
+	 * @return true if the caller must start a writer
+	 */
+	public boolean offerAfterData(ByteBuffer[] frames) {
+		long bytes=0;
+		for(ByteBuffer frame : frames) bytes+=frame.remaining();
+		depth.addAndGet(frames.length);
+		bytesPending.addAndGet(bytes);
+		framesQueued.add(frames.length);
+		bytesQueued.add(bytes);
+		fences.offer(new Fence(frames,offered[interactiveLane].get(),offered[bulkLane].get()));
+		return draining.compareAndSet(false,true);
+	}
+
+	/**
+	 * Writer only.
+	 * @return the next frame to write, or null if there are none
+	 */
+	public ByteBuffer poll() {
+		ByteBuffer frame=lanes[controlLane].poll();
+		if(frame!=null) return frame;
+		if(!fences.isEmpty() && releaseFences()) {
+			frame=lanes[controlLane].poll();
+			if(frame!=null) return frame;
+		}
+		// the current lane, then the other lane, then the current lane again
+		// in case it ran out of credit rather than frames
+		for(int i=0;i<3;i++) {
+			if(credit>0) {
+				frame=lanes[currentLane].poll();
+				if(frame!=null) {
+					credit--;
+					taken[currentLane]++;
+					return frame;
+				}
+			}
+			currentLane = currentLane==interactiveLane ? bulkLane : interactiveLane;
+			credit = currentLane==interactiveLane ? interactiveWeight : 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Writer only. Move the fenced frames whose interactive and bulk frames
+	 * have all been taken to the control lane.
+	 * @return true if any were moved
+	 */
+	private boolean releaseFences() {
+		boolean released=false;
+		Fence fence;
+		while((fence=fences.peek())!=null
+				&& taken[interactiveLane]>=fence.interactive && taken[bulkLane]>=fence.bulk) {
+			fences.poll();
+			MpscQueue<ByteBuffer> queue=lanes[controlLane];
+			synchronized(queue) {
+				for(ByteBuffer frame : fence.frames) queue.offer(frame);
+			}
+			released=true;
+		}
+		return released;
+	}
+
+	/**
+	 *
+	 * @return interactive frames written per bulk frame when both are waiting
+	 */
+	public int getInteractiveWeight() {
+		return interactiveWeight;
+	}
+
+	/**
+	 *
+	 * @param interactiveWeight interactive frames written per bulk frame when
+	 * both are waiting, at least 1
+	 */
+	public void setInteractiveWeight(int interactiveWeight) {
+		this.interactiveWeight=Math.max(1,interactiveWeight);
+	}
+
+	/**
+	 * Writer only. Record that frames have been written.
+	 * @param numFrames that have been completely written
+	 * @param numBytes that have been written
+	 */
+	public void sent(int numFrames, long numBytes) {
+		if(numFrames>0) {
+			depth.addAndGet(-numFrames);
+			framesQueued.add(-numFrames);
+		}
+		bytesPending.addAndGet(-numBytes);
+		bytesQueued.add(-numBytes);
+	}
+
+	/**
+	 * Writer only. Called when there seems to be nothing left to write.
+	 * @return true if frames arrived in the mean time and the writer must
+	 * carry on, false if the writer has stopped
+	 */
+	public boolean drained() {
+		draining.set(false);
+		if(!isEmpty() && draining.compareAndSet(false,true)) {
+			return true;
+		}
+		synchronized(this) {
+			notifyAll();
+		}
+		return false;
+	}
+
+	/**
+	 * Become the writer, if there is no writer running.
+	 * @return true if the caller is now the writer
+	 */
+	public boolean tryDrain() {
+		return draining.compareAndSet(false,true);
+	}
+
+	/**
+	 * Wait for the running writer, if any, to stop. Endpoints interrupt
+	 * themselves when closing, so an interrupt does not end the wait early,
+	 * it is only passed on once the wait is over.
+	 * @param timeout in milliseconds
+	 * @return true if no writer is running
+	 */
+	public boolean awaitIdle(long timeout) {
+		long deadline = System.currentTimeMillis()+timeout;
+		boolean interrupted = false;
+		synchronized(this) {
+			long remaining;
+			while(draining.get() && (remaining=deadline-System.currentTimeMillis())>0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					interrupted=true;
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		return !draining.get();
+	}
+
+	/**
+	 * Writer only. Throw away every frame that is waiting, e.g. because
+	 * the connection has failed, and stop being the writer.
+	 */
+	public void clear() {
+		for(MpscQueue<ByteBuffer> lane : lanes) while(lane.poll()!=null);
+		while(fences.poll()!=null);
+		framesQueued.add(-depth.getAndSet(0));
+		bytesQueued.add(-bytesPending.getAndSet(0));
+		draining.set(false);
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	private boolean isEmpty() {
+		for(MpscQueue<ByteBuffer> lane : lanes) {
+			if(!lane.isEmpty()) return false;
+		}
+		return fences.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return the number of frames waiting to be written
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 *
+	 * @return the number of bytes waiting to be written
+	 */
+	public long getBytesPending() {
+		return bytesPending.get();
+	}
+
+	/**
+	 * Control frames and how many frames must have been taken from the
+	 * interactive and bulk lanes before they may be written.
+	 */
+	private static final class Fence {
+		final ByteBuffer[] frames;
+		final long interactive;
+		final long bulk;
+
+		Fence(ByteBuffer[] frames, long interactive, long bulk) {
+			this.frames=frames;
+			this.interactive=interactive;
+			this.bulk=bulk;
+		}
+	}
+}
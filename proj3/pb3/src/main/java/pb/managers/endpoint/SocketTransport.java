@@ -0,0 +1,60 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * The original transport, using blocking sockets and a thread for every
+ * endpoint.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ */
+public class SocketTransport extends Transport {
+
+	/**
+	 * Called for every socket that is connected or accepted, before an
+	 * endpoint is made with it.
+	 * @param socket
+	 * @return the socket for the endpoint to use, which may wrap the one
+	 * given
+	 * @throws IOException if the socket can't be used
+	 */
+	protected Socket wrap(Socket socket) throws IOException {
+		return socket;
+	}
+
+	@Override
+	public Endpoint connect(String host, int port, IEndpointHandler manager)
+			throws UnknownHostException, IOException {
+		Socket socket=new Socket(InetAddress.getByName(host),port);
+		return new Endpoint(wrap(socket),manager,connectedReader());
+	}
+
+	@Override
+	public IAcceptor listen(int port) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(port);
+		return new IAcceptor() {
+			@Override
+			public Endpoint accept(IEndpointHandler manager) throws IOException {
+				return new Endpoint(wrap(serverSocket.accept()),manager,acceptedReader());
+			}
+
+			@Override
+			public void close() {
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					// nothing more we can do
+				}
+			}
+
+			@Override
+			public boolean isClosed() {
+				return serverSocket.isClosed();
+			}
+		};
+	}
+}
@@ -0,0 +1,95 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+/**
+ * A transport decides how endpoints are connected and how they move
+ * messages to the other endpoint. Managers are given a transport when they
+ * are initialised, and use it to make connections (client side) or to
+ * listen for connections (server side).
+ * <br/>
+ * Connections that are made use varint framing, unless legacy framing is
+ * asked for to talk to older servers, while connections that are accepted
+ * use whichever framing the other endpoint uses.
+ *
+ * @see {@link pb.managers.endpoint.SocketTransport}
+ * @see {@link pb.managers.endpoint.NioTransport}
+ * @see {@link pb.managers.endpoint.LoopbackTransport}
+ * @see {@link pb.managers.endpoint.EmulatedTransport}
+ */
+public abstract class Transport {
+
+	/**
+	 * Whether connections that are made use legacy framing.
+	 */
+	private volatile boolean legacyFraming=false;
+
+	/**
+	 * Largest frame that will be sent or received with varint framing.
+	 */
+	private volatile int maxFrameSize=Framing.defaultMaxFrameSize;
+
+	/**
+	 * Use legacy framing for connections that are made from now on, for
+	 * talking to servers that don't understand varint framing.
+	 * @param legacyFraming
+	 */
+	public void setLegacyFraming(boolean legacyFraming) {
+		this.legacyFraming=legacyFraming;
+	}
+
+	/**
+	 * Set the largest frame that will be sent or received with varint
+	 * framing, on connections made or accepted from now on.
+	 * @param maxFrameSize in bytes
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize=maxFrameSize;
+	}
+
+	/**
+	 *
+	 * @return a frame reader for a connection that has been made
+	 */
+	protected FrameReader connectedReader() {
+		return new FrameReader(legacyFraming ? new LegacyFraming() : new VarintFraming(maxFrameSize));
+	}
+
+	/**
+	 *
+	 * @return a frame reader for a connection that has been accepted
+	 */
+	protected FrameReader acceptedReader() {
+		return new FrameReader(maxFrameSize);
+	}
+
+	/**
+	 * Connect to a server/peer. The endpoint is returned without
+	 * being started.
+	 * @param host to connect to
+	 * @param port to connect to
+	 * @param manager to report endpoint events to
+	 * @return the endpoint for the connection
+	 * @throws UnknownHostException if the host can't be found
+	 * @throws IOException if the connection could not be made
+	 */
+	public abstract Endpoint connect(String host, int port, IEndpointHandler manager)
+			throws UnknownHostException, IOException;
+
+	/**
+	 * Start listening for connections on a port.
+	 * @param port to listen on
+	 * @return the acceptor for new connections
+	 * @throws IOException whenever the port can't be listened on
+	 */
+	public abstract IAcceptor listen(int port) throws IOException;
+
+	/**
+	 * Release any resources held by the transport. Endpoints that are
+	 * still connected may stop working.
+	 */
+	public void shutDown() {
+
+	}
+}
@@ -0,0 +1,146 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.Message;
+import pb.protocols.MessageJson;
+import pb.utils.ByteBuilder;
+
+/**
+ * Frames are the length of the rest of the frame as an unsigned varint
+ * (seven bits per byte, least significant first, high bit set on all but
+ * the last byte), then a type byte, then the payload. Text is sent in
+ * standard UTF-8. Frames can be of any size up to the maximum frame size,
+ * which is checked before anything is allocated for a received frame.
+ * <br/>
+ * An endpoint that connects using this framing sends {@link #preface()}
+ * first, so that the other endpoint knows not to use legacy framing.
+ */
+public class VarintFraming extends Framing {
+
+	/**
+	 * Sent before the first frame. A legacy frame can never start with
+	 * 'P', since that would be a message of more than 20KB and the first
+	 * message on a connection is always a small session start request.
+	 */
+	private static final byte[] preface = {'P','B',1};
+
+	/**
+	 * A length is at most five bytes, plus the type byte.
+	 */
+	private static final int maxHeaderSize=6;
+
+	public VarintFraming() {
+		this(defaultMaxFrameSize);
+	}
+
+	public VarintFraming(int maxFrameSize) {
+		super(maxFrameSize);
+	}
+
+	/**
+	 *
+	 * @param in buffer in read mode
+	 * @return true if the buffer, which must hold at least one byte, starts
+	 * with the preface (or with what could be the start of it)
+	 */
+	static boolean isPreface(ByteBuffer in) {
+		return in.get(in.position())==preface[0];
+	}
+
+	/**
+	 * Check and skip the preface.
+	 * @param in buffer in read mode
+	 * @return true if the preface was skipped, false if more bytes are needed
+	 * @throws InvalidFrame if the preface is wrong or of an unknown version
+	 */
+	static boolean skipPreface(ByteBuffer in) throws InvalidFrame {
+		if(in.remaining()<preface.length) return false;
+		for(int i=0;i<preface.length;i++) {
+			if(in.get(in.position()+i)!=preface[i]) throw new InvalidFrame("unknown framing");
+		}
+		in.position(in.position()+preface.length);
+		return true;
+	}
+
+	@Override
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	@Override
+	public boolean carriesTypes() {
+		return true;
+	}
+
+	@Override
+	public byte[] preface() {
+		return preface.clone();
+	}
+
+	@Override
+	public ByteBuffer encodeText(Message msg) throws InvalidFrame {
+		ByteBuilder bytes = MessageJson.write(msg,false);
+		return encode(TEXT,bytes.array(),0,bytes.size());
+	}
+
+	@Override
+	public ByteBuffer encode(byte type, byte[] payload, int offset, int length) throws InvalidFrame {
+		if(length>maxFrameSize) throw new InvalidFrame("frame is larger than "+maxFrameSize+" bytes: "+length);
+		ByteBuffer frame = ByteBuffer.allocate(varintSize(length+1)+1+length);
+		putVarint(frame,length+1);
+		frame.put(type);
+		frame.put(payload,offset,length);
+		frame.flip();
+		return frame;
+	}
+
+	@Override
+	public boolean decode(ByteBuffer in, Frame frame) throws InvalidFrame {
+		int position = in.position();
+		int limit = in.limit();
+		long length = 0;
+		int shift = 0;
+		while(true) {
+			if(position==limit) return false;
+			byte b = in.get(position++);
+			length |= (long)(b & 0x7f) << shift;
+			if((b & 0x80)==0) break;
+			shift+=7;
+			if(shift>28) throw new InvalidFrame("frame length is malformed");
+		}
+		if(length==0) throw new InvalidFrame("frame has no type");
+		if(length-1>maxFrameSize) throw new InvalidFrame("frame is larger than "+maxFrameSize+" bytes: "+(length-1));
+		if(limit-position<length) return false;
+		frame.set(in.get(position),in.array(),in.arrayOffset()+position+1,(int)length-1);
+		in.position(position+(int)length);
+		return true;
+	}
+
+	/**
+	 *
+	 * @param value
+	 * @return the number of bytes that value takes as a varint
+	 */
+	static int varintSize(int value) {
+		int size=1;
+		while((value & ~0x7f)!=0) {
+			value>>>=7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Put an unsigned varint.
+	 * @param out
+	 * @param value
+	 */
+	static void putVarint(ByteBuffer out, int value) {
+		while((value & ~0x7f)!=0) {
+			out.put((byte)((value & 0x7f) | 0x80));
+			value>>>=7;
+		}
+		out.put((byte)value);
+	}
+}
@@ -0,0 +1,47 @@
+package pb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, e.g. of messages sent. Counting is striped
+ * over a {@link LongAdder}, so threads that count at the same time don't
+ * contend for one memory location.
+ */
+public class Counter extends Metric {
+	private final LongAdder count = new LongAdder();
+
+	Counter(String name, String help) {
+		super(name,help);
+	}
+
+	public void inc() {
+		count.increment();
+	}
+
+	/**
+	 *
+	 * @param n to add, at least 0
+	 */
+	public void add(long n) {
+		count.add(n);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	public String getType() {
+		return "counter";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out, String labels) {
+		sample(out,getName(),labels,get());
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append(get());
+	}
+}
@@ -0,0 +1,46 @@
+package pb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A level that goes up and down, e.g. of endpoints that are open. Kept in
+ * a {@link LongAdder} like a {@link Counter}.
+ */
+public class Gauge extends Metric {
+	private final LongAdder level = new LongAdder();
+
+	Gauge(String name, String help) {
+		super(name,help);
+	}
+
+	public void inc() {
+		level.increment();
+	}
+
+	public void dec() {
+		level.decrement();
+	}
+
+	public void add(long n) {
+		level.add(n);
+	}
+
+	public long get() {
+		return level.sum();
+	}
+
+	@Override
+	public String getType() {
+		return "gauge";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out, String labels) {
+		sample(out,getName(),labels,get());
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append(get());
+	}
+}
@@ -0,0 +1,88 @@
+package pb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of observations, e.g. round trip times in ms, in fixed buckets.
+ * Each bucket counts the observations up to and including its upper
+ * bound that are larger than the bound of the bucket before it, and a
+ * last bucket counts those larger than every bound. Observing takes no
+ * locks and allocates nothing.
+ */
+public class Histogram extends Metric {
+	/**
+	 * Bounds for times in ms, from 1 ms to 10 seconds.
+	 */
+	public static final long[] millis = {1,2,5,10,20,50,100,200,500,1000,2000,5000,10000};
+
+	private final long[] bounds;
+
+	/**
+	 * One more than the bounds, the last for observations above them all.
+	 */
+	private final LongAdder[] buckets;
+
+	private final LongAdder sum = new LongAdder();
+
+	Histogram(String name, String help, long[] bounds) {
+		super(name,help);
+		this.bounds=bounds.clone();
+		buckets=new LongAdder[bounds.length+1];
+		for(int i=0;i<buckets.length;i++) buckets[i]=new LongAdder();
+	}
+
+	/**
+	 *
+	 * @param value to count in its bucket
+	 */
+	public void observe(long value) {
+		int i=0;
+		while(i<bounds.length && value>bounds[i]) i++;
+		buckets[i].increment();
+		sum.add(value);
+	}
+
+	/**
+	 *
+	 * @return the number of observations
+	 */
+	public long getCount() {
+		long count=0;
+		for(LongAdder bucket : buckets) count+=bucket.sum();
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	@Override
+	public String getType() {
+		return "histogram";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out, String labels) {
+		String prefix=labels.isEmpty() ? "" : labels+",";
+		long cumulative=0;
+		for(int i=0;i<bounds.length;i++) {
+			cumulative+=buckets[i].sum();
+			sample(out,getName()+"_bucket",prefix+"le=\""+bounds[i]+"\"",cumulative);
+		}
+		cumulative+=buckets[bounds.length].sum();
+		sample(out,getName()+"_bucket",prefix+"le=\"+Inf\"",cumulative);
+		sample(out,getName()+"_sum",labels,getSum());
+		sample(out,getName()+"_count",labels,cumulative);
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append("{\"count\":").append(getCount()).append(",\"sum\":").append(getSum()).append(",\"buckets\":{");
+		for(int i=0;i<buckets.length;i++) {
+			if(i>0) out.append(',');
+			out.append('"').append(i<bounds.length ? Long.toString(bounds[i]) : "+Inf").append("\":");
+			out.append(buckets[i].sum());
+		}
+		out.append("}}");
+	}
+}
@@ -0,0 +1,19 @@
+package pb.metrics;
+
+/**
+ * Something that reports the {@link Metrics} somewhere, e.g.
+ * {@link LogReporter} and {@link PrometheusReporter}.
+ */
+public interface IMetricsReporter {
+
+	/**
+	 * Start reporting.
+	 * @throws Exception if the reporter can't start, e.g. can't listen on its port
+	 */
+	public void start() throws Exception;
+
+	/**
+	 * Stop reporting.
+	 */
+	public void stop();
+}
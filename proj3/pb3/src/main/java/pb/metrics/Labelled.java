@@ -0,0 +1,75 @@
+package pb.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A metric for each value of a label, e.g. a {@link Counter} of messages
+ * sent for each protocol. The metric for a value is made the first time
+ * the value is used and then found without allocating.
+ * @param <T> the type of metric
+ */
+public class Labelled<T extends Metric> extends Metric {
+	private final String label;
+
+	private final String type;
+
+	private final Function<String,T> factory;
+
+	private final Map<String,T> children = new ConcurrentHashMap<>();
+
+	Labelled(String name, String help, String label, String type, Function<String,T> factory) {
+		super(name,help);
+		this.label=label;
+		this.type=type;
+		this.factory=factory;
+	}
+
+	/**
+	 *
+	 * @param value of the label
+	 * @return the metric for the value
+	 */
+	public T get(String value) {
+		T child=children.get(value);
+		if(child!=null) return child;
+		return children.computeIfAbsent(value,factory);
+	}
+
+	@Override
+	public String getType() {
+		return type;
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out, String labels) {
+		children.forEach((value,child)->{
+			String these=label+"=\""+escape(value)+"\"";
+			child.writePrometheus(out,labels.isEmpty() ? these : labels+","+these);
+		});
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append('{');
+		boolean first=true;
+		for(Map.Entry<String,T> child : children.entrySet()) {
+			if(!first) out.append(',');
+			first=false;
+			out.append('"').append(escape(child.getKey())).append("\":");
+			child.getValue().writeJson(out);
+		}
+		out.append('}');
+	}
+
+	/**
+	 *
+	 * @param value
+	 * @return the value with quotes and backslashes escaped, as both
+	 * formats need
+	 */
+	static String escape(String value) {
+		return value.replace("\\","\\\\").replace("\"","\\\"");
+	}
+}
@@ -0,0 +1,48 @@
+package pb.metrics;
+
+import java.util.logging.Logger;
+
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * Logs a JSON snapshot of the metrics every so often.
+ */
+public class LogReporter implements IMetricsReporter {
+	private static Logger log = Logger.getLogger(LogReporter.class.getName());
+
+	private final long interval;
+
+	private Timeout timeout;
+
+	private volatile boolean stopped=true;
+
+	/**
+	 *
+	 * @param interval in ms between reports
+	 */
+	public LogReporter(long interval) {
+		this.interval=interval;
+	}
+
+	@Override
+	public synchronized void start() {
+		if(!stopped) return;
+		stopped=false;
+		schedule();
+	}
+
+	@Override
+	public synchronized void stop() {
+		stopped=true;
+		if(timeout!=null) timeout.cancel();
+	}
+
+	private synchronized void schedule() {
+		if(stopped) return;
+		timeout=Utils.getInstance().setTimeout(()->{
+			log.info("metrics "+Metrics.getInstance().toJson());
+			schedule();
+		},interval);
+	}
+}
@@ -0,0 +1,58 @@
+package pb.metrics;
+
+/**
+ * Something measured, registered with {@link Metrics} under a unique name.
+ * A metric knows how to write its value(s) out, which is all that the
+ * registry and reporters need from it.
+ */
+public abstract class Metric {
+	private final String name;
+
+	private final String help;
+
+	protected Metric(String name, String help) {
+		this.name=name;
+		this.help=help;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+
+	/**
+	 *
+	 * @return the Prometheus type of the metric
+	 */
+	public abstract String getType();
+
+	/**
+	 * Write the sample lines of the metric in the Prometheus text format.
+	 * @param out
+	 * @param labels to put in braces after the name, e.g. {@code protocol="EventProtocol"},
+	 * or empty
+	 */
+	abstract void writePrometheus(StringBuilder out, String labels);
+
+	/**
+	 * Write the value of the metric as a JSON value.
+	 * @param out
+	 */
+	abstract void writeJson(StringBuilder out);
+
+	/**
+	 * Write a sample line in the Prometheus text format.
+	 * @param out
+	 * @param name of the sample
+	 * @param labels without braces, or empty
+	 * @param value
+	 */
+	static void sample(StringBuilder out, String name, String labels, long value) {
+		out.append(name);
+		if(!labels.isEmpty()) out.append('{').append(labels).append('}');
+		out.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,154 @@
+package pb.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A singleton registry of the metrics of the system, which must always be
+ * accessed statically as Metrics.getInstance()...
+ * <br/>
+ * Classes register their metrics once, usually into static fields, and
+ * then count into them directly:
+ * <pre>
+ * {@code
+ * private static final Counter reconnects = Metrics.getInstance()
+ *     .counter("pb_reconnects_total","Attempts to reconnect to the server");
+ * ...
+ * reconnects.inc();
+ * }
+ * </pre>
+ * Registering a name again returns the metric already registered under
+ * it. Reporters, see {@link IMetricsReporter}, read the metrics as
+ * {@link #toPrometheus()} or {@link #toJson()}.
+ */
+public class Metrics {
+
+	private static class Holder {
+		private static final Metrics metrics = new Metrics();
+	}
+
+	/**
+	 * Metrics by name, sorted so that reports are stable.
+	 */
+	private final Map<String,Metric> metrics = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Reporters that have been started.
+	 */
+	private final List<IMetricsReporter> reporters = new CopyOnWriteArrayList<>();
+
+	public static Metrics getInstance() {
+		return Holder.metrics;
+	}
+
+	public Counter counter(String name, String help) {
+		return register(new Counter(name,help));
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @param help
+	 * @param label the name of the label, e.g. "protocol"
+	 * @return a counter for each value of the label
+	 */
+	public Labelled<Counter> counter(String name, String help, String label) {
+		return register(new Labelled<Counter>(name,help,label,"counter",(value)->new Counter(name,help)));
+	}
+
+	public Gauge gauge(String name, String help) {
+		return register(new Gauge(name,help));
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @param help
+	 * @param bounds upper bounds of the buckets, ascending, e.g. {@link Histogram#millis}
+	 * @return
+	 */
+	public Histogram histogram(String name, String help, long[] bounds) {
+		return register(new Histogram(name,help,bounds));
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @param help
+	 * @param label the name of the label, e.g. "event"
+	 * @param bounds upper bounds of the buckets, ascending, e.g. {@link Histogram#millis}
+	 * @return a histogram for each value of the label
+	 */
+	public Labelled<Histogram> histogram(String name, String help, String label, long[] bounds) {
+		return register(new Labelled<Histogram>(name,help,label,"histogram",(value)->new Histogram(name,help,bounds)));
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @return the metric registered under the name, or null if there is none
+	 */
+	public Metric get(String name) {
+		return metrics.get(name);
+	}
+
+	/**
+	 * Start a reporter, which is stopped by {@link #stopReporters()}.
+	 * @param reporter
+	 * @throws Exception if the reporter can't start
+	 */
+	public void addReporter(IMetricsReporter reporter) throws Exception {
+		reporter.start();
+		reporters.add(reporter);
+	}
+
+	/**
+	 * Stop every reporter that has been added, e.g. when shutting down.
+	 */
+	public void stopReporters() {
+		reporters.forEach(IMetricsReporter::stop);
+		reporters.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(T metric) {
+		Metric registered=metrics.putIfAbsent(metric.getName(),metric);
+		if(registered==null) return metric;
+		if(registered.getClass()!=metric.getClass() || !registered.getType().equals(metric.getType()))
+			throw new IllegalArgumentException("metric "+metric.getName()+" is already registered as a "+
+					registered.getType());
+		return (T)registered;
+	}
+
+	/**
+	 *
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		StringBuilder out=new StringBuilder();
+		metrics.values().forEach((metric)->{
+			out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+			out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+			metric.writePrometheus(out,"");
+		});
+		return out.toString();
+	}
+
+	/**
+	 *
+	 * @return a snapshot of every metric as a JSON object, keyed by name
+	 */
+	public String toJson() {
+		StringBuilder out=new StringBuilder("{");
+		boolean first=true;
+		for(Metric metric : metrics.values()) {
+			if(!first) out.append(',');
+			first=false;
+			out.append('"').append(metric.getName()).append("\":");
+			metric.writeJson(out);
+		}
+		return out.append('}').toString();
+	}
+}
@@ -0,0 +1,58 @@
+package pb.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics over HTTP, in the Prometheus text format at
+ * {@code /metrics} and as a JSON snapshot at {@code /metrics.json}.
+ */
+public class PrometheusReporter implements IMetricsReporter {
+	private static Logger log = Logger.getLogger(PrometheusReporter.class.getName());
+
+	private final int port;
+
+	private HttpServer server;
+
+	/**
+	 *
+	 * @param port to serve on, on all interfaces
+	 */
+	public PrometheusReporter(int port) {
+		this.port=port;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if(server!=null) return;
+		server=HttpServer.create(new InetSocketAddress(port),0);
+		server.createContext("/metrics.json",(exchange)->
+			respond(exchange,"application/json",Metrics.getInstance().toJson()));
+		server.createContext("/metrics",(exchange)->
+			respond(exchange,"text/plain; version=0.0.4; charset=utf-8",Metrics.getInstance().toPrometheus()));
+		server.start();
+		log.info("serving metrics on port "+port);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if(server==null) return;
+		server.stop(0);
+		server=null;
+	}
+
+	private void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+		byte[] bytes=body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",contentType);
+		exchange.sendResponseHeaders(200,bytes.length);
+		try(OutputStream out=exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
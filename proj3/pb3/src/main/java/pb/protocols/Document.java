@@ -47,7 +47,7 @@ public class Document {
 		if(val==null){
 			obj.put(key, null);
 		} else {
-			obj.put(key, new String(val));
+			obj.put(key, val);
 		}
 	}
 	
@@ -0,0 +1,15 @@
+package pb.protocols;
+
+/**
+ * Creates a message whose parameters are not yet filled in, e.g. the no
+ * argument constructor of a message class. Only decoders use this, and
+ * they fill in every parameter before the message is used.
+ *
+ * @see {@link pb.protocols.MessageSchema}
+ */
+public interface IMessageFactory {
+	/**
+	 * @return the message
+	 */
+	public Message create();
+}
@@ -1,18 +1,17 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
  * message.
+ * <br/>
+ * The parameters of a message are kept in slots, one for each parameter in
+ * the message's {@link pb.protocols.MessageSchema}, rather than in a
+ * Document, so that {@link pb.protocols.MessageJson} and
+ * {@link pb.protocols.MessageCodec} can read and write them directly.
  * 
  * @see {@link pb.protocols.Protocol}
  * @author aaron
@@ -28,21 +27,29 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * Describes the message, including its name, protocol and type.
 	 */
-	protected Document doc;
+	protected final MessageSchema schema;
 	
 	/**
-	 * Initialiser when given parameters explicitly.
-	 * @param name the name of the message (its classname by convention)
-	 * @param protocolName the name of the protocol the message belongs to
-	 * @param type whether its a Request or a Reply message
+	 * The message parameters, in schema order.
 	 */
-	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+	protected final Object[] values;
+	
+	/**
+	 * Timeout id, if one has been set.
+	 */
+	private long timeoutId=0;
+	private boolean hasTimeoutId=false;
+	
+	/**
+	 * Initialiser when given parameters explicitly, which the subclass
+	 * then puts in the slots.
+	 * @param schema of the message
+	 */
+	public Message(MessageSchema schema) {
+		this.schema=schema;
+		values=new Object[schema.getNumFields()];
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -62,18 +69,51 @@ public class Message {
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
+	static public void validateStringListType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof ArrayList)) throw new InvalidMessage();
+		for(Object o : (ArrayList<?>)doc.get(key)) {
+			if(!(o instanceof String)) throw new InvalidMessage();
+		}
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
-	 * @param name the name of the message that is being initialised
+	 * @param schema of the message that is being initialised
 	 * @param doc with the message details
-	 * @throws InvalidMessage when the name of the message in the doc is incorrect
+	 * @throws InvalidMessage when the name of the message in the doc is incorrect,
+	 * or a parameter in the schema is missing or of the wrong type
 	 */
-	public Message(String name, String protocolName, 
-			Message.Type type, Document doc) throws InvalidMessage {
-		validateStringValue("name",name,doc);
-		validateStringValue("protocolName",protocolName,doc);
-		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+	public Message(MessageSchema schema, Document doc) throws InvalidMessage {
+		this(schema);
+		validateStringValue("name",schema.getName(),doc);
+		validateStringValue("protocolName",schema.getProtocolName(),doc);
+		validateStringValue("type",schema.getType().toString(),doc);
+		if(doc.containsKey("timeoutId")) {
+			validateLongType("timeoutId",doc);
+			setTimeoutId(doc.getLong("timeoutId"));
+		}
+		for(int i=0;i<values.length;i++) {
+			String key=schema.getFieldName(i);
+			switch(schema.getFieldType(i)) {
+			case String:
+				validateStringType(key,doc);
+				values[i]=doc.getString(key);
+				break;
+			case Strings:
+				if(!doc.containsKey(key)) break;
+				validateStringListType(key,doc);
+				ArrayList<String> list=new ArrayList<>();
+				for(Object o : (ArrayList<?>)doc.get(key)) list.add((String)o);
+				values[i]=list;
+				break;
+			case Number:
+				if(!doc.containsKey(key)) break;
+				validateLongType(key,doc);
+				values[i]=doc.getLong(key);
+				break;
+			}
+		}
 	}
 	
 	/**
@@ -83,27 +123,7 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
-		// the following test is somewhat repetitive, but it avoids having
-		// to test each message type, handling exceptions for those that are
-		// not the matching message type
-		if(!doc.containsKey("name")) throw new InvalidMessage();
-		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		return MessageJson.parse(json);
 	}
 	
 	/**
@@ -111,7 +131,15 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		return MessageJson.toJsonString(this);
+	}
+	
+	/**
+	 * 
+	 * @return the schema of the message
+	 */
+	public final MessageSchema getSchema() {
+		return schema;
 	}
 	
 	/**
@@ -119,7 +147,7 @@ public class Message {
 	 * @return
 	 */
 	public String getProtocolName() {
-		return doc.getString("protocolName");
+		return schema.getProtocolName();
 	}
 	
 	/**
@@ -127,7 +155,7 @@ public class Message {
 	 * @return
 	 */
 	public String getName() {
-		return doc.getString("name");
+		return schema.getName();
 	}
 	
 	/**
@@ -135,7 +163,7 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return schema.getType();
 	}
 	
 	/**
@@ -143,7 +171,8 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
-		doc.append("timeoutId", id);
+		timeoutId=id;
+		hasTimeoutId=true;
 	}
 	
 	/**
@@ -151,8 +180,44 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
+	}
+	
+	/**
+	 * 
+	 * @return true if a timeout id has been set
+	 */
+	public final boolean hasTimeoutId() {
+		return hasTimeoutId;
+	}
+	
+	/**
+	 * 
+	 * @param slot
+	 * @return the parameter in the slot, which must be a string
+	 */
+	protected final String getString(int slot) {
+		return (String) values[slot];
+	}
+	
+	/**
+	 * 
+	 * @param slot
+	 * @return the parameter in the slot, which must be a list of strings,
+	 * or null if it is absent
+	 */
+	@SuppressWarnings("unchecked")
+	protected final List<String> getStrings(int slot) {
+		return (List<String>) values[slot];
+	}
+	
+	/**
+	 * 
+	 * @param slot
+	 * @return the parameter in the slot, which must be a number, or null
+	 * if it is absent
+	 */
+	protected final Long getNumber(int slot) {
+		return (Long) values[slot];
 	}
 }
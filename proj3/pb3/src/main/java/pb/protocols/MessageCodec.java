@@ -0,0 +1,250 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+import pb.protocols.stream.StreamCloseRequest;
+import pb.protocols.stream.StreamCreditRequest;
+import pb.protocols.stream.StreamDataRequest;
+import pb.protocols.stream.StreamOpenReply;
+import pb.protocols.stream.StreamOpenRequest;
+import pb.utils.ByteBuilder;
+
+/**
+ * Compact binary encoding of messages, used instead of JSON once both
+ * endpoints have agreed to it at session start. A message is encoded as:
+ * <ul>
+ * <li>the message id from its {@link pb.protocols.MessageSchema}, as a varint,
+ * which stands for the name, protocol name and type</li>
+ * <li>the timeout id as a varint, 0 if there is none</li>
+ * <li>each parameter in schema order: a string is its UTF-8 length as a
+ * varint and the UTF-8 bytes; a list of strings is the number of strings
+ * plus one as a varint (0 if absent) followed by the strings</li>
+ * </ul>
+ * Absent lists at the end of a message are left out altogether, so a list
+ * can be added to the end of a schema without older decoders noticing
+ * when it is absent.
+ * Decoding puts the parameters straight into the message's slots.
+ *
+ * @see {@link pb.protocols.MessageSchema}
+ */
+public class MessageCodec {
+
+	/**
+	 * Every message there is. Add new messages here.
+	 */
+	private static final MessageSchema[] schemas = {
+			KeepAliveRequest.schema,
+			KeepAliveReply.schema,
+			SessionStartRequest.schema,
+			SessionStartReply.schema,
+			SessionStopRequest.schema,
+			SessionStopReply.schema,
+			EventRequest.schema,
+			EventReply.schema,
+			EventBatchRequest.schema,
+			StreamOpenRequest.schema,
+			StreamOpenReply.schema,
+			StreamDataRequest.schema,
+			StreamCreditRequest.schema,
+			StreamCloseRequest.schema
+	};
+
+	private static final MessageSchema[] schemasById;
+
+	private static final Map<String,MessageSchema> schemasByName;
+
+	static {
+		int maxId=0;
+		for(MessageSchema schema : schemas) maxId=Math.max(maxId,schema.getId());
+		schemasById=new MessageSchema[maxId+1];
+		schemasByName=new HashMap<>();
+		for(MessageSchema schema : schemas) {
+			if(schemasById[schema.getId()]!=null) {
+				throw new IllegalStateException("message id used twice: "+schema.getId());
+			}
+			schemasById[schema.getId()]=schema;
+			schemasByName.put(schema.getName(),schema);
+		}
+	}
+
+	/**
+	 * Largest encoding buffer to keep between messages.
+	 */
+	static final int maxRetained = 1024*1024;
+
+	/**
+	 * Encoding buffer for each thread.
+	 */
+	private static final ThreadLocal<ByteBuilder> buffers =
+			ThreadLocal.withInitial(()->new ByteBuilder(256));
+
+	/**
+	 *
+	 * @return every message schema
+	 */
+	public static MessageSchema[] getSchemas() {
+		return schemas.clone();
+	}
+
+	/**
+	 * @param name of a message
+	 * @return the schema of the message, or null if there is no such message
+	 */
+	public static MessageSchema getSchema(String name) {
+		return schemasByName.get(name);
+	}
+
+	/**
+	 * Encode a message into this thread's buffer.
+	 * @param msg
+	 * @return the buffer, only valid until this thread encodes another message
+	 * @throws InvalidMessage if the message has no schema or lacks a parameter
+	 */
+	public static ByteBuilder encode(Message msg) throws InvalidMessage {
+		MessageSchema schema = getSchema(msg.getName());
+		if(schema==null) throw new InvalidMessage();
+		ByteBuilder out = buffers.get();
+		out.reset(maxRetained);
+		out.putVarint(schema.getId());
+		out.putVarint(msg.getTimeoutId());
+		int numFields=schema.getNumFields();
+		while(numFields>0 && schema.getFieldType(numFields-1)!=MessageSchema.FieldType.String
+				&& msg.values[numFields-1]==null) numFields--;
+		for(int i=0;i<numFields;i++) {
+			switch(schema.getFieldType(i)) {
+			case String:
+				String value = msg.getString(i);
+				if(value==null) throw new InvalidMessage();
+				putString(out,value);
+				break;
+			case Strings:
+				List<String> list = msg.getStrings(i);
+				if(list==null) {
+					out.putVarint(0);
+					break;
+				}
+				out.putVarint(list.size()+1);
+				for(String s : list) {
+					if(s==null) throw new InvalidMessage();
+					putString(out,s);
+				}
+				break;
+			case Number:
+				Long number = msg.getNumber(i);
+				if(number==null) {
+					out.putVarint(0);
+					break;
+				}
+				if(number<0) throw new InvalidMessage();
+				out.putVarint(number+1);
+				break;
+			}
+		}
+		return out;
+	}
+
+	private static void putString(ByteBuilder out, String s) {
+		out.putVarint(ByteBuilder.utf8Length(s));
+		out.putUtf8(s);
+	}
+
+	/**
+	 * Decode a message.
+	 * @param data
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not a valid message
+	 */
+	public static Message decode(byte[] data, int offset, int length) throws InvalidMessage {
+		Reader in = new Reader(data,offset,offset+length);
+		long id = in.varint();
+		if(id<0 || id>=schemasById.length || schemasById[(int)id]==null) throw new InvalidMessage();
+		MessageSchema schema = schemasById[(int)id];
+		Message msg = schema.create();
+		long timeoutId = in.varint();
+		if(timeoutId!=0) msg.setTimeoutId(timeoutId);
+		for(int i=0;i<schema.getNumFields();i++) {
+			switch(schema.getFieldType(i)) {
+			case String:
+				msg.values[i]=in.string();
+				break;
+			case Strings:
+				// left out at the end
+				if(in.atEnd()) break;
+				long count = in.varint();
+				if(count==0) break;
+				// each string takes at least a byte, so don't trust a larger count
+				if(count<0 || count-1>in.remaining()) throw new InvalidMessage();
+				ArrayList<String> list = new ArrayList<>((int)count-1);
+				for(long j=1;j<count;j++) list.add(in.string());
+				msg.values[i]=list;
+				break;
+			case Number:
+				if(in.atEnd()) break;
+				long number = in.varint();
+				if(number==0) break;
+				if(number<0) throw new InvalidMessage();
+				msg.values[i]=number-1;
+				break;
+			}
+		}
+		if(!in.atEnd()) throw new InvalidMessage();
+		return msg;
+	}
+
+	/**
+	 * Reads the parts of an encoded message, checking bounds.
+	 */
+	private static class Reader {
+		private final byte[] data;
+		private int position;
+		private final int end;
+
+		Reader(byte[] data, int position, int end) {
+			this.data=data;
+			this.position=position;
+			this.end=end;
+		}
+
+		long varint() throws InvalidMessage {
+			long value=0;
+			for(int shift=0;shift<64;shift+=7) {
+				if(position>=end) throw new InvalidMessage();
+				byte b=data[position++];
+				value|=(long)(b & 0x7f) << shift;
+				if((b & 0x80)==0) return value;
+			}
+			throw new InvalidMessage();
+		}
+
+		String string() throws InvalidMessage {
+			long length=varint();
+			if(length<0 || length>end-position) throw new InvalidMessage();
+			String s=new String(data,position,(int)length,StandardCharsets.UTF_8);
+			position+=(int)length;
+			return s;
+		}
+
+		int remaining() {
+			return end-position;
+		}
+
+		boolean atEnd() {
+			return position==end;
+		}
+	}
+}
@@ -0,0 +1,654 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import pb.utils.ByteBuilder;
+
+/**
+ * Reads and writes messages in JSON format without building a JSON object
+ * tree. Writing goes straight from a message's slots into a reusable byte
+ * buffer, and reading goes straight from the received bytes into a message's
+ * slots.
+ * <br/>
+ * The output is byte for byte what json-simple produces for the Document
+ * that messages used to be kept in: the keys come in the order that a
+ * HashMap holding them would iterate, and strings are escaped in the same
+ * way, including "/" as "\/" and the unicode ranges that json-simple
+ * escapes. Input can have keys in any order and any additional keys, which
+ * are skipped.
+ *
+ * @see {@link pb.protocols.MessageSchema}
+ */
+public class MessageJson {
+
+	/**
+	 * Special write entries, other entries are slot numbers.
+	 */
+	private static final int constantEntry=-1;
+	private static final int timeoutIdEntry=-2;
+
+	/**
+	 * Keys that the reader recognises, the first four are in every message.
+	 */
+	private static final int nameKey=0;
+	private static final int protocolNameKey=1;
+	private static final int typeKey=2;
+	private static final int timeoutIdKey=3;
+	private static final String[] knownKeys;
+	private static final byte[][] knownKeyBytes;
+	private static final Map<String,Integer> knownKeyIndex;
+
+	/**
+	 * For each message id: what to write in order, the bytes to write
+	 * before each value (or in place of it for constants), and which known
+	 * key each slot is read from.
+	 */
+	private static final int[][] writeEntries;
+	private static final byte[][][] writePrefixes;
+	private static final int[][] slotKeys;
+
+	static {
+		MessageSchema[] schemas = MessageCodec.getSchemas();
+		ArrayList<String> keys = new ArrayList<>();
+		keys.add("name");
+		keys.add("protocolName");
+		keys.add("type");
+		keys.add("timeoutId");
+		int maxId=0;
+		for(MessageSchema schema : schemas) {
+			maxId=Math.max(maxId,schema.getId());
+			for(int i=0;i<schema.getNumFields();i++) {
+				if(!keys.contains(schema.getFieldName(i))) keys.add(schema.getFieldName(i));
+			}
+		}
+		knownKeys=keys.toArray(new String[0]);
+		knownKeyBytes=new byte[knownKeys.length][];
+		knownKeyIndex=new HashMap<>();
+		for(int i=0;i<knownKeys.length;i++) {
+			knownKeyBytes[i]=knownKeys[i].getBytes(StandardCharsets.UTF_8);
+			knownKeyIndex.put(knownKeys[i],i);
+		}
+		writeEntries=new int[maxId+1][];
+		writePrefixes=new byte[maxId+1][][];
+		slotKeys=new int[maxId+1][];
+		for(MessageSchema schema : schemas) {
+			// the keys in the order they were appended to the Document,
+			// which decides the order of keys that share a hash bucket
+			Map<String,Integer> order = new HashMap<>();
+			order.put("name",constantEntry);
+			order.put("protocolName",constantEntry);
+			order.put("type",constantEntry);
+			for(int i=0;i<schema.getNumFields();i++) order.put(schema.getFieldName(i),i);
+			order.put("timeoutId",timeoutIdEntry);
+			int[] entries = new int[order.size()];
+			byte[][] prefixes = new byte[order.size()][];
+			int n=0;
+			for(Map.Entry<String,Integer> entry : order.entrySet()) {
+				ByteBuilder prefix = new ByteBuilder(64);
+				putString(prefix,entry.getKey(),false);
+				prefix.put((byte)':');
+				switch(entry.getKey()) {
+				case "name": putString(prefix,schema.getName(),false); break;
+				case "protocolName": putString(prefix,schema.getProtocolName(),false); break;
+				case "type": putString(prefix,schema.getType().toString(),false); break;
+				}
+				entries[n]=entry.getValue();
+				prefixes[n]=prefix.toByteArray();
+				n++;
+			}
+			writeEntries[schema.getId()]=entries;
+			writePrefixes[schema.getId()]=prefixes;
+			int[] slots = new int[schema.getNumFields()];
+			for(int i=0;i<slots.length;i++) slots[i]=knownKeyIndex.get(schema.getFieldName(i));
+			slotKeys[schema.getId()]=slots;
+		}
+	}
+
+	/**
+	 * Writing buffer for each thread.
+	 */
+	private static final ThreadLocal<ByteBuilder> buffers =
+			ThreadLocal.withInitial(()->new ByteBuilder(256));
+
+	/**
+	 * Reader for each thread.
+	 */
+	private static final ThreadLocal<Reader> readers =
+			ThreadLocal.withInitial(Reader::new);
+
+	/**
+	 * Write a message into this thread's buffer.
+	 * @param msg
+	 * @param modifiedUtf8 whether to write in modified UTF-8, for legacy framing
+	 * @return the buffer, only valid until this thread writes another message
+	 */
+	public static ByteBuilder write(Message msg, boolean modifiedUtf8) {
+		ByteBuilder out = buffers.get();
+		out.reset(MessageCodec.maxRetained);
+		write(msg,out,modifiedUtf8);
+		return out;
+	}
+
+	/**
+	 * Write a message.
+	 * @param msg
+	 * @param out to append the message to
+	 * @param modifiedUtf8 whether to write in modified UTF-8, for legacy framing
+	 */
+	public static void write(Message msg, ByteBuilder out, boolean modifiedUtf8) {
+		int id = msg.getSchema().getId();
+		int[] entries = writeEntries[id];
+		byte[][] prefixes = writePrefixes[id];
+		boolean first=true;
+		out.put((byte)'{');
+		for(int i=0;i<entries.length;i++) {
+			int entry = entries[i];
+			Object value = null;
+			if(entry==timeoutIdEntry) {
+				if(!msg.hasTimeoutId()) continue;
+			} else if(entry>=0) {
+				value = msg.values[entry];
+				// absent optional parameters are left out, a missing string
+				// is written as null as json-simple would
+				if(value==null && msg.schema.getFieldType(entry)!=MessageSchema.FieldType.String) continue;
+			}
+			if(!first) out.put((byte)',');
+			first=false;
+			out.put(prefixes[i],0,prefixes[i].length);
+			if(entry==timeoutIdEntry) {
+				out.putDecimal(msg.getTimeoutId());
+			} else if(entry>=0) {
+				putValue(out,value,modifiedUtf8);
+			}
+		}
+		out.put((byte)'}');
+	}
+
+	/**
+	 *
+	 * @param msg
+	 * @return the message in JSON format
+	 */
+	public static String toJsonString(Message msg) {
+		ByteBuilder out = write(msg,false);
+		return new String(out.array(),0,out.size(),StandardCharsets.UTF_8);
+	}
+
+	private static void putValue(ByteBuilder out, Object value, boolean modifiedUtf8) {
+		if(value==null) {
+			out.putAscii("null");
+		} else if(value instanceof String) {
+			putString(out,(String)value,modifiedUtf8);
+		} else if(value instanceof Long) {
+			out.putDecimal((Long)value);
+		} else {
+			out.put((byte)'[');
+			boolean first=true;
+			for(Object o : (Iterable<?>)value) {
+				if(!first) out.put((byte)',');
+				first=false;
+				putValue(out,o,modifiedUtf8);
+			}
+			out.put((byte)']');
+		}
+	}
+
+	/**
+	 * Put a quoted string, escaped as json-simple escapes it.
+	 * @param out
+	 * @param s
+	 * @param modifiedUtf8
+	 */
+	private static void putString(ByteBuilder out, String s, boolean modifiedUtf8) {
+		out.put((byte)'"');
+		int length=s.length();
+		int run=0; // start of characters that need no escaping
+		for(int i=0;i<length;i++) {
+			char c=s.charAt(i);
+			String escape;
+			switch(c) {
+			case '"': escape="\\\""; break;
+			case '\\': escape="\\\\"; break;
+			case '\b': escape="\\b"; break;
+			case '\f': escape="\\f"; break;
+			case '\n': escape="\\n"; break;
+			case '\r': escape="\\r"; break;
+			case '\t': escape="\\t"; break;
+			case '/': escape="\\/"; break;
+			default:
+				if(c<=0x1f || (c>=0x7f && c<=0x9f) || (c>=0x2000 && c<=0x20ff)) {
+					escape=null;
+				} else {
+					continue;
+				}
+			}
+			putRun(out,s,run,i,modifiedUtf8);
+			run=i+1;
+			if(escape!=null) {
+				out.putAscii(escape);
+			} else {
+				String hex=Integer.toHexString(c).toUpperCase();
+				out.putAscii("\\u");
+				for(int k=hex.length();k<4;k++) out.put((byte)'0');
+				out.putAscii(hex);
+			}
+		}
+		putRun(out,s,run,length,modifiedUtf8);
+		out.put((byte)'"');
+	}
+
+	private static void putRun(ByteBuilder out, String s, int start, int end, boolean modifiedUtf8) {
+		if(start==end) return;
+		if(modifiedUtf8) {
+			out.putModifiedUtf8(s,start,end);
+		} else {
+			out.putUtf8(s,start,end);
+		}
+	}
+
+	/**
+	 * Parse a message.
+	 * @param json the message in JSON format
+	 * @return the message
+	 * @throws InvalidMessage if the text is not valid JSON or not a valid message
+	 */
+	public static Message parse(String json) throws InvalidMessage {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		return parse(bytes,0,bytes.length);
+	}
+
+	/**
+	 * Parse a message in UTF-8, or in modified UTF-8 as legacy framing
+	 * sends it.
+	 * @param data
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not valid JSON or not a valid message
+	 */
+	public static Message parse(byte[] data, int offset, int length) throws InvalidMessage {
+		return readers.get().parse(data,offset,offset+length);
+	}
+
+	/**
+	 * A JSON parser that only keeps the values of keys that some message
+	 * has. Not thread safe, each thread has its own.
+	 */
+	private static class Reader {
+
+		/**
+		 * A value that no message parameter can have, e.g. a number with a
+		 * fraction or a nested object.
+		 */
+		private static final Object other = new Object();
+
+		/**
+		 * JSON null, which is different from absent.
+		 */
+		private static final Object nullValue = new Object();
+
+		/**
+		 * Values of the known keys, null if absent.
+		 */
+		private final Object[] values = new Object[knownKeys.length];
+
+		/**
+		 * Deepest nesting of arrays and objects allowed.
+		 */
+		private static final int maxDepth = 64;
+
+		/**
+		 * Current nesting of arrays and objects.
+		 */
+		private int depth;
+
+		/**
+		 * For decoding strings that are not plain ASCII.
+		 */
+		private char[] chars = new char[256];
+
+		private byte[] data;
+		private int position;
+		private int end;
+
+		Message parse(byte[] data, int position, int end) throws InvalidMessage {
+			this.data=data;
+			this.position=position;
+			this.end=end;
+			depth=0;
+			try {
+				readObject();
+				return toMessage();
+			} finally {
+				this.data=null;
+				for(int i=0;i<values.length;i++) values[i]=null;
+			}
+		}
+
+		private void readObject() throws InvalidMessage {
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if(peek()=='}') {
+				position++;
+			} else {
+				while(true) {
+					expect('"');
+					int key = readKey();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					if(key<0) {
+						skipValue();
+					} else {
+						values[key]=readValue();
+					}
+					skipWhitespace();
+					byte b = next();
+					if(b=='}') break;
+					if(b!=',') throw new InvalidMessage();
+					skipWhitespace();
+				}
+			}
+			skipWhitespace();
+			if(position!=end) throw new InvalidMessage();
+		}
+
+		private Message toMessage() throws InvalidMessage {
+			if(!(values[nameKey] instanceof String)) throw new InvalidMessage();
+			MessageSchema schema = MessageCodec.getSchema((String)values[nameKey]);
+			if(schema==null) throw new InvalidMessage();
+			if(!schema.getProtocolName().equals(values[protocolNameKey])) throw new InvalidMessage();
+			if(!schema.getType().toString().equals(values[typeKey])) throw new InvalidMessage();
+			Message msg = schema.create();
+			if(values[timeoutIdKey]!=null) {
+				if(!(values[timeoutIdKey] instanceof Long)) throw new InvalidMessage();
+				msg.setTimeoutId((Long)values[timeoutIdKey]);
+			}
+			int[] keys = slotKeys[schema.getId()];
+			for(int i=0;i<keys.length;i++) {
+				Object value = values[keys[i]];
+				switch(schema.getFieldType(i)) {
+				case String:
+					if(!(value instanceof String)) throw new InvalidMessage();
+					break;
+				case Strings:
+					if(value==null) break;
+					if(!(value instanceof ArrayList)) throw new InvalidMessage();
+					for(Object o : (ArrayList<?>)value) {
+						if(!(o instanceof String)) throw new InvalidMessage();
+					}
+					break;
+				case Number:
+					if(value==null) break;
+					if(!(value instanceof Long) || (Long)value<0) throw new InvalidMessage();
+					break;
+				}
+				msg.values[i]=value;
+			}
+			return msg;
+		}
+
+		/**
+		 * Read a key, the opening quote has been read.
+		 * @return the index of the known key, or -1 if it is not known
+		 * @throws InvalidMessage
+		 */
+		private int readKey() throws InvalidMessage {
+			int start=position;
+			while(true) {
+				byte b = next();
+				if(b=='"') break;
+				if(b=='\\') {
+					// unusual, so do it the slow way
+					position=start;
+					Integer key = knownKeyIndex.get(readString());
+					return key==null ? -1 : key;
+				}
+			}
+			int length=position-1-start;
+			for(int i=0;i<knownKeyBytes.length;i++) {
+				byte[] key = knownKeyBytes[i];
+				if(key.length!=length) continue;
+				int j=0;
+				while(j<length && data[start+j]==key[j]) j++;
+				if(j==length) return i;
+			}
+			return -1;
+		}
+
+		private Object readValue() throws InvalidMessage {
+			byte b = peek();
+			switch(b) {
+			case '"':
+				position++;
+				return readString();
+			case '[':
+				position++;
+				if(++depth>maxDepth) throw new InvalidMessage();
+				ArrayList<Object> list = new ArrayList<>();
+				skipWhitespace();
+				if(peek()==']') {
+					position++;
+					depth--;
+					return list;
+				}
+				while(true) {
+					skipWhitespace();
+					list.add(readValue());
+					skipWhitespace();
+					byte c = next();
+					if(c==']') {
+						depth--;
+						return list;
+					}
+					if(c!=',') throw new InvalidMessage();
+				}
+			case '{':
+				skipValue();
+				return other;
+			case 't':
+				expectWord("true");
+				return other;
+			case 'f':
+				expectWord("false");
+				return other;
+			case 'n':
+				expectWord("null");
+				return nullValue;
+			default:
+				return readNumber();
+			}
+		}
+
+		private void skipValue() throws InvalidMessage {
+			byte b = peek();
+			switch(b) {
+			case '"':
+				position++;
+				skipString();
+				return;
+			case '[':
+			case '{':
+				position++;
+				if(++depth>maxDepth) throw new InvalidMessage();
+				byte close = b=='[' ? (byte)']' : (byte)'}';
+				skipWhitespace();
+				if(peek()==close) {
+					position++;
+					depth--;
+					return;
+				}
+				while(true) {
+					skipWhitespace();
+					if(b=='{') {
+						expect('"');
+						skipString();
+						skipWhitespace();
+						expect(':');
+						skipWhitespace();
+					}
+					skipValue();
+					skipWhitespace();
+					byte c = next();
+					if(c==close) {
+						depth--;
+						return;
+					}
+					if(c!=',') throw new InvalidMessage();
+				}
+			default:
+				readValue();
+			}
+		}
+
+		private Object readNumber() throws InvalidMessage {
+			int start=position;
+			boolean integer=true;
+			if(position<end && data[position]=='-') position++;
+			int digits=position;
+			while(position<end) {
+				byte b = data[position];
+				if(b>='0' && b<='9') {
+					position++;
+				} else if(b=='.' || b=='e' || b=='E' || b=='+' || b=='-') {
+					integer=false;
+					position++;
+				} else {
+					break;
+				}
+			}
+			if(position==digits) throw new InvalidMessage();
+			if(!integer) return other;
+			if(position-start>19) return other; // too big for a long
+			long value=0;
+			for(int i=digits;i<position;i++) {
+				value=value*10+(data[i]-'0');
+				if(value<0) return other; // overflowed
+			}
+			return data[start]=='-' ? -value : value;
+		}
+
+		/**
+		 * Read a string, the opening quote has been read.
+		 * @return the string
+		 * @throws InvalidMessage
+		 */
+		private String readString() throws InvalidMessage {
+			int start=position;
+			// most strings are plain ASCII with nothing escaped
+			while(position<end) {
+				byte b = data[position];
+				if(b=='"') {
+					position++;
+					return new String(data,start,position-1-start,StandardCharsets.ISO_8859_1);
+				}
+				if(b=='\\' || b<0) break;
+				position++;
+			}
+			position=start;
+			int n=0;
+			while(true) {
+				if(n+2>chars.length) {
+					char[] larger = new char[chars.length*2];
+					System.arraycopy(chars,0,larger,0,n);
+					chars=larger;
+				}
+				int b = next() & 0xff;
+				if(b=='"') break;
+				if(b=='\\') {
+					byte e = next();
+					switch(e) {
+					case '"': chars[n++]='"'; break;
+					case '\\': chars[n++]='\\'; break;
+					case '/': chars[n++]='/'; break;
+					case 'b': chars[n++]='\b'; break;
+					case 'f': chars[n++]='\f'; break;
+					case 'n': chars[n++]='\n'; break;
+					case 'r': chars[n++]='\r'; break;
+					case 't': chars[n++]='\t'; break;
+					case 'u':
+						int c=0;
+						for(int k=0;k<4;k++) {
+							int h = Character.digit(next(),16);
+							if(h<0) throw new InvalidMessage();
+							c=c*16+h;
+						}
+						chars[n++]=(char)c;
+						break;
+					default: throw new InvalidMessage();
+					}
+				} else if(b<0x80) {
+					chars[n++]=(char)b;
+				} else if((b & 0xe0)==0xc0) {
+					chars[n++]=(char)(((b & 0x1f)<<6) | continuation());
+				} else if((b & 0xf0)==0xe0) {
+					// includes the separately encoded surrogates of modified UTF-8
+					int c=(b & 0x0f)<<12;
+					c|=continuation()<<6;
+					c|=continuation();
+					chars[n++]=(char)c;
+				} else if((b & 0xf8)==0xf0) {
+					int cp=(b & 0x07)<<18;
+					cp|=continuation()<<12;
+					cp|=continuation()<<6;
+					cp|=continuation();
+					if(cp<0x10000 || cp>Character.MAX_CODE_POINT) {
+						chars[n++]='\uFFFD';
+					} else {
+						chars[n++]=Character.highSurrogate(cp);
+						chars[n++]=Character.lowSurrogate(cp);
+					}
+				} else {
+					chars[n++]='\uFFFD';
+				}
+			}
+			return new String(chars,0,n);
+		}
+
+		private int continuation() throws InvalidMessage {
+			int b = next() & 0xff;
+			if((b & 0xc0)!=0x80) throw new InvalidMessage();
+			return b & 0x3f;
+		}
+
+		private void skipString() throws InvalidMessage {
+			while(true) {
+				byte b = next();
+				if(b=='"') return;
+				if(b=='\\') next();
+			}
+		}
+
+		private void expectWord(String word) throws InvalidMessage {
+			for(int i=0;i<word.length();i++) {
+				if(next()!=word.charAt(i)) throw new InvalidMessage();
+			}
+		}
+
+		private void skipWhitespace() {
+			while(position<end) {
+				byte b = data[position];
+				if(b!=' ' && b!='\n' && b!='\r' && b!='\t') return;
+				position++;
+			}
+		}
+
+		private void expect(char c) throws InvalidMessage {
+			if(next()!=c) throw new InvalidMessage();
+		}
+
+		private byte peek() throws InvalidMessage {
+			if(position>=end) throw new InvalidMessage();
+			return data[position];
+		}
+
+		private byte next() throws InvalidMessage {
+			if(position>=end) throw new InvalidMessage();
+			return data[position++];
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+
+/**
+ * Describes a message class: its numeric id, which is unique over all
+ * messages, and the parameters that it has besides name, protocolName, type
+ * and timeoutId, which all messages have. Schemas are what let
+ * {@link pb.protocols.MessageCodec} encode messages without sending the
+ * parameter names.
+ * <br/>
+ * Every message class declares its schema, e.g.
+ * <pre>
+ * {@code
+ * static final public MessageSchema schema = new MessageSchema(7,name,
+ *     EventProtocol.protocolName,Message.Type.Request,EventRequest::new)
+ *     .field("eventName",MessageSchema.FieldType.String)
+ *     .field("eventData",MessageSchema.FieldType.String);
+ * }
+ * </pre>
+ * and must be added to {@link pb.protocols.MessageCodec}. Ids must never
+ * be reused for a different message.
+ */
+public class MessageSchema {
+
+	/**
+	 * Types of parameter.
+	 */
+	static public enum FieldType {
+		/**
+		 * A string that must be present.
+		 */
+		String,
+		/**
+		 * A list of strings that may be absent.
+		 */
+		Strings,
+		/**
+		 * A whole number, not negative, that may be absent.
+		 */
+		Number
+	}
+
+	private final int id;
+	private final String name;
+	private final String protocolName;
+	private final Message.Type type;
+	private final IMessageFactory factory;
+	private final ArrayList<String> fieldNames;
+	private final ArrayList<FieldType> fieldTypes;
+
+	/**
+	 * Initialise a schema with no parameters.
+	 * @param id unique over all messages, and small since it is sent as a varint
+	 * @param name of the message
+	 * @param protocolName of the protocol the message belongs to
+	 * @param type of the message
+	 * @param factory to create the message
+	 */
+	public MessageSchema(int id, String name, String protocolName,
+			Message.Type type, IMessageFactory factory) {
+		this.id=id;
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
+		this.factory=factory;
+		fieldNames=new ArrayList<>();
+		fieldTypes=new ArrayList<>();
+	}
+
+	/**
+	 * Add a parameter, in the order that it is encoded.
+	 * @param fieldName
+	 * @param fieldType
+	 * @return this schema
+	 */
+	public MessageSchema field(String fieldName, FieldType fieldType) {
+		fieldNames.add(fieldName);
+		fieldTypes.add(fieldType);
+		return this;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	public Message.Type getType() {
+		return type;
+	}
+
+	/**
+	 *
+	 * @return number of parameters
+	 */
+	public int getNumFields() {
+		return fieldNames.size();
+	}
+
+	public String getFieldName(int i) {
+		return fieldNames.get(i);
+	}
+
+	public FieldType getFieldType(int i) {
+		return fieldTypes.get(i);
+	}
+
+	/**
+	 *
+	 * @param fieldName
+	 * @return the slot of the parameter, or -1 if the message has no such
+	 * parameter
+	 */
+	public int getFieldIndex(String fieldName) {
+		return fieldNames.indexOf(fieldName);
+	}
+
+	/**
+	 * Create the message, for a decoder to fill in its parameters.
+	 * @return the message
+	 */
+	public Message create() {
+		return factory.create();
+	}
+}
@@ -0,0 +1,73 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * Several events in one request, in the order they were emitted. The i'th
+ * event has the i'th name and the i'th data. Only sent when the endpoints
+ * have agreed on {@link pb.managers.endpoint.Endpoint#eventBatch}.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+	static final public MessageSchema schema = new MessageSchema(9,name,
+			EventProtocol.protocolName,Message.Type.Request,EventBatchRequest::new)
+			.field("eventNames",MessageSchema.FieldType.Strings)
+			.field("eventData",MessageSchema.FieldType.Strings)
+			.field("previous",MessageSchema.FieldType.Number);
+	
+	/**
+	 * The lists are kept, not copied, so must not be changed afterwards.
+	 * @param eventNames
+	 * @param eventData
+	 */
+	public EventBatchRequest(List<String> eventNames, List<String> eventData) {
+		super(schema);
+		values[0]=eventNames;
+		values[1]=eventData;
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private EventBatchRequest() {
+		super(schema);
+	}
+
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	public List<String> getEventNames() {
+		List<String> eventNames = getStrings(0);
+		return eventNames==null ? new ArrayList<>() : eventNames;
+	}
+	
+	public List<String> getEventData() {
+		List<String> eventData = getStrings(1);
+		return eventData==null ? new ArrayList<>() : eventData;
+	}
+	
+	/**
+	 * 
+	 * @return the id of the event sent before this batch in stream mode,
+	 * or null if not given
+	 */
+	public Long getPrevious() {
+		return getNumber(2);
+	}
+	
+	/**
+	 * 
+	 * @param previous the id of the event sent before this batch
+	 */
+	void setPrevious(long previous) {
+		values[2]=previous;
+	}
+}
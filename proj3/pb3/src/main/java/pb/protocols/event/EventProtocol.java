@@ -1,17 +1,79 @@
 package pb.protocols.event;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Endpoint.Priority;
+import pb.metrics.Counter;
+import pb.metrics.Histogram;
+import pb.metrics.Labelled;
+import pb.metrics.Metrics;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Timeout;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * Originally every event request gets its own reply and its own timeout.
+ * If the endpoints agree on {@link pb.managers.endpoint.Endpoint#eventStream}
+ * when the session starts, events are instead a stream: the timeout id of
+ * each event request acts as its sequence number, and the receiver replies
+ * only every {@link #ackEvery} events or {@link #ackDelay} ms after an
+ * event, with the id of the latest event it has received, which
+ * acknowledges every event up to it. The sender keeps the ids that have not
+ * been acknowledged in {@link OutstandingEvents}, and has a single timer
+ * that times out if the oldest of them is not acknowledged within
+ * {@link #eventTimeout}. Both endpoints switch before the event protocol
+ * starts, so they always agree on which way events are acknowledged.
+ * <br/>
+ * If the endpoints agree on {@link pb.managers.endpoint.Endpoint#eventBatch},
+ * events emitted within {@link #batchWindow} ms of each other are sent
+ * together in one {@link EventBatchRequest}, which is acknowledged like a
+ * single event. A batch is sent early once it has {@link #maxBatchEvents}
+ * events or {@link #maxBatchSize} characters of names and data. A batch of
+ * one is sent as a plain {@link EventRequest}.
+ * <br/>
+ * Events are sent with the priority the endpoint gives them, see
+ * {@link pb.managers.endpoint.Endpoint#getEventPriority(String, String)}.
+ * Only interactive events are batched. An event may overtake events of a
+ * lower priority, so in stream mode each event request also carries the id
+ * of the event sent before it, and the receiver only acknowledges up to
+ * the latest event that it has received every earlier event of. Events
+ * that overtook others are acknowledged once those have arrived.
+ * <br/>
+ * If the endpoints agree on {@link pb.managers.endpoint.Endpoint#resume},
+ * the protocol doesn't forget its events when it stops. It keeps the
+ * events that were not acknowledged, and the events emitted on the
+ * endpoint after it stopped, until the session resumes on a new
+ * endpoint, see {@link #resumeFrom(EventProtocol, long)}.
+ * <br/>
+ * If the endpoints agree on {@link pb.managers.endpoint.Endpoint#eventTrace},
+ * an event emitted with an {@link EventTrace} as its second argument is sent
+ * with it, on its own rather than batched, and is emitted on the other
+ * endpoint with the trace that has travelled one more hop. The time taken by
+ * each hop and since the event was first emitted are recorded. Events are
+ * kept for resumption without their trace.
+ * <br/>
+ * Events received over the endpoint's rate limit, see
+ * {@link pb.managers.endpoint.Endpoint#setEventRateLimit(double)}, are
+ * held back in order, along with those behind them, until the limit lets
+ * them through, and are only acknowledged then. So a sender that keeps
+ * going over the limit sees its events acknowledged late and eventually
+ * times out, rather than losing them. A sender more than
+ * {@link #maxDelayedEvents} events ahead is treated as violating the
+ * protocol.
  * @author aaron
  *
  */
@@ -20,10 +82,175 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
-	public int eventTimeout = 40000;
+	/**
+	 * Stream mode, the time from sending each event to its acknowledgement,
+	 * which includes the delay before the receiver acknowledges it.
+	 */
+	private static final Histogram eventRoundTrip = Metrics.getInstance()
+			.histogram("pb_event_rtt_ms","Time from sending an event to its acknowledgement",Histogram.millis);
+	private static final LongConsumer observeRoundTrip = eventRoundTrip::observe;
+	
+	private static final Counter eventsDelayed = Metrics.getInstance()
+			.counter("pb_events_delayed_total","Events received over the rate limit and held back");
+	private static final Counter eventsDropped = Metrics.getInstance()
+			.counter("pb_events_dropped_total","Events held back for the rate limit when the session ended");
+	
+	/**
+	 * Traced events, the time from sending to receiving each hop, and from
+	 * first emitting the event to receiving it after however many hops.
+	 */
+	private static final Labelled<Histogram> hopLatency = Metrics.getInstance()
+			.histogram("pb_event_hop_ms","Time from sending a traced event to receiving it","event",Histogram.millis);
+	private static final Labelled<Histogram> endToEndLatency = Metrics.getInstance()
+			.histogram("pb_event_e2e_ms","Time from first emitting a traced event to receiving it","hops",Histogram.millis);
+	
+	/**
+	 * Traced events with more hops than this share a label.
+	 */
+	private static final int maxHopsLabel = 4;
+	
+	public volatile int eventTimeout = 40000;
+	
+	/**
+	 * In stream mode, acknowledge after receiving this many events.
+	 */
+	public int ackEvery = 32;
+	
+	/**
+	 * In stream mode, acknowledge at most this many ms after receiving an event.
+	 */
+	public int ackDelay = 200;
+	
+	/**
+	 * With batching, the longest in ms that an event waits for others to
+	 * be batched with it, rounded up to the tick of the timer. 0 disables
+	 * batching.
+	 */
+	public int batchWindow = 5;
+	
+	/**
+	 * With batching, most events in one batch.
+	 */
+	public int maxBatchEvents = 64;
+	
+	/**
+	 * With batching, most characters of event names and data in one batch,
+	 * unless a single event is larger.
+	 */
+	public int maxBatchSize = 32*1024;
+	
+	/**
+	 * With resumption, most events kept after the protocol has stopped.
+	 */
+	public int maxGapEvents = 10000;
+	
+	/**
+	 * Most events held back for the endpoint's rate limit.
+	 */
+	public int maxDelayedEvents = 10000;
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Events received over the endpoint's rate limit, or behind those that
+	 * were, waiting to be delivered and acknowledged in order. Only used by
+	 * whoever delivers requests, one at a time, as are the fields below.
+	 */
+	private final ArrayDeque<Message> delayed = new ArrayDeque<>();
+	
+	/**
+	 * Number of events in {@link #delayed}.
+	 */
+	private int delayedEvents=0;
+	
+	/**
+	 * Whether events have been held back since they were last delivered
+	 * straight away, so that it is only logged when it starts.
+	 */
+	private boolean delaying=false;
+	
+	/**
+	 * With batching, guards the events waiting to be sent, and makes sure
+	 * batches are sent in order.
+	 */
+	private final Object batch = new Object();
+	
+	private List<String> batchNames = new ArrayList<>();
+	
+	private List<String> batchData = new ArrayList<>();
+	
+	/**
+	 * Characters of names and data in the waiting events.
+	 */
+	private int batchChars=0;
+	
+	/**
+	 * Timer to send the waiting events, null if not running.
+	 */
+	private Timeout batchTimer;
+	
+	/**
+	 * In stream mode, events sent but not yet acknowledged. Also guards
+	 * {@link #eventTimer}.
+	 */
+	private final OutstandingEvents outstanding = new OutstandingEvents();
+	
+	/**
+	 * In stream mode, the timer that checks the oldest outstanding event,
+	 * null if not running.
+	 */
+	private Timeout eventTimer;
+	
+	/**
+	 * In stream mode, the id of the latest event sent, which the next event
+	 * follows. Guarded by {@link #outstanding}.
+	 */
+	private long lastSentId=0;
+	
+	/**
+	 * In stream mode, guards the receiver's acknowledgement state.
+	 */
+	private final Object acks = new Object();
+	
+	/**
+	 * Id of the latest event received after every event sent before it,
+	 * which is as far as an acknowledgement may go.
+	 */
+	private long lastReceivedId=0;
+	
+	/**
+	 * Events received before an event that was sent earlier, from the id
+	 * of the event each follows to its own id.
+	 */
+	private final Map<Long,Long> receivedAhead = new HashMap<>();
+	
+	/**
+	 * Id of the latest event acknowledged.
+	 */
+	private long acknowledgedId=0;
+	
+	/**
+	 * Events received since the last acknowledgement.
+	 */
+	private int unacknowledged=0;
+	
+	/**
+	 * Timer to send a delayed acknowledgement, null if not running.
+	 */
+	private Timeout ackTimer;
+	
+	/**
+	 * With resumption, names and data of the events emitted, or that could
+	 * not be sent, after the endpoint stopped. Also guards {@link #resumed}.
+	 */
+	private final List<String[]> gap = new ArrayList<>();
+	
+	/**
+	 * The protocol that this one's session resumed with, which events
+	 * emitted on this endpoint are passed on to, null until then.
+	 */
+	private EventProtocol resumed;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -32,14 +259,15 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
 		super(endpoint, (Manager)manager);	
-		// Register an event to listen for all events ("*") emitted on this endpoint and
+		// Register a wildcard callback to listen for all events emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
 		// only a String argument
-		endpoint.on("*", (args)->{
-			String eventName = (String) args[0];
-			if(args.length==2 && args[1] instanceof String) {
-				String eventData = (String) args[1];
+		endpoint.onAny((eventName,args)->{
+			if(args.length==1 && args[0] instanceof String) {
+				String eventData = (String) args[0];
 				sendEvent(eventName,eventData);
+			} else if(args.length==2 && args[0] instanceof String && args[1] instanceof EventTrace) {
+				sendEvent(eventName,(String)args[0],(EventTrace)args[1]);
 			} else {
 				log.warning("emitted event must have only a single String data argument: "+eventName);
 			}			
@@ -52,13 +280,178 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 * @param eventData
 	 */
 	public void sendEvent(String eventName, String eventData) {
-		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		sendEvent(eventName,eventData,null);
+	}
+	
+	/**
+	 * Send an event with its trace context, if the other side can take it.
+	 * @param eventName
+	 * @param eventData
+	 * @param trace or null
+	 */
+	public void sendEvent(String eventName, String eventData, EventTrace trace) {
+		if(stopped) {
+			keepForResumption(eventName,eventData);
+			return;
+		}
+		Priority priority=endpoint.getEventPriority(eventName,eventData);
+		if(trace!=null && endpoint.hasCapability(Endpoint.eventTrace)) {
+			synchronized(batch) {
+				// mustn't overtake the events waiting to be batched
+				flushBatch();
+				sendRequest(new EventRequest(eventName,eventData,
+						trace.toStrings(Utils.getInstance().currentTimeMillis())),priority);
+			}
+			return;
+		}
+		if(priority!=Priority.INTERACTIVE || !endpoint.hasCapability(Endpoint.eventBatch)) {
+			sendRequest(new EventRequest(eventName,eventData),priority);
+			return;
+		}
+		synchronized(batch) {
+			int chars=eventName.length()+eventData.length();
+			if(batchWindow<=0 || batchChars+chars>maxBatchSize) flushBatch();
+			batchNames.add(eventName);
+			batchData.add(eventData);
+			batchChars+=chars;
+			if(batchWindow<=0 || batchNames.size()>=maxBatchEvents || batchChars>=maxBatchSize) {
+				flushBatch();
+			} else if(batchTimer==null) {
+				batchTimer=Utils.getInstance().setTimeout(()->{
+					synchronized(batch) {
+						batchTimer=null;
+						flushBatch();
+					}
+				},batchWindow);
+			}
+		}
+	}
+	
+	/**
+	 * Send the waiting events, if any. Must hold {@link #batch}, so that
+	 * the next batch can't overtake this one.
+	 */
+	private void flushBatch() {
+		if(batchTimer!=null) batchTimer.cancel();
+		batchTimer=null;
+		if(batchNames.isEmpty()) return;
+		if(batchNames.size()==1) {
+			sendRequest(new EventRequest(batchNames.get(0),batchData.get(0)));
+			batchNames.clear();
+			batchData.clear();
+		} else {
+			sendRequest(new EventBatchRequest(batchNames,batchData));
+			batchNames=new ArrayList<>();
+			batchData=new ArrayList<>();
+		}
+		batchChars=0;
+	}
+	
+	/**
+	 * Send the events waiting to be batched now, e.g. so that a message
+	 * sent after them can't overtake them.
+	 */
+	public void flush() {
+		synchronized(batch) {
+			flushBatch();
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
+		// send the events still waiting to be batched
+		flush();
+		// let the other endpoint know what we did receive, if we still can
+		sendAck();
 		stopped=true;
+		synchronized(outstanding) {
+			if(eventTimer!=null) eventTimer.cancel();
+			eventTimer=null;
+			// kept to be sent again if the session resumes
+			if(!endpoint.hasCapability(Endpoint.resume)) outstanding.clear();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the id of the latest event received in stream mode after
+	 * every event sent before it, or 0 if there is none
+	 */
+	public long getLastReceivedId() {
+		synchronized(acks) {
+			return lastReceivedId;
+		}
+	}
+	
+	/**
+	 * Take over from the protocol of a session that failed and has now
+	 * resumed on this protocol's endpoint. The events the other endpoint
+	 * didn't receive, and those emitted since, are sent now, in order, and
+	 * events emitted on the old endpoint from now on are sent by this
+	 * protocol.
+	 * @param old protocol of the failed session
+	 * @param lastReceivedId the id of the latest event the other endpoint
+	 * received from the old protocol after every event before it, see
+	 * {@link #getLastReceivedId()}
+	 */
+	public void resumeFrom(EventProtocol old, long lastReceivedId) {
+		synchronized(old.gap) {
+			List<Message> unacknowledged;
+			synchronized(old.outstanding) {
+				old.outstanding.acknowledge(lastReceivedId);
+				unacknowledged=old.outstanding.messages();
+				old.outstanding.clear();
+			}
+			log.info("resending "+unacknowledged.size()+" messages and "+old.gap.size()
+				+" events to "+endpoint.getOtherEndpointId());
+			unacknowledged.forEach((msg)->eventsOf(msg).forEach((event)->sendEvent(event[0],event[1])));
+			old.gap.forEach((event)->sendEvent(event[0],event[1]));
+			old.gap.clear();
+			old.resumed=this;
+		}
+	}
+	
+	/**
+	 * The protocol has stopped, so keep an event until the session resumes,
+	 * or pass it on if it has.
+	 * @param eventName
+	 * @param eventData
+	 */
+	private void keepForResumption(String eventName, String eventData) {
+		EventProtocol next;
+		synchronized(gap) {
+			next=resumed;
+			if(next==null) {
+				if(!endpoint.hasCapability(Endpoint.resume)) return;
+				if(gap.size()>=maxGapEvents) {
+					log.warning("too many events while disconnected, dropped: "+eventName);
+					return;
+				}
+				gap.add(new String[] {eventName,eventData});
+				return;
+			}
+		}
+		next.sendEvent(eventName,eventData);
+	}
+	
+	/**
+	 * 
+	 * @param msg an event or batch request
+	 * @return the names and data of its events
+	 */
+	private static List<String[]> eventsOf(Message msg) {
+		List<String[]> events=new ArrayList<>();
+		if(msg instanceof EventBatchRequest) {
+			EventBatchRequest batchRequest = (EventBatchRequest)msg;
+			List<String> eventNames = batchRequest.getEventNames();
+			List<String> eventData = batchRequest.getEventData();
+			int n=Math.min(eventNames.size(),eventData.size());
+			for(int i=0;i<n;i++) events.add(new String[] {eventNames.get(i),eventData.get(i)});
+		} else if(msg instanceof EventRequest) {
+			EventRequest eventRequest = (EventRequest)msg;
+			events.add(new String[] {eventRequest.getEventName(),eventRequest.getEventData()});
+		}
+		return events;
 	}
 
 	@Override
@@ -75,25 +468,262 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 
 	@Override
 	public void sendRequest(Message msg) {
-		if(stopped)return;
-		endpoint.sendWithTimeout(msg, ()->{
-			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
-		
+		sendRequest(msg,Priority.INTERACTIVE);
+	}
+	
+	/**
+	 * Send an event request on the lane for its priority.
+	 * @param msg
+	 * @param priority
+	 */
+	private void sendRequest(Message msg, Priority priority) {
+		if(stopped) {
+			eventsOf(msg).forEach((event)->keepForResumption(event[0],event[1]));
+			return;
+		}
+		if(!endpoint.hasCapability(Endpoint.eventStream)) {
+			endpoint.sendWithTimeout(msg, ()->{
+				if(!stopped) manager.endpointTimedOut(endpoint, this);
+			}, eventTimeout, priority);
+			return;
+		}
+		// ids must be sent in the order they are taken
+		synchronized(outstanding) {
+			long id=endpoint.nextTimeoutId();
+			msg.setTimeoutId(id);
+			if(msg instanceof EventBatchRequest) ((EventBatchRequest)msg).setPrevious(lastSentId);
+			else if(msg instanceof EventRequest) ((EventRequest)msg).setPrevious(lastSentId);
+			if(endpoint.send(msg,priority)) {
+				lastSentId=id;
+				outstanding.add(id,Utils.getInstance().currentTimeMillis(),
+						endpoint.hasCapability(Endpoint.resume) ? msg : null);
+				if(eventTimer==null) {
+					eventTimer=Utils.getInstance().setTimeout(this::checkTimeout,eventTimeout);
+				}
+				return;
+			}
+		}
+		// the endpoint has just stopped, resumption takes the locks the other way round
+		eventsOf(msg).forEach((event)->keepForResumption(event[0],event[1]));
+	}
+	
+	/**
+	 * Stream mode timer callback, time out if the oldest outstanding event
+	 * has waited too long, otherwise check again when it will have.
+	 */
+	private void checkTimeout() {
+		boolean timedOut=false;
+		synchronized(outstanding) {
+			eventTimer=null;
+			if(stopped || outstanding.isEmpty()) return;
+			long waited=Utils.getInstance().currentTimeMillis()-outstanding.oldestTimeSent();
+			if(waited>=eventTimeout) {
+				timedOut=true;
+			} else {
+				eventTimer=Utils.getInstance().setTimeout(this::checkTimeout,eventTimeout-waited);
+			}
+		}
+		if(timedOut) manager.endpointTimedOut(endpoint, this);
 	}
 
+	/**
+	 * A reply acknowledges every event up to the one it is a reply to. In
+	 * the original mode the endpoint has already cancelled the timeout.
+	 */
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		synchronized(outstanding) {
+			outstanding.acknowledge(msg.getTimeoutId(),Utils.getInstance().currentTimeMillis(),observeRoundTrip);
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		int numEvents=numEvents(msg);
+		// events behind those held back wait too, to stay in order
+		if(!delayed.isEmpty() || !endpoint.admitEvents(numEvents)) {
+			delay(msg,numEvents);
+			return;
+		}
+		delaying=false;
+		deliver(msg);
+	}
+	
+	/**
+	 * 
+	 * @param msg an event or batch request
+	 * @return the number of events in it
+	 */
+	private static int numEvents(Message msg) {
+		return msg instanceof EventBatchRequest ? ((EventBatchRequest)msg).getEventNames().size() : 1;
+	}
+	
+	/**
+	 * Hold a request back until the rate limit lets it through.
+	 * @param msg
+	 * @param numEvents in the request
+	 */
+	private void delay(Message msg, int numEvents) {
+		if(delayedEvents+numEvents>maxDelayedEvents) {
+			log.severe("more than "+maxDelayedEvents+" events over the rate limit from "
+					+endpoint.getOtherEndpointId());
+			manager.protocolViolation(endpoint,this);
+			return;
+		}
+		if(!delaying) log.warning("delaying events over the rate limit from "+endpoint.getOtherEndpointId());
+		delaying=true;
+		if(delayed.isEmpty()) deliverLater(numEvents);
+		delayed.add(msg);
+		delayedEvents+=numEvents;
+		eventsDelayed.add(numEvents);
+	}
+	
+	/**
+	 * Try the delayed requests again once the rate limit would let the
+	 * first of them through.
+	 * @param numEvents in the first delayed request
+	 */
+	private void deliverLater(int numEvents) {
+		Utils.getInstance().setTimeout(()->endpoint.dispatch(this::deliverDelayed),
+				Math.max(1,endpoint.getEventDelay(numEvents)));
+	}
+	
+	/**
+	 * Deliver the delayed requests that the rate limit lets through, in
+	 * order, and try again later for the rest. Run by whoever delivers
+	 * requests.
+	 */
+	private void deliverDelayed() {
+		if(stopped) {
+			if(delayedEvents>0) {
+				log.warning(delayedEvents+" events over the rate limit from "
+						+endpoint.getOtherEndpointId()+" were not delivered before the session ended");
+				eventsDropped.add(delayedEvents);
+			}
+			delayed.clear();
+			delayedEvents=0;
+			return;
+		}
+		Message msg;
+		while((msg=delayed.peek())!=null) {
+			int numEvents=numEvents(msg);
+			if(!endpoint.admitEvents(numEvents)) {
+				deliverLater(numEvents);
+				return;
+			}
+			delayed.poll();
+			delayedEvents-=numEvents;
+			deliver(msg);
+		}
+	}
+	
+	/**
+	 * Deliver the requests held back for the rate limit now, whatever the
+	 * limit, and acknowledge them, e.g. because the session is stopping
+	 * and they would be lost otherwise. Must be called by whoever delivers
+	 * requests.
+	 */
+	public void deliverAllDelayed() {
+		if(stopped || delayed.isEmpty()) return;
+		Message msg;
+		while((msg=delayed.poll())!=null) deliver(msg);
+		delayedEvents=0;
+		sendAck();
+	}
+	
+	/**
+	 * Acknowledge a request and emit its events on the endpoint.
+	 * @param msg
+	 */
+	private void deliver(Message msg) {
+		if(endpoint.hasCapability(Endpoint.eventStream)) {
+			acknowledgeLater(msg);
+		} else {
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		}
+		if(msg instanceof EventBatchRequest) {
+			EventBatchRequest batchRequest = (EventBatchRequest)msg;
+			List<String> eventNames = batchRequest.getEventNames();
+			List<String> eventData = batchRequest.getEventData();
+			if(eventNames.size()!=eventData.size()) {
+				log.warning("event batch has "+eventNames.size()+" names but "
+						+eventData.size()+" data from "+endpoint.getOtherEndpointId());
+			}
+			int n=Math.min(eventNames.size(),eventData.size());
+			for(int i=0;i<n;i++) {
+				endpoint.localEmit(eventNames.get(i),eventData.get(i));
+			}
+		} else {
+			EventRequest eventRequest = (EventRequest)msg;
+			EventTrace trace = eventRequest.getTrace();
+			if(trace==null) {
+				endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+				return;
+			}
+			long now=Utils.getInstance().currentTimeMillis();
+			boolean handled=endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData(),trace);
+			// both come from the other endpoint, so only events that the
+			// application handles get their own label, and hops are capped
+			String eventLabel=handled?eventRequest.getEventName():"other";
+			int hops=trace.getHops();
+			String hopsLabel=hops>maxHopsLabel?(maxHopsLabel+1)+"+":Integer.toString(Math.max(0,hops));
+			// clocks of different hosts may not agree
+			hopLatency.get(eventLabel).observe(Math.max(0,now-trace.getSent()));
+			endToEndLatency.get(hopsLabel).observe(Math.max(0,now-trace.getOrigin()));
+		}
+	}
+	
+	/**
+	 * Stream mode, note that an event has been received and acknowledge
+	 * it now if enough have been, otherwise make sure it will be soon.
+	 * @param msg the event or batch request
+	 */
+	private void acknowledgeLater(Message msg) {
+		long id=msg.getTimeoutId();
+		Long previous=null;
+		if(msg instanceof EventBatchRequest) previous=((EventBatchRequest)msg).getPrevious();
+		else if(msg instanceof EventRequest) previous=((EventRequest)msg).getPrevious();
+		boolean now=false;
+		synchronized(acks) {
+			if(previous==null) {
+				// the other endpoint doesn't say, so assume nothing overtook
+				lastReceivedId=Math.max(lastReceivedId,id);
+			} else if(previous==lastReceivedId) {
+				lastReceivedId=id;
+				Long next;
+				while((next=receivedAhead.remove(lastReceivedId))!=null) lastReceivedId=next;
+			} else {
+				receivedAhead.put(previous,id);
+			}
+			unacknowledged++;
+			if(unacknowledged>=ackEvery) {
+				now=true;
+			} else if(ackTimer==null) {
+				ackTimer=Utils.getInstance().setTimeout(this::sendAck,ackDelay);
+			}
+		}
+		if(now) sendAck();
+	}
+	
+	/**
+	 * Stream mode, acknowledge every event received so far without a gap
+	 * before it, if that is further than the last acknowledgement.
+	 */
+	private void sendAck() {
+		long id;
+		synchronized(acks) {
+			if(ackTimer!=null) ackTimer.cancel();
+			ackTimer=null;
+			if(unacknowledged==0) return;
+			unacknowledged=0;
+			if(lastReceivedId==acknowledgedId) return;
+			id=lastReceivedId;
+			acknowledgedId=id;
+		}
+		EventReply reply=new EventReply();
+		reply.setTimeoutId(id);
+		endpoint.send(reply);
 	}
 
 	@Override
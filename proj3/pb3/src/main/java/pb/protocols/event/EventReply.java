@@ -3,16 +3,18 @@ package pb.protocols.event;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 public class EventReply extends Message {
 	static final public String name = "EventReply";
+	static final public MessageSchema schema = new MessageSchema(8,name,
+			EventProtocol.protocolName,Message.Type.Reply,EventReply::new);
 	
 	public EventReply() {
-		super(name, EventProtocol.protocolName, Message.Type.Reply);
+		super(schema);
 	}
 
 	public EventReply(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
 	}
 }
@@ -1,30 +1,84 @@
 package pb.protocols.event;
 
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
+/**
+ * An event, with its trace context if it has one, see {@link EventTrace}.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
+	static final public MessageSchema schema = new MessageSchema(7,name,
+			EventProtocol.protocolName,Message.Type.Request,EventRequest::new)
+			.field("eventName",MessageSchema.FieldType.String)
+			.field("eventData",MessageSchema.FieldType.String)
+			.field("trace",MessageSchema.FieldType.Strings)
+			.field("previous",MessageSchema.FieldType.Number);
 	
 	public EventRequest(String eventName, String eventData) {
-		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		super(schema);
+		values[0]=eventName;
+		values[1]=eventData;
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @param eventData
+	 * @param trace from {@link EventTrace#toStrings(long)}, or null
+	 */
+	EventRequest(String eventName, String eventData, List<String> trace) {
+		this(eventName,eventData);
+		values[2]=trace;
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private EventRequest() {
+		super(schema);
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
-		Message.validateStringType("eventName", doc);
-		Message.validateStringType("eventData", doc);
-		this.doc=doc;
+		super(schema,doc);
 	}
 	
 	public String getEventName() {
-		return doc.getString("eventName");
+		return getString(0);
 	}
 	
 	public String getEventData() {
-		return doc.getString("eventData");
+		return getString(1);
+	}
+	
+	/**
+	 * 
+	 * @return the trace context, having travelled this hop, or null if
+	 * there is none
+	 */
+	public EventTrace getTrace() {
+		return EventTrace.fromStrings(getStrings(2));
+	}
+	
+	/**
+	 * 
+	 * @return the id of the event sent before this one in stream mode, or
+	 * null if not given
+	 */
+	public Long getPrevious() {
+		return getNumber(3);
+	}
+	
+	/**
+	 * 
+	 * @param previous the id of the event sent before this one
+	 */
+	void setPrevious(long previous) {
+		values[3]=previous;
 	}
 }
@@ -0,0 +1,114 @@
+package pb.protocols.event;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import pb.utils.Utils;
+
+/**
+ * Trace context of an event, so that the time it takes to travel through
+ * peers that pass it on can be measured. Carried by an {@link EventRequest}
+ * once the endpoints have agreed on
+ * {@link pb.managers.endpoint.Endpoint#eventTrace}, otherwise left behind.
+ * <br/>
+ * Emit an event with its trace as a second argument, e.g.
+ * <code>endpoint.emit(eventName,eventData,EventTrace.start())</code>,
+ * and the callbacks for the event on the other endpoint get the trace as
+ * their second argument, see {@link #of(Object[])}. To pass the event on,
+ * emit it with the trace it was received with, which keeps its id and
+ * origin and counts the hops it has travelled.
+ * <br/>
+ * Times are wall clock milliseconds of the peers that sent and received
+ * each hop, so they include any difference between their clocks.
+ */
+public final class EventTrace {
+
+	private final String id;
+
+	/**
+	 * When the event was first emitted.
+	 */
+	private final long origin;
+
+	/**
+	 * Hops travelled so far.
+	 */
+	private final int hops;
+
+	/**
+	 * When the latest hop was sent, 0 if it hasn't travelled.
+	 */
+	private final long sent;
+
+	private EventTrace(String id, long origin, int hops, long sent) {
+		this.id=id;
+		this.origin=origin;
+		this.hops=hops;
+		this.sent=sent;
+	}
+
+	/**
+	 *
+	 * @return a new trace for an event that is being emitted now
+	 */
+	public static EventTrace start() {
+		return new EventTrace(Long.toHexString(ThreadLocalRandom.current().nextLong()),
+				Utils.getInstance().currentTimeMillis(),0,0);
+	}
+
+	/**
+	 *
+	 * @param args of an event callback
+	 * @return the trace of the event, or null if it has none
+	 */
+	public static EventTrace of(Object[] args) {
+		return args.length>1 && args[1] instanceof EventTrace ? (EventTrace)args[1] : null;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getOrigin() {
+		return origin;
+	}
+
+	public int getHops() {
+		return hops;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 *
+	 * @param now when the next hop is sent
+	 * @return the parameter of an event request that carries the trace
+	 */
+	List<String> toStrings(long now) {
+		return Arrays.asList(id,Long.toString(origin),Integer.toString(hops),Long.toString(now));
+	}
+
+	/**
+	 *
+	 * @param strings the parameter of an event request that was received
+	 * @return the trace, having travelled one more hop, or null if the
+	 * parameter is not a trace
+	 */
+	static EventTrace fromStrings(List<String> strings) {
+		if(strings==null || strings.size()<4) return null;
+		try {
+			return new EventTrace(strings.get(0),Long.parseLong(strings.get(1)),
+					Integer.parseInt(strings.get(2))+1,Long.parseLong(strings.get(3)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return id+" hop "+hops;
+	}
+}
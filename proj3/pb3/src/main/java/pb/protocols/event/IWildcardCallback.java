@@ -0,0 +1,16 @@
+package pb.protocols.event;
+
+/**
+ * Receives every event emitted on an {@link pb.utils.Eventable}, with the
+ * event name separate from the arguments, so that nothing needs to be copied
+ * to pass it on.
+ */
+@FunctionalInterface
+public interface IWildcardCallback {
+	/**
+	 * Handle any event
+	 * @param eventName
+	 * @param args the arguments as emitted, must not be changed
+	 */
+	public void callback(String eventName, Object... args);
+}
@@ -0,0 +1,155 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import pb.protocols.Message;
+
+/**
+ * The ids of events that have been sent but not yet acknowledged, oldest
+ * first, along with the time each was sent. The ids are kept in a ring of
+ * primitive longs that doubles in size when full, so tracking an event
+ * allocates nothing in the common case. Ids must be added in increasing
+ * order, which lets a cumulative acknowledgement remove every event up to
+ * and including an id from the front of the ring.
+ * <br/>
+ * If the session may be resumed, the messages themselves are kept too,
+ * so that those the other endpoint never received can be sent again.
+ * <br/>
+ * Not thread safe, the {@link EventProtocol} synchronizes on it.
+ */
+public class OutstandingEvents {
+
+	private long[] ids;
+
+	private long[] timesSent;
+
+	private Message[] messages;
+
+	private int head=0;
+
+	private int size=0;
+
+	public OutstandingEvents() {
+		ids=new long[64];
+		timesSent=new long[64];
+		messages=new Message[64];
+	}
+
+	/**
+	 * Add an event that has just been sent.
+	 * @param id of the event, larger than any id added before
+	 * @param timeSent in milliseconds
+	 */
+	public void add(long id, long timeSent) {
+		add(id,timeSent,null);
+	}
+
+	/**
+	 * Add an event that has just been sent, keeping the message.
+	 * @param id of the event, larger than any id added before
+	 * @param timeSent in milliseconds
+	 * @param message that was sent, or null if it needn't be kept
+	 */
+	public void add(long id, long timeSent, Message message) {
+		if(size==ids.length) grow();
+		int tail=(head+size) & (ids.length-1);
+		ids[tail]=id;
+		timesSent[tail]=timeSent;
+		messages[tail]=message;
+		size++;
+	}
+
+	/**
+	 * Remove every event with an id up to and including the given one.
+	 * @param id that has been acknowledged
+	 * @return the number of events removed
+	 */
+	public int acknowledge(long id) {
+		return acknowledge(id,0,null);
+	}
+
+	/**
+	 * Remove every event with an id up to and including the given one,
+	 * passing on how long each of them waited.
+	 * @param id that has been acknowledged
+	 * @param now the current time
+	 * @param waited given the ms that each removed event waited, or null
+	 * @return the number of events removed
+	 */
+	public int acknowledge(long id, long now, LongConsumer waited) {
+		int removed=0;
+		while(size>0 && ids[head]<=id) {
+			if(waited!=null) waited.accept(now-timesSent[head]);
+			messages[head]=null;
+			head=(head+1) & (ids.length-1);
+			size--;
+			removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 *
+	 * @return true if there are no events waiting to be acknowledged
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 *
+	 * @return the number of events waiting to be acknowledged
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Must not be called when empty.
+	 * @return the time the oldest unacknowledged event was sent
+	 */
+	public long oldestTimeSent() {
+		return timesSent[head];
+	}
+
+	/**
+	 *
+	 * @return the messages that were kept, oldest first
+	 */
+	public List<Message> messages() {
+		List<Message> kept=new ArrayList<>(size);
+		for(int i=0;i<size;i++) {
+			Message message=messages[(head+i) & (ids.length-1)];
+			if(message!=null) kept.add(message);
+		}
+		return kept;
+	}
+
+	/**
+	 * Forget every event.
+	 */
+	public void clear() {
+		Arrays.fill(messages,null);
+		head=0;
+		size=0;
+	}
+
+	private void grow() {
+		long[] newIds=new long[ids.length*2];
+		long[] newTimes=new long[ids.length*2];
+		Message[] newMessages=new Message[ids.length*2];
+		for(int i=0;i<size;i++) {
+			int index=(head+i) & (ids.length-1);
+			newIds[i]=ids[index];
+			newTimes[i]=timesSent[index];
+			newMessages[i]=messages[index];
+		}
+		ids=newIds;
+		timesSent=newTimes;
+		messages=newMessages;
+		head=0;
+	}
+}
@@ -1,12 +1,14 @@
 package pb.protocols.keepalive;
 
-import java.time.Instant;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.metrics.Histogram;
+import pb.metrics.Metrics;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Timeout;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -14,7 +16,8 @@ import pb.protocols.IRequestReplyProtocol;
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
  * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
+ * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}, and cancels
+ * its timeouts when stopped. The server must
  * send a KeepAlive response to the client upon receiving the request. If the
  * client does not receive the response within {@link #keepAliveTimeout} seconds
  * it will assume the server is dead
@@ -46,24 +49,35 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public static final String protocolName="KeepAliveProtocol";
 	
+	/**
+	 * Client only, the time from sending a request to receiving its reply.
+	 */
+	private static final Histogram keepAliveRoundTrip = Metrics.getInstance()
+			.histogram("pb_keepalive_rtt_ms","Time from sending a keep alive request to its reply",Histogram.millis);
+	
 	/**
 	 * Default keep alive request interval
 	 */
-	private int keepAliveRequestInterval = 20000;
+	private volatile int keepAliveRequestInterval = 20000;
 	
 	/**
 	 * Default keep alive timeout
 	 */
-	private int keepAliveTimeout = 40000;
+	private volatile int keepAliveTimeout = 40000;
 	
 	// Use of volatile is because the timer thread is different to the endpoint thread
 	// and they make use of the same flags/variables.
 	
 	/**
-	 * Time that a request was last sent.
+	 * Time that a reply was last seen.
 	 */
 	private volatile long timeReplySeen;
 	
+	/**
+	 * Time that a request was last sent.
+	 */
+	private volatile long timeRequestSent;
+	
 	/**
 	 * Time that a request was last seen.
 	 */
@@ -80,6 +94,18 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	private volatile boolean timeout=false; 
 	
+	/**
+	 * The next callback, to check for client timeout on the server or to
+	 * send another request on the client.
+	 */
+	private volatile Timeout nextTimeout;
+	
+	/**
+	 * Client only, the most recent callback to check for server timeout.
+	 * An earlier one may still be pending, but does nothing once stopped.
+	 */
+	private volatile Timeout serverCheckTimeout;
+	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
 	 * @param endpoint
@@ -97,12 +123,37 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		return protocolName;
 	}
 
+	/**
+	 * Client only, takes effect from the next request.
+	 * @param keepAliveRequestInterval ms between requests
+	 */
+	public void setKeepAliveRequestInterval(int keepAliveRequestInterval) {
+		this.keepAliveRequestInterval=keepAliveRequestInterval;
+	}
+	
+	/**
+	 * Takes effect from the next check.
+	 * @param keepAliveTimeout ms without a request (server) or reply (client)
+	 * before the other endpoint is assumed dead
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout=keepAliveTimeout;
+	}
+	
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+	
 	/**
 	 * Just set a flag to avoid any further timeout callbacks.
 	 */
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		Timeout next=nextTimeout;
+		if(next!=null) next.cancel();
+		Timeout serverCheck=serverCheckTimeout;
+		if(serverCheck!=null) serverCheck.cancel();
 	}
 	
 	/*
@@ -115,9 +166,9 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
+		timeRequestSeen = Utils.getInstance().currentTimeMillis();
 		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
+		nextTimeout=Utils.getInstance().setTimeout(()->{
 			checkClientTimeout();
 		}, keepAliveTimeout);
 	}
@@ -127,14 +178,14 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public void checkClientTimeout() {
 		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
+		long now = Utils.getInstance().currentTimeMillis();
 		if(now-timeRequestSeen > keepAliveTimeout) {
 			// timeout :-(
 			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
 		} else {
 			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
+			nextTimeout=Utils.getInstance().setTimeout(()->{
 				checkClientTimeout();
 			}, keepAliveTimeout);
 		}
@@ -148,7 +199,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public void startAsClient() {
 		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
+		timeReplySeen = Utils.getInstance().currentTimeMillis();
 		// send a request straight away
 		sendAnotherRequest();	
 	}
@@ -158,12 +209,13 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public void sendAnotherRequest() {
 		if(stopped)return;
+		final long timeSent = Utils.getInstance().currentTimeMillis();
+		timeRequestSent = timeSent;
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
+		nextTimeout=Utils.getInstance().setTimeout(()->{
 			sendAnotherRequest();
 		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
+		serverCheckTimeout=Utils.getInstance().setTimeout(()->{
 			checkServerTimeout(timeSent);
 		}, keepAliveTimeout);
 	}
@@ -203,7 +255,8 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		timeReplySeen = Utils.getInstance().currentTimeMillis();
+		keepAliveRoundTrip.observe(timeReplySeen-timeRequestSent);
 	}
 
 	/**
@@ -214,7 +267,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
+		timeRequestSeen = Utils.getInstance().currentTimeMillis();
 		sendReply(new KeepAliveReply());
 	}
 
@@ -3,6 +3,7 @@ package pb.protocols.keepalive;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Reply message for the KeepAlive protocol.
@@ -12,13 +13,15 @@ import pb.protocols.Message;
  */
 public class KeepAliveReply extends Message {
 	static final public String name = "KeepAliveReply";
+	static final public MessageSchema schema = new MessageSchema(2,name,
+			KeepAliveProtocol.protocolName,Message.Type.Reply,KeepAliveReply::new);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public KeepAliveReply() {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply);
+		super(schema);
 	}
 	
 	/**
@@ -29,8 +32,7 @@ public class KeepAliveReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public KeepAliveReply(Document doc) throws InvalidMessage {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
 	}
 
 }
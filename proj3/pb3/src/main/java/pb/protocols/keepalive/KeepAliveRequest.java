@@ -3,6 +3,7 @@ package pb.protocols.keepalive;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Request message for the KeepAlive protocol.
@@ -12,13 +13,15 @@ import pb.protocols.Message;
  */
 public class KeepAliveRequest extends Message {
 	static final public String name = "KeepAliveRequest";
+	static final public MessageSchema schema = new MessageSchema(1,name,
+			KeepAliveProtocol.protocolName,Message.Type.Request,KeepAliveRequest::new);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public KeepAliveRequest() {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Request);
+		super(schema);
 	}
 	
 	/**
@@ -29,8 +32,7 @@ public class KeepAliveRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public KeepAliveRequest(Document doc) throws InvalidMessage {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
 	}
 	
 }
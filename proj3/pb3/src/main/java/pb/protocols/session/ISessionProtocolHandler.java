@@ -14,4 +14,26 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * Server only, the client asks to resume a session that failed.
+	 * @param token of the session
+	 * @return the session, which can't be resumed again, or null if there
+	 * is no such session (any more)
+	 */
+	public default ResumableSession resumeSession(String token) {
+		return null;
+	}
+	
+	/**
+	 * The session has started and resumed one that failed, see
+	 * {@link ResumableSession}.
+	 * @param endpoint of the new session
+	 * @param session that failed
+	 * @param lastEventId the id of the latest event the other endpoint
+	 * received in the failed session
+	 */
+	public default void sessionResumed(Endpoint endpoint, ResumableSession session, long lastEventId) {
+		sessionStarted(endpoint);
+	}
 }
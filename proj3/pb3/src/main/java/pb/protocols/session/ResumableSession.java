@@ -0,0 +1,74 @@
+package pb.protocols.session;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+
+/**
+ * A session that can be resumed on a new connection if its connection
+ * fails, when the endpoints agree on {@link pb.managers.endpoint.Endpoint#resume}.
+ * The server gives each such session a token when it starts. A client
+ * whose connection failed asks to resume the session with the token, and
+ * if the server still has the session they both carry on from where they
+ * were:
+ * <ul>
+ * <li>the callbacks that the application added to the old endpoint are
+ * added to the new one, for events that the new one has no callbacks for,</li>
+ * <li>the events that the other endpoint didn't receive, and those
+ * emitted on the old endpoint since it failed, are sent on the new one,</li>
+ * <li>events emitted on the old endpoint from then on are sent on the new one.</li>
+ * </ul>
+ * So an application may keep using the old endpoint, although it should
+ * move to the new one when told the session has resumed.
+ * @see {@link pb.protocols.event.EventProtocol#resumeFrom(EventProtocol, long)}
+ */
+public class ResumableSession {
+	private final String token;
+
+	private final Endpoint endpoint;
+
+	/**
+	 * The event protocol of the session, which has to be kept since the
+	 * endpoint forgets its protocols when it closes.
+	 */
+	private final EventProtocol events;
+
+	/**
+	 *
+	 * @param token that the server gave the session
+	 * @param endpoint of the session
+	 */
+	public ResumableSession(String token, Endpoint endpoint) {
+		this.token=token;
+		this.endpoint=endpoint;
+		events=(EventProtocol)endpoint.getProtocol(EventProtocol.protocolName);
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 *
+	 * @return the id of the latest event received in the session
+	 */
+	public long getLastEventId() {
+		return events==null ? 0 : events.getLastReceivedId();
+	}
+
+	/**
+	 * Carry the session on on a new endpoint, whose event protocol must
+	 * have started.
+	 * @param newEndpoint
+	 * @param lastEventId the id of the latest event that the other endpoint
+	 * received in the session
+	 */
+	public void resumeOn(Endpoint newEndpoint, long lastEventId) {
+		endpoint.copyCallbacksTo(newEndpoint);
+		EventProtocol newEvents=(EventProtocol)newEndpoint.getProtocol(EventProtocol.protocolName);
+		if(events!=null && newEvents!=null) newEvents.resumeFrom(events,lastEventId);
+	}
+}
@@ -1,11 +1,17 @@
 package pb.protocols.session;
 
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.logging.Logger;
 
+import pb.jfr.SessionStart;
+import pb.jfr.SessionStop;
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
+import pb.utils.Timeout;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +24,13 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The session start request and reply also carry the capabilities that
+ * the endpoints agree on, see {@link pb.managers.endpoint.Endpoint}. If
+ * they agree on {@link pb.managers.endpoint.Endpoint#resume}, the server
+ * gives the session a token in its reply, which the client can send in a
+ * later start request to resume the session if the connection fails, see
+ * {@link pb.protocols.session.ResumableSession}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -57,6 +70,32 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * Server only, the timeout for the session to start.
+	 */
+	private volatile Timeout startTimeout;
+	
+	/**
+	 * Source of resume tokens, which must not be guessable.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * Token to resume the session with, null if it can't be resumed.
+	 */
+	private volatile String resumeToken;
+	
+	/**
+	 * Client only, the failed session to ask to resume, if any.
+	 */
+	private volatile ResumableSession resuming;
+	
+	/**
+	 * Flight recorder event that lasts as long as the session, null if the
+	 * session isn't running or isn't being recorded.
+	 */
+	private volatile SessionStop recording;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -84,6 +123,64 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			log.severe("protocol stopped while it is still underway");
 		}
 		stopped=true;
+		cancelStartTimeout();
+		recordStop(false);
+	}
+	
+	/**
+	 * Record for the flight recorder that the session has started.
+	 * @param server whether this is the server's end
+	 * @param resumed whether the session resumed a failed one
+	 */
+	private void recordStart(boolean server, boolean resumed) {
+		SessionStart event=new SessionStart();
+		if(event.shouldCommit()) {
+			event.otherEndpoint=endpoint.getOtherEndpointId();
+			event.server=server;
+			event.resumed=resumed;
+			event.commit();
+		}
+		SessionStop stop=new SessionStop();
+		if(stop.isEnabled()) {
+			stop.begin();
+			stop.server=server;
+			recording=stop;
+		}
+	}
+	
+	/**
+	 * Record for the flight recorder that the session has stopped, if it
+	 * was recorded starting.
+	 * @param clean whether the session stopped by the protocol
+	 */
+	private void recordStop(boolean clean) {
+		SessionStop stop=recording;
+		recording=null;
+		if(stop==null) return;
+		stop.end();
+		if(stop.shouldCommit()) {
+			stop.otherEndpoint=endpoint.getOtherEndpointId();
+			stop.clean=clean;
+			stop.commit();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the token to resume the session with if it fails, or null
+	 * if it can't be resumed
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * Client only, ask to resume a failed session rather than start a new
+	 * one. Must be called before {@link #startAsClient()}.
+	 * @param session
+	 */
+	public void resume(ResumableSession session) {
+		resuming=session;
 	}
 	
 	/*
@@ -97,8 +194,14 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	@Override
 	public void startAsClient() {
-		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		//  send the server a start session request, offering our capabilities
+		ResumableSession session=resuming;
+		if(session!=null) {
+			sendRequest(new SessionStartRequest(endpoint.getLocalCapabilities(),
+					session.getToken(),session.getLastEventId()));
+		} else {
+			sendRequest(new SessionStartRequest(endpoint.getLocalCapabilities()));
+		}
 	}
 
 	/**
@@ -106,7 +209,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	@Override
 	public void startAsServer() {
-		Utils.getInstance().setTimeout(()->{
+		startTimeout=Utils.getInstance().setTimeout(()->{
 			if(!stopped && !protocolRunning) {
 				// we timed out
 				manager.endpointTimedOut(endpoint, this);
@@ -115,10 +218,53 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 	
 	/**
-	 * Generic stop session call, for either client or server.
+	 * The session has started or the protocol has stopped, so the server
+	 * no longer needs to time out.
+	 */
+	private void cancelStartTimeout() {
+		Timeout timeout=startTimeout;
+		if(timeout!=null) timeout.cancel();
+	}
+	
+	/**
+	 * Generic stop session call, for either client or server. The request
+	 * goes after the messages sent before it, so the other endpoint gets
+	 * them before the session stops.
 	 */
 	public void stopSession() {
-		sendRequest(new SessionStopRequest());
+		flushEvents();
+		endpoint.sendWithTimeoutAfterData(new SessionStopRequest(),()->{
+			// the message timed out
+			if(!stopped)
+			manager.endpointTimedOut(endpoint, this);
+		},sessionTimeout);
+	}
+	
+	/**
+	 * Send the events still waiting to be batched, which would otherwise
+	 * only be sent once the session has stopped, too late.
+	 */
+	private void flushEvents() {
+		EventProtocol events=getEventProtocol();
+		if(events!=null) events.flush();
+	}
+	
+	/**
+	 * Deliver the events received before the session stop that are still
+	 * held back for the rate limit, which would otherwise be lost.
+	 */
+	private void deliverDelayedEvents() {
+		EventProtocol events=getEventProtocol();
+		if(events!=null) events.deliverAllDelayed();
+	}
+	
+	/**
+	 * 
+	 * @return the endpoint's event protocol, or null if it has none
+	 */
+	private EventProtocol getEventProtocol() {
+		Protocol events=endpoint.getProtocol(EventProtocol.protocolName);
+		return events instanceof EventProtocol ? (EventProtocol)events : null;
 	}
 	
 	/**
@@ -150,7 +296,25 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			SessionStartReply reply=(SessionStartReply)msg;
+			endpoint.setCapabilities(reply.getCapabilities());
+			resumeToken=reply.getResumeToken();
+			ResumableSession session=resuming;
+			resuming=null;
+			if(session!=null && reply.isResumed() && session.getToken().equals(resumeToken)) {
+				long lastEventId;
+				try {
+					lastEventId=reply.getLastEventId();
+				} catch (NumberFormatException e) {
+					manager.protocolViolation(endpoint,this);
+					return;
+				}
+				recordStart(false,true);
+				((ISessionProtocolHandler)manager).sessionResumed(endpoint,session,lastEventId);
+			} else {
+				recordStart(false,false);
+				((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			}
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
 				// error, received a second reply?
@@ -158,6 +322,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
+			recordStop(true);
+			deliverDelayedEvents();
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 	}
@@ -178,8 +344,42 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
-			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			cancelStartTimeout();
+			SessionStartRequest request=(SessionStartRequest)msg;
+			List<String> accepted=endpoint.acceptCapabilities(request.getCapabilities());
+			ResumableSession session=null;
+			long lastEventId=0;
+			SessionStartReply reply;
+			if(accepted.contains(Endpoint.resume)) {
+				String token=request.getResumeToken();
+				if(token!=null) {
+					try {
+						lastEventId=request.getLastEventId();
+					} catch (NumberFormatException e) {
+						manager.protocolViolation(endpoint,this);
+						return;
+					}
+					session=((ISessionProtocolHandler)manager).resumeSession(token);
+				}
+				if(session==null) {
+					resumeToken=newToken();
+					reply=new SessionStartReply(accepted,resumeToken);
+				} else {
+					resumeToken=token;
+					reply=new SessionStartReply(accepted,token,session.getLastEventId());
+				}
+			} else {
+				reply=new SessionStartReply(accepted);
+			}
+			// the reply must go in the format the client is still using
+			endpoint.sendAndCancelTimeout(reply,msg);
+			endpoint.setCapabilities(accepted);
+			recordStart(true,session!=null);
+			if(session!=null) {
+				((ISessionProtocolHandler)manager).sessionResumed(endpoint,session,lastEventId);
+			} else {
+				((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			}
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
 				// error, received a second request?
@@ -187,12 +387,30 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
-			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
+			recordStop(true);
+			deliverDelayedEvents();
+			// after the messages sent before, which the endpoint writes before closing
+			flushEvents();
+			SessionStopReply reply=new SessionStopReply();
+			reply.setTimeoutId(msg.getTimeoutId());
+			endpoint.sendAfterData(reply);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 		
 	}
 
+	/**
+	 * 
+	 * @return a new random resume token
+	 */
+	private static String newToken() {
+		byte[] bytes=new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder token=new StringBuilder();
+		for(byte b : bytes) token.append(String.format("%02x",b));
+		return token.toString();
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
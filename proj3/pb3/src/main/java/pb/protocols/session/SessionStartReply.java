@@ -1,8 +1,12 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Message sent in response to a start request.
@@ -12,13 +16,48 @@ import pb.protocols.Message;
  */
 public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
+	static final public MessageSchema schema = new MessageSchema(4,name,
+			SessionProtocol.protocolName,Message.Type.Reply,SessionStartReply::new)
+			.field("capabilities",MessageSchema.FieldType.Strings)
+			.field("resume",MessageSchema.FieldType.Strings);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public SessionStartReply() {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		super(schema);
+	}
+	
+	/**
+	 * Initialiser when given capabilities, which endpoints use to agree
+	 * on optional features such as binary messages.
+	 * @param capabilities the capabilities that were accepted, out of those offered
+	 */
+	public SessionStartReply(List<String> capabilities) {
+		super(schema);
+		values[0]=new ArrayList<>(capabilities);
+	}
+	
+	/**
+	 * Initialiser when the session can be resumed if it fails.
+	 * @param capabilities the capabilities that were accepted, out of those offered
+	 * @param token to resume the session with
+	 */
+	public SessionStartReply(List<String> capabilities, String token) {
+		this(capabilities);
+		values[1]=new ArrayList<>(List.of(token));
+	}
+	
+	/**
+	 * Initialiser when a session that failed has been resumed.
+	 * @param capabilities the capabilities that were accepted, out of those offered
+	 * @param token of the resumed session
+	 * @param lastEventId the id of the latest event received in the session
+	 */
+	public SessionStartReply(List<String> capabilities, String token, long lastEventId) {
+		this(capabilities);
+		values[1]=new ArrayList<>(List.of(token,Long.toString(lastEventId)));
 	}
 	
 	/**
@@ -29,7 +68,42 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
+	}
+	
+	/**
+	 * Endpoints that don't know about capabilities don't send any.
+	 * @return the capabilities that were accepted, out of those offered, possibly none
+	 */
+	public List<String> getCapabilities() {
+		List<String> capabilities = getStrings(0);
+		return capabilities==null ? new ArrayList<>() : new ArrayList<>(capabilities);
+	}
+	
+	/**
+	 * 
+	 * @return the token to resume the session with, or null if it can't be
+	 */
+	public String getResumeToken() {
+		List<String> resume = getStrings(1);
+		return resume==null || resume.isEmpty() ? null : resume.get(0);
+	}
+	
+	/**
+	 * 
+	 * @return true if the session that was asked to be resumed has been
+	 */
+	public boolean isResumed() {
+		List<String> resume = getStrings(1);
+		return resume!=null && resume.size()>=2;
+	}
+	
+	/**
+	 * Only present if resumed.
+	 * @return the id of the latest event received in the resumed session
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getLastEventId() {
+		return Long.parseLong(getStrings(1).get(1));
 	}
 }
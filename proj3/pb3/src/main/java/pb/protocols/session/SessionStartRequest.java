@@ -1,8 +1,12 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Message sent to request the session to start.
@@ -12,13 +16,38 @@ import pb.protocols.Message;
  */
 public class SessionStartRequest extends Message {
 	static final public String name = "SessionStartRequest";
+	static final public MessageSchema schema = new MessageSchema(3,name,
+			SessionProtocol.protocolName,Message.Type.Request,SessionStartRequest::new)
+			.field("capabilities",MessageSchema.FieldType.Strings)
+			.field("resume",MessageSchema.FieldType.Strings);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public SessionStartRequest() {
-		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		super(schema);
+	}
+	
+	/**
+	 * Initialiser when given capabilities, which endpoints use to agree
+	 * on optional features such as binary messages.
+	 * @param capabilities the capabilities that this endpoint offers
+	 */
+	public SessionStartRequest(List<String> capabilities) {
+		super(schema);
+		values[0]=new ArrayList<>(capabilities);
+	}
+	
+	/**
+	 * Initialiser when asking to resume a session that failed.
+	 * @param capabilities the capabilities that this endpoint offers
+	 * @param token of the session to resume
+	 * @param lastEventId the id of the latest event received in the session
+	 */
+	public SessionStartRequest(List<String> capabilities, String token, long lastEventId) {
+		this(capabilities);
+		values[1]=new ArrayList<>(List.of(token,Long.toString(lastEventId)));
 	}
 	
 	/**
@@ -29,7 +58,33 @@ public class SessionStartRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
+	}
+	
+	/**
+	 * Endpoints that don't know about capabilities don't send any.
+	 * @return the capabilities that this endpoint offers, possibly none
+	 */
+	public List<String> getCapabilities() {
+		List<String> capabilities = getStrings(0);
+		return capabilities==null ? new ArrayList<>() : new ArrayList<>(capabilities);
+	}
+	
+	/**
+	 * 
+	 * @return the token of the session to resume, or null to start a new one
+	 */
+	public String getResumeToken() {
+		List<String> resume = getStrings(1);
+		return resume==null || resume.size()<2 ? null : resume.get(0);
+	}
+	
+	/**
+	 * Only present with a resume token.
+	 * @return the id of the latest event received in the session to resume
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getLastEventId() {
+		return Long.parseLong(getStrings(1).get(1));
 	}
 }
@@ -3,6 +3,7 @@ package pb.protocols.session;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Message sent in reply to a stop request.
@@ -12,13 +13,15 @@ import pb.protocols.Message;
  */
 public class SessionStopReply extends Message {
 	static final public String name = "SessionStopReply";
+	static final public MessageSchema schema = new MessageSchema(6,name,
+			SessionProtocol.protocolName,Message.Type.Reply,SessionStopReply::new);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public SessionStopReply() {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		super(schema);
 	}
 	
 	/**
@@ -29,7 +32,6 @@ public class SessionStopReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStopReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
 	}
 }
@@ -3,6 +3,7 @@ package pb.protocols.session;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageSchema;
 
 /**
  * Message to request the session to stop.
@@ -12,13 +13,15 @@ import pb.protocols.Message;
  */
 public class SessionStopRequest extends Message {
 	static final public String name = "SessionStopRequest";
+	static final public MessageSchema schema = new MessageSchema(5,name,
+			SessionProtocol.protocolName,Message.Type.Request,SessionStopRequest::new);
 	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public SessionStopRequest() {
-		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		super(schema);
 	}
 	
 	/**
@@ -29,7 +32,6 @@ public class SessionStopRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStopRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(schema,doc); // really just testing the name, otherwise nothing more to test
 	}
 }
@@ -0,0 +1,7 @@
+package pb.protocols.stream;
+
+
+public interface IStreamProtocolHandler {
+	// like the event protocol, the manager doesn't need to be told
+	// anything, streams are announced on the endpoint
+}
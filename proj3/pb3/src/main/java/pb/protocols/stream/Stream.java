@@ -0,0 +1,251 @@
+package pb.protocols.stream;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint.Priority;
+import pb.utils.Eventable;
+import pb.utils.OrderedExecutor;
+
+/**
+ * A logical stream inside the connection of an endpoint, opened with
+ * {@link pb.managers.endpoint.Endpoint#openStream(String)} or announced
+ * by {@link StreamProtocol#streamOpened}. A stream has events of its own:
+ * an event emitted on it is sent to the stream at the other endpoint,
+ * where it is emitted locally. As for the endpoint, events must have a
+ * single String argument. Received events are handled in order on a
+ * worker of the stream's own, so a slow callback on one stream doesn't
+ * hold up other streams or the endpoint.
+ * <br/>
+ * Each direction of a stream is flow controlled. The receiver gives the
+ * sender credit, in characters of event names and data, starting with
+ * its window and then adding back what its callbacks have handled. An
+ * event is sent as long as there is credit, which it may take below zero,
+ * otherwise it waits in the stream until there is. So a stream never has
+ * much more than a window of events queued on the connection, and many
+ * streams can share it fairly. A producer that doesn't want events to
+ * pile up can check {@link #getPending()} and wait for {@link #streamDrained}.
+ */
+public class Stream extends Eventable {
+	private static Logger log = Logger.getLogger(Stream.class.getName());
+	
+	/**
+	 * Emitted locally when the stream has closed, because either endpoint
+	 * closed it or the connection ended. There are no arguments.
+	 */
+	public static final String streamClosed = "STREAM_CLOSED";
+	
+	/**
+	 * Emitted locally when the events that were waiting for credit have
+	 * all been sent. There are no arguments.
+	 */
+	public static final String streamDrained = "STREAM_DRAINED";
+	
+	private final StreamProtocol protocol;
+	
+	private final long streamId;
+	
+	private final String streamName;
+	
+	/**
+	 * Credit given to the other endpoint when the stream was opened.
+	 */
+	private final int window;
+	
+	/**
+	 * Handles received events, and emits local events, in order.
+	 */
+	private final OrderedExecutor lane;
+	
+	private volatile Priority priority = Priority.INTERACTIVE;
+	
+	/**
+	 * Characters that may be sent before waiting for more credit. Guarded
+	 * by this stream, like everything else to do with sending.
+	 */
+	private long credit;
+	
+	/**
+	 * Names and data of events waiting for credit.
+	 */
+	private final ArrayDeque<String[]> waiting = new ArrayDeque<>();
+	
+	private long waitingChars=0;
+	
+	/**
+	 * Whether {@link #close()} has been called, after which no more events
+	 * are accepted.
+	 */
+	private boolean closing=false;
+	
+	private volatile boolean closed=false;
+	
+	/**
+	 * Characters of received events handled since credit was last given.
+	 * Only used on the lane.
+	 */
+	private int handled=0;
+	
+	Stream(StreamProtocol protocol, long streamId, String streamName,
+			int credit, int window, OrderedExecutor lane) {
+		this.protocol=protocol;
+		this.streamId=streamId;
+		this.streamName=streamName;
+		this.credit=credit;
+		this.window=window;
+		this.lane=lane;
+		onAny((eventName,args)->{
+			if(args.length==1 && args[0] instanceof String) {
+				send(eventName,(String)args[0]);
+			} else {
+				log.warning("emitted event must have only a single String data argument: "+eventName);
+			}
+		});
+	}
+	
+	/**
+	 * 
+	 * @return the id of the stream, unique within its connection
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+	
+	/**
+	 * 
+	 * @return the name the stream was opened with, which says what it is for
+	 */
+	public String getStreamName() {
+		return streamName;
+	}
+	
+	public Priority getSendPriority() {
+		return priority;
+	}
+	
+	/**
+	 * 
+	 * @param priority to send the stream's events with, 
+	 * {@link Priority#INTERACTIVE} unless set, best set before any are
+	 * sent since what is sent after may overtake what was sent before
+	 */
+	public void setSendPriority(Priority priority) {
+		this.priority=priority;
+	}
+	
+	/**
+	 * 
+	 * @return characters of events waiting for credit
+	 */
+	public synchronized long getPending() {
+		return waitingChars;
+	}
+	
+	/**
+	 * 
+	 * @return true once the stream has closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Close the stream once the events waiting for credit have been sent.
+	 * Events that the other endpoint sends in the meantime are still
+	 * received, and those sent after it has closed the stream are dropped.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closing || closed) return;
+			closing=true;
+			if(!waiting.isEmpty()) return;
+		}
+		protocol.closeStream(this);
+	}
+	
+	private void send(String eventName, String eventData) {
+		synchronized(this) {
+			if(closing || closed) {
+				log.warning("event emitted on closed stream "+streamName+": "+eventName);
+				return;
+			}
+			if(waiting.isEmpty() && credit>0) {
+				credit-=eventName.length()+eventData.length();
+				protocol.sendEvent(this,eventName,eventData);
+			} else {
+				waiting.add(new String[] {eventName,eventData});
+				waitingChars+=eventName.length()+eventData.length();
+			}
+		}
+	}
+	
+	/**
+	 * The other endpoint has given more credit, so send what is waiting
+	 * for it.
+	 * @param more characters of credit
+	 */
+	void addCredit(int more) {
+		boolean drained=false;
+		boolean closeNow=false;
+		synchronized(this) {
+			credit+=more;
+			if(waiting.isEmpty()) return;
+			while(credit>0 && !waiting.isEmpty()) {
+				String[] event=waiting.poll();
+				int chars=event[0].length()+event[1].length();
+				credit-=chars;
+				waitingChars-=chars;
+				protocol.sendEvent(this,event[0],event[1]);
+			}
+			if(waiting.isEmpty()) {
+				drained=true;
+				closeNow=closing;
+			}
+		}
+		if(closeNow) protocol.closeStream(this);
+		else if(drained) lane.execute(()->localEmit(streamDrained));
+	}
+	
+	/**
+	 * An event has been received, handle it after those received before it
+	 * and then give the credit back.
+	 * @param eventName
+	 * @param eventData
+	 */
+	void receive(String eventName, String eventData) {
+		lane.execute(()->{
+			if(!localEmit(eventName,eventData)) {
+				log.warning("no callbacks for event on stream "+streamName+": "+eventName);
+			}
+			handled+=eventName.length()+eventData.length();
+			if(handled>=window/2 && !closed) {
+				protocol.sendCredit(this,handled);
+				handled=0;
+			}
+		});
+	}
+	
+	/**
+	 * Run a task after the events received so far have been handled.
+	 * @param task
+	 */
+	void dispatch(Runnable task) {
+		lane.execute(task);
+	}
+	
+	/**
+	 * The stream has closed, so stop sending and tell the callbacks once
+	 * the events received before have been handled.
+	 * @return true if the stream was open until now
+	 */
+	boolean ended() {
+		synchronized(this) {
+			if(closed) return false;
+			closed=true;
+			waiting.clear();
+			waitingChars=0;
+		}
+		lane.execute(()->localEmit(streamClosed));
+		return true;
+	}
+}
@@ -0,0 +1,42 @@
+package pb.protocols.stream;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * Closes a stream in both directions.
+ * @see {@link pb.protocols.stream.StreamProtocol}
+ */
+public class StreamCloseRequest extends Message {
+	static final public String name = "StreamCloseRequest";
+	static final public MessageSchema schema = new MessageSchema(14,name,
+			StreamProtocol.protocolName,Message.Type.Request,StreamCloseRequest::new)
+			.field("streamId",MessageSchema.FieldType.String);
+	
+	public StreamCloseRequest(long streamId) {
+		super(schema);
+		values[0]=Long.toString(streamId);
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private StreamCloseRequest() {
+		super(schema);
+	}
+
+	public StreamCloseRequest(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	/**
+	 * 
+	 * @return the stream id
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getStreamId() {
+		return Long.parseLong(getString(0));
+	}
+}
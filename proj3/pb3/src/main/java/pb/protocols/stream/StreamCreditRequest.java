@@ -0,0 +1,54 @@
+package pb.protocols.stream;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * Lets the other endpoint send more characters of events on a stream,
+ * because events it sent before have been handled.
+ * @see {@link pb.protocols.stream.StreamProtocol}
+ */
+public class StreamCreditRequest extends Message {
+	static final public String name = "StreamCreditRequest";
+	static final public MessageSchema schema = new MessageSchema(13,name,
+			StreamProtocol.protocolName,Message.Type.Request,StreamCreditRequest::new)
+			.field("streamId",MessageSchema.FieldType.String)
+			.field("credit",MessageSchema.FieldType.String);
+	
+	public StreamCreditRequest(long streamId, int credit) {
+		super(schema);
+		values[0]=Long.toString(streamId);
+		values[1]=Integer.toString(credit);
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private StreamCreditRequest() {
+		super(schema);
+	}
+
+	public StreamCreditRequest(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	/**
+	 * 
+	 * @return the stream id
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getStreamId() {
+		return Long.parseLong(getString(0));
+	}
+	
+	/**
+	 * 
+	 * @return the credit
+	 * @throws NumberFormatException if the credit is not a number
+	 */
+	public int getCredit() {
+		return Integer.parseInt(getString(1));
+	}
+}
@@ -0,0 +1,54 @@
+package pb.protocols.stream;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * An event emitted on a stream.
+ * @see {@link pb.protocols.stream.StreamProtocol}
+ */
+public class StreamDataRequest extends Message {
+	static final public String name = "StreamDataRequest";
+	static final public MessageSchema schema = new MessageSchema(12,name,
+			StreamProtocol.protocolName,Message.Type.Request,StreamDataRequest::new)
+			.field("streamId",MessageSchema.FieldType.String)
+			.field("eventName",MessageSchema.FieldType.String)
+			.field("eventData",MessageSchema.FieldType.String);
+	
+	public StreamDataRequest(long streamId, String eventName, String eventData) {
+		super(schema);
+		values[0]=Long.toString(streamId);
+		values[1]=eventName;
+		values[2]=eventData;
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private StreamDataRequest() {
+		super(schema);
+	}
+
+	public StreamDataRequest(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	/**
+	 * 
+	 * @return the stream id
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getStreamId() {
+		return Long.parseLong(getString(0));
+	}
+	
+	public String getEventName() {
+		return getString(1);
+	}
+	
+	public String getEventData() {
+		return getString(2);
+	}
+}
@@ -0,0 +1,53 @@
+package pb.protocols.stream;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * Accepts a stream, with the window of the endpoint that accepted it.
+ * @see {@link pb.protocols.stream.StreamProtocol}
+ */
+public class StreamOpenReply extends Message {
+	static final public String name = "StreamOpenReply";
+	static final public MessageSchema schema = new MessageSchema(11,name,
+			StreamProtocol.protocolName,Message.Type.Reply,StreamOpenReply::new)
+			.field("streamId",MessageSchema.FieldType.String)
+			.field("window",MessageSchema.FieldType.String);
+	
+	public StreamOpenReply(long streamId, int window) {
+		super(schema);
+		values[0]=Long.toString(streamId);
+		values[1]=Integer.toString(window);
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private StreamOpenReply() {
+		super(schema);
+	}
+
+	public StreamOpenReply(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	/**
+	 * 
+	 * @return the stream id
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getStreamId() {
+		return Long.parseLong(getString(0));
+	}
+	
+	/**
+	 * 
+	 * @return the window
+	 * @throws NumberFormatException if the window is not a number
+	 */
+	public int getWindow() {
+		return Integer.parseInt(getString(1));
+	}
+}
@@ -0,0 +1,60 @@
+package pb.protocols.stream;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageSchema;
+
+/**
+ * Opens a stream. The window is how many characters of events the other
+ * endpoint may send on the stream before it must wait for credit.
+ * @see {@link pb.protocols.stream.StreamProtocol}
+ */
+public class StreamOpenRequest extends Message {
+	static final public String name = "StreamOpenRequest";
+	static final public MessageSchema schema = new MessageSchema(10,name,
+			StreamProtocol.protocolName,Message.Type.Request,StreamOpenRequest::new)
+			.field("streamId",MessageSchema.FieldType.String)
+			.field("streamName",MessageSchema.FieldType.String)
+			.field("window",MessageSchema.FieldType.String);
+	
+	public StreamOpenRequest(long streamId, String streamName, int window) {
+		super(schema);
+		values[0]=Long.toString(streamId);
+		values[1]=streamName;
+		values[2]=Integer.toString(window);
+	}
+
+	/**
+	 * Used by decoders, which fill in the parameters.
+	 */
+	private StreamOpenRequest() {
+		super(schema);
+	}
+
+	public StreamOpenRequest(Document doc) throws InvalidMessage {
+		super(schema,doc);
+	}
+	
+	/**
+	 * 
+	 * @return the stream id
+	 * @throws NumberFormatException if the id is not a number
+	 */
+	public long getStreamId() {
+		return Long.parseLong(getString(0));
+	}
+	
+	public String getStreamName() {
+		return getString(1);
+	}
+	
+	/**
+	 * 
+	 * @return the window
+	 * @throws NumberFormatException if the window is not a number
+	 */
+	public int getWindow() {
+		return Integer.parseInt(getString(2));
+	}
+}
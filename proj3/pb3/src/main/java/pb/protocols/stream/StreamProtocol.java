@@ -0,0 +1,220 @@
+package pb.protocols.stream;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.managers.Manager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * Any number of logical {@link Stream}s over one endpoint, so that e.g.
+ * several file transfers or board subscriptions with the same peer don't
+ * each need a connection of their own. Each stream has its own id, its
+ * own events and its own flow control, see {@link Stream}. Only used when
+ * the endpoints have agreed on {@link pb.managers.endpoint.Endpoint#streams}.
+ * <br/>
+ * Either endpoint may open a stream. The client uses odd ids and the
+ * server even ones, so they never clash, and ids are never reused within
+ * a connection. The messages that open and give credit to streams are
+ * sent as control messages; events, and the message that closes a stream
+ * after them, are sent with the priority of their stream, so the close
+ * can't overtake them. The endpoint hands all of the protocol's messages
+ * to it straight away, and it keeps them in order for each stream.
+ */
+public class StreamProtocol extends Protocol implements IRequestReplyProtocol {
+	private static Logger log = Logger.getLogger(StreamProtocol.class.getName());
+	
+	public static final String protocolName = "StreamProtocol";
+	
+	/**
+	 * Emitted locally on the endpoint when the other endpoint opens a
+	 * stream. If there is no callback for it, the stream is closed again.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Stream}</li>
+	 * </ul>
+	 */
+	public static final String streamOpened = "STREAM_OPENED";
+	
+	/**
+	 * Characters of events that the other endpoint may send on a stream
+	 * before they are handled here, for streams opened from now on.
+	 */
+	public int window = 256*1024;
+	
+	public volatile boolean stopped=false;
+	
+	/**
+	 * Open streams by id.
+	 */
+	private final Map<Long,Stream> streams = new ConcurrentHashMap<>();
+	
+	/**
+	 * Id of the next stream this endpoint opens.
+	 */
+	private final AtomicLong nextStreamId = new AtomicLong(1);
+	
+	/**
+	 * 
+	 * @param endpoint
+	 * @param manager
+	 */
+	public StreamProtocol(Endpoint endpoint, IStreamProtocolHandler manager) {
+		super(endpoint, (Manager)manager);
+	}
+	
+	/**
+	 * Open a stream to the other endpoint. Events may be emitted on it
+	 * straight away, and are sent once the other endpoint has accepted it.
+	 * @param streamName what the stream is for, which the other endpoint
+	 * can use to decide what to do with it
+	 * @return the stream, or null if the other endpoint doesn't have streams
+	 * or the endpoint has stopped
+	 */
+	public Stream openStream(String streamName) {
+		if(stopped || !endpoint.hasCapability(Endpoint.streams)) return null;
+		long streamId=nextStreamId.getAndAdd(2);
+		Stream stream=new Stream(this,streamId,streamName,0,window,endpoint.newDispatcher());
+		streams.put(streamId,stream);
+		if(!endpoint.send(new StreamOpenRequest(streamId,streamName,window))) {
+			streams.remove(streamId);
+			stream.ended();
+			return null;
+		}
+		return stream;
+	}
+	
+	/**
+	 * 
+	 * @return the number of open streams
+	 */
+	public int getNumStreams() {
+		return streams.size();
+	}
+	
+	@Override
+	public void stopProtocol() {
+		stopped=true;
+		streams.values().forEach(Stream::ended);
+		streams.clear();
+	}
+
+	@Override
+	public void startAsClient() {
+		
+	}
+
+	@Override
+	public void startAsServer() {
+		nextStreamId.set(2);
+	}
+
+	@Override
+	public void sendRequest(Message msg) {
+		if(stopped) return;
+		endpoint.send(msg);
+	}
+	
+	void sendEvent(Stream stream, String eventName, String eventData) {
+		if(stopped) return;
+		endpoint.send(new StreamDataRequest(stream.getStreamId(),eventName,eventData),
+				stream.getSendPriority());
+	}
+	
+	void sendCredit(Stream stream, int credit) {
+		sendRequest(new StreamCreditRequest(stream.getStreamId(),credit));
+	}
+	
+	/**
+	 * Close a stream at this end and tell the other endpoint, on the
+	 * stream's lane behind the events sent on it.
+	 * @param stream
+	 */
+	void closeStream(Stream stream) {
+		if(!stream.ended()) return;
+		streams.remove(stream.getStreamId());
+		if(stopped) return;
+		endpoint.send(new StreamCloseRequest(stream.getStreamId()),stream.getSendPriority());
+	}
+
+	@Override
+	public void receiveReply(Message msg) {
+		if(stopped) return;
+		try {
+			StreamOpenReply reply=(StreamOpenReply)msg;
+			Stream stream=streams.get(reply.getStreamId());
+			if(stream!=null) stream.addCredit(reply.getWindow());
+		} catch (NumberFormatException e) {
+			log.severe("bad stream open reply from "+endpoint.getOtherEndpointId());
+			manager.protocolViolation(endpoint,this);
+		}
+	}
+
+	@Override
+	public void receiveRequest(Message msg) {
+		if(stopped) return;
+		try {
+			if(msg instanceof StreamDataRequest) {
+				StreamDataRequest request=(StreamDataRequest)msg;
+				Stream stream=streams.get(request.getStreamId());
+				// dropped if we closed the stream while it was on its way
+				if(stream!=null) stream.receive(request.getEventName(),request.getEventData());
+			} else if(msg instanceof StreamCreditRequest) {
+				StreamCreditRequest request=(StreamCreditRequest)msg;
+				Stream stream=streams.get(request.getStreamId());
+				if(stream!=null) stream.addCredit(request.getCredit());
+			} else if(msg instanceof StreamOpenRequest) {
+				receiveOpen((StreamOpenRequest)msg);
+			} else if(msg instanceof StreamCloseRequest) {
+				Stream stream=streams.remove(((StreamCloseRequest)msg).getStreamId());
+				if(stream!=null) stream.ended();
+			}
+		} catch (NumberFormatException e) {
+			log.severe("bad "+msg.getName()+" from "+endpoint.getOtherEndpointId());
+			manager.protocolViolation(endpoint,this);
+		}
+	}
+	
+	/**
+	 * Accept a stream and announce it on the stream's own worker, so that
+	 * its first events are handled after the callbacks for {@link #streamOpened}
+	 * have had a chance to add callbacks for them.
+	 * @param request
+	 */
+	private void receiveOpen(StreamOpenRequest request) {
+		long streamId=request.getStreamId();
+		int credit=request.getWindow();
+		if((streamId&1)==(nextStreamId.get()&1) || credit<0) {
+			log.severe("stream "+streamId+" can't be opened by "+endpoint.getOtherEndpointId());
+			manager.protocolViolation(endpoint,this);
+			return;
+		}
+		Stream stream=new Stream(this,streamId,request.getStreamName(),credit,window,endpoint.newDispatcher());
+		if(streams.putIfAbsent(streamId,stream)!=null) {
+			log.severe("stream "+streamId+" opened twice by "+endpoint.getOtherEndpointId());
+			manager.protocolViolation(endpoint,this);
+			return;
+		}
+		endpoint.send(new StreamOpenReply(streamId,window));
+		stream.dispatch(()->{
+			if(!endpoint.localEmit(streamOpened,stream)) {
+				log.warning("no callbacks for stream "+request.getStreamName()+", closing it");
+				stream.close();
+			}
+		});
+	}
+
+	@Override
+	public void sendReply(Message msg) {
+		
+	}
+	
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+}
@@ -0,0 +1,63 @@
+package pb.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between attempts to reconnect, which grow exponentially from an
+ * initial delay up to a maximum. Each delay is chosen at random between
+ * half of the current delay and all of it, so that clients that lost
+ * their connections at the same time, e.g. because the server restarted,
+ * don't all come back at the same moment. Each client should have its own.
+ */
+public class Backoff {
+
+	private final long initialDelay;
+
+	private final long maxDelay;
+
+	private final double multiplier;
+
+	/**
+	 * The delay that the next call to {@link #nextDelay()} is jittered from.
+	 */
+	private long delay;
+
+	/**
+	 * Backoff from 1 second up to 30 seconds, doubling each time.
+	 */
+	public Backoff() {
+		this(1000,30000,2.0);
+	}
+
+	/**
+	 *
+	 * @param initialDelay in ms, before the first attempt after a reset
+	 * @param maxDelay in ms, that the delay grows to at most
+	 * @param multiplier that the delay grows by after each attempt, at least 1
+	 */
+	public Backoff(long initialDelay, long maxDelay, double multiplier) {
+		if(initialDelay<=0 || maxDelay<initialDelay || multiplier<1)
+			throw new IllegalArgumentException("backoff must grow from a positive delay");
+		this.initialDelay=initialDelay;
+		this.maxDelay=maxDelay;
+		this.multiplier=multiplier;
+		delay=initialDelay;
+	}
+
+	/**
+	 *
+	 * @return the delay in ms to wait before the next attempt
+	 */
+	public synchronized long nextDelay() {
+		long current=delay;
+		delay=(long)Math.min(maxDelay,current*multiplier);
+		return current/2+ThreadLocalRandom.current().nextLong(current-current/2+1);
+	}
+
+	/**
+	 * Start again from the initial delay, e.g. once connected.
+	 */
+	public synchronized void reset() {
+		delay=initialDelay;
+	}
+}
@@ -0,0 +1,227 @@
+package pb.utils;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of bytes, meant to be kept and reused for many messages
+ * rather than allocated for each one, e.g. one per thread. Strings are
+ * written in UTF-8 directly, without an intermediate byte array.
+ */
+public class ByteBuilder {
+
+	private byte[] bytes;
+
+	private int size=0;
+
+	private final int initialCapacity;
+
+	public ByteBuilder(int capacity) {
+		bytes=new byte[capacity];
+		initialCapacity=capacity;
+	}
+
+	/**
+	 * Forget what was written, keeping the array unless it has grown
+	 * beyond the given size, e.g. after one unusually large message.
+	 * @param maxRetained largest array to keep
+	 */
+	public void reset(int maxRetained) {
+		size=0;
+		if(bytes.length>maxRetained) bytes=new byte[initialCapacity];
+	}
+
+	/**
+	 * Forget what was written, keeping the array.
+	 */
+	public void reset() {
+		size=0;
+	}
+
+	/**
+	 *
+	 * @return the array that has been written to, only valid up to
+	 * {@link #size()}
+	 */
+	public byte[] array() {
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return a copy of the bytes written
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes,size);
+	}
+
+	private void ensure(int more) {
+		if(size+more>bytes.length) {
+			bytes=Arrays.copyOf(bytes,Math.max(bytes.length*2,size+more));
+		}
+	}
+
+	public void put(byte b) {
+		ensure(1);
+		bytes[size++]=b;
+	}
+
+	public void put(byte[] b, int offset, int length) {
+		ensure(length);
+		System.arraycopy(b,offset,bytes,size,length);
+		size+=length;
+	}
+
+	/**
+	 * Put only the low byte of each character, for text known to be ASCII.
+	 * @param ascii
+	 */
+	public void putAscii(String ascii) {
+		int length=ascii.length();
+		ensure(length);
+		for(int i=0;i<length;i++) {
+			bytes[size++]=(byte)ascii.charAt(i);
+		}
+	}
+
+	/**
+	 * Put a number as ASCII decimal digits, as {@link Long#toString(long)}
+	 * would but without making a string.
+	 * @param value
+	 */
+	public void putDecimal(long value) {
+		if(value==Long.MIN_VALUE) {
+			putAscii(Long.toString(value));
+			return;
+		}
+		ensure(20);
+		if(value<0) {
+			bytes[size++]='-';
+			value=-value;
+		}
+		int start=size;
+		do {
+			bytes[size++]=(byte)('0'+value%10);
+			value/=10;
+		} while(value!=0);
+		// the digits went in backwards
+		for(int i=start,j=size-1;i<j;i++,j--) {
+			byte b=bytes[i];
+			bytes[i]=bytes[j];
+			bytes[j]=b;
+		}
+	}
+
+	/**
+	 * Put an unsigned varint, seven bits per byte, least significant first.
+	 * @param value
+	 */
+	public void putVarint(long value) {
+		ensure(10);
+		while((value & ~0x7fL)!=0) {
+			bytes[size++]=(byte)((value & 0x7f) | 0x80);
+			value>>>=7;
+		}
+		bytes[size++]=(byte)value;
+	}
+
+	/**
+	 * Put a string in UTF-8. Unpaired surrogates become '?', as they
+	 * do with {@link String#getBytes(java.nio.charset.Charset)}.
+	 * @param s
+	 */
+	public void putUtf8(CharSequence s) {
+		putUtf8(s,0,s.length());
+	}
+
+	/**
+	 * Put part of a string in UTF-8.
+	 * @param s
+	 * @param start first character
+	 * @param end one past the last character
+	 */
+	public void putUtf8(CharSequence s, int start, int end) {
+		ensure(3*(end-start));
+		byte[] bytes=this.bytes;
+		int size=this.size;
+		for(int i=start;i<end;i++) {
+			char c=s.charAt(i);
+			if(c<0x80) {
+				bytes[size++]=(byte)c;
+			} else if(c<0x800) {
+				bytes[size++]=(byte)(0xc0 | (c>>6));
+				bytes[size++]=(byte)(0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp=Character.toCodePoint(c,s.charAt(++i));
+				bytes[size++]=(byte)(0xf0 | (cp>>18));
+				bytes[size++]=(byte)(0x80 | ((cp>>12) & 0x3f));
+				bytes[size++]=(byte)(0x80 | ((cp>>6) & 0x3f));
+				bytes[size++]=(byte)(0x80 | (cp & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				bytes[size++]='?';
+			} else {
+				bytes[size++]=(byte)(0xe0 | (c>>12));
+				bytes[size++]=(byte)(0x80 | ((c>>6) & 0x3f));
+				bytes[size++]=(byte)(0x80 | (c & 0x3f));
+			}
+		}
+		this.size=size;
+	}
+
+	/**
+	 * Put part of a string in modified UTF-8, as used by
+	 * {@link java.io.DataOutputStream#writeUTF(String)}: the same as UTF-8
+	 * except that '\0' takes two bytes and each half of a surrogate pair
+	 * is encoded on its own.
+	 * @param s
+	 * @param start first character
+	 * @param end one past the last character
+	 */
+	public void putModifiedUtf8(CharSequence s, int start, int end) {
+		ensure(3*(end-start));
+		byte[] bytes=this.bytes;
+		int size=this.size;
+		for(int i=start;i<end;i++) {
+			char c=s.charAt(i);
+			if(c>0 && c<0x80) {
+				bytes[size++]=(byte)c;
+			} else if(c<0x800) {
+				bytes[size++]=(byte)(0xc0 | (c>>6));
+				bytes[size++]=(byte)(0x80 | (c & 0x3f));
+			} else {
+				bytes[size++]=(byte)(0xe0 | (c>>12));
+				bytes[size++]=(byte)(0x80 | ((c>>6) & 0x3f));
+				bytes[size++]=(byte)(0x80 | (c & 0x3f));
+			}
+		}
+		this.size=size;
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return the number of bytes that s takes in UTF-8
+	 */
+	public static int utf8Length(CharSequence s) {
+		int length=0;
+		int n=s.length();
+		for(int i=0;i<n;i++) {
+			char c=s.charAt(i);
+			if(c<0x80) length+=1;
+			else if(c<0x800) length+=2;
+			else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				length+=4;
+				i++;
+			} else if(Character.isSurrogate(c)) length+=1;
+			else length+=3;
+		}
+		return length;
+	}
+}
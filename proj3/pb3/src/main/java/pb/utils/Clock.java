@@ -0,0 +1,86 @@
+package pb.utils;
+
+import java.util.concurrent.Executor;
+
+import pb.protocols.ICallback;
+
+/**
+ * Where the time comes from, for everything that times out or measures
+ * time, and what calls back when a timeout expires. The system uses one
+ * clock, given by {@link Utils#getClock()}, which is normally a
+ * {@link TimerWheel} on the real time. A {@link VirtualClock} can be put
+ * in its place with {@link Utils#setClock(Clock)}, so that tests can move
+ * time on by minutes in an instant, e.g. to see keep alives and sessions
+ * time out.
+ *
+ * @see {@link pb.utils.TimerWheel}
+ * @see {@link pb.utils.VirtualClock}
+ */
+public abstract class Clock {
+
+	/**
+	 *
+	 * @return milliseconds since the epoch, for times that are compared
+	 * between peers or shown to people
+	 */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 *
+	 * @return nanoseconds since some fixed but arbitrary time, for
+	 * measuring how long things take
+	 */
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Block the calling thread for a while.
+	 * @param millis
+	 * @throws InterruptedException
+	 */
+	public void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	/**
+	 * Call a method after a delay. Safe to call from any thread.
+	 * @param callback the method to call
+	 * @param delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 * @throws IllegalStateException if the clock has been stopped
+	 */
+	public abstract Timeout newTimeout(ICallback callback, long delay);
+
+	/**
+	 * Called by {@link Timeout#cancel()}.
+	 * @param timeout
+	 */
+	abstract void cancelled(Timeout timeout);
+
+	/**
+	 *
+	 * @return the number of timeouts that have neither expired nor been cancelled
+	 */
+	public abstract long getPending();
+
+	/**
+	 *
+	 * @return the number of expired timeouts whose callbacks are waiting
+	 * for the executor or running
+	 */
+	public abstract long getBacklog();
+
+	/**
+	 * Use a different executor for callbacks from now on.
+	 * @param executor
+	 */
+	public abstract void setExecutor(Executor executor);
+
+	/**
+	 * Stop the clock. Timeouts that have not expired are dropped.
+	 */
+	public abstract void stop();
+}
@@ -1,59 +1,84 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import pb.jfr.EventEmitted;
 import pb.protocols.event.IEventCallback;
+import pb.protocols.event.IWildcardCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. The callbacks for each event are kept in an
+ * array that is replaced, never changed, when callbacks are added or
+ * removed. So emitting takes no locks: it calls the callbacks that were
+ * registered when it started, and callbacks may emit, add or remove
+ * callbacks themselves, on this or any other eventable, without risk of
+ * deadlock. Events emitted by different threads may be delivered at the
+ * same time.
+ * <br/>
+ * Callbacks for every event are better added with
+ * {@link #onAny(IWildcardCallback)} than for the special event name "*",
+ * since they get the event name separately and the arguments are not
+ * copied.
  * @author aaron
  *
  */
 public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
-	
+
 	/**
-	 * Event callbacks
+	 * Event callbacks, an event name is only present while it has at least
+	 * one callback.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
-	
+	private final ConcurrentHashMap<String,IEventCallback[]> callbacks;
+
+	private static final IWildcardCallback[] noWildcards = new IWildcardCallback[0];
+
+	/**
+	 * Callbacks for every event, replaced like the arrays in {@link #callbacks}.
+	 */
+	private volatile IWildcardCallback[] wildcards = noWildcards;
+
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
-	 * for event name, and to all callbacks registered for special
-	 * event "*".
+	 * for event name, to all callbacks registered for special
+	 * event "*" and to all wildcard callbacks.
 	 * @param eventName event name
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
-			hit=true;
+	public boolean emit(String eventName, Object... args) {
+		EventEmitted event=new EventEmitted();
+		event.begin();
+		int listeners=0;
+		IWildcardCallback[] any=wildcards;
+		if(any.length>0) {
+			for(IWildcardCallback callback : any) callback.callback(eventName,args);
+			listeners+=any.length;
 		}
-		if(localEmit(eventName,args)) hit=true;
-		if(!hit)log.warning("no callbacks for event: "+eventName);
-		return hit;
+		IEventCallback[] all=callbacks.get("*");
+		if(all!=null) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			for(IEventCallback callback : all) callback.callback(newargs);
+			listeners+=all.length;
+		}
+		listeners+=callNamed(eventName,args);
+		recordEmit(event,eventName,listeners,false);
+		if(listeners==0)log.warning("no callbacks for event: "+eventName);
+		return listeners>0;
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name.
@@ -61,17 +86,37 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
-		}
-		return hit;
+	public boolean localEmit(String eventName, Object... args) {
+		EventEmitted event=new EventEmitted();
+		event.begin();
+		int listeners=callNamed(eventName,args);
+		recordEmit(event,eventName,listeners,true);
+		return listeners>0;
 	}
 	
+	/**
+	 * Call the callbacks registered for the event name.
+	 * @param eventName
+	 * @param args
+	 * @return the number of callbacks called
+	 */
+	private int callNamed(String eventName, Object[] args) {
+		IEventCallback[] named=callbacks.get(eventName);
+		if(named==null) return 0;
+		for(IEventCallback callback : named) callback.callback(args);
+		return named.length;
+	}
+	
+	private static void recordEmit(EventEmitted event, String eventName, int listeners, boolean local) {
+		event.end();
+		if(event.shouldCommit()) {
+			event.eventName=eventName;
+			event.listeners=listeners;
+			event.local=local;
+			event.commit();
+		}
+	}
+
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +124,151 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
+	public Eventable on(String eventName, IEventCallback callback) {
+		add(eventName,callback);
+		return this;
+	}
+
+	/**
+	 * Add a callback that is removed the first time the event is emitted,
+	 * so it is called at most once.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return this event handler for chaining
+	 */
+	public Eventable once(String eventName, IEventCallback callback) {
+		add(eventName,new Once(eventName,callback));
+		return this;
+	}
+
+	/**
+	 * Add a callback for an event, like {@link #on(String, IEventCallback)}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return a subscription that removes the callback when cancelled
+	 */
+	public Subscription subscribe(String eventName, IEventCallback callback) {
+		add(eventName,callback);
+		return ()->remove(eventName,callback);
+	}
+
+	/**
+	 * Remove a callback for an event, added with
+	 * {@link #on(String, IEventCallback)} or {@link #once(String, IEventCallback)}.
+	 * If it was added more than once, only one is removed.
+	 * @param eventName event name
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		return remove(eventName,callback);
+	}
+
+	/**
+	 * Remove all of the callbacks for an event.
+	 * @param eventName event name
+	 * @return true if there were any callbacks
+	 */
+	public boolean off(String eventName) {
+		return callbacks.remove(eventName)!=null;
+	}
+
+	/**
+	 * Add a callback for every event emitted, but not for events that are
+	 * only emitted locally.
+	 * @param callback callback to handle events
+	 * @return this event handler for chaining
+	 */
+	public Eventable onAny(IWildcardCallback callback) {
+		synchronized(callbacks) {
+			IWildcardCallback[] added=Arrays.copyOf(wildcards,wildcards.length+1);
+			added[wildcards.length]=callback;
+			wildcards=added;
 		}
-		callbacks.get(eventName).add(callback);
 		return this;
 	}
+
+	/**
+	 * Remove a callback added with {@link #onAny(IWildcardCallback)}. If it
+	 * was added more than once, only one is removed.
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean offAny(IWildcardCallback callback) {
+		synchronized(callbacks) {
+			IWildcardCallback[] old=wildcards;
+			for(int i=0;i<old.length;i++) {
+				if(old[i]==callback) {
+					IWildcardCallback[] left=old.length==1 ? noWildcards : new IWildcardCallback[old.length-1];
+					System.arraycopy(old,0,left,0,i);
+					System.arraycopy(old,i+1,left,i,old.length-i-1);
+					wildcards=left;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add this eventable's callbacks to another, for each event that the
+	 * other has no callbacks for yet, e.g. to carry an application's
+	 * callbacks over to a new endpoint for the same session. Wildcard
+	 * callbacks are not added.
+	 * @param other eventable to add the callbacks to
+	 */
+	public void copyCallbacksTo(Eventable other) {
+		callbacks.forEach((eventName,named)->{
+			other.callbacks.putIfAbsent(eventName,named);
+		});
+	}
+
+	private void add(String eventName, IEventCallback callback) {
+		callbacks.merge(eventName,new IEventCallback[] {callback},(old,one)->{
+			IEventCallback[] added=Arrays.copyOf(old,old.length+1);
+			added[old.length]=callback;
+			return added;
+		});
+	}
+
+	private boolean remove(String eventName, IEventCallback callback) {
+		boolean[] removed=new boolean[1];
+		callbacks.computeIfPresent(eventName,(name,old)->{
+			for(int i=0;i<old.length;i++) {
+				if(old[i]==callback || (old[i] instanceof Once && ((Once)old[i]).callback==callback)) {
+					removed[0]=true;
+					if(old.length==1) return null;
+					IEventCallback[] left=new IEventCallback[old.length-1];
+					System.arraycopy(old,0,left,0,i);
+					System.arraycopy(old,i+1,left,i,old.length-i-1);
+					return left;
+				}
+			}
+			return old;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * A callback that removes itself before it is first called. Two threads
+	 * may emit the event at the same time, so it also makes sure it is
+	 * only called once.
+	 */
+	private final class Once implements IEventCallback {
+		private final String eventName;
+		private final IEventCallback callback;
+		private final AtomicBoolean called=new AtomicBoolean(false);
+
+		Once(String eventName, IEventCallback callback) {
+			this.eventName=eventName;
+			this.callback=callback;
+		}
+
+		@Override
+		public void callback(Object... args) {
+			if(!called.compareAndSet(false,true)) return;
+			remove(eventName,this);
+			callback.callback(args);
+		}
+	}
 }
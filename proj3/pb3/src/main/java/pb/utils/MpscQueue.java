@@ -0,0 +1,84 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free, multi-producer single-consumer queue. Any number
+ * of threads may {@link #offer(Object)} at the same time without blocking,
+ * but only one thread at a time may use {@link #poll()}, {@link #peek()} and
+ * {@link #isEmpty()}. Based on Dmitry Vyukov's non-intrusive MPSC node
+ * queue: a producer swaps itself in as the tail and then links the previous
+ * tail to itself, so for a brief moment the consumer may see the queue as
+ * empty even though an offer has begun. Users must therefore arrange for
+ * the producer to re-check after offering, see
+ * {@link pb.managers.endpoint.OutboundQueue}.
+ *
+ * @param <T> the type of the elements
+ */
+public class MpscQueue<T> {
+
+	private static final class Node<T> {
+		volatile Node<T> next;
+		T value;
+
+		Node(T value) {
+			this.value=value;
+		}
+	}
+
+	/**
+	 * Most recently offered node, swapped by producers.
+	 */
+	private final AtomicReference<Node<T>> tail;
+
+	/**
+	 * A stub node, whose next node is the head of the queue. Only the
+	 * consumer uses this.
+	 */
+	private Node<T> head;
+
+	public MpscQueue() {
+		head=new Node<T>(null);
+		tail=new AtomicReference<>(head);
+	}
+
+	/**
+	 * Add a value to the tail of the queue. Safe to call from any thread.
+	 * @param value must not be null
+	 */
+	public void offer(T value) {
+		Node<T> node = new Node<T>(value);
+		Node<T> prev = tail.getAndSet(node);
+		prev.next=node;
+	}
+
+	/**
+	 * Remove the value at the head of the queue. Consumer only.
+	 * @return the value, or null if the queue is (or appears to be) empty
+	 */
+	public T poll() {
+		Node<T> next = head.next;
+		if(next==null) return null;
+		T value = next.value;
+		next.value=null;
+		head=next;
+		return value;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return the value at the head of the queue without removing it, or null
+	 */
+	public T peek() {
+		Node<T> next = head.next;
+		return next==null ? null : next.value;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return true if there is nothing to poll
+	 */
+	public boolean isEmpty() {
+		return head.next==null;
+	}
+}
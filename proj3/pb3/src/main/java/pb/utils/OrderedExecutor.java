@@ -0,0 +1,87 @@
+package pb.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on a pool that
+ * is shared with other ordered executors. So each one behaves like its own
+ * single thread, but threads are only used while there are tasks. A task
+ * that blocks holds up the tasks after it, but not those of other ordered
+ * executors.
+ * <br/>
+ * After {@link #maxTasksPerRun} tasks the executor gives its thread back to
+ * the pool and queues itself again, so that a busy one can't keep others
+ * waiting when the pool is bounded.
+ */
+public class OrderedExecutor implements Executor {
+	private static Logger log = Logger.getLogger(OrderedExecutor.class.getName());
+
+	private static final int maxTasksPerRun = 64;
+
+	private final Executor pool;
+
+	private final MpscQueue<Runnable> tasks;
+
+	/**
+	 * Whether a run has been handed to the pool and has not finished.
+	 */
+	private final AtomicBoolean running;
+
+	/**
+	 *
+	 * @param pool to run tasks on
+	 */
+	public OrderedExecutor(Executor pool) {
+		this.pool=pool;
+		tasks=new MpscQueue<>();
+		running=new AtomicBoolean(false);
+	}
+
+	/**
+	 * Run a task after all of the tasks given before it. Safe to call from
+	 * any thread.
+	 * @param task
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if(!running.compareAndSet(false,true)) return;
+		try {
+			pool.execute(this::run);
+		} catch (RejectedExecutionException e) {
+			running.set(false);
+			log.warning("ordered tasks rejected: "+e.getMessage());
+		}
+	}
+
+	private void run() {
+		try {
+			for(int i=0;i<maxTasksPerRun;i++) {
+				Runnable task=tasks.poll();
+				if(task==null) break;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE,"ordered task failed",e);
+				} catch (Error e) {
+					// the pool thread dies, but the tasks after it still run
+					log.log(Level.SEVERE,"ordered task failed",e);
+					throw e;
+				}
+			}
+		} finally {
+			running.set(false);
+			// a task may have been added after the last poll but before running
+			// was cleared, in which case nobody else will schedule it
+			if(!tasks.isEmpty()) schedule();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package pb.utils;
+
+/**
+ * A token bucket, which allows things at up to a given rate on average
+ * with bursts of up to a second's worth. Safe to use from any thread. Tokens are added as time passes
+ * when the bucket is used, so an idle limiter costs nothing.
+ */
+public class RateLimiter {
+
+	private final double perSecond;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	/**
+	 *
+	 * @param perSecond things allowed per second, positive
+	 */
+	public RateLimiter(double perSecond) {
+		if(perSecond<=0) throw new IllegalArgumentException("rate must be positive");
+		this.perSecond=perSecond;
+		tokens=perSecond;
+		lastRefill=Utils.getInstance().nanoTime();
+	}
+
+	public double getRate() {
+		return perSecond;
+	}
+
+	/**
+	 *
+	 * @param n things to allow
+	 * @return true if they are allowed now, in which case they are counted
+	 */
+	public synchronized boolean tryAcquire(int n) {
+		refill();
+		// a batch larger than a burst waits for a full bucket and goes into debt
+		if(tokens<Math.min(n,perSecond)) return false;
+		tokens-=n;
+		return true;
+	}
+
+	/**
+	 *
+	 * @param n things to allow
+	 * @return milliseconds until {@link #tryAcquire(int)} would allow them,
+	 * 0 if it would now
+	 */
+	public synchronized long millisUntil(int n) {
+		refill();
+		double missing=Math.min(n,perSecond)-tokens;
+		return missing<=0 ? 0 : (long)Math.ceil(missing*1000/perSecond);
+	}
+
+	private void refill() {
+		long now=Utils.getInstance().nanoTime();
+		tokens=Math.min(perSecond,tokens+(now-lastRefill)*perSecond/1e9);
+		lastRefill=now;
+	}
+}
@@ -0,0 +1,14 @@
+package pb.utils;
+
+/**
+ * A callback registered with {@link Eventable#subscribe(String, pb.protocols.event.IEventCallback)},
+ * which can be removed without keeping hold of the callback itself.
+ */
+public interface Subscription {
+	/**
+	 * Stop the callback from receiving events. Safe to call from any
+	 * thread and more than once, including from inside the callback.
+	 * @return true if the callback was removed by this call
+	 */
+	public boolean cancel();
+}
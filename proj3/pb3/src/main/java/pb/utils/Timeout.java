@@ -0,0 +1,96 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A callback scheduled on a {@link Clock}, usually a {@link TimerWheel},
+ * which can be cancelled until it has expired. Cancelling is cheap, so
+ * callers are encouraged to cancel timeouts they no longer need rather
+ * than leave them to expire.
+ */
+public class Timeout {
+
+	private static final int pending=0;
+	private static final int cancelled=1;
+	private static final int expired=2;
+
+	private final Clock clock;
+
+	private final ICallback callback;
+
+	/**
+	 * Nanoseconds since the wheel started, or for a virtual clock the
+	 * virtual time in nanoseconds.
+	 */
+	final long deadline;
+
+	/**
+	 * Order in which timeouts with the same deadline expire on a virtual
+	 * clock.
+	 */
+	long sequence;
+
+	/**
+	 * Full turns of the wheel still to go once in a bucket, only used by
+	 * the wheel's thread.
+	 */
+	long remainingRounds;
+
+	/**
+	 * Links in the bucket, only used by the wheel's thread.
+	 */
+	Timeout next;
+	Timeout prev;
+	TimerWheel.Bucket bucket;
+
+	private final AtomicInteger state;
+
+	Timeout(Clock clock, ICallback callback, long deadline) {
+		this.clock=clock;
+		this.callback=callback;
+		this.deadline=deadline;
+		state=new AtomicInteger(pending);
+	}
+
+	/**
+	 * Stop the callback from being called, if it hasn't been called yet.
+	 * Safe to call from any thread and more than once.
+	 * @return true if the timeout was cancelled by this call
+	 */
+	public boolean cancel() {
+		if(!state.compareAndSet(pending,cancelled)) return false;
+		clock.cancelled(this);
+		return true;
+	}
+
+	/**
+	 *
+	 * @return true if the timeout was cancelled before it expired
+	 */
+	public boolean isCancelled() {
+		return state.get()==cancelled;
+	}
+
+	/**
+	 *
+	 * @return true if the timeout has expired, i.e. its callback has been
+	 * or is about to be called
+	 */
+	public boolean isExpired() {
+		return state.get()==expired;
+	}
+
+	/**
+	 * Called by the clock when the deadline has passed.
+	 * @return true if the callback must now be called
+	 */
+	boolean expire() {
+		return state.compareAndSet(pending,expired);
+	}
+
+	ICallback getCallback() {
+		return callback;
+	}
+}
@@ -0,0 +1,281 @@
+package pb.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed timing wheel, for scheduling very many timeouts cheaply. Time is
+ * divided into ticks, and the wheel has a bucket for each tick of one turn.
+ * A timeout goes in the bucket for the tick in which it expires, along with
+ * the number of full turns still to go, so scheduling and cancelling are
+ * both O(1). A single thread advances the wheel one bucket per tick and
+ * hands the expired timeouts to an {@link java.util.concurrent.Executor},
+ * so slow callbacks don't hold up the wheel or each other.
+ * <br/>
+ * Timeouts fire up to one tick late, which is fine for the protocol
+ * timeouts this is meant for.
+ * <br/>
+ * Threads that schedule or cancel don't touch the buckets. They add the
+ * timeout to a queue, which the wheel's thread drains on each tick.
+ * <br/>
+ * The wheel is the clock of the real time.
+ *
+ * @see {@link pb.utils.Timeout}
+ */
+public class TimerWheel extends Clock {
+	private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * Most timeouts to move into the wheel per tick, so that a burst of
+	 * scheduling can't stall the wheel.
+	 */
+	private static final int maxTransfersPerTick = 100000;
+
+	/**
+	 * Timeouts that expire in the same tick of a turn, as a doubly
+	 * linked list. Only used by the wheel's thread.
+	 */
+	static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next=timeout.next;
+			else head=timeout.next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			else tail=timeout.prev;
+			timeout.prev=null;
+			timeout.next=null;
+			timeout.bucket=null;
+		}
+	}
+
+	private final long tickNanos;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	/**
+	 * Scheduled timeouts not yet in a bucket.
+	 */
+	private final MpscQueue<Timeout> scheduled;
+
+	/**
+	 * Cancelled timeouts that may still be in a bucket.
+	 */
+	private final MpscQueue<Timeout> cancelled;
+
+	private volatile Executor executor;
+
+	private final Thread worker;
+
+	private final long startTime;
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * Timeouts that have neither expired nor been cancelled.
+	 */
+	private final LongAdder pending = new LongAdder();
+
+	/**
+	 * Callbacks of expired timeouts that have not finished running.
+	 */
+	private final LongAdder running = new LongAdder();
+
+	/**
+	 * Ticks so far, only used by the wheel's thread.
+	 */
+	private long tick=0;
+
+	/**
+	 * Create and start the wheel.
+	 * @param tickDuration in milliseconds
+	 * @param ticksPerWheel number of buckets, rounded up to a power of two
+	 * @param executor to call expired callbacks with
+	 */
+	public TimerWheel(long tickDuration, int ticksPerWheel, Executor executor) {
+		if(tickDuration<=0) throw new IllegalArgumentException("tick duration must be positive");
+		if(ticksPerWheel<=0 || ticksPerWheel>(1<<30)) throw new IllegalArgumentException("ticks per wheel out of range");
+		int size=1;
+		while(size<ticksPerWheel) size<<=1;
+		tickNanos=TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		wheel=new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i]=new Bucket();
+		mask=size-1;
+		scheduled=new MpscQueue<>();
+		cancelled=new MpscQueue<>();
+		this.executor=executor;
+		startTime=System.nanoTime();
+		worker=new Thread(this::run,"TimerWheel");
+		worker.start();
+	}
+
+	/**
+	 * Call a method after a delay. Safe to call from any thread.
+	 * @param callback the method to call
+	 * @param delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 * @throws IllegalStateException if the wheel has been stopped
+	 */
+	@Override
+	public Timeout newTimeout(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("timer wheel has been stopped");
+		long deadline=System.nanoTime()-startTime+TimeUnit.MILLISECONDS.toNanos(Math.max(delay,0));
+		if(deadline<0) deadline=Long.MAX_VALUE; // overflowed, i.e. never
+		Timeout timeout=new Timeout(this,callback,deadline);
+		pending.increment();
+		scheduled.offer(timeout);
+		return timeout;
+	}
+
+	/**
+	 *
+	 * @return the number of timeouts that have neither expired nor been cancelled
+	 */
+	@Override
+	public long getPending() {
+		return pending.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of expired timeouts whose callbacks are waiting
+	 * for the executor or running, which grows if callbacks can't keep up
+	 */
+	@Override
+	public long getBacklog() {
+		return running.sum();
+	}
+
+	/**
+	 * Use a different executor for callbacks from now on.
+	 * @param executor
+	 */
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	/**
+	 * Stop the wheel. Timeouts that have not expired are dropped.
+	 */
+	@Override
+	public void stop() {
+		stopped=true;
+		worker.interrupt();
+	}
+
+	@Override
+	void cancelled(Timeout timeout) {
+		pending.decrement();
+		if(!stopped) cancelled.offer(timeout);
+	}
+
+	private void run() {
+		while(!stopped) {
+			long now=waitForNextTick();
+			if(now<0) break;
+			removeCancelled();
+			transferScheduled();
+			expire(wheel[(int)(tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleep until the current tick is over.
+	 * @return the time since the wheel started in nanoseconds, or -1 if the
+	 * wheel was stopped
+	 */
+	private long waitForNextTick() {
+		long deadline=tickNanos*(tick+1);
+		while(true) {
+			long now=System.nanoTime()-startTime;
+			long sleep=TimeUnit.NANOSECONDS.toMillis(deadline-now+999999);
+			if(sleep<=0) return now;
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				if(stopped) return -1;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void transferScheduled() {
+		for(int i=0;i<maxTransfersPerTick;i++) {
+			Timeout timeout=scheduled.poll();
+			if(timeout==null) break;
+			if(timeout.isCancelled()) continue;
+			long expiryTick=timeout.deadline/tickNanos;
+			timeout.remainingRounds=(expiryTick-tick)/wheel.length;
+			// if it should already have expired, it goes in this tick's bucket
+			wheel[(int)(Math.max(expiryTick,tick) & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Expire every timeout in the bucket that is in its last turn.
+	 * @param bucket of the current tick
+	 */
+	private void expire(Bucket bucket) {
+		Timeout timeout=bucket.head;
+		while(timeout!=null) {
+			Timeout next=timeout.next;
+			if(timeout.remainingRounds<=0) {
+				bucket.remove(timeout);
+				if(timeout.expire()) {
+					pending.decrement();
+					call(timeout.getCallback());
+				}
+			} else if(timeout.isCancelled()) {
+				bucket.remove(timeout);
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout=next;
+		}
+	}
+
+	private void call(ICallback callback) {
+		running.increment();
+		try {
+			executor.execute(()->{
+				try {
+					callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("timeout callback failed: "+e);
+				} finally {
+					running.decrement();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			running.decrement();
+			log.warning("timeout callback rejected: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package pb.utils;
+
+import java.lang.invoke.VarHandle;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * A singleton record of recent messages sent and received by endpoints,
+ * kept in memory instead of logging each one. It must always be accessed
+ * statically as Tracer.getInstance()...
+ * <br/>
+ * A sample of the messages, one in {@link #getSampling()} on average, is
+ * recorded into a ring buffer that holds the latest {@link #capacity}
+ * records, which is printed by {@link #dump(String)} on demand, and
+ * logged when an endpoint fails if {@link #setDumpOnError(boolean)}.
+ * Recording takes no locks and allocates nothing: each slot of the ring
+ * is stamped with the sequence number of its record once written, so a
+ * dump skips slots that are being overwritten while it reads them.
+ * <br/>
+ * Use it like:
+ * <code>
+ * if(tracer.sample()) tracer.record(Tracer.sent,id,protocol,name,size);
+ * </code>
+ */
+public class Tracer {
+	private static Logger log = Logger.getLogger(Tracer.class.getName());
+
+	private static class Holder {
+		private static final Tracer tracer = new Tracer(4096,
+				Integer.getInteger("pb.trace.sampling",10));
+	}
+
+	/**
+	 * Kinds of record.
+	 */
+	public static final byte sent=0;
+	public static final byte received=1;
+
+	public final int capacity;
+
+	private final int mask;
+
+	/**
+	 * Sequence number of the next record.
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * The sequence number of the record in each slot, or -1 while it is
+	 * being written.
+	 */
+	private final AtomicLongArray stamps;
+
+	private final long[] times;
+	private final byte[] kinds;
+	private final String[] endpoints;
+	private final String[] protocols;
+	private final String[] names;
+	private final int[] sizes;
+
+	/**
+	 * Record one in this many messages, 1 for all and 0 for none.
+	 */
+	private volatile int sampling;
+
+	private volatile boolean dumpOnError=true;
+
+	/**
+	 *
+	 * @param capacity records kept, rounded up to a power of two
+	 * @param sampling record one in this many messages, 0 for none
+	 */
+	public Tracer(int capacity, int sampling) {
+		int size=1;
+		while(size<capacity) size<<=1;
+		this.capacity=size;
+		mask=size-1;
+		stamps=new AtomicLongArray(size);
+		for(int i=0;i<size;i++) stamps.set(i,-1);
+		times=new long[size];
+		kinds=new byte[size];
+		endpoints=new String[size];
+		protocols=new String[size];
+		names=new String[size];
+		sizes=new int[size];
+		setSampling(sampling);
+	}
+
+	public static Tracer getInstance() {
+		return Holder.tracer;
+	}
+
+	/**
+	 *
+	 * @param sampling record one in this many messages, 1 for all and 0
+	 * for none
+	 */
+	public void setSampling(int sampling) {
+		if(sampling<0) throw new IllegalArgumentException("sampling must not be negative");
+		this.sampling=sampling;
+	}
+
+	public int getSampling() {
+		return sampling;
+	}
+
+	/**
+	 *
+	 * @param dumpOnError whether {@link #dumpOnError(String, String)} logs
+	 * the endpoint's records, true unless set
+	 */
+	public void setDumpOnError(boolean dumpOnError) {
+		this.dumpOnError=dumpOnError;
+	}
+
+	/**
+	 *
+	 * @return true if the next message should be recorded
+	 */
+	public boolean sample() {
+		int n=sampling;
+		return n==1 || (n>1 && ThreadLocalRandom.current().nextInt(n)==0);
+	}
+
+	/**
+	 * Record a message.
+	 * @param kind {@link #sent} or {@link #received}
+	 * @param endpoint id of the other endpoint
+	 * @param protocol
+	 * @param name of the message
+	 * @param size in bytes
+	 */
+	public void record(byte kind, String endpoint, String protocol, String name, int size) {
+		long seq=next.getAndIncrement();
+		int slot=(int)(seq & mask);
+		stamps.set(slot,-1);
+		VarHandle.storeStoreFence();
+		times[slot]=System.currentTimeMillis();
+		kinds[slot]=kind;
+		endpoints[slot]=endpoint;
+		protocols[slot]=protocol;
+		names[slot]=name;
+		sizes[slot]=size;
+		stamps.set(slot,seq);
+	}
+
+	/**
+	 *
+	 * @param endpoint id of the other endpoint, or null for all
+	 * @return the records that are held for the endpoint, oldest first,
+	 * one per line
+	 */
+	public List<String> snapshot(String endpoint) {
+		SimpleDateFormat format=new SimpleDateFormat("HH:mm:ss.SSS");
+		List<String> lines=new ArrayList<>();
+		long last=next.get();
+		for(long seq=Math.max(0,last-capacity);seq<last;seq++) {
+			int slot=(int)(seq & mask);
+			if(stamps.get(slot)!=seq) continue;
+			long time=times[slot];
+			byte kind=kinds[slot];
+			String other=endpoints[slot];
+			String protocol=protocols[slot];
+			String name=names[slot];
+			int size=sizes[slot];
+			// overwritten while reading
+			VarHandle.acquireFence();
+			if(stamps.get(slot)!=seq) continue;
+			if(endpoint!=null && !endpoint.equals(other)) continue;
+			lines.add(format.format(new Date(time))+(kind==sent ? " sent " : " received ")+name
+					+" for "+protocol+(kind==sent ? " to " : " from ")+other+", "+size+" bytes");
+		}
+		return lines;
+	}
+
+	/**
+	 *
+	 * @param endpoint id of the other endpoint, or null for all
+	 * @return the records that are held for the endpoint, as text
+	 */
+	public String dump(String endpoint) {
+		return String.join("\n",snapshot(endpoint));
+	}
+
+	/**
+	 * Log the records of an endpoint that has failed, unless turned off.
+	 * @param endpoint id of the other endpoint
+	 * @param reason
+	 */
+	public void dumpOnError(String endpoint, String reason) {
+		if(!dumpOnError || sampling==0) return;
+		List<String> lines=snapshot(endpoint);
+		if(lines.isEmpty()) return;
+		log.warning(reason+", recent messages with "+endpoint+":\n"+String.join("\n",lines));
+	}
+}
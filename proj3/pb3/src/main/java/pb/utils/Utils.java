@@ -1,7 +1,7 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import pb.protocols.ICallback;
 
@@ -13,7 +13,14 @@ import pb.protocols.ICallback;
  *
  */
 public class Utils {
-	private static Utils utils;
+	
+	/**
+	 * Holds the instance, so that it is only made when first needed
+	 * without having to synchronize every call to {@link #getInstance()}.
+	 */
+	private static class Holder {
+		private static final Utils utils = new Utils();
+	}
 	
 	/**
 	 * Default server port
@@ -36,18 +43,35 @@ public class Utils {
 	public static final int chunkSize = 16*1024;
 	
 	/**
-	 * Use of a single timer object over the entire system helps
-	 * to reduce thread usage.
+	 * Duration of a tick of the timer wheel in milliseconds, timeouts
+	 * may fire up to this late.
+	 */
+	public static final int timerTick = 10;
+	
+	/**
+	 * Number of ticks in one turn of the timer wheel.
+	 */
+	public static final int timerTicksPerWheel = 512;
+	
+	/**
+	 * Use of a single timer wheel over the entire system helps
+	 * to reduce thread usage. Callbacks are called by a small pool
+	 * of threads so that they don't have to wait for each other.
+	 * The wheel is also the clock, unless another is given.
 	 */
-	private Timer timer = new Timer();
+	private volatile Clock clock;
 	
 	public Utils() {
-		timer=new Timer();
+		clock=new TimerWheel(timerTick,timerTicksPerWheel,Executors.newFixedThreadPool(
+				Math.max(2,Runtime.getRuntime().availableProcessors()),(runnable)->{
+			Thread thread = new Thread(runnable,"TimeoutCallback");
+			thread.setDaemon(true);
+			return thread;
+		}));
 	}
 	
-	public static synchronized Utils getInstance() {
-		if(utils==null) utils=new Utils();
-		return utils;
+	public static Utils getInstance() {
+		return Holder.utils;
 	}
 	
 	/**
@@ -60,23 +84,81 @@ public class Utils {
 	 * </code>
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled if the callback is no
+	 * longer needed
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return clock.newTimeout(callback,delay);
+	}
+	
+	/**
+	 * 
+	 * @return the clock that times everything, see {@link Clock}
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Use a different clock from now on, e.g. a {@link VirtualClock} to
+	 * run through timeouts faster than real time. The clock that was in
+	 * use is stopped, dropping its timeouts, so this must be called before
+	 * anything is started.
+	 * @param clock
+	 */
+	public void setClock(Clock clock) {
+		Clock previous=this.clock;
+		this.clock=clock;
+		previous.stop();
+	}
+	
+	/**
+	 * 
+	 * @return milliseconds since the epoch, by the clock
+	 */
+	public long currentTimeMillis() {
+		return clock.currentTimeMillis();
+	}
+	
+	/**
+	 * 
+	 * @return nanoseconds since some fixed but arbitrary time, by the clock
+	 */
+	public long nanoTime() {
+		return clock.nanoTime();
+	}
+	
+	/**
+	 * 
+	 * @return the number of timeouts that are waiting to expire
+	 */
+	public long getPendingTimeouts() {
+		return clock.getPending();
+	}
+	
+	/**
+	 * 
+	 * @return the number of timeout callbacks that are due but have not
+	 * finished running
+	 */
+	public long getTimeoutBacklog() {
+		return clock.getBacklog();
+	}
+	
+	/**
+	 * Use a different executor to call timeout callbacks from now on,
+	 * e.g. to call them all on a single thread.
+	 * @param executor
+	 */
+	public void setTimeoutExecutor(Executor executor) {
+		clock.setExecutor(executor);
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		clock.stop();
 	}
 }
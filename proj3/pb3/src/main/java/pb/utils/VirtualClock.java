@@ -0,0 +1,224 @@
+package pb.utils;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A clock whose time only moves when {@link #advance(long)} is called, so
+ * that minutes of keep alives, session timeouts and throttled transfers
+ * can be run through in an instant, e.g. in soak tests of thousands of
+ * sessions. Expired callbacks are called in the order of their deadlines,
+ * with the clock showing the deadline, on the thread that advances the
+ * clock unless an executor is given. Threads that sleep on the clock wake
+ * once it has been advanced far enough.
+ * <br/>
+ * Only what goes through the clock is virtual. Messages still take real
+ * time to be sent and handled, so a test should let them arrive between
+ * steps, which is quickest with a
+ * {@link pb.managers.endpoint.LoopbackTransport}.
+ *
+ * @see {@link pb.utils.Utils#setClock(Clock)}
+ */
+public class VirtualClock extends Clock {
+	private static Logger log = Logger.getLogger(VirtualClock.class.getName());
+
+	/**
+	 * Timeouts by deadline, and in the order they were set for the same
+	 * deadline. Cancelled timeouts are left in until their deadline, which
+	 * is cheaper than finding them. Guarded by this.
+	 */
+	private final PriorityQueue<Timeout> timeouts = new PriorityQueue<>(
+			Comparator.comparingLong((Timeout timeout)->timeout.deadline)
+			.thenComparingLong((timeout)->timeout.sequence));
+
+	/**
+	 * Guarded by this.
+	 */
+	private long sequence=0;
+
+	/**
+	 * What {@link #currentTimeMillis()} shows at virtual time 0.
+	 */
+	private final long epochMillis;
+
+	/**
+	 * Virtual time in nanoseconds, only changed with this held.
+	 */
+	private volatile long now=0;
+
+	/**
+	 * Held by the thread that is advancing the clock.
+	 */
+	private final Object advancing = new Object();
+
+	private final LongAdder pending = new LongAdder();
+
+	private final LongAdder running = new LongAdder();
+
+	/**
+	 * Calls the callbacks, null to call them on the advancing thread.
+	 */
+	private volatile Executor executor=null;
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * Start at the real time.
+	 */
+	public VirtualClock() {
+		this(System.currentTimeMillis());
+	}
+
+	/**
+	 *
+	 * @param epochMillis what {@link #currentTimeMillis()} starts at
+	 */
+	public VirtualClock(long epochMillis) {
+		this.epochMillis=epochMillis;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return epochMillis+TimeUnit.NANOSECONDS.toMillis(now);
+	}
+
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * Block until the clock has been advanced by at least the given time,
+	 * or stopped. Must not be called by a callback that is run on the
+	 * advancing thread.
+	 */
+	@Override
+	public void sleep(long millis) throws InterruptedException {
+		long until=now+TimeUnit.MILLISECONDS.toNanos(Math.max(millis,0));
+		synchronized(this) {
+			while(now<until && !stopped) wait();
+		}
+	}
+
+	@Override
+	public Timeout newTimeout(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("virtual clock has been stopped");
+		synchronized(this) {
+			long deadline=now+TimeUnit.MILLISECONDS.toNanos(Math.max(delay,0));
+			if(deadline<0) deadline=Long.MAX_VALUE; // overflowed, i.e. never
+			Timeout timeout=new Timeout(this,callback,deadline);
+			timeout.sequence=sequence++;
+			timeouts.add(timeout);
+			pending.increment();
+			return timeout;
+		}
+	}
+
+	@Override
+	void cancelled(Timeout timeout) {
+		pending.decrement();
+	}
+
+	/**
+	 * Move time on, calling back every timeout that expires on the way,
+	 * including those set by the callbacks themselves, and waking threads
+	 * that sleep on the clock. Returns once the callbacks that are called
+	 * on the advancing thread have returned.
+	 * @param millis to move time on by
+	 */
+	public void advance(long millis) {
+		synchronized(advancing) {
+			long target=now+TimeUnit.MILLISECONDS.toNanos(Math.max(millis,0));
+			while(!stopped) {
+				Timeout timeout;
+				synchronized(this) {
+					timeout=timeouts.peek();
+					if(timeout==null || timeout.deadline>target) {
+						moveTo(target);
+						return;
+					}
+					timeouts.poll();
+					moveTo(timeout.deadline);
+				}
+				if(timeout.expire()) {
+					pending.decrement();
+					call(timeout.getCallback());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called with this held.
+	 * @param time virtual time in nanoseconds, never earlier than now
+	 */
+	private void moveTo(long time) {
+		if(time<=now) return;
+		now=time;
+		notifyAll();
+	}
+
+	private void call(ICallback callback) {
+		running.increment();
+		Runnable task=()->{
+			try {
+				callback.callback();
+			} catch (RuntimeException e) {
+				log.severe("timeout callback failed: "+e);
+			} finally {
+				running.decrement();
+			}
+		};
+		Executor executor=this.executor;
+		if(executor==null) {
+			task.run();
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			running.decrement();
+			log.warning("timeout callback rejected: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public long getPending() {
+		return pending.sum();
+	}
+
+	@Override
+	public long getBacklog() {
+		return running.sum();
+	}
+
+	/**
+	 * Call the callbacks with an executor from now on, rather than on the
+	 * advancing thread.
+	 * @param executor or null for the advancing thread
+	 */
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	/**
+	 * Stop the clock, dropping the timeouts that have not expired and
+	 * waking threads that sleep on it.
+	 */
+	@Override
+	public void stop() {
+		stopped=true;
+		synchronized(this) {
+			timeouts.clear();
+			notifyAll();
+		}
+	}
+}